@@ -0,0 +1,78 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracks threads which are currently inside a log function, so that a replaced function can be disposed
+ * only after all threads which could have seen it are done with it (a simple form of read-copy-update).
+ *
+ * Writers increment a counter of the current epoch on {@link #enter()} and decrement the same counter on {@link #exit(int)}.
+ * The epoch is checked again after the increment, so that a writer is never counted in an epoch which was already drained.
+ * Counters are striped by thread and padded to separate cache lines, so that writers do not contend with each other.
+ * Writers never block, only {@link #awaitQuiescence()} does.
+ */
+final class InFlightTracker {
+
+    private static final int STRIPES;
+    static {
+        int stripes = 1;
+        final int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors * 2 && stripes < 64) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+    /** 16 longs = 128 bytes, enough to keep the counters on separate cache lines, even with adjacent line prefetch */
+    private static final int PADDING = 16;
+
+    private final @NotNull AtomicLongArray counters = new AtomicLongArray(2 * STRIPES * PADDING);
+    private volatile int epoch = 0;
+
+    /** @return token which must be passed to {@link #exit(int)} */
+    int enter() {
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        final AtomicLongArray counters = this.counters;
+        while (true) {
+            final int epoch = this.epoch;
+            final int index = ((epoch & 1) * STRIPES + stripe) * PADDING;
+            counters.getAndIncrement(index);
+            // When the epoch changed between the read and the increment, the counter may have been
+            // already checked by awaitQuiescence, which would then not wait for this thread. Retry in the new epoch.
+            if (this.epoch == epoch) {
+                return index;
+            }
+            counters.getAndDecrement(index);
+        }
+    }
+
+    void exit(int token) {
+        counters.getAndDecrement(token);
+    }
+
+    /**
+     * Start a new epoch and wait until all threads which have entered in the previous epoch exit.
+     * Anything published before this call is guaranteed to be visible to all threads that are still inside afterwards.
+     * Calls must be mutually exclusive and the calling thread must not be inside.
+     */
+    void awaitQuiescence() {
+        final int oldEpoch = epoch;
+        epoch = oldEpoch + 1;
+
+        final AtomicLongArray counters = this.counters;
+        final int base = (oldEpoch & 1) * STRIPES * PADDING;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            final int index = base + stripe * PADDING;
+            int spins = 0;
+            while (counters.get(index) != 0) {
+                if (spins++ < 100) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(100_000L);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.darkyen.tproll;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Lowers the log level for a single thread, for example to TRACE a single request, without changing anything for other threads.
+ * The override can only make the thread more verbose than {@link TPLogger#getLogLevel()}, never less,
+ * and it does not go below {@link TPLogger#getLevelFloor()}.
+ *
+ * Overrides are begun with {@link #begin(byte)} and must be closed on the same thread, in reverse order, preferably with try-with-resources.
+ * Tasks which run on other threads can take the override with them through {@link #wrap(byte, Runnable)}.
+ *
+ * While no thread has an override, {@link TPLogger} checks only a single static flag for messages which are not enabled,
+ * the thread local is consulted only when some override exists.
+ */
+@SuppressWarnings("unused")
+public final class LevelOverride implements AutoCloseable {
+
+    /** True while any thread has an override. Changes only while holding LOCK. */
+    static boolean active = false;
+
+    private static final @NotNull Object LOCK = new Object();
+    //region Guarded by LOCK
+    private static int count = 0;
+    //endregion
+
+    private static final @NotNull ThreadLocal<@Nullable LevelOverride> current = new ThreadLocal<>();
+
+    private final byte level;
+    /** Override which was current on this thread before this one */
+    private final @Nullable LevelOverride previous;
+    private boolean closed = false;
+
+    private LevelOverride(byte level, @Nullable LevelOverride previous) {
+        this.level = level;
+        this.previous = previous;
+    }
+
+    /**
+     * Log messages of given level and above on this thread, until the override is closed.
+     * @param level for example {@link TPLogger#TRACE}
+     */
+    public static @NotNull LevelOverride begin(byte level) {
+        final LevelOverride override = new LevelOverride(level, current.get());
+        current.set(override);
+        synchronized (LOCK) {
+            count++;
+            active = true;
+        }
+        return override;
+    }
+
+    /** @return level of the innermost override of this thread, or {@link TPLogger#LOG} if there is none */
+    public static byte currentLevel() {
+        if (!active) {
+            return TPLogger.LOG;
+        }
+        final LevelOverride override = current.get();
+        return override == null ? TPLogger.LOG : override.level;
+    }
+
+    /** @return true if the override of this thread allows messages of given level, {@link #active} should be checked first */
+    static boolean allows(byte level) {
+        final LevelOverride override = current.get();
+        return override != null && level >= override.level;
+    }
+
+    /** @return runnable which runs the task with given override, on any thread */
+    public static @NotNull Runnable wrap(byte level, @NotNull Runnable task) {
+        return () -> {
+            final LevelOverride override = begin(level);
+            try {
+                task.run();
+            } finally {
+                override.close();
+            }
+        };
+    }
+
+    /** @see #wrap(byte, Runnable) */
+    public static <T> @NotNull Callable<T> wrap(byte level, @NotNull Callable<T> task) {
+        return () -> {
+            final LevelOverride override = begin(level);
+            try {
+                return task.call();
+            } finally {
+                override.close();
+            }
+        };
+    }
+
+    /** @return runnable which runs the task with the override of this thread (if any), on any thread */
+    public static @NotNull Runnable wrapCurrent(@NotNull Runnable task) {
+        final byte level = currentLevel();
+        return level == TPLogger.LOG ? task : wrap(level, task);
+    }
+
+    public byte getLevel() {
+        return level;
+    }
+
+    /** Restore the override which was current before this one began. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        if (current.get() != this) {
+            throw new IllegalStateException("LevelOverride must be closed on the thread which began it, in reverse order");
+        }
+        closed = true;
+        // Set instead of removed, so that the entry is not allocated again by the next override
+        current.set(previous);
+        synchronized (LOCK) {
+            count--;
+            active = count > 0;
+        }
+    }
+}
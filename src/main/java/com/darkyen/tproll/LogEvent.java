@@ -0,0 +1,279 @@
+package com.darkyen.tproll;
+
+import com.darkyen.tproll.util.KeyValue;
+import com.darkyen.tproll.util.LogContext;
+import com.darkyen.tproll.util.PrettyPrinter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Single log message, with the same information as the parameters of
+ * {@link LogFunction#log(String, long, int, long, byte, Marker, CharSequence)}.
+ * Used to pass more messages at once, through {@link LogFunction#logBatch(LogEvent[], int, int)}.
+ *
+ * Events created by {@link TPLogger} and passed to {@link LogFunction#logEvent(LogEvent)} also carry
+ * the structure of the message: template, raw arguments, throwable, {@link KeyValue key-values}, thread
+ * and its {@link LogContext context}.
+ * Their content is formatted only when {@link #getContent()} is called.
+ *
+ * Events are mutable, so that they can be reused by whoever creates them.
+ * Log functions must not keep them (or their content and arguments) around.
+ */
+@SuppressWarnings("unused")
+public final class LogEvent {
+
+    private @NotNull String name = "";
+    private long time;
+    private int nanoAdjust;
+    private long sequence;
+    private byte level;
+    private @Nullable Marker marker;
+    /** Null until formatted, when there is a template */
+    private @Nullable CharSequence content = "";
+    private @Nullable String template;
+    private @NotNull List<@Nullable Object> arguments = Collections.emptyList();
+    private @Nullable Thread thread;
+    private @Nullable String threadName;
+    private @NotNull LogContext context = LogContext.EMPTY;
+
+    private boolean keyValuesCollected = true;
+    private final @NotNull ArrayList<@NotNull KeyValue> keyValues = new ArrayList<>();
+    /** Formatted content of a template, created when needed */
+    private @Nullable StringBuilder rendered;
+    /** Copy of arguments for {@link PrettyPrinter#patternSubstituteInto(StringBuilder, CharSequence, List)}, which clears them */
+    private @Nullable ArrayList<@Nullable Object> renderArguments;
+
+    public LogEvent() {
+    }
+
+    public LogEvent(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        set(name, time, nanoAdjust, sequence, level, marker, content);
+    }
+
+    /**
+     * Set the message with already formatted content. Template, arguments and thread are cleared.
+     * @return this
+     */
+    public @NotNull LogEvent set(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        setCommon(name, time, nanoAdjust, sequence, level, marker);
+        this.content = content;
+        this.template = null;
+        this.arguments = Collections.emptyList();
+        return this;
+    }
+
+    /**
+     * Set the message which is not formatted yet. Thread is cleared.
+     * @param arguments substituted into the template, not copied, so they must not change while the event is in use
+     * @return this
+     */
+    public @NotNull LogEvent setTemplate(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull String template, @NotNull List<@Nullable Object> arguments) {
+        setCommon(name, time, nanoAdjust, sequence, level, marker);
+        this.content = null;
+        this.template = template;
+        this.arguments = arguments;
+        this.keyValuesCollected = false;
+        return this;
+    }
+
+    private void setCommon(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker) {
+        this.name = name;
+        this.time = time;
+        this.nanoAdjust = nanoAdjust;
+        this.sequence = sequence;
+        this.level = level;
+        this.marker = marker;
+        this.thread = null;
+        this.threadName = null;
+        this.context = LogContext.EMPTY;
+        this.keyValues.clear();
+        this.keyValuesCollected = true;
+    }
+
+    /**
+     * @param thread on which the message was logged
+     * @return this
+     */
+    public @NotNull LogEvent setThread(@Nullable Thread thread) {
+        this.thread = thread;
+        this.threadName = null;
+        return this;
+    }
+
+    /**
+     * For messages whose thread is known only by name, for example when read from a file.
+     * @return this
+     */
+    public @NotNull LogEvent setThreadName(@Nullable String threadName) {
+        this.thread = null;
+        this.threadName = threadName;
+        return this;
+    }
+
+    /**
+     * @param context of the thread on which the message was logged, its entries are the first {@link #getKeyValues() key-values}
+     * @return this
+     */
+    public @NotNull LogEvent setContext(@NotNull LogContext context) {
+        if (keyValuesCollected) {
+            // Otherwise they are added when collected
+            if (!this.context.isEmpty()) {
+                keyValues.subList(0, this.context.size()).clear();
+            }
+            for (int i = 0; i < context.size(); i++) {
+                keyValues.add(i, context.entry(i));
+            }
+        }
+        this.context = context;
+        return this;
+    }
+
+    /** Add key-value pair, in addition to those in the arguments. */
+    public void addKeyValue(@NotNull KeyValue keyValue) {
+        collectKeyValues();
+        keyValues.add(keyValue);
+    }
+
+    /** Forget the arguments and content, so that they can be collected. Event can be set again. */
+    public void clear() {
+        set("", 0L, 0, 0L, (byte) 0, null, "");
+        final StringBuilder rendered = this.rendered;
+        if (rendered != null) {
+            rendered.setLength(0);
+        }
+    }
+
+    /** @return name of the logger */
+    public @NotNull String getName() {
+        return name;
+    }
+
+    /** @return time in ms since start of the app or since 1970 */
+    public long getTime() {
+        return time;
+    }
+
+    /** @return nanoseconds to add to time, 0 to 999 999 */
+    public int getNanoAdjust() {
+        return nanoAdjust;
+    }
+
+    /** @return sequence number of the message, 0 if not known */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public byte getLevel() {
+        return level;
+    }
+
+    public @Nullable Marker getMarker() {
+        return marker;
+    }
+
+    /**
+     * Formats the template with arguments on the first call, if the event has them.
+     * @return formatted content of the message, without trailing newline
+     */
+    public @NotNull CharSequence getContent() {
+        final CharSequence content = this.content;
+        if (content != null) {
+            return content;
+        }
+        final String template = this.template;
+        assert template != null;
+        if (arguments.isEmpty()) {
+            this.content = template;
+            return template;
+        }
+        StringBuilder rendered = this.rendered;
+        ArrayList<Object> renderArguments = this.renderArguments;
+        if (rendered == null) {
+            this.rendered = rendered = new StringBuilder(64);
+            this.renderArguments = renderArguments = new ArrayList<>();
+        }
+        assert renderArguments != null;
+        rendered.setLength(0);
+        renderArguments.addAll(arguments);
+        PrettyPrinter.patternSubstituteInto(rendered, template, renderArguments);
+        renderArguments.clear();
+        this.content = rendered;
+        return rendered;
+    }
+
+    /** @return template of the message, with {} in place of arguments, null if the event was set with formatted content */
+    public @Nullable String getTemplate() {
+        return template;
+    }
+
+    /** @return arguments of the template, do not modify */
+    public @NotNull List<@Nullable Object> getArguments() {
+        return arguments;
+    }
+
+    /** @return the last {@link Throwable} argument, which is printed with the stack trace by {@link #getContent()} */
+    public @Nullable Throwable getThrowable() {
+        final List<Object> arguments = this.arguments;
+        for (int i = arguments.size() - 1; i >= 0; i--) {
+            final Object argument = arguments.get(i);
+            if (argument instanceof Throwable) {
+                return (Throwable) argument;
+            }
+        }
+        return null;
+    }
+
+    private void collectKeyValues() {
+        if (keyValuesCollected) {
+            return;
+        }
+        keyValuesCollected = true;
+        final LogContext context = this.context;
+        for (int i = 0; i < context.size(); i++) {
+            keyValues.add(context.entry(i));
+        }
+        final List<Object> arguments = this.arguments;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < arguments.size(); i++) {
+            final Object argument = arguments.get(i);
+            if (argument instanceof KeyValue) {
+                keyValues.add((KeyValue) argument);
+            }
+        }
+    }
+
+    /** @return entries of the context, {@link KeyValue} arguments and those added by {@link #addKeyValue(KeyValue)}, do not modify */
+    public @NotNull List<@NotNull KeyValue> getKeyValues() {
+        collectKeyValues();
+        return keyValues;
+    }
+
+    /** @return context of the thread on which the message was logged, empty if not known */
+    public @NotNull LogContext getContext() {
+        return context;
+    }
+
+    /** @return thread on which the message was logged, null if not known */
+    public @Nullable Thread getThread() {
+        return thread;
+    }
+
+    /** @return name of the thread on which the message was logged, null if not known */
+    public @Nullable String getThreadName() {
+        String threadName = this.threadName;
+        if (threadName == null && thread != null) {
+            this.threadName = threadName = thread.getName();
+        }
+        return threadName;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + TPLogger.levelName(level) + "] " + name + ": " + getContent();
+    }
+}
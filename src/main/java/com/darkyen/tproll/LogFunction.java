@@ -20,6 +20,49 @@ public abstract class LogFunction {
      */
     public abstract void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content);
 
+    /**
+     * Like {@link #log(String, long, byte, Marker, CharSequence)}, but with high resolution time and sequence number.
+     * Called instead of it when {@link TPLogger#setHighResolutionTime(boolean)} is enabled.
+     * Default implementation ignores the extra information, adapters should forward it to their delegates.
+     * @param time in ms since start of the app or since 1970
+     * @param nanoAdjust nanoseconds to add to time, 0 to 999 999
+     * @param sequence number of the message, increasing with each message logged in this process, 0 if not known
+     */
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, level, marker, content);
+    }
+
+    /**
+     * Log more messages at once, in order. Called by functions which collect messages, for example in a queue,
+     * when more than one message is ready. Implementations can override it to take a lock
+     * or make a write only once per batch. Default implementation calls
+     * {@link #log(String, long, int, long, byte, Marker, CharSequence)} for each event.
+     * @param events to log, do not keep them around
+     * @param from index of the first event to log
+     * @param to index after the last event to log
+     */
+    public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        for (int i = from; i < to; i++) {
+            final LogEvent event = events[i];
+            log(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent());
+        }
+    }
+
+    /**
+     * Called by {@link TPLogger} before the message is formatted, with the whole structure of the message:
+     * template, raw arguments, throwable, key-values and thread. Functions which don't need the formatted text
+     * (for example because they write the fields separately), can take the message here and return true.
+     * The text is formatted only if {@link LogEvent#getContent()} is called.
+     * When false is returned, the message is passed to {@link #log(String, long, int, long, byte, Marker, CharSequence)}.
+     * Default implementation returns false.
+     * Adapters should not forward this, as they usually work with the formatted message.
+     * @param event valid only during this call, do not keep it around or modify it
+     * @return true if the message was taken care of
+     */
+    public boolean logEvent(@NotNull LogEvent event) {
+        return false;
+    }
+
     /**
      * Additional check whether this log function will log message of given level/marker.
      * This is only secondary check, primary level check is done through log level of TPLogger.
@@ -28,4 +71,35 @@ public abstract class LogFunction {
     public boolean isEnabled(byte level, @Nullable Marker marker){
         return true;
     }
+
+    /**
+     * Like {@link #isEnabled(byte, Marker)}, but with the name of the logger, for functions which filter by it.
+     * This is what {@link TPLogger} calls for its isXEnabled() queries.
+     * Default implementation delegates to {@link #isEnabled(byte, Marker)}, adapters should forward to their delegates.
+     * @param name of the logger
+     */
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return isEnabled(level, marker);
+    }
+
+    /**
+     * Like {@link #isEnabled(String, byte, Marker)}, but with the template of the message which is about to be logged,
+     * for functions which filter by call site. This is what {@link TPLogger} calls before formatting the message,
+     * so rejecting messages here is cheaper than rejecting them in {@link #log(String, long, byte, Marker, CharSequence)}.
+     * It should not have side effects which assume that the message will be logged, because another function may still reject it.
+     * Default implementation delegates to {@link #isEnabled(String, byte, Marker)}, adapters should forward to their delegates.
+     * @param name of the logger
+     * @param template of the message, with unsubstituted arguments, null if not known
+     */
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return isEnabled(name, level, marker);
+    }
+
+    /**
+     * Release resources held by this function, flush what was buffered.
+     * Called by {@link TPLogger#swapLogFunction(LogFunction)} once no thread is logging through this function anymore.
+     * Adapters should dispose the functions they delegate to.
+     */
+    public void dispose() {
+    }
 }
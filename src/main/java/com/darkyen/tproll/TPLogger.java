@@ -2,6 +2,7 @@ package com.darkyen.tproll;
 
 import com.darkyen.tproll.logfunctions.SimpleLogFunction;
 import com.darkyen.tproll.util.LevelChangeListener;
+import com.darkyen.tproll.util.LogContext;
 import com.darkyen.tproll.util.TimeProvider;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -10,8 +11,10 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
 
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-import static com.darkyen.tproll.util.PrettyPrinter.patternSubstituteInto;
 
 /**
  * Lightweight, GC friendly and thread-safe logger implementation.
@@ -44,11 +47,31 @@ public final class TPLogger implements Logger {
     /** Special level which always gets through, used for logging-related messages. */
     public static final byte LOG = 6;
 
-    private static @NotNull LogFunction logFunction = SimpleLogFunction.CONSOLE_LOG_FUNCTION;
+    private static volatile @NotNull LogFunction logFunction = SimpleLogFunction.CONSOLE_LOG_FUNCTION;
+    private static final @NotNull InFlightTracker logFunctionInFlight = new InFlightTracker();
+    private static final @NotNull Object logFunctionSwapLock = new Object();
     private static @NotNull LevelChangeListener levelChangeListener = LevelChangeListener.LOG;
     private static @NotNull TimeProvider timeProvider = TimeProvider.CURRENT_TIME_PROVIDER;
+    private static boolean highResolutionTime = false;
+    private static final @NotNull AtomicLong sequence = new AtomicLong();
+    private static final @NotNull CopyOnWriteArrayList<Thread.@NotNull UncaughtExceptionHandler> crashListeners = new CopyOnWriteArrayList<>();
 
+    /** Guards changes of {@link #logLevel}, {@link #levelFloor} and the flags derived from them */
+    private static final @NotNull Object LEVEL_LOCK = new Object();
     private static byte logLevel = INFO;
+    /** Level below which nothing is logged, even if the log level allows it, used for load shedding */
+    private static byte levelFloor = TRACE;
+    /** Max of {@link #logLevel} and {@link #levelFloor} */
+    private static byte effectiveLevel = INFO;
+    /** True when {@link #levelFloor} is above {@link #logLevel} and some messages are being shed */
+    private static boolean shedding = false;
+    private static final @NotNull LongAdder @NotNull [] shedCounts = new LongAdder[LOG + 1];
+    static {
+        for (int i = 0; i < shedCounts.length; i++) {
+            shedCounts[i] = new LongAdder();
+        }
+    }
+
     private static boolean trace = false;
     private static boolean debug = false;
     private static boolean info = true;
@@ -68,54 +91,126 @@ public final class TPLogger implements Logger {
     }
 
     public static void TRACE() {
-        if (logLevel == TRACE) return;
-        logLevel = TRACE;
-        trace = debug = info = warn = error = true;
-        levelChangeListener.levelChanged(TRACE);
+        setLogLevel(TRACE);
     }
 
     public static void DEBUG() {
-        if (logLevel == DEBUG) return;
-        logLevel = DEBUG;
-        trace = false;
-        debug = info = warn = error = true;
-        levelChangeListener.levelChanged(DEBUG);
+        setLogLevel(DEBUG);
     }
 
     public static void INFO() {
-        if (logLevel == INFO) return;
-        logLevel = INFO;
-        trace = debug = false;
-        info = warn = error = true;
-        levelChangeListener.levelChanged(INFO);
+        setLogLevel(INFO);
     }
 
     public static void WARN() {
-        if (logLevel == WARN) return;
-        logLevel = WARN;
-        trace = debug = info = false;
-        warn = error = true;
-        levelChangeListener.levelChanged(WARN);
+        setLogLevel(WARN);
     }
 
     public static void ERROR() {
-        if (logLevel == ERROR) return;
-        logLevel = ERROR;
-        trace = debug = info = warn = false;
-        error = true;
-        levelChangeListener.levelChanged(ERROR);
+        setLogLevel(ERROR);
     }
 
     public static byte getLogLevel(){
         return logLevel;
     }
 
+    private static void setLogLevel(byte level) {
+        synchronized (LEVEL_LOCK) {
+            if (logLevel == level) return;
+            logLevel = level;
+            updateLevelFlags();
+        }
+        levelChangeListener.levelChanged(level);
+    }
+
+    /** Must hold LEVEL_LOCK, so that the flags are not computed from a level which another thread is just changing. */
+    private static void updateLevelFlags() {
+        final byte level = (byte) Math.max(logLevel, levelFloor);
+        trace = level <= TRACE;
+        debug = level <= DEBUG;
+        info = level <= INFO;
+        warn = level <= WARN;
+        error = level <= ERROR;
+        effectiveLevel = level;
+        shedding = levelFloor > logLevel;
+    }
+
+    /**
+     * Temporarily stop logging messages below given level, without changing the log level.
+     * Such messages are counted (see {@link #takeShedCount(byte)}) and not formatted at all.
+     * Meant for load shedding, for example by {@link com.darkyen.tproll.logfunctions.adapters.LoadSheddingDispatcher}.
+     * @param levelFloor {@link #TRACE} to log everything the log level allows, up to {@link #ERROR}
+     */
+    public static void setLevelFloor(byte levelFloor) {
+        levelFloor = (byte) Math.max(TRACE, Math.min(ERROR, levelFloor));
+        synchronized (LEVEL_LOCK) {
+            if (TPLogger.levelFloor == levelFloor) return;
+            TPLogger.levelFloor = levelFloor;
+            updateLevelFlags();
+        }
+    }
+
+    public static byte getLevelFloor() {
+        return levelFloor;
+    }
+
+    /** @return amount of messages of given level which were not logged because of {@link #setLevelFloor(byte)}, since the last call */
+    public static long takeShedCount(byte level) {
+        if (level < 0 || level >= shedCounts.length) return 0;
+        return shedCounts[level].sumThenReset();
+    }
+
+    /** Count a message which was not logged, if it was because of the level floor */
+    private static void shed(byte level) {
+        if (level >= logLevel && level < shedCounts.length) {
+            shedCounts[level].increment();
+        }
+    }
+
+    /** @return true if message of given level should not be logged */
+    private static boolean below(byte level) {
+        if (level >= effectiveLevel || overridden(level)) return false;
+        shed(level);
+        return true;
+    }
+
+    /** @return true if message of given level, which the log level does not allow, is enabled by a {@link LevelOverride} of this thread */
+    private static boolean overridden(byte level) {
+        return LevelOverride.active && level >= levelFloor && LevelOverride.allows(level);
+    }
+
+    /** Set the log function. The old function is not disposed and threads may still be logging through it.
+     * @see #swapLogFunction(LogFunction) to replace and dispose it safely */
     public static void setLogFunction(@NotNull LogFunction logFunction) {
         //noinspection ConstantConditions
         if (logFunction == null) throw new NullPointerException("logFunction may not be null");
         TPLogger.logFunction = logFunction;
     }
 
+    /**
+     * Atomically replace the log function, then wait until no thread is logging through the old one and dispose it.
+     * Messages which are already being logged finish in the old function, new messages go to the new one,
+     * nothing is lost. Logging threads are never blocked by this, only the calling thread waits.
+     *
+     * Must not be called from inside a log function.
+     * Functions shared by the old and new graph must not dispose themselves irrecoverably in {@link LogFunction#dispose()}.
+     *
+     * @return the old function, already disposed
+     */
+    public static @NotNull LogFunction swapLogFunction(@NotNull LogFunction logFunction) {
+        //noinspection ConstantConditions
+        if (logFunction == null) throw new NullPointerException("logFunction may not be null");
+        synchronized (logFunctionSwapLock) {
+            final LogFunction oldLogFunction = TPLogger.logFunction;
+            TPLogger.logFunction = logFunction;
+            if (oldLogFunction != logFunction) {
+                logFunctionInFlight.awaitQuiescence();
+                oldLogFunction.dispose();
+            }
+            return oldLogFunction;
+        }
+    }
+
     public static @NotNull LogFunction getLogFunction() {
         return logFunction;
     }
@@ -140,343 +235,365 @@ public final class TPLogger implements Logger {
         return timeProvider;
     }
 
+    /**
+     * When enabled, messages are logged through {@link LogFunction#log(String, long, int, long, byte, Marker, CharSequence)},
+     * with time from {@link TimeProvider#timeNanos()} and with a sequence number. Disabled by default, because it is slower.
+     */
+    public static void setHighResolutionTime(boolean highResolutionTime) {
+        TPLogger.highResolutionTime = highResolutionTime;
+    }
+
+    public static boolean isHighResolutionTime() {
+        return highResolutionTime;
+    }
+
     //region isEnabled
+    /** Ask the log function, which is not disposed while it is being asked, like in {@link #_log}. */
+    private boolean functionEnabled(byte level, @Nullable Marker marker) {
+        final int inFlight = logFunctionInFlight.enter();
+        try {
+            return logFunction.isEnabled(name, level, marker);
+        } finally {
+            logFunctionInFlight.exit(inFlight);
+        }
+    }
+
     @Override
     public boolean isTraceEnabled() {
-        return trace && logFunction.isEnabled(TRACE, null);
+        return (trace || overridden(TRACE)) && functionEnabled(TRACE, null);
     }
 
     @Override
     public boolean isTraceEnabled(@Nullable Marker marker) {
-        return trace && logFunction.isEnabled(TRACE, marker);
+        return (trace || overridden(TRACE)) && functionEnabled(TRACE, marker);
     }
 
     @Override
     public boolean isDebugEnabled() {
-        return debug && logFunction.isEnabled(DEBUG, null);
+        return (debug || overridden(DEBUG)) && functionEnabled(DEBUG, null);
     }
 
     @Override
     public boolean isDebugEnabled(@Nullable Marker marker) {
-        return debug && logFunction.isEnabled(DEBUG, marker);
+        return (debug || overridden(DEBUG)) && functionEnabled(DEBUG, marker);
     }
 
     @Override
     public boolean isInfoEnabled() {
-        return info && logFunction.isEnabled(INFO, null);
+        return (info || overridden(INFO)) && functionEnabled(INFO, null);
     }
 
     @Override
     public boolean isInfoEnabled(@Nullable Marker marker) {
-        return info && logFunction.isEnabled(INFO, marker);
+        return (info || overridden(INFO)) && functionEnabled(INFO, marker);
     }
 
     @Override
     public boolean isWarnEnabled() {
-        return warn && logFunction.isEnabled(WARN, null);
+        return (warn || overridden(WARN)) && functionEnabled(WARN, null);
     }
 
     @Override
     public boolean isWarnEnabled(@Nullable Marker marker) {
-        return warn && logFunction.isEnabled(WARN, marker);
+        return (warn || overridden(WARN)) && functionEnabled(WARN, marker);
     }
 
     @Override
     public boolean isErrorEnabled() {
-        return error && logFunction.isEnabled(ERROR, null);
+        return (error || overridden(ERROR)) && functionEnabled(ERROR, null);
     }
 
     @Override
     public boolean isErrorEnabled(@Nullable Marker marker) {
-        return error && logFunction.isEnabled(ERROR, marker);
+        return (error || overridden(ERROR)) && functionEnabled(ERROR, marker);
     }
     //endregion
 
     //region Trace
     @Override
     public void trace(@NotNull String msg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, msg);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, null, msg); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@NotNull String format, @Nullable Object arg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, format, arg);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, null, format, arg); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, format, argA, argB);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, null, format, argA, argB); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, format, arguments);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, null, format, arguments); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@NotNull String msg, @Nullable Throwable t) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, null, msg, t);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, null, msg, t); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String msg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, msg);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, marker, msg); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, format, arg);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, marker, format, arg); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, format, arg1, arg2);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, marker, format, arg1, arg2); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String format, Object @NotNull ... argArray) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, format, argArray);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, marker, format, argArray); else if (shedding) shed(TRACE);
     }
 
     @Override
     public void trace(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (trace) _log(name, timeProvider.timeMillis(), TRACE, marker, msg, t);
+        if (trace || overridden(TRACE)) _log(name, NOW, TRACE, marker, msg, t); else if (shedding) shed(TRACE);
     }
     //endregion
 
     //region Debug
     @Override
     public void debug(@NotNull String msg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, msg);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, null, msg); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@NotNull String format, @Nullable Object arg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, format, arg);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, null, format, arg); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, format, argA, argB);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, null, format, argA, argB); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, format, arguments);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, null, format, arguments); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@NotNull String msg, @Nullable Throwable t) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, null, msg, t);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, null, msg, t); else if (shedding) shed(DEBUG);
     }
 
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String msg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, msg);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, marker, msg); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arg);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, marker, format, arg); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arg1, arg2);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, marker, format, arg1, arg2); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, format, arguments);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, marker, format, arguments); else if (shedding) shed(DEBUG);
     }
 
     @Override
     public void debug(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (debug) _log(name, timeProvider.timeMillis(), DEBUG, marker, msg, t);
+        if (debug || overridden(DEBUG)) _log(name, NOW, DEBUG, marker, msg, t); else if (shedding) shed(DEBUG);
     }
     //endregion
 
     //region Info
     @Override
     public void info(@NotNull String msg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, msg);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, null, msg); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@NotNull String format, @Nullable Object arg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, format, arg);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, null, format, arg); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, format, argA, argB);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, null, format, argA, argB); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, format, arguments);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, null, format, arguments); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@NotNull String msg, @Nullable Throwable t) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, null, msg, t);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, null, msg, t); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String msg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, msg);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, marker, msg); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, format, arg);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, marker, format, arg); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, format, arg1, arg2);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, marker, format, arg1, arg2); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, format, arguments);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, marker, format, arguments); else if (shedding) shed(INFO);
     }
 
     @Override
     public void info(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (info) _log(name, timeProvider.timeMillis(), INFO, marker, msg, t);
+        if (info || overridden(INFO)) _log(name, NOW, INFO, marker, msg, t); else if (shedding) shed(INFO);
     }
     //endregion
 
     //region Warn
     @Override
     public void warn(@NotNull String msg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, msg);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, null, msg); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@NotNull String format, @Nullable Object arg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, format, arg);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, null, format, arg); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, format, arguments);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, null, format, arguments); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, format, argA, argB);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, null, format, argA, argB); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@NotNull String msg, @Nullable Throwable t) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, null, msg, t);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, null, msg, t); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String msg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, msg);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, marker, msg); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, format, arg);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, marker, format, arg); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, format, arg1, arg2);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, marker, format, arg1, arg2); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, format, arguments);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, marker, format, arguments); else if (shedding) shed(WARN);
     }
 
     @Override
     public void warn(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (warn) _log(name, timeProvider.timeMillis(), WARN, marker, msg, t);
+        if (warn || overridden(WARN)) _log(name, NOW, WARN, marker, msg, t); else if (shedding) shed(WARN);
     }
     //endregion
 
     //region Error
     @Override
     public void error(@NotNull String msg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, msg);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, null, msg); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@NotNull String format, @Nullable Object arg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, format, arg);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, null, format, arg); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, format, argA, argB);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, null, format, argA, argB); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, format, arguments);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, null, format, arguments); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@NotNull String msg, @Nullable Throwable t) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, null, msg, t);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, null, msg, t); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String msg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, msg);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, marker, msg); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arg);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, marker, format, arg); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String format, @Nullable Object arg1, @Nullable Object arg2) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arg1, arg2);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, marker, format, arg1, arg2); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, format, arguments);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, marker, format, arguments); else if (shedding) shed(ERROR);
     }
 
     @Override
     public void error(@Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (error) _log(name, timeProvider.timeMillis(), ERROR, marker, msg, t);
+        if (error || overridden(ERROR)) _log(name, NOW, ERROR, marker, msg, t); else if (shedding) shed(ERROR);
     }
     //endregion
 
     //region Log
     public void log(byte level, @Nullable Marker marker, @NotNull String msg) {
-        if (level < TPLogger.logLevel) return;
-        _log(name, timeProvider.timeMillis(), level, marker, msg);
+        if (below(level)) return;
+        _log(name, NOW, level, marker, msg);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (level < TPLogger.logLevel) return;
-        _log(name, timeProvider.timeMillis(), level, marker, format, arg);
+        if (below(level)) return;
+        _log(name, NOW, level, marker, format, arg);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (level < TPLogger.logLevel) return;
-        _log(name, timeProvider.timeMillis(), level, marker, format, argA, argB);
+        if (below(level)) return;
+        _log(name, NOW, level, marker, format, argA, argB);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (level < TPLogger.logLevel) return;
-        _log(name, timeProvider.timeMillis(), level, marker, format, arguments);
+        if (below(level)) return;
+        _log(name, NOW, level, marker, format, arguments);
     }
 
     public void log(byte level, @Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (level < TPLogger.logLevel) return;
-        _log(name, timeProvider.timeMillis(), level, marker, msg, t);
+        if (below(level)) return;
+        _log(name, NOW, level, marker, msg, t);
     }
     //endregion
 
@@ -488,84 +605,156 @@ public final class TPLogger implements Logger {
      * @param time time, as provided by {@link TimeProvider}
      */
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String msg) {
-        if (level < TPLogger.logLevel) return;
+        if (below(level)) return;
         _log(name, time, level, marker, msg);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if (level < TPLogger.logLevel) return;
+        if (below(level)) return;
         _log(name, time, level, marker, format, arg);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if (level < TPLogger.logLevel) return;
+        if (below(level)) return;
         _log(name, time, level, marker, format, argA, argB);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if (level < TPLogger.logLevel) return;
+        if (below(level)) return;
         _log(name, time, level, marker, format, arguments);
     }
 
     public void logCustom(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String msg, @Nullable Throwable t) {
-        if (level < TPLogger.logLevel) return;
+        if (below(level)) return;
         _log(name, time, level, marker, msg, t);
     }
     //endregion
     
     //------------------------------------- INTERNAL ----------------------------------------------------
 
+    /** Time passed to {@link #_log} by the standard methods, the time is then read from {@link #timeProvider} only once it is needed */
+    private static final long NOW = Long.MIN_VALUE;
+
     private final @NotNull ArrayList<@Nullable Object> arguments = new ArrayList<>();
 
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String msg) {
-        if(!logFunction.isEnabled(level, marker)) return;
-        synchronized (arguments) {
-            doLog(name, time, level, marker, msg);
+        final int inFlight = logFunctionInFlight.enter();
+        try {
+            final LogFunction logFunction = TPLogger.logFunction;
+            if(!logFunction.isEnabled(name, level, marker, msg)) return;
+            synchronized (arguments) {
+                doLog(logFunction, name, time, level, marker, msg);
+            }
+        } finally {
+            logFunctionInFlight.exit(inFlight);
         }
     }
 
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object arg) {
-        if(!logFunction.isEnabled(level, marker)) return;
-        synchronized (arguments) {
-            arguments.add(arg);
-            doLog(name, time, level, marker, format);
+        final int inFlight = logFunctionInFlight.enter();
+        try {
+            final LogFunction logFunction = TPLogger.logFunction;
+            if(!logFunction.isEnabled(name, level, marker, format)) return;
+            synchronized (arguments) {
+                arguments.add(arg);
+                doLog(logFunction, name, time, level, marker, format);
+            }
+        } finally {
+            logFunctionInFlight.exit(inFlight);
         }
     }
 
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object argA, @Nullable Object argB) {
-        if(!logFunction.isEnabled(level, marker)) return;
-        synchronized (arguments) {
-            arguments.add(argA);
-            arguments.add(argB);
-            doLog(name, time, level, marker, format);
+        final int inFlight = logFunctionInFlight.enter();
+        try {
+            final LogFunction logFunction = TPLogger.logFunction;
+            if(!logFunction.isEnabled(name, level, marker, format)) return;
+            synchronized (arguments) {
+                arguments.add(argA);
+                arguments.add(argB);
+                doLog(logFunction, name, time, level, marker, format);
+            }
+        } finally {
+            logFunctionInFlight.exit(inFlight);
         }
     }
 
     private void _log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull String format, @Nullable Object @NotNull ... arguments) {
-        if(!logFunction.isEnabled(level, marker)) return;
-        synchronized (this.arguments) {
-            this.arguments.ensureCapacity(arguments.length);
-            //noinspection ManualArrayToCollectionCopy
-            for (Object argument : arguments) {
-                //noinspection UseBulkOperation
-                this.arguments.add(argument);
+        final int inFlight = logFunctionInFlight.enter();
+        try {
+            final LogFunction logFunction = TPLogger.logFunction;
+            if(!logFunction.isEnabled(name, level, marker, format)) return;
+            synchronized (this.arguments) {
+                this.arguments.ensureCapacity(arguments.length);
+                //noinspection ManualArrayToCollectionCopy
+                for (Object argument : arguments) {
+                    //noinspection UseBulkOperation
+                    this.arguments.add(argument);
+                }
+                doLog(logFunction, name, time, level, marker, format);
             }
-            doLog(name, time, level, marker, format);
+        } finally {
+            logFunctionInFlight.exit(inFlight);
         }
     }
 
-    private final @NotNull StringBuilder sb = new StringBuilder(64);
+    /** Structure of the message being logged, content is formatted only when needed */
+    private final @NotNull LogEvent event = new LogEvent();
+
+    private void doLog(final @NotNull LogFunction logFunction, final @NotNull String name, final long time, final byte level, final @Nullable Marker marker, final @NotNull String message) {
+        final LogEvent event = this.event;
+
+        final boolean highResolution = highResolutionTime;
+        final long millis;
+        final int nanoAdjust;
+        final long sequence;
+        if (highResolution) {
+            sequence = TPLogger.sequence.incrementAndGet();
+            if (time == NOW) {
+                final long nanos = timeProvider.timeNanos();
+                millis = Math.floorDiv(nanos, 1_000_000L);
+                nanoAdjust = (int) Math.floorMod(nanos, 1_000_000L);
+            } else {
+                // Custom time has only millisecond resolution
+                millis = time;
+                nanoAdjust = 0;
+            }
+        } else {
+            millis = time == NOW ? timeProvider.timeMillis() : time;
+            nanoAdjust = 0;
+            sequence = 0L;
+        }
+
+        event.setTemplate(name, millis, nanoAdjust, sequence, level, marker, message, this.arguments).setThread(Thread.currentThread()).setContext(LogContext.current());
+        if (!logFunction.logEvent(event)) {
+            if (highResolution) {
+                logFunction.log(name, millis, nanoAdjust, sequence, level, marker, event.getContent());
+            } else {
+                logFunction.log(name, millis, level, marker, event.getContent());
+            }
+        }
+        this.arguments.clear();
+        event.clear();
+    }
 
-    private void doLog(final @NotNull String name, final long time, final byte level, final @Nullable Marker marker, final @NotNull String message) {
-        final StringBuilder sb = this.sb;
+    /**
+     * Call the listener when the {@link #attachUnhandledExceptionLogger() unhandled exception logger} catches something,
+     * after the exception is logged. For example, to write out messages which were held back.
+     */
+    public static void addCrashListener(Thread.@NotNull UncaughtExceptionHandler listener) {
+        //noinspection ConstantConditions
+        if (listener == null) throw new NullPointerException("listener may not be null");
+        crashListeners.add(listener);
+    }
 
-        patternSubstituteInto(sb, message, this.arguments);
-        TPLogger.logFunction.log(name, time, level, marker, sb);
-        sb.setLength(0);
+    /** Remove the listener added by {@link #addCrashListener(Thread.UncaughtExceptionHandler)}. */
+    public static void removeCrashListener(Thread.@NotNull UncaughtExceptionHandler listener) {
+        crashListeners.remove(listener);
     }
 
     /** Will call {@link Thread#setDefaultUncaughtExceptionHandler(Thread.UncaughtExceptionHandler)}
-     * with a function that logs these exceptions. If there already is a handler, it is called after the exception is logged. */
+     * with a function that logs these exceptions and notifies the {@link #addCrashListener(Thread.UncaughtExceptionHandler) crash listeners}.
+     * If there already is a handler, it is called after that. */
     public static void attachUnhandledExceptionLogger(){
         final Logger logger = LoggerFactory.getLogger("UnhandledException");
         final Thread.UncaughtExceptionHandler originalHandler = Thread.getDefaultUncaughtExceptionHandler();
@@ -573,6 +762,14 @@ public final class TPLogger implements Logger {
             @Override
             public void uncaughtException(Thread t, Throwable e) {
                 logger.error("{} has crashed with exception: {}", t, e);
+                for (Thread.UncaughtExceptionHandler listener : crashListeners) {
+                    try {
+                        listener.uncaughtException(t, e);
+                    } catch (Throwable listenerError) {
+                        System.err.println("tproll: crash listener failed");
+                        listenerError.printStackTrace(System.err);
+                    }
+                }
                 if (originalHandler != null) {
                     originalHandler.uncaughtException(t, e);
                 }
@@ -0,0 +1,48 @@
+package com.darkyen.tproll;
+
+import com.darkyen.tproll.util.LogContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.spi.MDCAdapter;
+
+import java.util.Map;
+
+/**
+ * Instantiated by SLF4J to back {@link org.slf4j.MDC}, keeps the entries in {@link LogContext#current()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class TPMDCAdapter implements MDCAdapter {
+
+    @Override
+    public void put(@NotNull String key, @Nullable String val) {
+        LogContext.put(key, val);
+    }
+
+    @Override
+    public @Nullable String get(@NotNull String key) {
+        return LogContext.current().get(key);
+    }
+
+    @Override
+    public void remove(@NotNull String key) {
+        LogContext.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        if (!LogContext.current().isEmpty()) {
+            LogContext.set(LogContext.EMPTY);
+        }
+    }
+
+    @Override
+    public @Nullable Map<@NotNull String, @NotNull String> getCopyOfContextMap() {
+        final LogContext context = LogContext.current();
+        return context.isEmpty() ? null : context.toMap();
+    }
+
+    @Override
+    public void setContextMap(@Nullable Map<@NotNull String, @Nullable String> contextMap) {
+        LogContext.set(LogContext.of(contextMap));
+    }
+}
@@ -0,0 +1,406 @@
+package com.darkyen.tproll.async;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.LogContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * LogFunction which formats and logs messages on a background thread.
+ *
+ * {@link TPLogger} gives it messages through {@link #logEvent(LogEvent)},
+ * before they are formatted. They are encoded by {@link EventCodec} into an off-heap {@link EventRing} of fixed size,
+ * so even a large burst of messages does not create garbage or take more memory.
+ * A single thread decodes them, formats them and passes them to the parent,
+ * through {@link LogFunction#logBatch(LogEvent[], int, int)} when more of them are ready.
+ * The events keep the name and the {@link LogContext context} (MDC) of the thread which logged them.
+ *
+ * When the ring is full, messages are dropped and periodically reported (or the logging thread waits, if so configured).
+ * Alternatively, they can be appended to a {@link SpillJournal} file. Then all following messages go to the journal as well,
+ * until the background thread reads it all back, so the order is kept and nothing is lost.
+ * A journal left behind by a process which died is logged when the next one starts.
+ * Messages which can't be encoded (too large, too many arguments or markers) are logged directly, on the calling thread.
+ * This function should be at the root, adapters in front of it would pass it only formatted messages.
+ */
+@SuppressWarnings("unused")
+public final class AsyncLogFunction extends LogFunction {
+
+    public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_JOURNAL_BYTES = 256L * 1024 * 1024;
+    public static final long REPORT_INTERVAL_MS = 10_000L;
+
+    private static final String REPORT_NAME = "AsyncLogFunction";
+
+    private final @NotNull LogFunction parent;
+    private final @NotNull EventCodec codec = new EventCodec();
+    private final @NotNull EventRing ring;
+    private final @NotNull ThreadLocal<EventCodec.@NotNull Encoder> encoders = ThreadLocal.withInitial(codec::encoder);
+    /** Null when there is none, or after it failed to be read */
+    private volatile @Nullable SpillJournal journal;
+    private final @Nullable ThreadLocal<EventCodec.@NotNull Encoder> journalEncoders;
+    /** True while there are messages in the journal, all new messages must go there as well. Changes only while holding journal. */
+    private volatile boolean spilling = false;
+    /** True while the consumer holds released records, which were not yet passed to the parent */
+    private volatile boolean delivering = false;
+    private final @NotNull LongAdder journalDropped = new LongAdder();
+    private final @NotNull Thread consumer;
+    private volatile boolean running = true;
+
+    /**
+     * @param parent function to call with formatted messages, from a background thread
+     * @param capacity of the ring, in bytes
+     * @param blockWhenFull true to wait until there is space in the ring, false to drop messages which don't fit
+     */
+    public AsyncLogFunction(@NotNull LogFunction parent, int capacity, boolean blockWhenFull) {
+        this(parent, capacity, blockWhenFull, null);
+    }
+
+    /**
+     * Messages which don't fit into the ring are appended to the journal. Messages found in the journal are logged first.
+     * @param capacity of the ring, in bytes
+     * @param journal to spill to, closed on dispose
+     */
+    public AsyncLogFunction(@NotNull LogFunction parent, int capacity, @NotNull SpillJournal journal) {
+        this(parent, capacity, false, journal);
+    }
+
+    /**
+     * Messages which don't fit into the ring are appended to a journal in given file,
+     * which may be at most {@link #DEFAULT_MAX_JOURNAL_BYTES} large.
+     * @see #AsyncLogFunction(LogFunction, int, SpillJournal)
+     */
+    public AsyncLogFunction(@NotNull LogFunction parent, int capacity, @NotNull File journalFile) throws IOException {
+        this(parent, capacity, false, new SpillJournal(journalFile, DEFAULT_MAX_JOURNAL_BYTES));
+    }
+
+    private AsyncLogFunction(@NotNull LogFunction parent, int capacity, boolean blockWhenFull, @Nullable SpillJournal journal) {
+        this.parent = parent;
+        this.ring = new EventRing(capacity, blockWhenFull);
+        this.journal = journal;
+        if (journal != null) {
+            journalEncoders = ThreadLocal.withInitial(codec::selfContainedEncoder);
+            spilling = !journal.isEmpty();
+        } else {
+            journalEncoders = null;
+        }
+        consumer = new Thread(this::consume, "tproll AsyncLogFunction");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public AsyncLogFunction(@NotNull LogFunction parent) {
+        this(parent, DEFAULT_CAPACITY, false);
+    }
+
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        final String template = event.getTemplate();
+        if (template == null) {
+            return false;
+        }
+        final String name = event.getName();
+        final long time = event.getTime();
+        final int nanoAdjust = event.getNanoAdjust();
+        final long sequence = event.getSequence();
+        final byte level = event.getLevel();
+        final Marker marker = event.getMarker();
+        final List<@Nullable Object> arguments = event.getArguments();
+        final String threadName = event.getThreadName();
+        final LogContext context = event.getContext();
+        if (spilling) {
+            return spill(name, time, nanoAdjust, sequence, level, marker, template, true, arguments, threadName, context);
+        }
+        final ByteBuffer record = encoders.get().encode(name, time, nanoAdjust, sequence, level, marker, template, true, arguments, threadName, context);
+        if (record == null || record.remaining() > ring.maxRecordSize()) {
+            return false;
+        }
+        if (!ring.offer(record) && journal != null) {
+            spill(name, time, nanoAdjust, sequence, level, marker, template, true, arguments, threadName, context);
+        }
+        return true;
+    }
+
+    /** @return false if the message could not be encoded */
+    private boolean spill(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker,
+                          @NotNull CharSequence template, boolean internTemplate, @NotNull List<@Nullable Object> arguments,
+                          @Nullable String threadName, @NotNull LogContext context) {
+        final SpillJournal journal = this.journal;
+        final ThreadLocal<EventCodec.Encoder> journalEncoders = this.journalEncoders;
+        if (journal == null || journalEncoders == null) {
+            // Abandoned meanwhile
+            return false;
+        }
+        final ByteBuffer record = journalEncoders.get().encode(name, time, nanoAdjust, sequence, level, marker, template, internTemplate, arguments, threadName, context);
+        if (record == null) {
+            return false;
+        }
+        boolean started = false;
+        synchronized (journal) {
+            try {
+                if (journal.append(record)) {
+                    started = !spilling;
+                    spilling = true;
+                } else {
+                    journalDropped.increment();
+                }
+            } catch (IOException e) {
+                journalDropped.increment();
+            }
+        }
+        if (started) {
+            ring.wakeReader();
+        }
+        return true;
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final String threadName = Thread.currentThread().getName();
+        final LogContext context = LogContext.current();
+        if (spilling && spill(name, time, nanoAdjust, sequence, level, marker, content, false, Collections.emptyList(), threadName, context)) {
+            return;
+        }
+        final ByteBuffer record = encoders.get().encode(name, time, nanoAdjust, sequence, level, marker, content, false, Collections.emptyList(), threadName, context);
+        if (record == null || record.remaining() > ring.maxRecordSize()) {
+            parent.log(name, time, nanoAdjust, sequence, level, marker, content);
+            return;
+        }
+        if (!ring.offer(record) && journal != null) {
+            spill(name, time, nanoAdjust, sequence, level, marker, content, false, Collections.emptyList(), threadName, context);
+        }
+    }
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return parent.isEnabled(level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return parent.isEnabled(name, level, marker, template);
+    }
+
+    /** Maximum amount of messages passed to the parent at once */
+    private static final int BATCH_SIZE = 64;
+
+    private void consume() {
+        final EventCodec.Decoder decoder = codec.decoder();
+        final EventRing ring = this.ring;
+        final LogEvent[] batch = new LogEvent[BATCH_SIZE];
+        final StringBuilder[] contents = new StringBuilder[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new LogEvent();
+            contents[i] = new StringBuilder(64);
+        }
+        long nextReport = System.nanoTime() + REPORT_INTERVAL_MS * 1_000_000L;
+        while (true) {
+            boolean took = false;
+            int count = 0;
+            try {
+                // Ring has the older messages, journal is read only after it is emptied
+                ByteBuffer record = ring.take(spilling ? 0L : 1000L);
+                while (record != null) {
+                    took = true;
+                    delivering = true;
+                    try {
+                        decoder.decode(record, batch[count], contents[count]);
+                        count++;
+                    } catch (Throwable t) {
+                        System.err.println("AsyncLogFunction: failed to decode");
+                        t.printStackTrace(System.err);
+                    } finally {
+                        ring.release();
+                    }
+                    if (count == BATCH_SIZE) {
+                        break;
+                    }
+                    // Take whatever else is ready, without waiting
+                    record = ring.take(0L);
+                }
+            } catch (InterruptedException ignored) {
+            }
+
+            final boolean fromJournal = !took && spilling;
+            if (fromJournal) {
+                count = readJournal(decoder, batch, contents);
+            }
+            if (count > 0) {
+                try {
+                    parent.logBatch(batch, 0, count);
+                } catch (Throwable t) {
+                    System.err.println("AsyncLogFunction: failed to log");
+                    t.printStackTrace(System.err);
+                }
+                if (fromJournal) {
+                    commitJournal();
+                }
+            } else if (!took && !spilling && !running) {
+                break;
+            }
+            delivering = false;
+
+            if (System.nanoTime() - nextReport >= 0) {
+                nextReport = System.nanoTime() + REPORT_INTERVAL_MS * 1_000_000L;
+                report();
+            }
+        }
+    }
+
+    /** Remember that the messages read from the journal so far were logged, so that they are not logged again after a crash. */
+    private void commitJournal() {
+        final SpillJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.commitRead();
+        } catch (IOException e) {
+            System.err.println("AsyncLogFunction: failed to update the journal");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /** @return amount of messages read from the journal into batch, 0 if it was empty or failed */
+    private int readJournal(@NotNull EventCodec.Decoder decoder, @NotNull LogEvent @NotNull [] batch, @NotNull StringBuilder @NotNull [] contents) {
+        final SpillJournal journal = this.journal;
+        if (journal == null) {
+            return 0;
+        }
+        int count = 0;
+        try {
+            while (count < batch.length) {
+                final ByteBuffer record = journal.next();
+                if (record == null) {
+                    break;
+                }
+                decoder.decode(record, batch[count], contents[count]);
+                count++;
+            }
+            if (count == 0) {
+                synchronized (journal) {
+                    if (journal.isEmpty()) {
+                        journal.truncateIfEmpty();
+                        spilling = false;
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            System.err.println("AsyncLogFunction: failed to log from the journal, not using it anymore");
+            t.printStackTrace(System.err);
+            abandonJournal(journal);
+        }
+        return count;
+    }
+
+    /**
+     * Stop using the journal which can't be read, so that the consumer does not keep failing on it.
+     * New messages go to the ring again and those which don't fit are dropped and reported.
+     * Records which were not read stay in the file.
+     */
+    private void abandonJournal(@NotNull SpillJournal journal) {
+        synchronized (journal) {
+            if (this.journal != journal) {
+                return;
+            }
+            this.journal = null;
+            spilling = false;
+        }
+        try {
+            journal.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void report() {
+        final SpillJournal journal = this.journal;
+        // With the journal, messages which did not fit into the ring were not dropped, but spilled
+        final long ringDropped = ring.takeDropped();
+        final long dropped = (journal == null ? ringDropped : 0L) + journalDropped.sumThenReset();
+        if (dropped != 0) {
+            parent.log(REPORT_NAME, TPLogger.getTimeProvider().timeMillis(), TPLogger.WARN, null,
+                    (journal == null ? "Ring was full, dropped " : "Journal was full, dropped ") + dropped + (dropped == 1 ? " message" : " messages"));
+        }
+    }
+
+    /**
+     * Wait until all messages logged so far are passed to the parent.
+     * @return true if they were, false if the timeout has elapsed first
+     */
+    public boolean flush(long timeoutMs) {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        return ring.awaitReleased(timeoutMs)
+                && awaitFalse(() -> spilling, deadline)
+                && ring.awaitReleased(Math.max(0L, deadline - System.currentTimeMillis()))
+                // Records are released before their batch is passed to the parent
+                && awaitFalse(() -> delivering, deadline);
+    }
+
+    private boolean awaitFalse(@NotNull BooleanSupplier condition, long deadline) {
+        while (condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline || !consumer.isAlive()) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Log all messages in the ring (waiting at most a few seconds) and stop the background thread. */
+    @Override
+    public void dispose() {
+        flush(5000);
+        running = false;
+        ring.close();
+        try {
+            consumer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+        final SpillJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("AsyncLogFunction: failed to close the journal");
+                e.printStackTrace(System.err);
+            }
+        }
+        parent.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncLogFunction(" + ring.capacity() + " bytes) -> " + parent;
+    }
+}
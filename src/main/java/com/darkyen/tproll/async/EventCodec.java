@@ -0,0 +1,421 @@
+package com.darkyen.tproll.async;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.util.CapturedThrowable;
+import com.darkyen.tproll.util.KeyValue;
+import com.darkyen.tproll.util.LogContext;
+import com.darkyen.tproll.util.PrettyPrinter;
+import com.darkyen.tproll.util.SimpleMarker;
+import com.darkyen.tproll.util.StringBuilderWriter;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary encoding of log events, with their message templates and arguments, so that they can be formatted later.
+ *
+ * Logger names and templates are interned and encoded as IDs (up to {@link #MAX_INTERNED} of them, then inline),
+ * markers are interned as well, so records can only be decoded by the same codec, in the same process.
+ * Arguments are encoded by type: primitives raw, strings as UTF-8, throwables with their rendered stack trace
+ * and other objects rendered through {@link PrettyPrinter} at the time of encoding.
+ *
+ * {@link #selfContainedEncoder() Self-contained} records have all strings inline and markers by name,
+ * so they can be decoded by any codec, for example after a restart.
+ *
+ * Record layout: kind (byte), level (byte), time (long), nano adjust (int), sequence (long), name (string ref),
+ * marker ref, template (string ref), argument count (unsigned byte), arguments (tag byte + value),
+ * thread name (inline string, length -1 if not known), context size (int), context keys (string ref) and values (inline string).
+ * String ref is an ID (int) or -1 followed by an inline string. Inline string is UTF-8 length (int) and bytes.
+ * Thread names are not interned, because threads of pools come and go.
+ * Marker ref is an ID (int), -1 for no marker, or -2 followed by an inline string with the name of the marker.
+ */
+public final class EventCodec {
+
+    /** Maximum amount of interned strings and markers, each */
+    public static final int MAX_INTERNED = 4096;
+    /** Events with more arguments can't be encoded */
+    public static final int MAX_ARGUMENTS = 255;
+
+    //region Tags
+    static final byte KIND_EVENT = 1;
+
+    static final byte TAG_NULL = 0;
+    static final byte TAG_TRUE = 1;
+    static final byte TAG_FALSE = 2;
+    static final byte TAG_BYTE = 3;
+    static final byte TAG_SHORT = 4;
+    static final byte TAG_CHAR = 5;
+    static final byte TAG_INT = 6;
+    static final byte TAG_LONG = 7;
+    static final byte TAG_FLOAT = 8;
+    static final byte TAG_DOUBLE = 9;
+    static final byte TAG_STRING = 10;
+    static final byte TAG_THROWABLE = 11;
+    //endregion
+
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Integer> stringIds = new ConcurrentHashMap<>();
+    private volatile @Nullable String @NotNull [] strings = new String[64];
+    private final @NotNull ConcurrentHashMap<@NotNull Marker, @NotNull Integer> markerIds = new ConcurrentHashMap<>();
+    private volatile @Nullable Marker @NotNull [] markers = new Marker[16];
+    /** Markers which were interned or decoded by name */
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull Marker> markersByName = new ConcurrentHashMap<>();
+
+    public @NotNull Encoder encoder() {
+        return new Encoder(false);
+    }
+
+    public @NotNull Encoder selfContainedEncoder() {
+        return new Encoder(true);
+    }
+
+    public @NotNull Decoder decoder() {
+        return new Decoder();
+    }
+
+    /** @return ID of the string or -1 if there are too many interned strings */
+    private int stringId(@NotNull String string) {
+        final Integer id = stringIds.get(string);
+        if (id != null) {
+            return id;
+        }
+        synchronized (stringIds) {
+            final Integer existingId = stringIds.get(string);
+            if (existingId != null) {
+                return existingId;
+            }
+            final int newId = stringIds.size();
+            if (newId >= MAX_INTERNED) {
+                return -1;
+            }
+            String[] strings = this.strings;
+            if (newId >= strings.length) {
+                strings = Arrays.copyOf(strings, strings.length * 2);
+            }
+            strings[newId] = string;
+            this.strings = strings;
+            stringIds.put(string, newId);
+            return newId;
+        }
+    }
+
+    /** @return ID of the marker or -1 if there are too many interned markers */
+    private int markerId(@NotNull Marker marker) {
+        final Integer id = markerIds.get(marker);
+        if (id != null) {
+            return id;
+        }
+        synchronized (markerIds) {
+            final Integer existingId = markerIds.get(marker);
+            if (existingId != null) {
+                return existingId;
+            }
+            final int newId = markerIds.size();
+            if (newId >= MAX_INTERNED) {
+                return -1;
+            }
+            Marker[] markers = this.markers;
+            if (newId >= markers.length) {
+                markers = Arrays.copyOf(markers, markers.length * 2);
+            }
+            markers[newId] = marker;
+            this.markers = markers;
+            markerIds.put(marker, newId);
+            markersByName.putIfAbsent(marker.getName(), marker);
+            return newId;
+        }
+    }
+
+    /** Encodes events into a reused buffer. Not thread safe, each producer thread needs its own. */
+    public final class Encoder {
+        private final boolean selfContained;
+        private @NotNull ByteBuffer out = ByteBuffer.allocate(256);
+        private final @NotNull Utf8Appender utf8 = new Utf8Appender();
+        private final @NotNull StringBuilder rendered = new StringBuilder();
+        private final @NotNull StringBuilderWriter renderedWriter = new StringBuilderWriter(rendered);
+
+        private Encoder(boolean selfContained) {
+            this.selfContained = selfContained;
+        }
+
+        private void ensure(int bytes) {
+            final ByteBuffer out = this.out;
+            if (out.remaining() < bytes) {
+                final ByteBuffer newOut = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+                out.flip();
+                newOut.put(out);
+                this.out = newOut;
+            }
+        }
+
+        private void putString(@NotNull CharSequence string) {
+            final Utf8Appender utf8 = this.utf8;
+            utf8.clear();
+            utf8.append(string);
+            final ByteBuffer bytes = utf8.buffer();
+            ensure(4 + bytes.remaining());
+            out.putInt(bytes.remaining()).put(bytes);
+        }
+
+        private void putStringRef(@NotNull CharSequence string, boolean intern) {
+            final int id = intern && !selfContained && string instanceof String ? stringId((String) string) : -1;
+            ensure(4);
+            out.putInt(id);
+            if (id < 0) {
+                putString(string);
+            }
+        }
+
+        private void putArgument(@Nullable Object argument) {
+            ensure(9);
+            final ByteBuffer out = this.out;
+            if (argument == null) {
+                out.put(TAG_NULL);
+            } else if (argument instanceof String) {
+                out.put(TAG_STRING);
+                putString((String) argument);
+            } else if (argument instanceof Integer) {
+                out.put(TAG_INT).putInt((Integer) argument);
+            } else if (argument instanceof Long) {
+                out.put(TAG_LONG).putLong((Long) argument);
+            } else if (argument instanceof Boolean) {
+                out.put((Boolean) argument ? TAG_TRUE : TAG_FALSE);
+            } else if (argument instanceof Double) {
+                out.put(TAG_DOUBLE).putDouble((Double) argument);
+            } else if (argument instanceof Float) {
+                out.put(TAG_FLOAT).putFloat((Float) argument);
+            } else if (argument instanceof Character) {
+                out.put(TAG_CHAR).putChar((Character) argument);
+            } else if (argument instanceof Short) {
+                out.put(TAG_SHORT).putShort((Short) argument);
+            } else if (argument instanceof Byte) {
+                out.put(TAG_BYTE).put((Byte) argument);
+            } else {
+                final StringBuilder rendered = this.rendered;
+                rendered.setLength(0);
+                PrettyPrinter.append(rendered, argument);
+                if (argument instanceof Throwable) {
+                    out.put(TAG_THROWABLE);
+                    putString(rendered);
+                    rendered.setLength(0);
+                    ((Throwable) argument).printStackTrace(renderedWriter);
+                } else {
+                    out.put(TAG_STRING);
+                }
+                putString(rendered);
+            }
+        }
+
+        /**
+         * @param internTemplate false when the template is not likely to repeat, for example when it is already formatted.
+         *                       Only {@link String} templates are interned.
+         * @param threadName of the thread which logged the message, null if not known
+         * @param context of the thread which logged the message
+         * @return the encoded record, valid until the next call, or null if it can't be encoded
+         */
+        public @Nullable ByteBuffer encode(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker,
+                                           @NotNull CharSequence template, boolean internTemplate, @NotNull List<@Nullable Object> arguments,
+                                           @Nullable String threadName, @NotNull LogContext context) {
+            final int argumentCount = arguments.size();
+            if (argumentCount > MAX_ARGUMENTS) {
+                return null;
+            }
+            final int markerId;
+            if (marker == null) {
+                markerId = -1;
+            } else if (selfContained) {
+                markerId = -2;
+                // So that the decoder can find this instance by name
+                markerId(marker);
+            } else {
+                markerId = markerId(marker);
+                if (markerId < 0) {
+                    return null;
+                }
+            }
+
+            out.clear();
+            ensure(1 + 1 + 8 + 4 + 8);
+            out.put(KIND_EVENT).put(level).putLong(time).putInt(nanoAdjust).putLong(sequence);
+            putStringRef(name, true);
+            ensure(4);
+            out.putInt(markerId);
+            if (markerId == -2) {
+                putString(marker.getName());
+            }
+            putStringRef(template, internTemplate);
+            ensure(1);
+            out.put((byte) argumentCount);
+            for (int i = 0; i < argumentCount; i++) {
+                putArgument(arguments.get(i));
+            }
+            if (threadName == null) {
+                ensure(4);
+                out.putInt(-1);
+            } else {
+                putString(threadName);
+            }
+            final int contextSize = context.size();
+            ensure(4);
+            out.putInt(contextSize);
+            for (int i = 0; i < contextSize; i++) {
+                final KeyValue entry = context.entry(i);
+                putStringRef(entry.getKey(), true);
+                putString((String) entry.getValue());
+            }
+            out.flip();
+            return out;
+        }
+    }
+
+    /** Decodes records produced by {@link Encoder} of the same codec. Not thread safe. */
+    public final class Decoder {
+        private Decoder() {
+        }
+
+        private final @NotNull ArrayList<@Nullable Object> arguments = new ArrayList<>();
+        private final @NotNull StringBuilder content = new StringBuilder(64);
+        private final @NotNull LogEvent event = new LogEvent();
+        private byte @NotNull [] bytes = new byte[256];
+
+        private @NotNull String getString(@NotNull ByteBuffer in) {
+            return getString(in, in.getInt());
+        }
+
+        /** @return inline string, or null if it was written as length -1 */
+        private @Nullable String getNullableString(@NotNull ByteBuffer in) {
+            final int length = in.getInt();
+            return length < 0 ? null : getString(in, length);
+        }
+
+        private @NotNull String getString(@NotNull ByteBuffer in, int length) {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            in.get(bytes, 0, length);
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private @NotNull String getStringRef(@NotNull ByteBuffer in) {
+            final int id = in.getInt();
+            if (id < 0) {
+                return getString(in);
+            }
+            //noinspection ConstantConditions
+            return strings[id];
+        }
+
+        private @Nullable Object getArgument(@NotNull ByteBuffer in) {
+            final byte tag = in.get();
+            switch (tag) {
+                case TAG_NULL: return null;
+                case TAG_TRUE: return Boolean.TRUE;
+                case TAG_FALSE: return Boolean.FALSE;
+                case TAG_BYTE: return in.get();
+                case TAG_SHORT: return in.getShort();
+                case TAG_CHAR: return in.getChar();
+                case TAG_INT: return in.getInt();
+                case TAG_LONG: return in.getLong();
+                case TAG_FLOAT: return in.getFloat();
+                case TAG_DOUBLE: return in.getDouble();
+                case TAG_STRING: return getString(in);
+                case TAG_THROWABLE: {
+                    final String description = getString(in);
+                    return new CapturedThrowable(description, getString(in));
+                }
+                default: throw new IllegalArgumentException("Unknown argument tag: " + tag);
+            }
+        }
+
+        /** Decode the record between position and limit, format it and pass it to the sink. */
+        public void decode(@NotNull ByteBuffer record, @NotNull LogFunction sink) {
+            final LogEvent event = this.event;
+            decode(record, event, content);
+            if (event.getNanoAdjust() == 0 && event.getSequence() == 0L) {
+                sink.log(event.getName(), event.getTime(), event.getLevel(), event.getMarker(), event.getContent());
+            } else {
+                sink.log(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent());
+            }
+        }
+
+        /**
+         * Decode the record between position and limit and format it into the event.
+         * @param content used for the formatted content, if it has arguments, so it must not be reused while the event is in use
+         * @return event
+         */
+        public @NotNull LogEvent decode(@NotNull ByteBuffer record, @NotNull LogEvent event, @NotNull StringBuilder content) {
+            final byte kind = record.get();
+            if (kind != KIND_EVENT) throw new IllegalArgumentException("Unknown record kind: " + kind);
+            final byte level = record.get();
+            final long time = record.getLong();
+            final int nanoAdjust = record.getInt();
+            final long sequence = record.getLong();
+            final String name = getStringRef(record);
+            final int markerId = record.getInt();
+            final Marker marker;
+            if (markerId >= 0) {
+                marker = markers[markerId];
+            } else if (markerId == -2) {
+                marker = markerByName(getString(record));
+            } else {
+                marker = null;
+            }
+            final String template = getStringRef(record);
+            final int argumentCount = record.get() & 0xFF;
+            final ArrayList<Object> arguments = this.arguments;
+            for (int i = 0; i < argumentCount; i++) {
+                arguments.add(getArgument(record));
+            }
+            final String threadName = getNullableString(record);
+            LogContext context = LogContext.EMPTY;
+            final int contextSize = record.getInt();
+            for (int i = 0; i < contextSize; i++) {
+                final String key = getStringRef(record);
+                context = context.with(key, getString(record));
+            }
+
+            if (argumentCount == 0) {
+                event.set(name, time, nanoAdjust, sequence, level, marker, template);
+            } else {
+                content.setLength(0);
+                PrettyPrinter.patternSubstituteInto(content, template, arguments);
+                event.set(name, time, nanoAdjust, sequence, level, marker, content);
+            }
+            return event.setThreadName(threadName).setContext(context);
+        }
+    }
+
+    private @NotNull Marker markerByName(@NotNull String name) {
+        final Marker marker = markersByName.get(name);
+        if (marker != null) {
+            return marker;
+        }
+        final Marker newMarker = new NamedMarker(name);
+        final Marker existingMarker = markersByName.putIfAbsent(name, newMarker);
+        return existingMarker != null ? existingMarker : newMarker;
+    }
+
+    /** Marker decoded by name, which was not known to this codec. */
+    private static final class NamedMarker extends SimpleMarker {
+        private static final long serialVersionUID = 1L;
+
+        private final @NotNull String name;
+
+        NamedMarker(@NotNull String name) {
+            this.name = name;
+        }
+
+        @Override
+        public @NotNull String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.darkyen.tproll.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size ring of variable length records, in off-heap memory ({@link ByteBuffer#allocateDirect(int)}).
+ * Any amount of threads may write, only one thread may read.
+ *
+ * Each record is stored contiguously, prefixed with its length. When a record does not fit before the end of the ring,
+ * the rest of the ring is skipped (marked with {@link #PADDING}) and the record is written at the start.
+ * When the ring is full, records are dropped (and counted), or the writer waits, depending on {@code blockWhenFull}.
+ */
+@SuppressWarnings("unused")
+public final class EventRing {
+
+    private static final int PADDING = -1;
+
+    private final int capacity;
+    private final boolean blockWhenFull;
+    /** Used only by writers, while holding this */
+    private final @NotNull ByteBuffer writeView;
+    /** Used only by the reader */
+    private final @NotNull ByteBuffer readView;
+
+    //region Guarded by this
+    /** Total amount of bytes released by the reader */
+    private long head = 0;
+    /** Total amount of bytes written */
+    private long tail = 0;
+    /** Length of the record returned by {@link #take(long)} and not yet released, including the header */
+    private int taken = 0;
+    private long written = 0;
+    private long released = 0;
+    private long dropped = 0;
+    private int waitingWriters = 0;
+    private boolean readerWaiting = false;
+    private boolean wakeReader = false;
+    private boolean closed = false;
+    //endregion
+
+    /**
+     * @param capacity in bytes, allocated right away
+     * @param blockWhenFull true to wait for free space when the ring is full, false to drop the record
+     */
+    public EventRing(int capacity, boolean blockWhenFull) {
+        if (capacity < 64) throw new IllegalArgumentException("capacity must be at least 64: " + capacity);
+        this.capacity = capacity;
+        this.blockWhenFull = blockWhenFull;
+        this.writeView = ByteBuffer.allocateDirect(capacity);
+        this.readView = writeView.duplicate();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Larger records are never accepted. */
+    public int maxRecordSize() {
+        return capacity / 4;
+    }
+
+    /**
+     * Write the record between position and limit into the ring.
+     * @return true if written, false if dropped, because the ring is full (and blockWhenFull is false), closed or the record is too large
+     */
+    public boolean offer(@NotNull ByteBuffer record) {
+        final int length = record.remaining();
+        if (length > maxRecordSize()) {
+            synchronized (this) {
+                dropped++;
+            }
+            return false;
+        }
+        final int needed = 4 + length;
+        final int capacity = this.capacity;
+
+        synchronized (this) {
+            int position;
+            int padding;
+            while (true) {
+                if (closed) {
+                    dropped++;
+                    return false;
+                }
+                if (head == tail) {
+                    // Empty, start from the beginning, so that the record does not have to wrap
+                    head = tail = 0;
+                }
+                position = (int) (tail % capacity);
+                final int contiguous = capacity - position;
+                padding = contiguous < needed ? contiguous : 0;
+                if (tail - head + padding + needed <= capacity) {
+                    break;
+                }
+                if (!blockWhenFull) {
+                    dropped++;
+                    return false;
+                }
+                waitingWriters++;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped++;
+                    return false;
+                } finally {
+                    waitingWriters--;
+                }
+            }
+
+            final ByteBuffer writeView = this.writeView;
+            writeView.clear();
+            if (padding > 0) {
+                if (padding >= 4) {
+                    writeView.putInt(position, PADDING);
+                }
+                tail += padding;
+                position = 0;
+            }
+            writeView.putInt(position, length);
+            writeView.position(position + 4);
+            writeView.put(record);
+            tail += needed;
+            written++;
+            if (readerWaiting) {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the next record. Only for the reader thread.
+     * The record must be {@link #release() released} before taking the next one.
+     * @param timeoutMs how long to wait for a record, at most
+     * @return view of the next record between position and limit, valid until released,
+     * or null if there was no record in time or the ring is closed and empty
+     */
+    public @Nullable ByteBuffer take(long timeoutMs) throws InterruptedException {
+        final int capacity = this.capacity;
+        synchronized (this) {
+            if (taken != 0) throw new IllegalStateException("Previous record was not released");
+            final long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+            while (head == tail) {
+                final long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (closed || remainingMs <= 0 || wakeReader) {
+                    wakeReader = false;
+                    return null;
+                }
+                readerWaiting = true;
+                try {
+                    wait(remainingMs);
+                } finally {
+                    readerWaiting = false;
+                }
+            }
+
+            final ByteBuffer readView = this.readView;
+            readView.clear();
+            int position = (int) (head % capacity);
+            if (capacity - position < 4 || readView.getInt(position) == PADDING) {
+                // Skip to the start, there must be a record, because the padding was written before it
+                head += capacity - position;
+                position = 0;
+            }
+            final int length = readView.getInt(position);
+            taken = 4 + length;
+            readView.position(position + 4).limit(position + 4 + length);
+            return readView;
+        }
+    }
+
+    /** Release the record returned by {@link #take(long)}, so that its space can be reused. */
+    public void release() {
+        synchronized (this) {
+            head += taken;
+            taken = 0;
+            released++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until all records written so far are released by the reader.
+     * @return true if they were, false if the timeout has elapsed first
+     */
+    public boolean awaitReleased(long timeoutMs) {
+        final long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        synchronized (this) {
+            final long target = written;
+            while (released < target && !closed) {
+                final long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** @return amount of records which were dropped since the last call */
+    public synchronized long takeDropped() {
+        final long dropped = this.dropped;
+        this.dropped = 0;
+        return dropped;
+    }
+
+    /** Make the reader return from {@link #take(long)}, even if there is no record. */
+    public synchronized void wakeReader() {
+        wakeReader = true;
+        notifyAll();
+    }
+
+    /** Stop accepting records. Reader can still take what was written. */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
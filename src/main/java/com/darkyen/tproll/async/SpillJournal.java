@@ -0,0 +1,271 @@
+package com.darkyen.tproll.async;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of records, which are read back in the same order.
+ * Used by {@link AsyncLogFunction} to hold messages which don't fit into its ring, instead of dropping them.
+ *
+ * Each record is prefixed with its length and CRC32 checksum. When the journal is opened and the file contains records
+ * (because the previous process died before it could read them), they are read first. Reading stops at the first
+ * incomplete or corrupted record, which is what remains after a crash in the middle of a write.
+ * Records are not forced to the disk, so they survive a crash of the process, but not of the operating system.
+ *
+ * How far the records were read is stored in the header by {@link #commitRead()}, which the reader calls
+ * after it has logged a batch, so that a crash repeats at most the last batch, not everything since the journal was opened.
+ *
+ * The file is written through {@link RandomAccessFile}, not through a {@link java.nio.channels.FileChannel},
+ * which would be closed for good when an interrupted thread appends a record.
+ * When a write fails anyway, the file is opened again and cut after the last whole record.
+ *
+ * File layout: magic (int), version (int), read offset (long), records: length (int), CRC32 of the payload (int), payload.
+ */
+@SuppressWarnings("unused")
+public final class SpillJournal implements Closeable {
+
+    private static final int MAGIC = 0x54504A4C; // TPJL
+    private static final int VERSION = 3;
+    private static final int READ_OFFSET_POSITION = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final @NotNull File file;
+    private final long maxBytes;
+    private @NotNull RandomAccessFile raf;
+    private final @NotNull CRC32 crc = new CRC32();
+    private final @NotNull ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final @NotNull ByteBuffer readOffset = ByteBuffer.allocate(8);
+    private @NotNull ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+
+    //region Guarded by this
+    private long readPosition;
+    private long writePosition;
+    /** Read position last stored in the header */
+    private long committedReadPosition;
+    private long appendedRecords = 0;
+    //endregion
+
+    /**
+     * Open or create the journal.
+     * @param maxBytes size of the file after which records are rejected
+     */
+    public SpillJournal(@NotNull File file, long maxBytes) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory for the journal: " + parent);
+        }
+        raf = new RandomAccessFile(file, "rw");
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final long readOffset;
+        if (readFully(header, 0) && header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                && (readOffset = header.getLong(READ_OFFSET_POSITION)) >= HEADER_SIZE && readOffset <= raf.length()) {
+            readPosition = readOffset;
+            writePosition = findEnd(readOffset);
+        } else {
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+            writeFully(header, 0);
+            readPosition = writePosition = HEADER_SIZE;
+        }
+        committedReadPosition = readPosition;
+        // Cut off what is after the last valid record
+        raf.setLength(writePosition);
+    }
+
+    public @NotNull File getFile() {
+        return file;
+    }
+
+    /** @param buffer with an array */
+    private boolean readFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+        final RandomAccessFile raf = this.raf;
+        raf.seek(position);
+        while (buffer.hasRemaining()) {
+            final int read = raf.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read < 0) {
+                return false;
+            }
+            buffer.position(buffer.position() + read);
+        }
+        return true;
+    }
+
+    private void writeFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+        final RandomAccessFile raf = this.raf;
+        raf.seek(position);
+        if (buffer.hasArray()) {
+            raf.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            raf.write(bytes);
+        }
+    }
+
+    /** Open the file again after a failed write and cut off the partially written record. */
+    private void reopen() throws IOException {
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+        }
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() > writePosition) {
+            raf.setLength(writePosition);
+        }
+    }
+
+    /** @return position after the last valid record */
+    private long findEnd(long position) throws IOException {
+        while (true) {
+            final ByteBuffer record = readRecord(position);
+            if (record == null) {
+                return position;
+            }
+            position += RECORD_HEADER_SIZE + record.remaining();
+        }
+    }
+
+    /** @return payload of a valid record at position, or null if there is none */
+    private @Nullable ByteBuffer readRecord(long position) throws IOException {
+        final ByteBuffer recordHeader = this.recordHeader;
+        recordHeader.clear();
+        if (!readFully(recordHeader, position)) {
+            return null;
+        }
+        final int length = recordHeader.getInt(0);
+        final int checksum = recordHeader.getInt(4);
+        if (length < 0 || position + RECORD_HEADER_SIZE + length > raf.length()) {
+            return null;
+        }
+        if (readBuffer.capacity() < length) {
+            readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+        }
+        final ByteBuffer payload = readBuffer;
+        payload.clear().limit(length);
+        if (!readFully(payload, position + RECORD_HEADER_SIZE)) {
+            return null;
+        }
+        payload.flip();
+        final CRC32 crc = this.crc;
+        crc.reset();
+        crc.update(payload.array(), payload.arrayOffset(), length);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return payload;
+    }
+
+    /**
+     * Append the record between position and limit.
+     * @return false if the journal is full
+     * @throws IOException when the record could not be written, the journal stays usable if the file could be opened again
+     */
+    public synchronized boolean append(@NotNull ByteBuffer record) throws IOException {
+        final int length = record.remaining();
+        if (writePosition + RECORD_HEADER_SIZE + length > maxBytes) {
+            return false;
+        }
+        final CRC32 crc = this.crc;
+        crc.reset();
+        if (record.hasArray()) {
+            crc.update(record.array(), record.arrayOffset() + record.position(), length);
+        } else {
+            final byte[] bytes = new byte[length];
+            record.duplicate().get(bytes);
+            crc.update(bytes, 0, length);
+        }
+        final ByteBuffer recordHeader = this.recordHeader;
+        recordHeader.clear();
+        recordHeader.putInt(length).putInt((int) crc.getValue()).flip();
+        try {
+            writeFully(recordHeader, writePosition);
+            writeFully(record, writePosition + RECORD_HEADER_SIZE);
+        } catch (IOException e) {
+            try {
+                reopen();
+            } catch (IOException reopenFailure) {
+                e.addSuppressed(reopenFailure);
+            }
+            throw e;
+        }
+        writePosition += RECORD_HEADER_SIZE + length;
+        appendedRecords++;
+        return true;
+    }
+
+    /**
+     * Read the next record. Only one thread may read.
+     * @return the record between position and limit, valid until the next call, or null if all records were read
+     */
+    public synchronized @Nullable ByteBuffer next() throws IOException {
+        if (readPosition >= writePosition) {
+            return null;
+        }
+        final ByteBuffer record = readRecord(readPosition);
+        if (record == null) {
+            // Should not happen, unless someone else writes into the file, skip the rest
+            readPosition = writePosition;
+            return null;
+        }
+        readPosition += RECORD_HEADER_SIZE + record.remaining();
+        return record;
+    }
+
+    /**
+     * Store how far the records were read, so that they are not read again after a crash.
+     * The header is forced to the disk, so this should be called once per batch of records, after they were handled.
+     */
+    public synchronized void commitRead() throws IOException {
+        if (committedReadPosition == readPosition) {
+            return;
+        }
+        final ByteBuffer readOffset = this.readOffset;
+        readOffset.clear();
+        readOffset.putLong(readPosition).flip();
+        writeFully(readOffset, READ_OFFSET_POSITION);
+        raf.getFD().sync();
+        committedReadPosition = readPosition;
+    }
+
+    /** @return true if all records were read */
+    public synchronized boolean isEmpty() {
+        return readPosition >= writePosition;
+    }
+
+    /** @return amount of records appended since this journal was opened */
+    public synchronized long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    /** When all records were read, truncate the file, so that it does not grow forever. */
+    public synchronized void truncateIfEmpty() throws IOException {
+        if (readPosition >= writePosition && writePosition > HEADER_SIZE) {
+            // Offset pointing past the end after a crash in between is reset when opened, so nothing is read again
+            raf.setLength(HEADER_SIZE);
+            readPosition = writePosition = HEADER_SIZE;
+            commitRead();
+        }
+    }
+
+    /** Close the file, delete it if all records were read. */
+    @Override
+    public synchronized void close() throws IOException {
+        final boolean empty = isEmpty();
+        raf.close();
+        if (empty && !file.delete()) {
+            throw new IOException("Failed to delete empty journal: " + file);
+        }
+    }
+}
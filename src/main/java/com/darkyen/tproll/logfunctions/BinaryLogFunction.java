@@ -0,0 +1,717 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.KeyValue;
+import com.darkyen.tproll.util.PrettyPrinter;
+import com.darkyen.tproll.util.RenderableMarker;
+import com.darkyen.tproll.util.SharedScheduler;
+import com.darkyen.tproll.util.StringBuilderWriter;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.CRC32;
+
+/**
+ * LogFunction which writes messages in a compact binary format, which is read back by {@link BinaryLogReader}.
+ *
+ * Logger names, message templates, thread names and markers are written only once per file, into a table,
+ * and messages refer to them by index. Arguments are written by type, so messages which come through
+ * {@link #logEvent(LogEvent)} are not formatted at all. Time is written as a difference from the previous message.
+ * {@link BinaryLogReader} formats the messages into exactly the same lines as {@link FileLogFunction} would.
+ *
+ * Records are written in blocks, each prefixed with its length and CRC32, so after a crash the file can be read
+ * up to the last complete block. Block is written when it is full, immediately after an ERROR (or LOG) message,
+ * when the flush interval elapses, or on {@link #flush()} and {@link #dispose()}.
+ *
+ * Existing file is appended to, after its last complete block. Only the headers of its blocks and the checksum
+ * of the last one are read, the tables of the file start again with a reset record.
+ * When the file grows over its size limit, it is renamed to {@code <name>.1} (replacing the previous one) and a new file is started.
+ *
+ * File layout: magic (int), version (int), blocks: length (int), CRC32 of the payload (int), records.
+ * Record is a kind (byte) followed by:
+ * <ul>
+ *     <li>reset: nothing, tables and time and sequence differences start from empty again</li>
+ *     <li>string: UTF-8 length (varint) and bytes, gets the next string index</li>
+ *     <li>marker: name (string ref), renderable (byte), [label (string ref)], reference count (varint),
+ *     references (marker index, varint), gets the next marker index</li>
+ *     <li>event: level (byte), flags (byte), time difference (signed varint), [nano adjust (varint)],
+ *     [sequence difference (signed varint)], name (string ref), [marker index (varint)], [thread name (string ref)],
+ *     then either content (string ref) or template (string ref), argument count (varint) and arguments (tag byte + value)</li>
+ * </ul>
+ * String ref is the index + 1 (varint), or 0 followed by an inline string. Signed varints are zig-zag encoded.
+ */
+@SuppressWarnings("unused")
+public class BinaryLogFunction extends LogFunction {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000L;
+    public static final long DEFAULT_MAX_FILE_BYTES = 256L * 1024 * 1024;
+
+    /** Maximum amount of strings and markers in the table of a file, each. Further strings are written inline. */
+    public static final int MAX_TABLE_SIZE = 1 << 16;
+    /** Markers nested deeper than this are not written */
+    private static final int MAX_MARKER_DEPTH = 16;
+
+    //region Format
+    static final int MAGIC = 0x5450424C; // TPBL
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 8;
+    static final int BLOCK_HEADER_SIZE = 8;
+    /** Blocks claiming to be larger than this are considered corrupted */
+    static final int MAX_BLOCK_SIZE = 256 * 1024 * 1024;
+
+    static final byte KIND_STRING = 1;
+    static final byte KIND_MARKER = 2;
+    static final byte KIND_EVENT = 3;
+    static final byte KIND_RESET = 4;
+
+    static final int FLAG_NANO_ADJUST = 1;
+    static final int FLAG_SEQUENCE = 1 << 1;
+    static final int FLAG_MARKER = 1 << 2;
+    static final int FLAG_THREAD = 1 << 3;
+    static final int FLAG_TEMPLATE = 1 << 4;
+
+    static final byte TAG_NULL = 0;
+    static final byte TAG_TRUE = 1;
+    static final byte TAG_FALSE = 2;
+    static final byte TAG_BYTE = 3;
+    static final byte TAG_SHORT = 4;
+    static final byte TAG_CHAR = 5;
+    static final byte TAG_INT = 6;
+    static final byte TAG_LONG = 7;
+    static final byte TAG_FLOAT = 8;
+    static final byte TAG_DOUBLE = 9;
+    static final byte TAG_STRING = 10;
+    static final byte TAG_THROWABLE = 11;
+    static final byte TAG_KEY_VALUE = 12;
+    //endregion
+
+    private final @NotNull Object LOCK = new Object();
+    private final @Nullable File file;
+    /** Given channel to write to instead of the file */
+    private final @Nullable WritableByteChannel channel;
+    private final int blockSize;
+    private final long maxFileBytes;
+    private final @Nullable ScheduledFuture<?> flushTask;
+
+    //region Guarded by LOCK
+    /** Written through its byte array methods, because a channel would be closed by a write from an interrupted thread */
+    private @Nullable RandomAccessFile fileOut;
+    private boolean opened = false;
+    /** To report only the first failure */
+    private boolean openFailed = false;
+    /** Amount of bytes written into the file, including the header */
+    private long fileLength = 0L;
+    /** True when the next block must start with a reset record, because the file was written by someone else before */
+    private boolean resetPending = false;
+    private @NotNull ByteBuffer block;
+    private final @NotNull CRC32 crc = new CRC32();
+    private final @NotNull Utf8Appender utf8 = new Utf8Appender();
+    private final @NotNull StringBuilder rendered = new StringBuilder();
+    private final @NotNull StringBuilderWriter renderedWriter = new StringBuilderWriter(rendered);
+
+    private final @NotNull HashMap<@NotNull String, @NotNull Integer> stringIds = new HashMap<>();
+    private final @NotNull ArrayList<@NotNull String> strings = new ArrayList<>();
+    private final @NotNull IdentityHashMap<@NotNull Marker, @NotNull Integer> markerIds = new IdentityHashMap<>();
+    private final @NotNull ArrayList<@NotNull Marker> markers = new ArrayList<>();
+    private long lastTime = 0L, lastSequence = 0L;
+
+    /** State of the file after the last written block, to return to when the current block can't be written */
+    private int writtenStrings = 0, writtenMarkers = 0;
+    private long writtenLastTime = 0L, writtenLastSequence = 0L;
+    //endregion
+
+    /**
+     * @param file to write to, appended to if it exists
+     * @param blockSize amount of bytes after which the block is written
+     * @param flushIntervalMs maximum time for which the messages stay in memory, 0 to write only full blocks
+     *                        and after ERROR messages
+     * @param maxFileBytes size after which the file is renamed to {@code <name>.1} and a new one is started, 0 for no limit
+     * @param registerShutdownHook to automatically call dispose (and write the last block!) when the application shuts down. Recommended: true.
+     */
+    public BinaryLogFunction(@NotNull File file, int blockSize, long flushIntervalMs, long maxFileBytes, boolean registerShutdownHook) {
+        this(file, null, blockSize, flushIntervalMs, maxFileBytes, registerShutdownHook);
+    }
+
+    /** @see #BinaryLogFunction(File, int, long, long, boolean), with no size limit */
+    public BinaryLogFunction(@NotNull File file, int blockSize, long flushIntervalMs, boolean registerShutdownHook) {
+        this(file, null, blockSize, flushIntervalMs, 0L, registerShutdownHook);
+    }
+
+    /** Write to the file, with default block size, flush interval and size limit. */
+    public BinaryLogFunction(@NotNull File file) {
+        this(file, DEFAULT_BLOCK_SIZE, DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_MAX_FILE_BYTES, true);
+    }
+
+    /**
+     * Write a new binary log into the channel, which is not closed on dispose.
+     * @see #BinaryLogFunction(File, int, long, boolean)
+     */
+    public BinaryLogFunction(@NotNull WritableByteChannel channel, int blockSize, long flushIntervalMs) {
+        this(null, channel, blockSize, flushIntervalMs, 0L, false);
+    }
+
+    private BinaryLogFunction(@Nullable File file, @Nullable WritableByteChannel channel, int blockSize, long flushIntervalMs, long maxFileBytes, boolean registerShutdownHook) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) throw new IllegalArgumentException("blockSize must be positive and at most " + MAX_BLOCK_SIZE + ": " + blockSize);
+        if (flushIntervalMs < 0) throw new IllegalArgumentException("flushIntervalMs must not be negative: " + flushIntervalMs);
+        if (maxFileBytes < 0) throw new IllegalArgumentException("maxFileBytes must not be negative: " + maxFileBytes);
+        this.file = file;
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.maxFileBytes = maxFileBytes;
+        this.block = ByteBuffer.allocate(blockSize + 1024);
+        block.position(BLOCK_HEADER_SIZE);
+
+        flushTask = flushIntervalMs > 0 ? SharedScheduler.schedule(this::flush, flushIntervalMs) : null;
+        if (registerShutdownHook) {
+            SharedScheduler.onShutdown(this::dispose);
+        }
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        synchronized (LOCK) {
+            if (!ensureOpen()) return;
+            putEvent(name, time, nanoAdjust, sequence, level, marker, null, content, null, Collections.emptyList());
+            blockDone(level);
+        }
+    }
+
+    /** Writes the template and the arguments, the message is not formatted. */
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        synchronized (LOCK) {
+            if (!ensureOpen()) return true;
+            putEvent(event);
+            blockDone(event.getLevel());
+        }
+        return true;
+    }
+
+    @Override
+    public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        synchronized (LOCK) {
+            if (!ensureOpen()) return;
+            byte maxLevel = 0;
+            for (int i = from; i < to; i++) {
+                final LogEvent event = events[i];
+                putEvent(event);
+                if (block.position() - BLOCK_HEADER_SIZE >= blockSize) {
+                    writeBlock();
+                    // Closed when rotated or when the block could not be written
+                    if (!ensureOpen()) return;
+                }
+                maxLevel = (byte) Math.max(maxLevel, event.getLevel());
+            }
+            blockDone(maxLevel);
+        }
+    }
+
+    /** Write the block with the messages logged so far. */
+    public void flush() {
+        synchronized (LOCK) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        synchronized (LOCK) {
+            writeBlock();
+            if (file != null) {
+                // Opened again when something is logged after dispose
+                closeFile();
+            }
+        }
+    }
+
+    //region Encoding, guarded by LOCK
+    private void putEvent(@NotNull LogEvent event) {
+        final String template = event.getTemplate();
+        if (template == null) {
+            putEvent(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getThreadName(), event.getContent(), null, Collections.emptyList());
+        } else {
+            putEvent(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getThreadName(), null, template, event.getArguments());
+        }
+    }
+
+    private void putEvent(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @Nullable String threadName,
+                          @Nullable CharSequence content, @Nullable String template, @NotNull List<@Nullable Object> arguments) {
+        // Table records must precede the event
+        final int nameRef = stringRef(name);
+        final int markerIndex = marker == null ? -1 : markerIndex(marker, 0);
+        final int threadRef = threadName == null ? 0 : stringRef(threadName);
+        final int templateRef = template == null ? 0 : stringRef(template);
+
+        int flags = 0;
+        if (nanoAdjust != 0) flags |= FLAG_NANO_ADJUST;
+        if (sequence != 0L) flags |= FLAG_SEQUENCE;
+        if (markerIndex >= 0) flags |= FLAG_MARKER;
+        if (threadName != null) flags |= FLAG_THREAD;
+        if (template != null) flags |= FLAG_TEMPLATE;
+
+        ensure(3 + 10 + 5 + 10);
+        final ByteBuffer out = this.block;
+        out.put(KIND_EVENT).put(level).put((byte) flags);
+        putVarint(out, zigZag(time - lastTime));
+        lastTime = time;
+        if (nanoAdjust != 0) {
+            putVarint(out, nanoAdjust);
+        }
+        if (sequence != 0L) {
+            putVarint(out, zigZag(sequence - lastSequence));
+            lastSequence = sequence;
+        }
+        putStringRef(nameRef, name);
+        if (markerIndex >= 0) {
+            ensure(5);
+            putVarint(this.block, markerIndex);
+        }
+        if (threadName != null) {
+            putStringRef(threadRef, threadName);
+        }
+        if (template == null) {
+            assert content != null;
+            putStringRef(0, content);
+        } else {
+            putStringRef(templateRef, template);
+            final int argumentCount = arguments.size();
+            ensure(5);
+            putVarint(this.block, argumentCount);
+            for (int i = 0; i < argumentCount; i++) {
+                putArgument(arguments.get(i));
+            }
+        }
+    }
+
+    /** @return string ref of the string, which is added to the table if needed, 0 if the table is full */
+    private int stringRef(@NotNull String string) {
+        final Integer id = stringIds.get(string);
+        if (id != null) {
+            return id + 1;
+        }
+        final int newId = strings.size();
+        if (newId >= MAX_TABLE_SIZE) {
+            return 0;
+        }
+        ensure(1);
+        block.put(KIND_STRING);
+        putString(string);
+        stringIds.put(string, newId);
+        strings.add(string);
+        return newId + 1;
+    }
+
+    private void putStringRef(int ref, @NotNull CharSequence string) {
+        ensure(5);
+        putVarint(block, ref);
+        if (ref == 0) {
+            putString(string);
+        }
+    }
+
+    /** @return index of the marker, which is added to the table if needed, -1 if it can't be */
+    private int markerIndex(@NotNull Marker marker, int depth) {
+        final Integer id = markerIds.get(marker);
+        if (id != null) {
+            return id;
+        }
+        if (markers.size() >= MAX_TABLE_SIZE || depth > MAX_MARKER_DEPTH) {
+            return -1;
+        }
+
+        // References must be in the table first
+        int[] references = null;
+        int referenceCount = 0;
+        if (marker.hasReferences()) {
+            references = new int[4];
+            for (Iterator<Marker> it = marker.iterator(); it.hasNext(); ) {
+                final int reference = markerIndex(it.next(), depth + 1);
+                if (reference < 0) continue;
+                if (referenceCount == references.length) {
+                    final int[] newReferences = new int[referenceCount * 2];
+                    System.arraycopy(references, 0, newReferences, 0, referenceCount);
+                    references = newReferences;
+                }
+                references[referenceCount++] = reference;
+            }
+        }
+        final String name = marker.getName();
+        final int nameRef = stringRef(name);
+        final String label = marker instanceof RenderableMarker ? ((RenderableMarker) marker).getLabel() : null;
+        final int labelRef = label == null ? 0 : stringRef(label);
+
+        ensure(1);
+        block.put(KIND_MARKER);
+        putStringRef(nameRef, name);
+        ensure(1);
+        block.put(label == null ? (byte) 0 : (byte) 1);
+        if (label != null) {
+            putStringRef(labelRef, label);
+        }
+        ensure(5 + referenceCount * 5);
+        putVarint(block, referenceCount);
+        for (int i = 0; i < referenceCount; i++) {
+            putVarint(block, references[i]);
+        }
+
+        final int newId = markers.size();
+        markerIds.put(marker, newId);
+        markers.add(marker);
+        return newId;
+    }
+
+    private void putString(@NotNull CharSequence string) {
+        final Utf8Appender utf8 = this.utf8;
+        utf8.clear();
+        utf8.append(string);
+        final ByteBuffer bytes = utf8.buffer();
+        ensure(5 + bytes.remaining());
+        putVarint(block, bytes.remaining());
+        block.put(bytes);
+    }
+
+    private void putArgument(@Nullable Object argument) {
+        ensure(11);
+        final ByteBuffer out = this.block;
+        if (argument == null) {
+            out.put(TAG_NULL);
+        } else if (argument instanceof String) {
+            out.put(TAG_STRING);
+            putString((String) argument);
+        } else if (argument instanceof Integer) {
+            out.put(TAG_INT);
+            putVarint(out, zigZag((Integer) argument));
+        } else if (argument instanceof Long) {
+            out.put(TAG_LONG);
+            putVarint(out, zigZag((Long) argument));
+        } else if (argument instanceof Boolean) {
+            out.put((Boolean) argument ? TAG_TRUE : TAG_FALSE);
+        } else if (argument instanceof Double) {
+            out.put(TAG_DOUBLE).putDouble((Double) argument);
+        } else if (argument instanceof Float) {
+            out.put(TAG_FLOAT).putFloat((Float) argument);
+        } else if (argument instanceof Character) {
+            out.put(TAG_CHAR);
+            putVarint(out, (Character) argument);
+        } else if (argument instanceof Short) {
+            out.put(TAG_SHORT);
+            putVarint(out, zigZag((Short) argument));
+        } else if (argument instanceof Byte) {
+            out.put(TAG_BYTE).put((Byte) argument);
+        } else if (argument instanceof KeyValue) {
+            final KeyValue keyValue = (KeyValue) argument;
+            out.put(TAG_KEY_VALUE);
+            putString(keyValue.getKey());
+            putArgument(keyValue.getValue());
+        } else {
+            final StringBuilder rendered = this.rendered;
+            rendered.setLength(0);
+            PrettyPrinter.append(rendered, argument);
+            if (argument instanceof Throwable) {
+                out.put(TAG_THROWABLE);
+                putString(rendered);
+                rendered.setLength(0);
+                ((Throwable) argument).printStackTrace(renderedWriter);
+            } else {
+                out.put(TAG_STRING);
+            }
+            putString(rendered);
+        }
+    }
+
+    private void ensure(int bytes) {
+        final ByteBuffer block = this.block;
+        if (block.remaining() < bytes) {
+            final ByteBuffer newBlock = ByteBuffer.allocate(Math.max(block.capacity() * 2, block.position() + bytes));
+            block.flip();
+            newBlock.put(block);
+            this.block = newBlock;
+        }
+    }
+
+    static void putVarint(@NotNull ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    //endregion
+
+    //region Writing, guarded by LOCK
+    /** Called after a message was added to the block */
+    private void blockDone(byte level) {
+        if (level >= TPLogger.ERROR || block.position() - BLOCK_HEADER_SIZE >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() {
+        final ByteBuffer block = this.block;
+        final int length = block.position() - BLOCK_HEADER_SIZE;
+        if (length == 0) {
+            return;
+        }
+        final CRC32 crc = this.crc;
+        crc.reset();
+        crc.update(block.array(), BLOCK_HEADER_SIZE, length);
+        block.putInt(0, length).putInt(4, (int) crc.getValue());
+        block.flip();
+        boolean written = false;
+        try {
+            final RandomAccessFile fileOut = this.fileOut;
+            if (fileOut != null) {
+                fileOut.write(block.array(), 0, block.limit());
+            } else {
+                final WritableByteChannel channel = this.channel;
+                assert channel != null;
+                writeFully(channel, block);
+            }
+            fileLength += BLOCK_HEADER_SIZE + length;
+            resetPending = false;
+            commit();
+            written = true;
+        } catch (IOException e) {
+            System.err.println("tproll: Failed to write binary log" + (file == null ? "" : " " + file) + ", " + length + " bytes lost: " + e);
+            if (file != null) {
+                // Part of the block may have been written, the file is checked again when reopened
+                closeFile();
+            } else {
+                rollback();
+            }
+        } finally {
+            if (block.capacity() > blockSize * 4) {
+                // Do not keep a huge buffer after a huge message
+                this.block = ByteBuffer.allocate(blockSize + 1024);
+            } else {
+                block.clear();
+            }
+            this.block.position(BLOCK_HEADER_SIZE);
+            if (resetPending) {
+                this.block.put(KIND_RESET);
+            }
+        }
+        if (written && file != null && maxFileBytes > 0 && fileLength >= maxFileBytes) {
+            rotate(file);
+        }
+    }
+
+    /** Rename the full file to {@code <name>.1} and start a new one with the next message. */
+    private void rotate(@NotNull File file) {
+        closeFile();
+        final File rotated = new File(file.getPath() + ".1");
+        try {
+            Files.move(file.toPath(), rotated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("tproll: Failed to rename full binary log " + file + " to " + rotated + ": " + e);
+        }
+    }
+
+    /** Close the file and forget its tables, it is opened again when something is logged. */
+    private void closeFile() {
+        final RandomAccessFile fileOut = this.fileOut;
+        this.fileOut = null;
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException ignored) {
+            }
+        }
+        opened = false;
+        resetPending = false;
+        block.clear();
+        block.position(BLOCK_HEADER_SIZE);
+        stringIds.clear();
+        strings.clear();
+        markerIds.clear();
+        markers.clear();
+        lastTime = lastSequence = 0L;
+        commit();
+    }
+
+    /**
+     * Must be called before anything is encoded, the tables of an existing file are needed.
+     * @return false when the messages can't be written
+     */
+    private boolean ensureOpen() {
+        if (opened) {
+            return true;
+        }
+        try {
+            open();
+            opened = true;
+            openFailed = false;
+            return true;
+        } catch (IOException e) {
+            if (!openFailed) {
+                openFailed = true;
+                System.err.println("tproll: Failed to open binary log" + (file == null ? "" : " " + file) + ": " + e);
+            }
+            return false;
+        }
+    }
+
+    /** Write the header, or open the file and find the end of its valid blocks when it exists. */
+    private void open() throws IOException {
+        final File file = this.file;
+        if (file == null) {
+            final WritableByteChannel channel = this.channel;
+            assert channel != null;
+            writeFully(channel, ByteBuffer.wrap(header()));
+            fileLength = HEADER_SIZE;
+            return;
+        }
+
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory for the binary log: " + parent);
+        }
+        final RandomAccessFile fileOut = new RandomAccessFile(file, "rw");
+        try {
+            long validLength = fileOut.length() >= HEADER_SIZE ? findValidLength(fileOut) : 0L;
+            if (validLength < 0L) {
+                // Older version, which can't be appended to
+                fileOut.close();
+                rotate(file);
+                open();
+                return;
+            }
+            fileOut.setLength(validLength);
+            fileOut.seek(validLength);
+            if (validLength == 0L) {
+                fileOut.write(header());
+                validLength = HEADER_SIZE;
+            } else if (validLength > HEADER_SIZE) {
+                // Tables of the file are not read, so they start again
+                resetPending = true;
+                block.put(KIND_RESET);
+            }
+            fileLength = validLength;
+        } catch (IOException e) {
+            fileOut.close();
+            throw e;
+        }
+        this.fileOut = fileOut;
+    }
+
+    /**
+     * Walks the block headers, only the last block is read whole and checked, because only the last write
+     * can be torn by a crash.
+     * @return length of the file up to the last valid block, -1 if it is a binary log of other version
+     * @throws IOException when this is not a binary log, so that it is not overwritten
+     */
+    private long findValidLength(@NotNull RandomAccessFile file) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(Math.max(HEADER_SIZE, BLOCK_HEADER_SIZE));
+        if (!readFully(file, header.array(), HEADER_SIZE, 0L) || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary log");
+        }
+        if (header.getInt(4) != VERSION) {
+            return -1L;
+        }
+        final long size = file.length();
+        long position = HEADER_SIZE;
+        long lastBlock = -1L;
+        int lastLength = 0, lastChecksum = 0;
+        while (true) {
+            if (!readFully(file, header.array(), BLOCK_HEADER_SIZE, position)) {
+                break;
+            }
+            final int length = header.getInt(0);
+            if (length <= 0 || length > MAX_BLOCK_SIZE || position + BLOCK_HEADER_SIZE + length > size) {
+                break;
+            }
+            lastBlock = position;
+            lastLength = length;
+            lastChecksum = header.getInt(4);
+            position += BLOCK_HEADER_SIZE + length;
+        }
+        if (lastBlock >= 0L) {
+            final byte[] payload = new byte[lastLength];
+            if (!readFully(file, payload, lastLength, lastBlock + BLOCK_HEADER_SIZE)) {
+                return lastBlock;
+            }
+            final CRC32 crc = this.crc;
+            crc.reset();
+            crc.update(payload, 0, lastLength);
+            if ((int) crc.getValue() != lastChecksum) {
+                return lastBlock;
+            }
+        }
+        return position;
+    }
+
+    /** @return false if the file ends before {@code length} bytes are read */
+    private static boolean readFully(@NotNull RandomAccessFile file, @NotNull byte[] into, int length, long position) throws IOException {
+        file.seek(position);
+        try {
+            file.readFully(into, 0, length);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static @NotNull byte[] header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array();
+    }
+
+    private static void writeFully(@NotNull WritableByteChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void commit() {
+        writtenStrings = strings.size();
+        writtenMarkers = markers.size();
+        writtenLastTime = lastTime;
+        writtenLastSequence = lastSequence;
+    }
+
+    /** Forget what was added to the tables by the block which was not written */
+    private void rollback() {
+        final ArrayList<String> strings = this.strings;
+        while (strings.size() > writtenStrings) {
+            stringIds.remove(strings.remove(strings.size() - 1));
+        }
+        final ArrayList<Marker> markers = this.markers;
+        while (markers.size() > writtenMarkers) {
+            markerIds.remove(markers.remove(markers.size() - 1));
+        }
+        lastTime = writtenLastTime;
+        lastSequence = writtenLastSequence;
+    }
+    //endregion
+}
@@ -0,0 +1,427 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.util.CapturedThrowable;
+import com.darkyen.tproll.util.KeyValue;
+import com.darkyen.tproll.util.RenderableMarker;
+import com.darkyen.tproll.util.SimpleMarker;
+import com.darkyen.tproll.util.TimeFormatter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import static com.darkyen.tproll.logfunctions.BinaryLogFunction.*;
+
+/**
+ * Reads messages written by {@link BinaryLogFunction}.
+ * Reading stops at the end of the file, or at the first incomplete or corrupted block,
+ * which is what remains after a crash in the middle of a write.
+ *
+ * Can be run from the command line, to print the messages of files in the same format as {@link FileLogFunction}:
+ * {@code java -cp tproll.jar com.darkyen.tproll.logfunctions.BinaryLogReader [--relative-time | --no-time] file...}
+ */
+@SuppressWarnings("unused")
+public final class BinaryLogReader implements Closeable {
+
+    private final @NotNull ReadableByteChannel channel;
+    private final @NotNull ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    /** Payload of the current block, position at the next record */
+    private @NotNull ByteBuffer block = ByteBuffer.allocate(DEFAULT_BLOCK_SIZE + 1024);
+    private final @NotNull CRC32 crc = new CRC32();
+
+    private final @NotNull ArrayList<@NotNull String> strings = new ArrayList<>();
+    private final @NotNull ArrayList<@NotNull Marker> markers = new ArrayList<>();
+    private final @NotNull ArrayList<@Nullable Object> arguments = new ArrayList<>();
+    private long time = 0L, sequence = 0L;
+
+    private long validLength = HEADER_SIZE;
+    private boolean corrupted = false;
+
+    public BinaryLogReader(@NotNull File file) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    /**
+     * @param channel with the binary log from its start, closed by {@link #close()}
+     * @throws IOException if the channel does not start with the header of the binary log
+     */
+    public BinaryLogReader(@NotNull ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(header) || header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a binary log");
+        }
+        if (header.getInt(4) < 1 || header.getInt(4) > VERSION) {
+            channel.close();
+            throw new IOException("Unsupported version of the binary log: " + header.getInt(4));
+        }
+        block.limit(0);
+    }
+
+    /**
+     * Read the next message into the event. Formatted messages are set with their content,
+     * others with their template, arguments and thread name.
+     * @param event to fill, its arguments are valid only until the next call
+     * @return false when there are no more messages
+     */
+    public boolean next(@NotNull LogEvent event) throws IOException {
+        while (true) {
+            final ByteBuffer block = this.block;
+            if (!block.hasRemaining()) {
+                if (corrupted || !readBlock()) {
+                    return false;
+                }
+                continue;
+            }
+            try {
+                final byte kind = block.get();
+                if (kind == KIND_STRING) {
+                    strings.add(getString());
+                } else if (kind == KIND_MARKER) {
+                    markers.add(getMarker());
+                } else if (kind == KIND_RESET) {
+                    strings.clear();
+                    markers.clear();
+                    time = sequence = 0L;
+                } else if (kind == KIND_EVENT) {
+                    getEvent(event);
+                    return true;
+                } else {
+                    throw new IllegalArgumentException("Unknown record kind " + kind);
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                // Checksum was valid, so this was not written by a compatible writer
+                corrupted = true;
+                block.limit(0);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Pass all remaining messages to the function, through {@link LogFunction#logEvent(LogEvent)}
+     * or {@link LogFunction#log(String, long, int, long, byte, Marker, CharSequence)} when it is not taken.
+     * @return amount of messages passed
+     */
+    public long readInto(@NotNull LogFunction function) throws IOException {
+        final LogEvent event = new LogEvent();
+        long count = 0;
+        while (next(event)) {
+            if (!function.logEvent(event)) {
+                function.log(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent());
+            }
+            count++;
+        }
+        event.clear();
+        return count;
+    }
+
+    /** @return true if the reading stopped at an incomplete or corrupted block, instead of the end of the file */
+    public boolean isCorrupted() {
+        return corrupted;
+    }
+
+    /** @return amount of bytes from the start of the file, which were read and are valid */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    //region Decoding
+    private boolean readFully(@NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return false at the end or at a corrupted block */
+    private boolean readBlock() throws IOException {
+        final ByteBuffer blockHeader = this.blockHeader;
+        blockHeader.clear();
+        if (!readFully(blockHeader)) {
+            // Clean end, unless the header is torn
+            corrupted = blockHeader.position() > 0;
+            return false;
+        }
+        final int length = blockHeader.getInt(0);
+        if (length <= 0 || length > MAX_BLOCK_SIZE) {
+            corrupted = true;
+            return false;
+        }
+        ByteBuffer block = this.block;
+        if (block.capacity() < length) {
+            this.block = block = ByteBuffer.allocate(length);
+        }
+        block.clear().limit(length);
+        if (!readFully(block)) {
+            corrupted = true;
+            block.limit(0);
+            return false;
+        }
+        final CRC32 crc = this.crc;
+        crc.reset();
+        crc.update(block.array(), 0, length);
+        if ((int) crc.getValue() != blockHeader.getInt(4)) {
+            corrupted = true;
+            block.limit(0);
+            return false;
+        }
+        block.flip();
+        validLength += BLOCK_HEADER_SIZE + length;
+        return true;
+    }
+
+    private void getEvent(@NotNull LogEvent event) {
+        final ByteBuffer in = this.block;
+        final byte level = in.get();
+        final int flags = in.get();
+        time += unZigZag(getVarint());
+        final int nanoAdjust = (flags & FLAG_NANO_ADJUST) != 0 ? (int) getVarint() : 0;
+        final long sequence;
+        if ((flags & FLAG_SEQUENCE) != 0) {
+            this.sequence = sequence = this.sequence + unZigZag(getVarint());
+        } else {
+            sequence = 0L;
+        }
+        final String name = getStringRef();
+        final Marker marker = (flags & FLAG_MARKER) != 0 ? markers.get((int) getVarint()) : null;
+        final String threadName = (flags & FLAG_THREAD) != 0 ? getStringRef() : null;
+        if ((flags & FLAG_TEMPLATE) != 0) {
+            final String template = getStringRef();
+            final ArrayList<Object> arguments = this.arguments;
+            arguments.clear();
+            final int argumentCount = (int) getVarint();
+            for (int i = 0; i < argumentCount; i++) {
+                arguments.add(getArgument());
+            }
+            event.setTemplate(name, time, nanoAdjust, sequence, level, marker, template, arguments);
+        } else {
+            event.set(name, time, nanoAdjust, sequence, level, marker, getStringRef());
+        }
+        event.setThreadName(threadName);
+    }
+
+    private @NotNull Marker getMarker() {
+        final ByteBuffer in = this.block;
+        final String name = getStringRef();
+        final String label = in.get() != 0 ? getStringRef() : null;
+        final int referenceCount = (int) getVarint();
+        final Marker[] references = new Marker[referenceCount];
+        for (int i = 0; i < referenceCount; i++) {
+            references[i] = markers.get((int) getVarint());
+        }
+        return label == null ? new ReadMarker(name, references) : new ReadRenderableMarker(name, label, references);
+    }
+
+    private @Nullable Object getArgument() {
+        final ByteBuffer in = this.block;
+        final byte tag = in.get();
+        switch (tag) {
+            case TAG_NULL: return null;
+            case TAG_TRUE: return Boolean.TRUE;
+            case TAG_FALSE: return Boolean.FALSE;
+            case TAG_BYTE: return in.get();
+            case TAG_SHORT: return (short) unZigZag(getVarint());
+            case TAG_CHAR: return (char) getVarint();
+            case TAG_INT: return (int) unZigZag(getVarint());
+            case TAG_LONG: return unZigZag(getVarint());
+            case TAG_FLOAT: return in.getFloat();
+            case TAG_DOUBLE: return in.getDouble();
+            case TAG_STRING: return getString();
+            case TAG_THROWABLE: {
+                final String description = getString();
+                return new CapturedThrowable(description, getString());
+            }
+            case TAG_KEY_VALUE: {
+                final String key = getString();
+                return new KeyValue(key, getArgument());
+            }
+            default: throw new IllegalArgumentException("Unknown argument tag " + tag);
+        }
+    }
+
+    private @NotNull String getStringRef() {
+        final long ref = getVarint();
+        if (ref == 0) {
+            return getString();
+        }
+        return strings.get((int) (ref - 1));
+    }
+
+    private @NotNull String getString() {
+        final ByteBuffer in = this.block;
+        final int length = (int) getVarint();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        final String string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+
+    private long getVarint() {
+        final ByteBuffer in = this.block;
+        long result = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    /** Marker read from the file, which has the name of the original. */
+    private static class ReadMarker extends SimpleMarker {
+        private static final long serialVersionUID = 1L;
+
+        private final @NotNull String name;
+
+        ReadMarker(@NotNull String name, @NotNull Marker @NotNull [] references) {
+            super(references);
+            this.name = name;
+        }
+
+        @Override
+        public @NotNull String getName() {
+            return name;
+        }
+    }
+
+    /** Marker read from the file, which was rendered with this label. */
+    private static final class ReadRenderableMarker extends ReadMarker implements RenderableMarker {
+        private static final long serialVersionUID = 1L;
+
+        private final @NotNull String label;
+
+        ReadRenderableMarker(@NotNull String name, @NotNull String label, @NotNull Marker @NotNull [] references) {
+            super(name, references);
+            this.label = label;
+        }
+
+        @Override
+        public @NotNull String getLabel() {
+            return label;
+        }
+    }
+    //endregion
+
+    /**
+     * Print the messages of given files to stdout, in the format of {@link FileLogFunction}.
+     * Time is absolute by default, like in {@link FileLogFunction#FileLogFunction(File)}.
+     * Exits with 1 when a file can't be read or is corrupted, after printing what could be read.
+     */
+    public static void main(String @NotNull [] args) {
+        TimeFormatter timeFormatter = new TimeFormatter.AbsoluteTimeFormatter();
+        final ArrayList<File> files = new ArrayList<>();
+        for (String arg : args) {
+            if ("--relative-time".equals(arg)) {
+                timeFormatter = new TimeFormatter.RelativeTimeFormatter(false, true, true, true, true, true);
+            } else if ("--no-time".equals(arg)) {
+                timeFormatter = null;
+            } else if (arg.startsWith("--")) {
+                files.clear();
+                break;
+            } else {
+                files.add(new File(arg));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: BinaryLogReader [--relative-time | --no-time] file...");
+            System.exit(2);
+            return;
+        }
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+        final FileLogFunction function = new FileLogFunction(timeFormatter, new StreamLogFileHandler(out), false);
+        boolean failed = false;
+        for (File file : files) {
+            try (BinaryLogReader reader = new BinaryLogReader(file)) {
+                reader.readInto(function);
+                if (reader.isCorrupted()) {
+                    failed = true;
+                    function.dispose();
+                    System.err.println(file + ": incomplete or corrupted after " + reader.getValidLength() + " bytes");
+                }
+            } catch (IOException e) {
+                failed = true;
+                function.dispose();
+                System.err.println(file + ": " + e.getMessage());
+            }
+        }
+        function.dispose();
+        System.exit(failed ? 1 : 0);
+    }
+
+    /** Writes lines into the stream, flushes it on dispose. */
+    private static final class StreamLogFileHandler implements ILogFileHandler {
+        private final @NotNull OutputStream out;
+
+        StreamLogFileHandler(@NotNull OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void log(@NotNull CharSequence message) {
+            log(StandardCharsets.UTF_8.encode(message.toString()));
+        }
+
+        @Override
+        public void log(@NotNull ByteBuffer message) {
+            try {
+                if (message.hasArray()) {
+                    out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+                } else {
+                    while (message.hasRemaining()) {
+                        out.write(message.get());
+                    }
+                }
+            } catch (IOException e) {
+                // Output was closed
+                System.exit(1);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            try {
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
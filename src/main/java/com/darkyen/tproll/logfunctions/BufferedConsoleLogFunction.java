@@ -0,0 +1,184 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.AnsiColor;
+import com.darkyen.tproll.util.PatternLayout;
+import com.darkyen.tproll.util.SharedScheduler;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Console log function, like {@link SimpleLogFunction#CONSOLE_LOG_FUNCTION}, which does not go through {@link System#out}.
+ * Lines are encoded into a buffer, which is written directly to the stdout/stderr file descriptors
+ * when it is full, when a short time window elapses, or immediately after an ERROR (or LOG) message.
+ *
+ * Lines end with {@link System#lineSeparator()}, like those of {@link System#out}.
+ * Order of lines between stdout and stderr is preserved: the buffer is flushed before switching the stream.
+ * Output written directly to {@link System#out} by other code is not ordered with the buffered lines,
+ * call {@link #flush()} if that matters.
+ */
+@SuppressWarnings("unused")
+public class BufferedConsoleLogFunction extends SimpleLogFunction {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    public static final long DEFAULT_FLUSH_WINDOW_MS = 20L;
+
+    private final int bufferSize;
+    private @Nullable WritableByteChannel out, err;
+    private final @NotNull ScheduledFuture<?> flushTask;
+    private final @NotNull Runnable shutdownTask = this::flush;
+
+    //region Guarded by this
+    private final @NotNull Utf8Appender buffer;
+    /** Stream to which the buffer belongs */
+    private boolean bufferIsErr = false;
+    //endregion
+
+    /**
+     * @param out channel for stdout
+     * @param err channel for stderr
+     * @param bufferSize amount of bytes after which the buffer is flushed
+     * @param flushWindowMs maximum time for which the lines stay in the buffer
+     */
+    public BufferedConsoleLogFunction(@NotNull WritableByteChannel out, @NotNull WritableByteChannel err, int bufferSize, long flushWindowMs) {
+        this(null, out, err, bufferSize, flushWindowMs);
+    }
+
+    /**
+     * Logs to stdout/stderr, like {@link SimpleLogFunction#CONSOLE_LOG_FUNCTION}.
+     * @param bufferSize amount of bytes after which the buffer is flushed
+     * @param flushWindowMs maximum time for which the lines stay in the buffer
+     */
+    public BufferedConsoleLogFunction(int bufferSize, long flushWindowMs) {
+        this(null, stdout(), stderr(), bufferSize, flushWindowMs);
+    }
+
+    public BufferedConsoleLogFunction() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_WINDOW_MS);
+    }
+
+    /**
+     * @param layout of the lines, null for the default format
+     * @see #BufferedConsoleLogFunction(WritableByteChannel, WritableByteChannel, int, long)
+     */
+    public BufferedConsoleLogFunction(@Nullable PatternLayout layout, @NotNull WritableByteChannel out, @NotNull WritableByteChannel err, int bufferSize, long flushWindowMs) {
+        super(layout);
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        if (flushWindowMs <= 0) throw new IllegalArgumentException("flushWindowMs must be positive: " + flushWindowMs);
+        this.bufferSize = bufferSize;
+        this.buffer = new Utf8Appender(bufferSize + 1024);
+        this.out = out;
+        this.err = err;
+
+        flushTask = SharedScheduler.schedule(this::flush, flushWindowMs);
+        SharedScheduler.onShutdown(shutdownTask);
+    }
+
+    static @NotNull WritableByteChannel stdout() {
+        return new StdioChannel(FileDescriptor.out);
+    }
+
+    static @NotNull WritableByteChannel stderr() {
+        return new StdioChannel(FileDescriptor.err);
+    }
+
+    @Override
+    protected void logLine(byte level, @NotNull CharSequence formattedContent) {
+        final boolean toErr = !(level <= TPLogger.INFO || level == TPLogger.LOG || AnsiColor.COLOR_SUPPORTED);
+        final Utf8Appender buffer = this.buffer;
+        if (toErr != bufferIsErr) {
+            // To preserve out/err order
+            flushBuffer();
+            bufferIsErr = toErr;
+        }
+
+        buffer.append(formattedContent).append(System.lineSeparator());
+        if (buffer.length() >= bufferSize || level >= TPLogger.ERROR) {
+            flushBuffer();
+        }
+    }
+
+    /** Write all buffered lines. */
+    public synchronized void flush() {
+        flushBuffer();
+    }
+
+    private void flushBuffer() {
+        final Utf8Appender buffer = this.buffer;
+        if (buffer.length() == 0) {
+            return;
+        }
+        final ByteBuffer bytes = buffer.buffer();
+        final WritableByteChannel channel = bufferIsErr ? err : out;
+        if (channel != null) {
+            try {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                buffer.clear();
+                return;
+            } catch (IOException e) {
+                // Console is not writable directly, fall back to System streams
+                out = null;
+                err = null;
+            }
+        }
+        // Continues after the bytes which the channel managed to write
+        final PrintStream stream = bufferIsErr ? System.err : System.out;
+        stream.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        stream.flush();
+        buffer.clear();
+    }
+
+    @Override
+    public void dispose() {
+        flushTask.cancel(false);
+        SharedScheduler.removeOnShutdown(shutdownTask);
+        flush();
+    }
+
+    /**
+     * Channel which writes into stdout or stderr through {@link FileOutputStream}.
+     * Unlike {@link FileOutputStream#getChannel()}, it is not closed when the writing thread is interrupted,
+     * which would close the file descriptor of the whole process. Closing it does nothing.
+     */
+    private static final class StdioChannel implements WritableByteChannel {
+        private final @NotNull FileOutputStream stream;
+
+        StdioChannel(@NotNull FileDescriptor fd) {
+            this.stream = new FileOutputStream(fd);
+        }
+
+        @Override
+        public int write(@NotNull ByteBuffer src) throws IOException {
+            final int length = src.remaining();
+            if (src.hasArray()) {
+                stream.write(src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.limit());
+            } else {
+                final byte[] bytes = new byte[length];
+                src.get(bytes);
+                stream.write(bytes);
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.darkyen.tproll.logfunctions;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.PatternLayout;
 import com.darkyen.tproll.util.TimeFormatter;
+import com.darkyen.tproll.util.Utf8Appender;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Marker;
@@ -22,6 +25,7 @@ public class FileLogFunction extends LogFunction {
 
     private final @NotNull Object LOCK = new Object();
     private final @Nullable TimeFormatter timeFormatter;
+    private final @Nullable PatternLayout layout;
     private final @NotNull ILogFileHandler logFileHandler;
 
     private boolean logFileHandlerInitialized = false;
@@ -32,7 +36,21 @@ public class FileLogFunction extends LogFunction {
      * @param registerShutdownHook to automatically call dispose (and flush log files!) when the application shuts down. Recommended: true.
      */
     public FileLogFunction(@Nullable TimeFormatter timeFormatter, @NotNull ILogFileHandler logFileHandler, boolean registerShutdownHook) {
+        this(timeFormatter, null, logFileHandler, registerShutdownHook);
+    }
+
+    /**
+     * @param logFileHandler for file handling
+     * @param layout of the lines, line break is added at the end, unless the layout ends with one
+     * @param registerShutdownHook to automatically call dispose (and flush log files!) when the application shuts down. Recommended: true.
+     */
+    public FileLogFunction(@NotNull ILogFileHandler logFileHandler, @NotNull PatternLayout layout, boolean registerShutdownHook) {
+        this(null, layout, logFileHandler, registerShutdownHook);
+    }
+
+    private FileLogFunction(@Nullable TimeFormatter timeFormatter, @Nullable PatternLayout layout, @NotNull ILogFileHandler logFileHandler, boolean registerShutdownHook) {
         this.timeFormatter = timeFormatter;
+        this.layout = layout;
         this.logFileHandler = logFileHandler;
 
         if (registerShutdownHook) {
@@ -64,35 +82,90 @@ public class FileLogFunction extends LogFunction {
     }
 
     private final @NotNull StringBuilder log_sb = new StringBuilder();
+    private final @NotNull Utf8Appender log_bytes = new Utf8Appender(1024);
 
     @Override
     public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
         synchronized (LOCK) {
-            if (!logFileHandlerInitialized) {
-                logFileHandlerInitialized = true;
-                logFileHandler.initialize();
-            }
+            ensureInitialized();
+            final Utf8Appender bytes = this.log_bytes;
+            appendLine(bytes, name, time, nanoAdjust, sequence, level, marker, content, null);
+            logFileHandler.log(bytes.buffer());
+            bytes.clear();
+        }
+    }
 
-            final StringBuilder sb = this.log_sb;
-            sb.append('[');
-            if (timeFormatter != null) {
-                timeFormatter.format(time, sb);
-                sb.append(' ');
+    /** Lines of the batch are gathered and written together, unless they take more than this many bytes. */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    /** Takes the lock once and gives all lines to the {@link ILogFileHandler} in as few writes as possible. */
+    @Override
+    public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        synchronized (LOCK) {
+            ensureInitialized();
+            final Utf8Appender bytes = this.log_bytes;
+            for (int i = from; i < to; i++) {
+                final LogEvent event = events[i];
+                appendLine(bytes, event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent(), event);
+                if (bytes.length() >= MAX_BATCH_BYTES) {
+                    logFileHandler.log(bytes.buffer());
+                    bytes.clear();
+                }
             }
-            sb.append(alignedLevelName(level));
-            if (marker != null) {
-                appendMarker(sb, false, marker, true);
+            if (bytes.length() > 0) {
+                logFileHandler.log(bytes.buffer());
+                bytes.clear();
             }
-            sb.append(']').append(' ').append(name).append(':').append(' ');
-            sb.append(content).append('\n');
+        }
+    }
 
-            logFileHandler.log(sb);
+    private void ensureInitialized() {
+        if (!logFileHandlerInitialized) {
+            logFileHandlerInitialized = true;
+            logFileHandler.initialize();
+        }
+    }
 
+    /** Append the line, with the line break, into bytes. Must hold LOCK. Event is null when called on the logging thread. */
+    private void appendLine(@NotNull Utf8Appender bytes, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+        final StringBuilder sb = this.log_sb;
+        final PatternLayout layout = this.layout;
+        if (layout != null) {
+            if (event != null) {
+                layout.format(sb, event);
+            } else {
+                layout.format(sb, name, time, nanoAdjust, sequence, level, marker, content);
+            }
+            if (!layout.endsWithNewline()) {
+                sb.append('\n');
+            }
+            bytes.append(sb);
             sb.setLength(0);
+            return;
+        }
+
+        sb.append('[');
+        if (timeFormatter != null) {
+            timeFormatter.format(time, nanoAdjust, sb);
+            sb.append(' ');
         }
+        sb.append(alignedLevelName(level));
+        if (marker != null) {
+            appendMarker(sb, false, marker, true);
+        }
+        sb.append(']').append(' ').append(name).append(':').append(' ');
+
+        // Header is short, content is encoded straight from the caller's buffer
+        bytes.append(sb).append(content).append('\n');
+        sb.setLength(0);
     }
 
-    @SuppressWarnings("WeakerAccess")
+    @Override
     public void dispose(){
         synchronized (LOCK) {
             if (logFileHandlerInitialized) {
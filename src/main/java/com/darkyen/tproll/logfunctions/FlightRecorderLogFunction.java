@@ -0,0 +1,363 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.async.EventCodec;
+import com.darkyen.tproll.util.LogContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * LogFunction which records messages of all levels into a fixed size ring, without formatting them,
+ * and writes them out only when something goes wrong.
+ *
+ * Messages of passLevel and above are passed to the parent right away. All messages are encoded by {@link EventCodec}
+ * (template and raw arguments, not the formatted text) into an off-heap ring, which overwrites the oldest messages when full.
+ * When a message of dumpLevel or above is logged, when {@link #dump()} is called
+ * or when the {@link TPLogger#attachUnhandledExceptionLogger() unhandled exception logger} catches something
+ * (through {@link TPLogger#addCrashListener(Thread.UncaughtExceptionHandler)}),
+ * messages from the last maxAgeMs are formatted into the sink and the ring is cleared.
+ * When the sink is the parent, messages which were already passed to it are not repeated.
+ *
+ * {@link TPLogger} passes only messages of its log level, so it must be set to the lowest level which should be recorded,
+ * for example with {@link TPLogger#DEBUG()}. Messages which can't be encoded (too many arguments or markers,
+ * or larger than a quarter of the ring) are not recorded.
+ */
+@SuppressWarnings("unused")
+public final class FlightRecorderLogFunction extends LogFunction {
+
+    public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 30_000L;
+
+    private static final String DUMP_NAME = "FlightRecorder";
+    private static final int PADDING = -1;
+    /** Maximum amount of messages passed to the sink at once */
+    private static final int BATCH_SIZE = 64;
+
+    /** Functions which were not disposed yet, for {@link #dumpAll()}. Weak, so that forgotten functions are not kept alive. */
+    private static final @NotNull Set<@NotNull FlightRecorderLogFunction> RECORDERS = Collections.newSetFromMap(new WeakHashMap<>());
+
+    static {
+        TPLogger.addCrashListener((thread, exception) -> dumpAll());
+    }
+
+    private final @NotNull LogFunction parent;
+    private final byte passLevel;
+    private final @NotNull LogFunction sink;
+    private final byte dumpLevel;
+    private final long maxAgeMs;
+    private final int capacity;
+
+    private final @NotNull EventCodec codec = new EventCodec();
+    private final @NotNull ThreadLocal<EventCodec.@NotNull Encoder> encoders = ThreadLocal.withInitial(codec::encoder);
+
+    private final @NotNull Object LOCK = new Object();
+    //region Guarded by LOCK
+    private final @NotNull ByteBuffer ring;
+    /** Total amount of bytes evicted or dumped */
+    private long head = 0;
+    /** Total amount of bytes written */
+    private long tail = 0;
+    /** Time of the newest recorded message */
+    private long newestTime = Long.MIN_VALUE;
+    //endregion
+
+    /** Dumps are not interleaved */
+    private final @NotNull Object DUMP_LOCK = new Object();
+    //region Guarded by DUMP_LOCK
+    private @Nullable ByteBuffer dumpBuffer = null;
+    private final @NotNull EventCodec.Decoder decoder = codec.decoder();
+    private final @NotNull LogEvent @NotNull [] batch = new LogEvent[BATCH_SIZE];
+    private final @NotNull StringBuilder @NotNull [] contents = new StringBuilder[BATCH_SIZE];
+    //endregion
+
+    /**
+     * @param parent to which messages of passLevel and above are logged right away
+     * @param passLevel lowest level passed to the parent
+     * @param sink to which the recorded messages are dumped, may be the parent
+     * @param dumpLevel lowest level which dumps the recorded messages, {@link TPLogger#LOG} + 1 to dump only on request
+     * @param capacity of the ring, in bytes, allocated right away
+     * @param maxAgeMs messages older than this (relative to the newest one) are not dumped
+     */
+    public FlightRecorderLogFunction(@NotNull LogFunction parent, byte passLevel, @NotNull LogFunction sink, byte dumpLevel, int capacity, long maxAgeMs) {
+        if (capacity < 64) throw new IllegalArgumentException("capacity must be at least 64: " + capacity);
+        this.parent = parent;
+        this.passLevel = passLevel;
+        this.sink = sink;
+        this.dumpLevel = dumpLevel;
+        this.maxAgeMs = maxAgeMs;
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new LogEvent();
+            contents[i] = new StringBuilder(64);
+        }
+        synchronized (RECORDERS) {
+            RECORDERS.add(this);
+        }
+    }
+
+    /**
+     * Dump messages from the last {@link #DEFAULT_MAX_AGE_MS} into the parent on {@link TPLogger#ERROR}.
+     * @param passLevel lowest level passed to the parent right away, for example {@link TPLogger#INFO}
+     */
+    public FlightRecorderLogFunction(@NotNull LogFunction parent, byte passLevel) {
+        this(parent, passLevel, parent, TPLogger.ERROR, DEFAULT_CAPACITY, DEFAULT_MAX_AGE_MS);
+    }
+
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    //region Recording
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        final String template = event.getTemplate();
+        if (template == null) {
+            return false;
+        }
+        final String name = event.getName();
+        final long time = event.getTime();
+        final byte level = event.getLevel();
+        final Marker marker = event.getMarker();
+        record(encoders.get().encode(name, time, event.getNanoAdjust(), event.getSequence(), level, marker, template, true, event.getArguments(), event.getThreadName(), event.getContext()), time);
+        if (level >= dumpLevel) {
+            dump();
+        }
+        if (level >= passLevel && parent.isEnabled(name, level, marker, template) && !parent.logEvent(event)) {
+            parent.log(name, time, event.getNanoAdjust(), event.getSequence(), level, marker, event.getContent());
+        }
+        return true;
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        record(encoders.get().encode(name, time, nanoAdjust, sequence, level, marker, content, false, Collections.emptyList(), Thread.currentThread().getName(), LogContext.current()), time);
+        if (level >= dumpLevel) {
+            dump();
+        }
+        if (level >= passLevel && parent.isEnabled(name, level, marker)) {
+            parent.log(name, time, nanoAdjust, sequence, level, marker, content);
+        }
+    }
+
+    /** Write the record into the ring, evicting the oldest records to make space. */
+    private void record(@Nullable ByteBuffer record, long time) {
+        if (record == null) {
+            return;
+        }
+        final int length = record.remaining();
+        if (length > capacity / 4) {
+            return;
+        }
+        final int needed = 4 + length;
+        final int capacity = this.capacity;
+        synchronized (LOCK) {
+            int position;
+            int padding;
+            while (true) {
+                if (head == tail) {
+                    // Empty, start from the beginning, so that the record does not have to wrap
+                    head = tail = 0;
+                }
+                position = (int) (tail % capacity);
+                final int contiguous = capacity - position;
+                padding = contiguous < needed ? contiguous : 0;
+                if (tail - head + padding + needed <= capacity) {
+                    break;
+                }
+                evictOldest();
+            }
+
+            final ByteBuffer ring = this.ring;
+            ring.clear();
+            if (padding > 0) {
+                if (padding >= 4) {
+                    ring.putInt(position, PADDING);
+                }
+                tail += padding;
+                position = 0;
+            }
+            ring.putInt(position, length);
+            ring.position(position + 4);
+            ring.put(record);
+            tail += needed;
+            newestTime = Math.max(newestTime, time);
+        }
+    }
+
+    /** Guarded by LOCK. Ring must not be empty. */
+    private void evictOldest() {
+        final int position = (int) (head % capacity);
+        final int contiguous = capacity - position;
+        if (contiguous < 4) {
+            head += contiguous;
+            return;
+        }
+        final int length = ring.getInt(position);
+        if (length == PADDING) {
+            head += contiguous;
+        } else {
+            head += 4 + length;
+        }
+    }
+    //endregion
+
+    //region Dumping
+    /**
+     * Format the recorded messages into the sink and clear the ring.
+     * @return amount of messages logged to the sink
+     */
+    public int dump() {
+        synchronized (DUMP_LOCK) {
+            final ByteBuffer records = takeRecords();
+            if (records == null) {
+                return 0;
+            }
+            final long newestTime = records.getLong();
+            final boolean skipPassed = sink == parent;
+            final EventCodec.Decoder decoder = this.decoder;
+            final LogEvent[] batch = this.batch;
+            final StringBuilder[] contents = this.contents;
+            final int end = records.limit();
+
+            int dumped = 0;
+            int count = 0;
+            while (records.position() < end) {
+                final int length = records.getInt();
+                final int next = records.position() + length;
+                records.limit(next);
+                final LogEvent event;
+                try {
+                    event = decoder.decode(records, batch[count], contents[count]);
+                } catch (Throwable t) {
+                    LogFileHandler.logInternalError(DUMP_NAME, "Failed to decode a recorded message", t);
+                    continue;
+                } finally {
+                    records.limit(end).position(next);
+                }
+                if ((skipPassed && event.getLevel() >= passLevel) || newestTime - event.getTime() > maxAgeMs) {
+                    event.clear();
+                    continue;
+                }
+                if (dumped == 0) {
+                    sink.log(DUMP_NAME, event.getTime(), TPLogger.LOG, null, "Recorded messages follow");
+                }
+                dumped++;
+                if (++count == BATCH_SIZE) {
+                    logBatchToSink(count);
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                logBatchToSink(count);
+            }
+            if (dumped > 0) {
+                sink.log(DUMP_NAME, newestTime, TPLogger.LOG, null, "End of " + dumped + " recorded messages");
+            }
+            return dumped;
+        }
+    }
+
+    /** Guarded by DUMP_LOCK */
+    private void logBatchToSink(int count) {
+        try {
+            sink.logBatch(batch, 0, count);
+        } catch (Throwable t) {
+            LogFileHandler.logInternalError(DUMP_NAME, "Failed to dump recorded messages", t);
+        }
+        for (int i = 0; i < count; i++) {
+            batch[i].clear();
+        }
+    }
+
+    /**
+     * Guarded by DUMP_LOCK. Copy the records out of the ring and clear it.
+     * @return buffer with the time of the newest record, followed by records prefixed by length, null if there are none
+     */
+    private @Nullable ByteBuffer takeRecords() {
+        ByteBuffer dumpBuffer = this.dumpBuffer;
+        if (dumpBuffer == null) {
+            this.dumpBuffer = dumpBuffer = ByteBuffer.allocate(8 + capacity);
+        }
+        dumpBuffer.clear();
+        synchronized (LOCK) {
+            if (head == tail) {
+                return null;
+            }
+            dumpBuffer.putLong(newestTime);
+            final ByteBuffer ring = this.ring;
+            while (head != tail) {
+                final int position = (int) (head % capacity);
+                final int contiguous = capacity - position;
+                final int length = contiguous < 4 ? PADDING : ring.getInt(position);
+                if (length == PADDING) {
+                    head += contiguous;
+                    continue;
+                }
+                ring.limit(position + 4 + length).position(position);
+                dumpBuffer.put(ring);
+                ring.clear();
+                head += 4 + length;
+            }
+            head = tail = 0;
+            newestTime = Long.MIN_VALUE;
+        }
+        dumpBuffer.flip();
+        return dumpBuffer;
+    }
+
+    /**
+     * {@link #dump()} all flight recorders which were not disposed yet.
+     * Called by {@link TPLogger#attachUnhandledExceptionLogger()} when a thread crashes.
+     */
+    public static void dumpAll() {
+        final FlightRecorderLogFunction[] recorders;
+        synchronized (RECORDERS) {
+            recorders = RECORDERS.toArray(new FlightRecorderLogFunction[0]);
+        }
+        for (FlightRecorderLogFunction recorder : recorders) {
+            recorder.dump();
+        }
+    }
+    //endregion
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return true;
+    }
+
+    /** Disposes the parent and the sink, without dumping. */
+    @Override
+    public void dispose() {
+        synchronized (RECORDERS) {
+            RECORDERS.remove(this);
+        }
+        parent.dispose();
+        if (sink != parent) {
+            sink.dispose();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.logfunctions.adapters.LevelFilter;
+import com.darkyen.tproll.logfunctions.adapters.Prepender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * LogFunction which dispatches to multiple targets through a single precompiled structure,
+ * instead of through a chain of {@link LevelFilter}, {@link Prepender} and {@link LogFunctionMultiplexer} instances.
+ *
+ * Level ranges are evaluated through precomputed masks, marker routing is resolved once per message
+ * and prefixes are applied while copying the content, once for each distinct prefix.
+ *
+ * The structure is a snapshot, later changes to the flattened functions (for example {@link LogFunctionMultiplexer#addMuxTarget(LogFunction, boolean)})
+ * are not reflected.
+ *
+ * @see Builder
+ */
+public final class FusedLogFunction extends LogFunction {
+
+    private static final int MAX_ROUTES = Long.SIZE;
+    /** Levels for which the route masks are precomputed, others are computed on demand. */
+    private static final int PRECOMPUTED_LEVELS = 8;
+
+    private final @NotNull LogFunction @NotNull [] targets;
+    private final byte @NotNull [] minLevels;
+    private final byte @NotNull [] maxLevels;
+    /** Prefix of each route, null when the route has no prefix. Routes with the same prefix are adjacent. */
+    private final @Nullable String @NotNull [] prefixes;
+    /** Bit N set at index L = route N accepts messages of level L */
+    private final long @NotNull [] levelRouteMasks = new long[PRECOMPUTED_LEVELS];
+
+    /** Flattened multiplexers, whose marker routing applies to some routes */
+    private final @NotNull LogFunctionMultiplexer @NotNull [] muxes;
+    private final long @NotNull [] muxOptOutMasks;
+    /** Routes which are not subject to marker routing of given mux */
+    private final long @NotNull [] muxUnroutedMasks;
+    /** Routes which came from given target of given mux */
+    private final long @NotNull [] @NotNull [] muxTargetRouteMasks;
+
+    private FusedLogFunction(@NotNull ArrayList<@NotNull Route> routes, @NotNull ArrayList<@NotNull LogFunctionMultiplexer> muxes, @NotNull ArrayList<LogFunctionMultiplexer.@NotNull MuxTargets> muxTargets) {
+        final int count = routes.size();
+        this.targets = new LogFunction[count];
+        this.minLevels = new byte[count];
+        this.maxLevels = new byte[count];
+        this.prefixes = new String[count];
+        final int muxCount = muxes.size();
+        this.muxes = muxes.toArray(new LogFunctionMultiplexer[0]);
+        this.muxOptOutMasks = new long[muxCount];
+        this.muxUnroutedMasks = new long[muxCount];
+        this.muxTargetRouteMasks = new long[muxCount][];
+        for (int m = 0; m < muxCount; m++) {
+            muxOptOutMasks[m] = muxTargets.get(m).optOutMask;
+            muxTargetRouteMasks[m] = new long[muxTargets.get(m).functions.length];
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Route route = routes.get(i);
+            targets[i] = route.target;
+            minLevels[i] = route.minLevel;
+            maxLevels[i] = route.maxLevel;
+            prefixes[i] = route.prefix.isEmpty() ? null : route.prefix;
+
+            final long bit = 1L << i;
+            for (int m = 0; m < muxCount; m++) {
+                final MuxConstraint constraint = MuxConstraint.find(route.muxConstraints, m);
+                if (constraint == null) {
+                    muxUnroutedMasks[m] |= bit;
+                } else {
+                    muxTargetRouteMasks[m][constraint.target] |= bit;
+                }
+            }
+            for (int level = 0; level < PRECOMPUTED_LEVELS; level++) {
+                if (level >= route.minLevel && level <= route.maxLevel) {
+                    levelRouteMasks[level] |= bit;
+                }
+            }
+        }
+    }
+
+    private long routes(byte level, @Nullable Marker marker) {
+        long routes;
+        if (level >= 0 && level < PRECOMPUTED_LEVELS) {
+            routes = levelRouteMasks[level];
+        } else {
+            routes = 0;
+            for (int i = 0; i < targets.length; i++) {
+                if (level >= minLevels[i] && level <= maxLevels[i]) {
+                    routes |= 1L << i;
+                }
+            }
+        }
+
+        final LogFunctionMultiplexer[] muxes = this.muxes;
+        for (int m = 0; m < muxes.length && routes != 0; m++) {
+            long selectedTargets = LogFunctionMultiplexer.findMuxTargets(muxes[m], marker) ^ muxOptOutMasks[m];
+            final long[] targetRouteMasks = muxTargetRouteMasks[m];
+            long selectedRoutes = muxUnroutedMasks[m];
+            while (selectedTargets != 0) {
+                final int target = Long.numberOfTrailingZeros(selectedTargets);
+                selectedTargets &= selectedTargets - 1;
+                if (target < targetRouteMasks.length) {
+                    selectedRoutes |= targetRouteMasks[target];
+                }
+            }
+            routes &= selectedRoutes;
+        }
+        return routes;
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        long routes = routes(level, marker);
+        if (routes == 0) return;
+
+        final LogFunction[] targets = this.targets;
+        final String[] prefixes = this.prefixes;
+        StringBuilder sb = null;
+        String renderedPrefix = null;
+        try {
+            while (routes != 0) {
+                final int route = Long.numberOfTrailingZeros(routes);
+                routes &= routes - 1;
+
+                final String prefix = prefixes[route];
+                if (prefix == null) {
+                    targets[route].log(name, time, nanoAdjust, sequence, level, marker, content);
+                    continue;
+                }
+
+                if (sb == null) {
+                    sb = prefixSb.get();
+                    if (sb.length() != 0 || sb == content) {
+                        // Already in use by an outer function on this thread
+                        sb = new StringBuilder(prefix.length() * 4 + content.length());
+                    }
+                }
+                //noinspection StringEquality
+                if (prefix != renderedPrefix) {
+                    sb.setLength(0);
+                    Prepender.appendPrepended(sb, prefix, content);
+                    renderedPrefix = prefix;
+                }
+                targets[route].log(name, time, nanoAdjust, sequence, level, marker, sb);
+            }
+        } finally {
+            if (sb != null) {
+                sb.setLength(0);
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return anyRouteEnabled(null, level, marker, null);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return anyRouteEnabled(name, level, marker, null);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return anyRouteEnabled(name, level, marker, template);
+    }
+
+    /**
+     * @param name of the logger or null if not known
+     * @param template of the message or null if not known
+     */
+    private boolean anyRouteEnabled(@Nullable String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        long routes = routes(level, marker);
+        final LogFunction[] targets = this.targets;
+        while (routes != 0) {
+            final int route = Long.numberOfTrailingZeros(routes);
+            routes &= routes - 1;
+            final LogFunction function = targets[route];
+            if (name == null ? function.isEnabled(level, marker) : template == null ? function.isEnabled(name, level, marker) : function.isEnabled(name, level, marker, template)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Disposes all targets, each only once, even when it is reached through multiple routes. */
+    @Override
+    public void dispose() {
+        final Set<LogFunction> disposed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (LogFunction target : targets) {
+            if (disposed.add(target)) {
+                target.dispose();
+            }
+        }
+    }
+
+    private static final @NotNull ThreadLocal<@NotNull StringBuilder> prefixSb = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    /** Flatten existing chain of {@link LevelFilter}, {@link Prepender} and {@link LogFunctionMultiplexer} into a single function. */
+    public static @NotNull FusedLogFunction compile(@NotNull LogFunction root) {
+        return new Builder().add(root).build();
+    }
+
+    /**
+     * Collects routes into a {@link FusedLogFunction}.
+     * Each route is a target with a level range and an optional prefix,
+     * and it may be subject to marker routing of the {@link LogFunctionMultiplexer}s through which it was reached.
+     * Multiplexers nested in other multiplexers are flattened as well.
+     */
+    public static final class Builder {
+
+        private final @NotNull ArrayList<@NotNull Route> routes = new ArrayList<>();
+        private final @NotNull ArrayList<@NotNull LogFunctionMultiplexer> muxes = new ArrayList<>();
+        /** Snapshot of targets of each of {@link #muxes} */
+        private final @NotNull ArrayList<LogFunctionMultiplexer.@NotNull MuxTargets> muxTargets = new ArrayList<>();
+
+        /** Add given function. If it is a {@link LevelFilter}, {@link Prepender} or {@link LogFunctionMultiplexer},
+         * it is flattened recursively into routes to the non-adapter functions. */
+        public @NotNull Builder add(@NotNull LogFunction function) {
+            flatten(function, Byte.MIN_VALUE, Byte.MAX_VALUE, "", null);
+            return this;
+        }
+
+        /**
+         * Add a single route to given target. The target is not flattened.
+         * @param minLevel of log messages that still get through
+         * @param maxLevel of log messages that still get through
+         * @param prefix prepended to each line of the message, null or empty for none
+         */
+        public @NotNull Builder add(@NotNull LogFunction target, byte minLevel, byte maxLevel, @Nullable String prefix) {
+            addRoute(target, minLevel, maxLevel, prefix == null ? "" : prefix, null);
+            return this;
+        }
+
+        private void flatten(@NotNull LogFunction function, byte minLevel, byte maxLevel, @NotNull String prefix, @Nullable MuxConstraint muxConstraints) {
+            if (function instanceof LevelFilter) {
+                final LevelFilter filter = (LevelFilter) function;
+                flatten(filter.getParent(), (byte) Math.max(minLevel, filter.getMinLevel()), (byte) Math.min(maxLevel, filter.getMaxLevel()), prefix, muxConstraints);
+            } else if (function instanceof Prepender) {
+                final Prepender prepender = (Prepender) function;
+                // Inner prepender is applied last, so its prefix ends up first
+                flatten(prepender.getParent(), minLevel, maxLevel, prepender.getPrepend() + prefix, muxConstraints);
+            } else if (function instanceof LogFunctionMultiplexer && !MuxConstraint.contains(muxConstraints, muxes, function)) {
+                final LogFunctionMultiplexer mux = (LogFunctionMultiplexer) function;
+                int muxIndex = muxes.indexOf(mux);
+                if (muxIndex < 0) {
+                    muxIndex = muxes.size();
+                    muxes.add(mux);
+                    muxTargets.add(mux.targets());
+                }
+                final LogFunction[] muxFunctions = muxTargets.get(muxIndex).functions;
+                for (int i = 0; i < muxFunctions.length; i++) {
+                    flatten(muxFunctions[i], minLevel, maxLevel, prefix, new MuxConstraint(muxIndex, i, muxConstraints));
+                }
+            } else {
+                addRoute(function, minLevel, maxLevel, prefix, muxConstraints);
+            }
+        }
+
+        private void addRoute(@NotNull LogFunction target, byte minLevel, byte maxLevel, @NotNull String prefix, @Nullable MuxConstraint muxConstraints) {
+            if (minLevel > maxLevel) return;// Route that never gets anything
+            if (routes.size() >= MAX_ROUTES) throw new IllegalStateException("Too many routes, max is "+MAX_ROUTES);
+            routes.add(new Route(target, minLevel, maxLevel, prefix, muxConstraints));
+        }
+
+        public @NotNull FusedLogFunction build() {
+            // Group routes with the same prefix together (stable), so that each prefix is rendered only once
+            final ArrayList<Route> sorted = new ArrayList<>(routes.size());
+            for (Route route : routes) {
+                if (route.prefix.isEmpty()) {
+                    sorted.add(route);
+                }
+            }
+            for (Route route : routes) {
+                if (route.prefix.isEmpty() || sorted.contains(route)) continue;
+                for (Route sameRoute : routes) {
+                    if (sameRoute.prefix.equals(route.prefix)) {
+                        sorted.add(sameRoute);
+                    }
+                }
+            }
+            // Make equal prefixes identical, so that they can be compared by reference
+            for (int i = 1; i < sorted.size(); i++) {
+                final Route previous = sorted.get(i - 1);
+                final Route route = sorted.get(i);
+                if (route.prefix.equals(previous.prefix)) {
+                    sorted.set(i, new Route(route.target, route.minLevel, route.maxLevel, previous.prefix, route.muxConstraints));
+                }
+            }
+            return new FusedLogFunction(sorted, muxes, muxTargets);
+        }
+    }
+
+    private static final class Route {
+        final @NotNull LogFunction target;
+        final byte minLevel, maxLevel;
+        final @NotNull String prefix;
+        /** Multiplexer targets through which the route was reached, innermost first */
+        final @Nullable MuxConstraint muxConstraints;
+
+        Route(@NotNull LogFunction target, byte minLevel, byte maxLevel, @NotNull String prefix, @Nullable MuxConstraint muxConstraints) {
+            this.target = target;
+            this.minLevel = minLevel;
+            this.maxLevel = maxLevel;
+            this.prefix = prefix;
+            this.muxConstraints = muxConstraints;
+        }
+    }
+
+    /** Route gets only messages which its mux routes to given target, linked list of all such constraints of a route. */
+    private static final class MuxConstraint {
+        /** Index of the flattened multiplexer */
+        final int mux;
+        /** Index of the target in the multiplexer */
+        final int target;
+        final @Nullable MuxConstraint next;
+
+        MuxConstraint(int mux, int target, @Nullable MuxConstraint next) {
+            this.mux = mux;
+            this.target = target;
+            this.next = next;
+        }
+
+        static @Nullable MuxConstraint find(@Nullable MuxConstraint constraint, int mux) {
+            while (constraint != null && constraint.mux != mux) {
+                constraint = constraint.next;
+            }
+            return constraint;
+        }
+
+        /** @return true if the multiplexer is already in the chain, so flattening it again would not terminate */
+        static boolean contains(@Nullable MuxConstraint constraint, @NotNull ArrayList<@NotNull LogFunctionMultiplexer> muxes, @NotNull LogFunction mux) {
+            for (; constraint != null; constraint = constraint.next) {
+                if (muxes.get(constraint.mux) == mux) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
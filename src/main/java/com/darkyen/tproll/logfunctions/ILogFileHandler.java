@@ -1,7 +1,9 @@
 package com.darkyen.tproll.logfunctions;
 
 import org.jetbrains.annotations.NotNull;
-import org.slf4j.Marker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Actual file writing inside {@link FileLogFunction} is delegated to implementations of this interface.
@@ -15,10 +17,18 @@ public interface ILogFileHandler {
     /** Called before first {@link #log(CharSequence)} invocation */
     void initialize();
 
-    /** Called by {@link FileLogFunction#log(String, long, byte, Marker, CharSequence)} with the message which should
-     * get logged. */
+    /** Called with the message which should get logged. */
     void log(@NotNull CharSequence message);
 
+    /**
+     * Like {@link #log(CharSequence)}, but with the message already encoded in UTF-8, between position and limit.
+     * The buffer must not be kept around after the call.
+     * {@link FileLogFunction} uses this method, default implementation decodes the message and calls {@link #log(CharSequence)}.
+     */
+    default void log(@NotNull ByteBuffer message) {
+        log(StandardCharsets.UTF_8.decode(message));
+    }
+
     /** Called by {@link FileLogFunction#dispose()}. */
     void dispose();
 
@@ -0,0 +1,333 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.KeyValue;
+import com.darkyen.tproll.util.PrettyPrinter;
+import com.darkyen.tproll.util.StringBuilderWriter;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.darkyen.tproll.util.RenderableMarker.appendMarker;
+
+/**
+ * Logs into systemd-journald, through its Unix domain socket.
+ *
+ * With the native protocol, each message is a datagram with fields: MESSAGE (without the stack trace), PRIORITY,
+ * SYSLOG_IDENTIFIER, LOGGER, MARKER (one for each marker and its references), THREAD_NAME,
+ * EXCEPTION and STACK_TRACE for the last throwable argument, and a field for each {@link LogEvent#getKeyValues() key-value}
+ * (key in upper case, with other characters than A-Z, 0-9 replaced by _).
+ * Values longer than {@link #MAX_FIELD_BYTES} are truncated, as oversized datagrams would need a memfd
+ * passed over the socket, which Java can't do.
+ *
+ * Java does not support Unix domain datagram sockets yet (only stream sockets, since Java 16), so in practice only
+ * the stdout stream protocol is used: when the native socket can't be opened, {@link #open(String)} falls back to it.
+ * In it, each line is a separate entry and only the priority is kept as a field.
+ * Lines have the format of {@link FileLogFunction}, without time and level.
+ * The native protocol is used as soon as a JVM supports it.
+ *
+ * Messages which can't be written are printed to stderr, which usually ends up in the journal as well.
+ */
+@SuppressWarnings("unused")
+public class JournaldLogFunction extends LogFunction {
+
+    public static final @NotNull String NATIVE_SOCKET = "/run/systemd/journal/socket";
+    public static final @NotNull String STREAM_SOCKET = "/run/systemd/journal/stdout";
+    public static final int MAX_FIELD_BYTES = 48 * 1024;
+    private static final int MAX_MARKER_DEPTH = 16;
+
+    /** Where the messages are written */
+    public interface Output extends Closeable {
+        /** @return true for the native protocol, false for the stdout stream protocol */
+        boolean isNative();
+
+        /** Write one datagram of the native protocol, or lines of the stream protocol */
+        void write(@NotNull ByteBuffer payload) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    private final @NotNull Object LOCK = new Object();
+    private final @NotNull String identifier;
+    private final @NotNull Output output;
+    private final boolean nativeProtocol;
+
+    //region Guarded by LOCK
+    private @NotNull ByteBuffer payload = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+    private final @NotNull Utf8Appender value = new Utf8Appender();
+    private final @NotNull StringBuilder sb = new StringBuilder();
+    private final @NotNull StringBuilderWriter sbWriter = new StringBuilderWriter(sb);
+    private final @NotNull ArrayList<@Nullable Object> renderArguments = new ArrayList<>();
+    private boolean failureReported = false;
+    //endregion
+
+    /**
+     * @param identifier SYSLOG_IDENTIFIER of the messages, usually the name of the application
+     * @param output to write to, closed on dispose
+     */
+    public JournaldLogFunction(@NotNull String identifier, @NotNull Output output) {
+        this.identifier = identifier;
+        this.output = output;
+        this.nativeProtocol = output.isNative();
+    }
+
+    /**
+     * Connect to journald, through the native protocol if possible, through the stream protocol otherwise.
+     * @param identifier SYSLOG_IDENTIFIER of the messages, usually the name of the application
+     * @throws IOException if journald is not running or this JVM does not support Unix domain sockets (Java 16+ is needed)
+     */
+    public static @NotNull JournaldLogFunction open(@NotNull String identifier) throws IOException {
+        Output output;
+        try {
+            output = nativeOutput(NATIVE_SOCKET);
+        } catch (IOException e) {
+            output = streamOutput(STREAM_SOCKET, identifier);
+        }
+        return new JournaldLogFunction(identifier, output);
+    }
+
+    /** Output to the socket of the native protocol, throws if the JVM does not support it or journald does not listen. */
+    public static @NotNull Output nativeOutput(@NotNull String socketPath) throws IOException {
+        return JournaldSocket.openNative(socketPath);
+    }
+
+    /**
+     * Output to the socket of the stdout stream protocol, throws if the JVM does not support it or journald does not listen.
+     * @param identifier SYSLOG_IDENTIFIER of the messages, sent in the header of the stream
+     */
+    public static @NotNull Output streamOutput(@NotNull String socketPath, @NotNull String identifier) throws IOException {
+        // Identifier, unit ID, default priority, level prefix, forward to syslog, to kmsg, to console
+        final byte[] header = (identifier.replace('\n', ' ') + "\n\n6\n1\n0\n0\n0\n").getBytes(StandardCharsets.UTF_8);
+        return JournaldSocket.openStream(socketPath, header);
+    }
+
+    /** @return syslog priority of the level */
+    static int priority(byte level) {
+        switch (level) {
+            case TPLogger.TRACE:
+            case TPLogger.DEBUG: return 7;
+            case TPLogger.INFO: return 6;
+            case TPLogger.WARN: return 4;
+            case TPLogger.ERROR: return 3;
+            case TPLogger.LOG: return 5;
+            default: return 6;
+        }
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        synchronized (LOCK) {
+            payload.clear();
+            if (nativeProtocol) {
+                putFields(name, level, marker, null, content, null, Collections.emptyList(), Collections.emptyList(), null);
+            } else {
+                putLines(name, level, marker, content);
+            }
+            write(name, level, content, null);
+        }
+    }
+
+    /** Takes messages with a template, to send the throwable and the key-values as separate fields. */
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        final String template = event.getTemplate();
+        if (!nativeProtocol || template == null) {
+            return false;
+        }
+        synchronized (LOCK) {
+            payload.clear();
+            putFields(event.getName(), event.getLevel(), event.getMarker(), event.getThreadName(), null, template, event.getArguments(),
+                    event.getKeyValues(), event.getThrowable());
+            write(event.getName(), event.getLevel(), null, event);
+        }
+        return true;
+    }
+
+    /** Write the payload, or print the message to stderr when that fails */
+    private void write(@NotNull String name, byte level, @Nullable CharSequence content, @Nullable LogEvent event) {
+        final ByteBuffer payload = this.payload;
+        payload.flip();
+        try {
+            output.write(payload);
+            failureReported = false;
+        } catch (IOException e) {
+            if (!failureReported) {
+                failureReported = true;
+                System.err.println("tproll: Failed to write to journald: " + e);
+            }
+            System.err.println("[" + FileLogFunction.alignedLevelName(level) + "] " + name + ": " + (event != null ? event.getContent() : content));
+        }
+        if (payload.capacity() > 4 * MAX_FIELD_BYTES) {
+            // Do not keep a huge buffer after a huge message
+            this.payload = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    //region Encoding, guarded by LOCK
+    private void ensure(int bytes) {
+        final ByteBuffer payload = this.payload;
+        if (payload.remaining() < bytes) {
+            final ByteBuffer newPayload = ByteBuffer.allocate(Math.max(payload.capacity() * 2, payload.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+            payload.flip();
+            newPayload.put(payload);
+            this.payload = newPayload;
+        }
+    }
+
+    private void putAscii(@NotNull String ascii) {
+        final ByteBuffer payload = this.payload;
+        for (int i = 0; i < ascii.length(); i++) {
+            payload.put((byte) ascii.charAt(i));
+        }
+    }
+
+    /** Put field of the native protocol, value is truncated to {@link #MAX_FIELD_BYTES} */
+    private void putField(@NotNull String key, @NotNull CharSequence value) {
+        final Utf8Appender utf8 = this.value;
+        utf8.clear();
+        utf8.append(value);
+        final ByteBuffer bytes = utf8.buffer();
+        if (bytes.remaining() > MAX_FIELD_BYTES) {
+            int end = bytes.position() + MAX_FIELD_BYTES;
+            // Do not cut a character in half
+            while ((bytes.get(end) & 0xC0) == 0x80) end--;
+            bytes.limit(end);
+        }
+        boolean multiline = false;
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            if (bytes.get(i) == '\n') {
+                multiline = true;
+                break;
+            }
+        }
+
+        ensure(key.length() + 10 + bytes.remaining());
+        putAscii(key);
+        final ByteBuffer payload = this.payload;
+        if (multiline) {
+            // Binary safe format: key, newline, little endian 64-bit length, value, newline
+            payload.put((byte) '\n').putLong(bytes.remaining());
+        } else {
+            payload.put((byte) '=');
+        }
+        payload.put(bytes).put((byte) '\n');
+    }
+
+    private void putFields(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String threadName,
+                           @Nullable CharSequence content, @Nullable String template, @NotNull List<@Nullable Object> arguments,
+                           @NotNull List<@NotNull KeyValue> keyValues, @Nullable Throwable throwable) {
+        final StringBuilder sb = this.sb;
+        if (template != null) {
+            final ArrayList<Object> renderArguments = this.renderArguments;
+            renderArguments.addAll(arguments);
+            PrettyPrinter.patternSubstituteInto(sb, template, renderArguments, false);
+            renderArguments.clear();
+            putField("MESSAGE", sb);
+            sb.setLength(0);
+        } else {
+            assert content != null;
+            putField("MESSAGE", content);
+        }
+        ensure(12);
+        putAscii("PRIORITY=");
+        payload.put((byte) ('0' + priority(level))).put((byte) '\n');
+        putField("SYSLOG_IDENTIFIER", identifier);
+        putField("LOGGER", name);
+        if (marker != null) {
+            putMarkers(marker, 0);
+        }
+        if (threadName != null) {
+            putField("THREAD_NAME", threadName);
+        }
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < keyValues.size(); i++) {
+            final KeyValue keyValue = keyValues.get(i);
+            PrettyPrinter.append(sb, keyValue.getValue());
+            putField(fieldName(keyValue.getKey()), sb);
+            sb.setLength(0);
+        }
+        if (throwable != null) {
+            PrettyPrinter.append(sb, throwable);
+            putField("EXCEPTION", sb);
+            sb.setLength(0);
+            throwable.printStackTrace(sbWriter);
+            putField("STACK_TRACE", sb);
+            sb.setLength(0);
+        }
+    }
+
+    private void putMarkers(@NotNull Marker marker, int depth) {
+        if (depth > MAX_MARKER_DEPTH) {
+            return;
+        }
+        putField("MARKER", marker.getName());
+        if (marker.hasReferences()) {
+            for (Iterator<Marker> it = marker.iterator(); it.hasNext(); ) {
+                putMarkers(it.next(), depth + 1);
+            }
+        }
+    }
+
+    /** @return key converted to a valid journal field name */
+    static @NotNull String fieldName(@NotNull String key) {
+        final StringBuilder name = new StringBuilder(key.length() + 3);
+        if (key.isEmpty() || !Character.isLetter(key.charAt(0))) {
+            name.append("KV_");
+        }
+        for (int i = 0; i < key.length() && name.length() < 64; i++) {
+            final char c = Character.toUpperCase(key.charAt(i));
+            name.append((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ? c : '_');
+        }
+        return name.toString();
+    }
+
+    /** Put lines of the stream protocol, each prefixed with the priority */
+    private void putLines(@NotNull String name, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final StringBuilder sb = this.sb;
+        final char priority = (char) ('0' + priority(level));
+        sb.append('<').append(priority).append('>').append(name);
+        if (marker != null) {
+            appendMarker(sb, false, marker, false);
+        }
+        sb.append(':').append(' ');
+        int lineStart = 0;
+        for (int i = 0; i < content.length(); i++) {
+            if (content.charAt(i) == '\n') {
+                sb.append(content, lineStart, i).append('\n').append('<').append(priority).append('>');
+                lineStart = i + 1;
+            }
+        }
+        sb.append(content, lineStart, content.length()).append('\n');
+
+        final Utf8Appender utf8 = this.value;
+        utf8.clear();
+        utf8.append(sb);
+        sb.setLength(0);
+        final ByteBuffer bytes = utf8.buffer();
+        ensure(bytes.remaining());
+        payload.put(bytes);
+    }
+    //endregion
+
+    @Override
+    public void dispose() {
+        synchronized (LOCK) {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.darkyen.tproll.logfunctions;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket to journald, for {@link JournaldLogFunction}.
+ *
+ * Unix domain sockets are available only on Java 16 and newer, so the API which they need is looked up through reflection,
+ * and the sockets can't be opened on older JVMs.
+ * Datagram sockets (for the native protocol) are not supported by any JVM yet, but they are used when they are.
+ * Socket is reconnected on the next write after a failed one.
+ */
+final class JournaldSocket implements JournaldLogFunction.Output {
+
+    /** java.net.UnixDomainSocketAddress.of(String), null when not supported */
+    private static final @Nullable Method ADDRESS_OF;
+    /** SocketChannel.open(ProtocolFamily), null when not supported */
+    private static final @Nullable Method OPEN_SOCKET;
+    /** StandardProtocolFamily.UNIX, null when not supported */
+    private static final @Nullable ProtocolFamily UNIX;
+
+    static {
+        Method addressOf = null;
+        Method openSocket = null;
+        ProtocolFamily unix = null;
+        try {
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openSocket = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            unix = StandardProtocolFamily.valueOf("UNIX");
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            addressOf = null;
+            openSocket = null;
+            unix = null;
+        }
+        ADDRESS_OF = addressOf;
+        OPEN_SOCKET = openSocket;
+        UNIX = unix;
+    }
+
+    private final @NotNull SocketAddress address;
+    private final boolean datagram;
+    /** Written after connecting a stream socket */
+    private final byte @Nullable [] header;
+    private @Nullable ByteChannel channel;
+
+    private JournaldSocket(@NotNull String path, boolean datagram, byte @Nullable [] header) throws IOException {
+        if (ADDRESS_OF == null) {
+            throw new IOException("Unix domain sockets are not supported by this JVM, Java 16+ is needed");
+        }
+        this.address = (SocketAddress) invoke(ADDRESS_OF, path);
+        this.datagram = datagram;
+        this.header = header;
+    }
+
+    /** Invoke static method, with its exceptions unwrapped */
+    private static @NotNull Object invoke(@NotNull Method method, @NotNull Object argument) throws IOException {
+        try {
+            return method.invoke(null, argument);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Connect to the socket of the native protocol, throws if the JVM does not support it or journald does not listen. */
+    static @NotNull JournaldSocket openNative(@NotNull String path) throws IOException {
+        final JournaldSocket socket = new JournaldSocket(path, true, null);
+        socket.connect();
+        return socket;
+    }
+
+    /**
+     * Connect to the socket of the stdout stream protocol, throws if journald does not listen.
+     * @param header of the stream, written on each connection
+     */
+    static @NotNull JournaldSocket openStream(@NotNull String path, byte @NotNull [] header) throws IOException {
+        final JournaldSocket socket = new JournaldSocket(path, false, header);
+        socket.connect();
+        return socket;
+    }
+
+    private @NotNull ByteChannel connect() throws IOException {
+        ByteChannel channel = this.channel;
+        if (channel != null) {
+            return channel;
+        }
+        if (datagram) {
+            final DatagramChannel datagramChannel;
+            try {
+                assert UNIX != null;
+                datagramChannel = DatagramChannel.open(UNIX);
+            } catch (UnsupportedOperationException e) {
+                throw new IOException("Unix domain datagram sockets are not supported by this JVM", e);
+            }
+            channel = datagramChannel;
+            try {
+                datagramChannel.connect(address);
+            } catch (IOException e) {
+                datagramChannel.close();
+                throw e;
+            }
+        } else {
+            assert OPEN_SOCKET != null && UNIX != null;
+            final SocketChannel socketChannel = (SocketChannel) invoke(OPEN_SOCKET, UNIX);
+            channel = socketChannel;
+            try {
+                socketChannel.connect(address);
+                final byte[] header = this.header;
+                if (header != null) {
+                    writeFully(socketChannel, ByteBuffer.wrap(header));
+                }
+            } catch (IOException e) {
+                socketChannel.close();
+                throw e;
+            }
+        }
+        this.channel = channel;
+        return channel;
+    }
+
+    private static void writeFully(@NotNull ByteChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public boolean isNative() {
+        return datagram;
+    }
+
+    @Override
+    public void write(@NotNull ByteBuffer payload) throws IOException {
+        final ByteChannel channel = connect();
+        try {
+            // Datagram is written whole or not at all
+            writeFully(channel, payload);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        final ByteChannel channel = this.channel;
+        this.channel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.KeyValue;
+import com.darkyen.tproll.util.PrettyPrinter;
+import com.darkyen.tproll.util.SimpleMarker;
+import com.darkyen.tproll.util.TimeFormatter;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * LogFunction which writes each message as a JSON object on a single line (JSON lines),
+ * to a file through {@link ILogFileHandler}, or to a channel, such as stdout.
+ *
+ * Messages logged through {@link TPLogger} keep their structure, for example:
+ * <pre>
+ * {"time":1700000000123,"level":"WARN","logger":"Main","thread":"main","markers":["Audit"],
+ *  "message":"Login failed for user=bob","template":"Login failed for {}","arguments":[{"user":"bob"},"java.io.IOException: timeout"],
+ *  "keyValues":{"user":"bob"},"throwable":{"class":"java.io.IOException","message":"timeout","frames":[{"class":"Main","method":"login","file":"Main.java","line":42}]}}
+ * </pre>
+ * (without the line breaks). Messages which come already formatted have only the "message", which includes the stack trace.
+ * Time is in milliseconds, unless a {@link TimeFormatter} is given. Empty fields are left out.
+ *
+ * The JSON is written by hand into a reused buffer, there is no object model or reflection.
+ */
+@SuppressWarnings("unused")
+public class JsonLogFunction extends LogFunction {
+
+    /** Maximum depth of causes and suppressed throwables, and of marker references */
+    private static final int MAX_DEPTH = 16;
+    /** Lines of a batch are gathered and written together, unless they take more than this many bytes. */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final @NotNull Object LOCK = new Object();
+    private final @Nullable TimeFormatter timeFormatter;
+    private final @Nullable ILogFileHandler logFileHandler;
+    private @Nullable WritableByteChannel channel;
+
+    //region Guarded by LOCK
+    private boolean logFileHandlerInitialized = false;
+    /** JSON is encoded straight into this buffer */
+    private final @NotNull Utf8Appender out = new Utf8Appender(1024);
+    /** For values which have to be escaped after they are printed */
+    private final @NotNull StringBuilder scratch = new StringBuilder(64);
+    private final @NotNull ArrayList<@Nullable Object> scratchArguments = new ArrayList<>();
+    /** Arguments which are printed into a string, by index */
+    private final @NotNull ArrayList<@NotNull StringBuilder> printedArguments = new ArrayList<>();
+    //endregion
+
+    /**
+     * @param logFileHandler for file handling
+     * @param timeFormatter to write the time as a string, null to write it as number of milliseconds
+     * @param registerShutdownHook to automatically call dispose (and flush log files!) when the application shuts down. Recommended: true.
+     */
+    public JsonLogFunction(@NotNull ILogFileHandler logFileHandler, @Nullable TimeFormatter timeFormatter, boolean registerShutdownHook) {
+        this.timeFormatter = timeFormatter;
+        this.logFileHandler = logFileHandler;
+        this.channel = null;
+        if (registerShutdownHook) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::dispose));
+        }
+    }
+
+    /**
+     * @param channel to write the lines to, each line is written right away
+     * @param timeFormatter to write the time as a string, null to write it as number of milliseconds
+     */
+    public JsonLogFunction(@NotNull WritableByteChannel channel, @Nullable TimeFormatter timeFormatter) {
+        this.timeFormatter = timeFormatter;
+        this.logFileHandler = null;
+        this.channel = channel;
+    }
+
+    /** Writes to stdout, time in milliseconds. */
+    public JsonLogFunction() {
+        this(BufferedConsoleLogFunction.stdout(), null);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        synchronized (LOCK) {
+            final Utf8Appender out = this.out;
+            appendHeader(out, name, time, nanoAdjust, sequence, level, null, marker);
+            out.append(",\"message\":");
+            appendString(out, content);
+            out.append("}\n");
+            write();
+        }
+    }
+
+    /** Takes the message before it is formatted, to write its parts separately. */
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        synchronized (LOCK) {
+            appendEvent(out, event);
+            write();
+        }
+        return true;
+    }
+
+    @Override
+    public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        synchronized (LOCK) {
+            final Utf8Appender out = this.out;
+            for (int i = from; i < to; i++) {
+                appendEvent(out, events[i]);
+                if (out.length() >= MAX_BATCH_BYTES) {
+                    write();
+                }
+            }
+            write();
+        }
+    }
+
+    //region Encoding, must hold LOCK
+    private void appendEvent(@NotNull Utf8Appender out, @NotNull LogEvent event) {
+        appendHeader(out, event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getThreadName(), event.getMarker());
+
+        final String template = event.getTemplate();
+        if (template == null) {
+            out.append(",\"message\":");
+            appendString(out, event.getContent());
+            out.append("}\n");
+            return;
+        }
+
+        final List<Object> arguments = event.getArguments();
+        out.append(",\"message\":");
+        if (arguments.isEmpty()) {
+            appendString(out, template);
+        } else {
+            // Objects are printed only once, for both the message and the arguments
+            final ArrayList<Object> scratchArguments = this.scratchArguments;
+            final int argumentCount = arguments.size();
+            for (int i = 0; i < argumentCount; i++) {
+                final Object argument = arguments.get(i);
+                if (isPrintedByValue(argument)) {
+                    scratchArguments.add(argument);
+                } else {
+                    final StringBuilder printed = printedArgument(i);
+                    PrettyPrinter.append(printed, argument);
+                    scratchArguments.add(printed);
+                }
+            }
+            final StringBuilder scratch = this.scratch;
+            scratch.setLength(0);
+            PrettyPrinter.patternSubstituteInto(scratch, template, scratchArguments, false);
+            appendString(out, scratch);
+
+            out.append(",\"template\":");
+            appendString(out, template);
+            out.append(",\"arguments\":[");
+            for (int i = 0; i < argumentCount; i++) {
+                if (i != 0) out.append(',');
+                final Object argument = arguments.get(i);
+                if (isPrintedByValue(argument)) {
+                    appendValue(out, argument);
+                } else {
+                    appendString(out, printedArguments.get(i));
+                }
+            }
+            out.append(']');
+        }
+
+        final List<KeyValue> keyValues = event.getKeyValues();
+        if (!keyValues.isEmpty()) {
+            out.append(",\"keyValues\":{");
+            for (int i = 0; i < keyValues.size(); i++) {
+                if (i != 0) out.append(',');
+                final KeyValue keyValue = keyValues.get(i);
+                appendString(out, keyValue.getKey());
+                out.append(':');
+                appendValue(out, keyValue.getValue());
+            }
+            out.append('}');
+        }
+
+        final Throwable throwable = event.getThrowable();
+        if (throwable != null) {
+            out.append(",\"throwable\":");
+            appendThrowable(out, throwable, 0);
+        }
+        out.append("}\n");
+    }
+
+    private void appendHeader(@NotNull Utf8Appender out, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable String thread, @Nullable Marker marker) {
+        out.append("{\"time\":");
+        final TimeFormatter timeFormatter = this.timeFormatter;
+        if (timeFormatter != null) {
+            final StringBuilder scratch = this.scratch;
+            scratch.setLength(0);
+            timeFormatter.format(time, nanoAdjust, scratch);
+            appendString(out, scratch);
+        } else {
+            out.append(time);
+            if (nanoAdjust != 0) {
+                out.append(",\"nanoAdjust\":").append(nanoAdjust);
+            }
+        }
+        if (sequence != 0L) {
+            out.append(",\"sequence\":").append(sequence);
+        }
+        out.append(",\"level\":\"").append(TPLogger.levelName(level)).append("\",\"logger\":");
+        appendString(out, name);
+        if (thread != null) {
+            out.append(",\"thread\":");
+            appendString(out, thread);
+        }
+        if (marker != null) {
+            out.append(",\"markers\":[");
+            appendMarkers(out, marker, true, 0);
+            out.append(']');
+        }
+    }
+
+    /** @return whether the next one is first */
+    private static boolean appendMarkers(@NotNull Utf8Appender out, @NotNull Marker marker, boolean first, int depth) {
+        if (!first) out.append(',');
+        appendString(out, marker.getName());
+        first = false;
+        if (depth >= MAX_DEPTH) {
+            return false;
+        }
+        if (marker instanceof SimpleMarker) {
+            for (Marker reference : ((SimpleMarker) marker).references()) {
+                first = appendMarkers(out, reference, first, depth + 1);
+            }
+        } else if (marker.hasReferences()) {
+            final Iterator<Marker> iterator = marker.iterator();
+            while (iterator.hasNext()) {
+                first = appendMarkers(out, iterator.next(), first, depth + 1);
+            }
+        }
+        return first;
+    }
+
+    /** @return true if {@link #appendValue(Utf8Appender, Object)} writes the value without printing it into a string first */
+    private static boolean isPrintedByValue(@Nullable Object value) {
+        return value == null || value instanceof Number || value instanceof Boolean || value instanceof CharSequence
+                || value instanceof Throwable || value instanceof KeyValue;
+    }
+
+    private @NotNull StringBuilder printedArgument(int index) {
+        final ArrayList<StringBuilder> printedArguments = this.printedArguments;
+        while (printedArguments.size() <= index) {
+            printedArguments.add(new StringBuilder(64));
+        }
+        final StringBuilder printed = printedArguments.get(index);
+        printed.setLength(0);
+        return printed;
+    }
+
+    private void appendValue(@NotNull Utf8Appender out, @Nullable Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.append(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            final StringBuilder scratch = this.scratch;
+            scratch.setLength(0);
+            if (value instanceof Float) {
+                scratch.append(((Float) value).floatValue());
+            } else {
+                scratch.append(((Double) value).doubleValue());
+            }
+            final double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                appendString(out, scratch);
+            } else {
+                out.append(scratch);
+            }
+        } else if (value instanceof Boolean) {
+            out.append((Boolean) value ? "true" : "false");
+        } else if (value instanceof CharSequence) {
+            appendString(out, (CharSequence) value);
+        } else if (value instanceof KeyValue) {
+            final KeyValue keyValue = (KeyValue) value;
+            out.append('{');
+            appendString(out, keyValue.getKey());
+            out.append(':');
+            appendValue(out, keyValue.getValue());
+            out.append('}');
+        } else if (value instanceof Throwable) {
+            appendString(out, value.toString());
+        } else {
+            final StringBuilder scratch = this.scratch;
+            scratch.setLength(0);
+            PrettyPrinter.append(scratch, value);
+            appendString(out, scratch);
+        }
+    }
+
+    private static void appendThrowable(@NotNull Utf8Appender out, @NotNull Throwable throwable, int depth) {
+        out.append("{\"class\":");
+        appendString(out, throwable.getClass().getName());
+        final String message = throwable.getMessage();
+        if (message != null) {
+            out.append(",\"message\":");
+            appendString(out, message);
+        }
+        out.append(",\"frames\":[");
+        final StackTraceElement[] frames = throwable.getStackTrace();
+        for (int i = 0; i < frames.length; i++) {
+            final StackTraceElement frame = frames[i];
+            if (i != 0) out.append(',');
+            out.append("{\"class\":");
+            appendString(out, frame.getClassName());
+            out.append(",\"method\":");
+            appendString(out, frame.getMethodName());
+            final String file = frame.getFileName();
+            if (file != null) {
+                out.append(",\"file\":");
+                appendString(out, file);
+            }
+            if (frame.getLineNumber() >= 0) {
+                out.append(",\"line\":").append(frame.getLineNumber());
+            }
+            out.append('}');
+        }
+        out.append(']');
+
+        if (depth < MAX_DEPTH) {
+            final Throwable cause = throwable.getCause();
+            if (cause != null && cause != throwable) {
+                out.append(",\"cause\":");
+                appendThrowable(out, cause, depth + 1);
+            }
+            final Throwable[] suppressed = throwable.getSuppressed();
+            if (suppressed.length > 0) {
+                out.append(",\"suppressed\":[");
+                for (int i = 0; i < suppressed.length; i++) {
+                    if (i != 0) out.append(',');
+                    appendThrowable(out, suppressed[i], depth + 1);
+                }
+                out.append(']');
+            }
+        }
+        out.append('}');
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Append chars as a JSON string, with quotes. */
+    public static void appendString(@NotNull Utf8Appender out, @NotNull CharSequence chars) {
+        out.append('"');
+        // Runs of characters which don't need escaping are appended at once
+        int runStart = 0;
+        final int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            final char c = chars.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.append(chars, runStart, i);
+            runStart = i + 1;
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default: out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        out.append(chars, runStart, length);
+        out.append('"');
+    }
+    //endregion
+
+    /** Write what is in out and clear it. Must hold LOCK. */
+    private void write() {
+        final Utf8Appender bytes = this.out;
+        if (bytes.length() == 0) {
+            return;
+        }
+
+        final ILogFileHandler logFileHandler = this.logFileHandler;
+        if (logFileHandler != null) {
+            if (!logFileHandlerInitialized) {
+                logFileHandlerInitialized = true;
+                logFileHandler.initialize();
+            }
+            logFileHandler.log(bytes.buffer());
+            bytes.clear();
+            return;
+        }
+
+        final WritableByteChannel channel = this.channel;
+        if (channel != null) {
+            try {
+                bytes.writeTo(channel);
+                return;
+            } catch (IOException e) {
+                // Not writable directly, fall back to System.out
+                this.channel = null;
+            }
+        }
+        final PrintStream out = System.out;
+        final ByteBuffer buffer = bytes.buffer();
+        out.write(buffer.array(), buffer.position(), buffer.remaining());
+        out.flush();
+        bytes.clear();
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (LOCK) {
+            if (logFileHandler != null && logFileHandlerInitialized) {
+                logFileHandler.dispose();
+                logFileHandlerInitialized = false;
+            }
+        }
+    }
+}
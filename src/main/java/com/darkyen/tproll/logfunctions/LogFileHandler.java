@@ -2,10 +2,13 @@ package com.darkyen.tproll.logfunctions;
 
 import com.darkyen.tproll.TPLogger;
 import com.darkyen.tproll.util.TimeProvider;
+import com.darkyen.tproll.util.Utf8Appender;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
@@ -40,8 +43,16 @@ public class LogFileHandler implements ILogFileHandler {
     private final @NotNull LogFileCreationStrategy fileCreationStrategy;
     private final boolean compressOnExit;
 
+    /** Size of the write buffer, file is written when it is full */
+    private static final int BUFFER_SIZE = 8192;
+
     private @Nullable File openedFile = null;
-    private @Nullable PrintWriter fileWriter = null;
+    /** Stream, not its channel, because a channel is closed when a thread which writes into it is interrupted */
+    private @Nullable FileOutputStream fileOut = null;
+    private final byte @NotNull [] writeBuffer = new byte[BUFFER_SIZE];
+    private int buffered = 0;
+    private final @NotNull Utf8Appender encoder = new Utf8Appender();
+    private final @NotNull StringBuilder timeSb = new StringBuilder();
 
     public LogFileHandler(@NotNull File logDirectory, @NotNull LogFileCreationStrategy fileCreationStrategy, boolean compressOnExit) {
         this.logDirectory = logDirectory;
@@ -51,7 +62,6 @@ public class LogFileHandler implements ILogFileHandler {
 
     @Override
     public void initialize() {
-        PrintWriter fileWriter;
         try {
             final File logFile = fileCreationStrategy.getLogFile(logDirectory);
 
@@ -87,16 +97,18 @@ public class LogFileHandler implements ILogFileHandler {
                 }
             }
 
-            fileWriter = new PrintWriter(new FileWriter(logFile, fileCreationStrategy.shouldAppend()), true);
-
-            fileWriter.append("Log file opened at ");
-            FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), fileWriter);
-            fileWriter.append('\n');
-            fileWriter.flush();
-
-            this.fileWriter = fileWriter;
+            buffered = 0;
+            this.fileOut = new FileOutputStream(logFile, fileCreationStrategy.shouldAppend());
             this.openedFile = logFile;
 
+            final StringBuilder timeSb = this.timeSb;
+            timeSb.append("Log file opened at ");
+            FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), timeSb);
+            timeSb.append('\n');
+            log(timeSb);
+            timeSb.setLength(0);
+            flush();
+
             fileCreationStrategy.performCleanup(logDirectory, logFile, LOG);
         } catch (Exception e) {
             logInternalError("Log file creation failed, being System.err only.", e);
@@ -105,38 +117,87 @@ public class LogFileHandler implements ILogFileHandler {
 
     @Override
     public void log(@NotNull CharSequence message) {
-        final PrintWriter fileWriter = this.fileWriter;
-        if (fileWriter != null) {
-            fileWriter.append(message);
+        final Utf8Appender encoder = this.encoder;
+        encoder.append(message);
+        log(encoder.buffer());
+        encoder.clear();
+    }
+
+    @Override
+    public void log(@NotNull ByteBuffer message) {
+        final FileOutputStream fileOut = this.fileOut;
+        if (fileOut != null) {
+            final byte[] writeBuffer = this.writeBuffer;
+            final int length = message.remaining();
+            try {
+                if (length > BUFFER_SIZE - buffered) {
+                    flush();
+                    if (length > BUFFER_SIZE) {
+                        // Too big to be buffered
+                        if (message.hasArray()) {
+                            fileOut.write(message.array(), message.arrayOffset() + message.position(), length);
+                            message.position(message.limit());
+                        } else {
+                            while (message.hasRemaining()) {
+                                final int chunk = Math.min(BUFFER_SIZE, message.remaining());
+                                message.get(writeBuffer, 0, chunk);
+                                fileOut.write(writeBuffer, 0, chunk);
+                            }
+                        }
+                        return;
+                    }
+                }
+                message.get(writeBuffer, buffered, length);
+                buffered += length;
+            } catch (IOException e) {
+                this.fileOut = null;
+                logInternalError("Writing to log file failed, being System.err only.", e);
+                close(fileOut);
+            }
         } else {
             System.err.append("com.darkyen.tproll.advanced.LogFileHandler: broken, using stderr:\n");
-            System.err.append(message);
+            System.err.append(StandardCharsets.UTF_8.decode(message));
+        }
+    }
+
+    /** Write buffered bytes into the file. */
+    private void flush() throws IOException {
+        final FileOutputStream fileOut = this.fileOut;
+        final int buffered = this.buffered;
+        this.buffered = 0;
+        if (fileOut != null && buffered > 0) {
+            fileOut.write(writeBuffer, 0, buffered);
         }
     }
 
     @Override
     public void dispose() {
-        final PrintWriter fileWriter = this.fileWriter;
+        final FileOutputStream fileOut = this.fileOut;
         final File openedFile = this.openedFile;
-        this.fileWriter = null;
         this.openedFile = null;
 
-        if(fileWriter != null){
-            fileWriter.append("Log file closed at ");
+        if(fileOut != null){
+            final StringBuilder timeSb = this.timeSb;
+            timeSb.setLength(0);
+            timeSb.append("Log file closed at ");
 			try {
-				FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), fileWriter);
+				FILE_ACTION_TIME_FORMATTER.formatTo(TPLogger.getTimeProvider().time(), timeSb);
 			} catch (Exception e) {
 				System.err.println("Closing timestamp printing failed");
 				e.printStackTrace(System.err);
-				fileWriter.append("<failed to print>");
+				timeSb.append("<failed to print>");
 			}
-			fileWriter.append('\n');
-            fileWriter.flush();
+			timeSb.append('\n');
+            log(timeSb);
+            timeSb.setLength(0);
 
-            if(fileWriter.checkError()){
-                logInternalError("FileWriter has encountered an unknown error (in dispose())", null);
+            try {
+                flush();
+            } catch (IOException e) {
+                logInternalError("Writing to log file failed (in dispose())", e);
             }
-            fileWriter.close();
+            this.fileOut = null;
+            close(fileOut);
 
 
             if (compressOnExit && openedFile != null) {
@@ -176,7 +237,12 @@ public class LogFileHandler implements ILogFileHandler {
     }
 
     private void logInternalError(@NotNull String problem, @Nullable Throwable error){
-		SimpleLogFunction.CONSOLE_LOG_FUNCTION.log("com.darkyen.tproll.advanced.LogFileHandler", TimeProvider.CURRENT_TIME_PROVIDER.timeMillis(), TPLogger.ERROR, null, "INTERNAL ERROR: "+problem);
+        logInternalError("com.darkyen.tproll.advanced.LogFileHandler", problem, error);
+    }
+
+    /** Log a failure of a log function straight to the console, where it is not lost when the function itself is broken. */
+    static void logInternalError(@NotNull String name, @NotNull String problem, @Nullable Throwable error){
+		SimpleLogFunction.CONSOLE_LOG_FUNCTION.log(name, TimeProvider.CURRENT_TIME_PROVIDER.timeMillis(), TPLogger.ERROR, null, "INTERNAL ERROR: "+problem);
         if (error != null) {
             System.out.flush();
             error.printStackTrace(System.err);
@@ -1,5 +1,6 @@
 package com.darkyen.tproll.logfunctions;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.util.SimpleMarker;
 import org.jetbrains.annotations.NotNull;
@@ -15,10 +16,11 @@ public final class LogFunctionMultiplexer extends LogFunction {
 
     private static final int MAX_TARGETS = 8 * 8; //Long.BYTES * 8;
 
-    private @NotNull LogFunction[] muxTargets = {};
-    private long optOutMask = 0;
+    /** Targets and opt-out mask are replaced together, so that concurrent readers always see a consistent pair. */
+    private volatile @NotNull MuxTargets targets;
 
     public LogFunctionMultiplexer() {
+        this.targets = new MuxTargets(new LogFunction[0], 0L);
     }
 
     /**
@@ -29,8 +31,7 @@ public final class LogFunctionMultiplexer extends LogFunction {
      *
      * @param defaultOptOutTargets Initial mux targets */
     public LogFunctionMultiplexer(@NotNull LogFunction...defaultOptOutTargets) {
-        this.muxTargets = defaultOptOutTargets;
-        this.optOutMask = (1L << defaultOptOutTargets.length) - 1L;
+        this.targets = new MuxTargets(defaultOptOutTargets, (1L << defaultOptOutTargets.length) - 1L);
     }
 
     /** Add multiplexing target.
@@ -38,44 +39,138 @@ public final class LogFunctionMultiplexer extends LogFunction {
      * If optOut is true, all messages, except those with returned marker are logged.
      * @param function to which this branch should log */
     public synchronized @NotNull MuxMarker addMuxTarget(@NotNull LogFunction function, boolean optOut) {
-        final LogFunction[] oldTargets = this.muxTargets;
-        final int newIndex = oldTargets.length;
-        if (newIndex > MAX_TARGETS) throw new IllegalStateException("Too many targets, max is "+MAX_TARGETS);
-        final LogFunction[] newTargets = new LogFunction[newIndex+1];
-        System.arraycopy(oldTargets, 0, newTargets, 0, newIndex);
-        newTargets[newIndex] = function;
-        this.muxTargets = newTargets;
+        final MuxTargets oldTargets = this.targets;
+        final int newIndex = oldTargets.functions.length;
+        if (newIndex >= MAX_TARGETS) throw new IllegalStateException("Too many targets, max is "+MAX_TARGETS);
+        final LogFunction[] newFunctions = new LogFunction[newIndex+1];
+        System.arraycopy(oldTargets.functions, 0, newFunctions, 0, newIndex);
+        newFunctions[newIndex] = function;
 
+        long optOutMask = oldTargets.optOutMask;
         if (optOut) {
             optOutMask |= 1L << newIndex;
         }
+        this.targets = new MuxTargets(newFunctions, optOutMask);
         return new MuxMarker(this, newIndex);
     }
 
+    @NotNull MuxTargets targets() {
+        return targets;
+    }
+
     @Override
     public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final MuxTargets targets = this.targets;
         long remainingTargetMask = findMuxTargets(this, marker);
-        remainingTargetMask ^= optOutMask;
-        final LogFunction[] muxTargets = this.muxTargets;
+        remainingTargetMask ^= targets.optOutMask;
+        final LogFunction[] muxTargets = targets.functions;
         int target = 0;
         for (long mask = 1; remainingTargetMask != 0; mask <<= 1, target++) {
             if ((remainingTargetMask & mask) != 0) {
                 remainingTargetMask &= ~mask;
-                muxTargets[target].log(name, time, level, marker, content);
+                muxTargets[target].log(name, time, nanoAdjust, sequence, level, marker, content);
             }
         }
     }
 
+    /**
+     * Offers the event to each target, those which don't take it get the formatted content,
+     * which is formatted only once, if any target needs it.
+     */
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        final MuxTargets targets = this.targets;
+        long remainingTargetMask = findMuxTargets(this, event.getMarker());
+        remainingTargetMask ^= targets.optOutMask;
+        final LogFunction[] muxTargets = targets.functions;
+        int target = 0;
+        for (long mask = 1; remainingTargetMask != 0; mask <<= 1, target++) {
+            if ((remainingTargetMask & mask) != 0) {
+                remainingTargetMask &= ~mask;
+                final LogFunction function = muxTargets[target];
+                if (!function.logEvent(event)) {
+                    function.log(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent());
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Each target gets the events meant for it as a single batch, in order. */
+    @Override
+    public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        final MuxTargets targets = this.targets;
+        final int count = to - from;
+        final long[] eventMasks = new long[count];
+        long anyMask = 0;
+        long allMask = -1L;
+        for (int i = 0; i < count; i++) {
+            final long eventMask = findMuxTargets(this, events[from + i].getMarker()) ^ targets.optOutMask;
+            eventMasks[i] = eventMask;
+            anyMask |= eventMask;
+            allMask &= eventMask;
+        }
+
+        final LogFunction[] muxTargets = targets.functions;
+        LogEvent[] subBatch = null;
+        int target = 0;
+        for (long mask = 1; anyMask != 0; mask <<= 1, target++) {
+            if ((anyMask & mask) == 0) {
+                continue;
+            }
+            anyMask &= ~mask;
+            if ((allMask & mask) != 0) {
+                muxTargets[target].logBatch(events, from, to);
+                continue;
+            }
+            if (subBatch == null) {
+                subBatch = new LogEvent[count];
+            }
+            int subCount = 0;
+            for (int i = 0; i < count; i++) {
+                if ((eventMasks[i] & mask) != 0) {
+                    subBatch[subCount++] = events[from + i];
+                }
+            }
+            muxTargets[target].logBatch(subBatch, 0, subCount);
+        }
+    }
+
     @Override
     public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return anyTargetEnabled(null, level, marker, null);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return anyTargetEnabled(name, level, marker, null);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return anyTargetEnabled(name, level, marker, template);
+    }
+
+    /**
+     * @param name of the logger or null if not known
+     * @param template of the message or null if not known
+     */
+    private boolean anyTargetEnabled(@Nullable String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        final MuxTargets targets = this.targets;
         long remainingTargetMask = findMuxTargets(this, marker);
-        remainingTargetMask ^= optOutMask;
-        final LogFunction[] muxTargets = this.muxTargets;
+        remainingTargetMask ^= targets.optOutMask;
+        final LogFunction[] muxTargets = targets.functions;
         int target = 0;
         for (long mask = 1; remainingTargetMask != 0; mask <<= 1, target++) {
             if ((remainingTargetMask & mask) != 0) {
                 remainingTargetMask &= ~mask;
-                if (muxTargets[target].isEnabled(level, marker)) {
+                final LogFunction function = muxTargets[target];
+                if (name == null ? function.isEnabled(level, marker) : template == null ? function.isEnabled(name, level, marker) : function.isEnabled(name, level, marker, template)) {
                     return true;
                 }
             }
@@ -83,6 +178,24 @@ public final class LogFunctionMultiplexer extends LogFunction {
         return false;
     }
 
+    /** Disposes all targets. */
+    @Override
+    public void dispose() {
+        for (LogFunction target : targets.functions) {
+            target.dispose();
+        }
+    }
+
+    static final class MuxTargets {
+        final @NotNull LogFunction @NotNull [] functions;
+        final long optOutMask;
+
+        MuxTargets(@NotNull LogFunction @NotNull [] functions, long optOutMask) {
+            this.functions = functions;
+            this.optOutMask = optOutMask;
+        }
+    }
+
     @SuppressWarnings("serialVersionUID")
     public static class MuxMarker extends SimpleMarker {
 
@@ -122,7 +235,7 @@ public final class LogFunctionMultiplexer extends LogFunction {
         }
     }
 
-    private static long findMuxTargets(@NotNull LogFunctionMultiplexer multiplexer, @Nullable Marker from) {
+    static long findMuxTargets(@NotNull LogFunctionMultiplexer multiplexer, @Nullable Marker from) {
         if (from == null) return 0;
         long result = 0;
         if (from instanceof MuxMarker) {
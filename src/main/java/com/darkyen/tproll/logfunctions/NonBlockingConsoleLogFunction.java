@@ -0,0 +1,228 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.AnsiColor;
+import com.darkyen.tproll.util.PatternLayout;
+import com.darkyen.tproll.util.SharedScheduler;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Console log function which never blocks the logging thread on the console.
+ * Lines are put into a bounded in-memory queue, which is written to stdout/stderr by a background thread.
+ *
+ * When the console can't keep up and the queue fills, lines of lower severity are dropped first:
+ * TRACE and DEBUG when the queue is half full, INFO at 3/4 and WARN at 9/10. ERROR and LOG lines are dropped
+ * only when they don't fit at all. Amount of dropped lines is reported with a {@code dropped N lines} notice,
+ * on the stream of the most severe dropped line.
+ * Order of lines between stdout and stderr is preserved. Lines end with {@link System#lineSeparator()}.
+ */
+@SuppressWarnings("unused")
+public class NonBlockingConsoleLogFunction extends SimpleLogFunction {
+
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private final int maxQueuedBytes;
+    private @Nullable WritableByteChannel out, err;
+    private final @NotNull Thread writer;
+    private final @NotNull Utf8Appender encoder = new Utf8Appender();
+    private final @NotNull Runnable shutdownTask = () -> flush(1000);
+
+    //region Guarded by queue
+    private final @NotNull ArrayDeque<@NotNull Line> queue = new ArrayDeque<>();
+    private int queuedBytes = 0;
+    private long droppedLines = 0;
+    /** Highest level of the dropped lines, the notice goes to its stream */
+    private byte droppedMaxLevel = TPLogger.TRACE;
+    /** Amount of lines taken from the queue and written */
+    private long writtenLines = 0;
+    /** Amount of lines put into the queue */
+    private long queuedLines = 0;
+    private boolean running = true;
+    //endregion
+
+    /**
+     * @param layout of the lines, null for the default format
+     * @param out channel for stdout
+     * @param err channel for stderr
+     * @param maxQueuedBytes capacity of the queue
+     */
+    public NonBlockingConsoleLogFunction(@Nullable PatternLayout layout, @NotNull WritableByteChannel out, @NotNull WritableByteChannel err, int maxQueuedBytes) {
+        super(layout);
+        if (maxQueuedBytes <= 0) throw new IllegalArgumentException("maxQueuedBytes must be positive: " + maxQueuedBytes);
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.out = out;
+        this.err = err;
+
+        writer = new Thread(this::write, "tproll console writer");
+        writer.setDaemon(true);
+        writer.start();
+        SharedScheduler.onShutdown(shutdownTask);
+    }
+
+    /** Logs to stdout/stderr, like {@link SimpleLogFunction#CONSOLE_LOG_FUNCTION}. */
+    public NonBlockingConsoleLogFunction(int maxQueuedBytes) {
+        this(null, BufferedConsoleLogFunction.stdout(), BufferedConsoleLogFunction.stderr(), maxQueuedBytes);
+    }
+
+    public NonBlockingConsoleLogFunction() {
+        this(DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /** @return how many bytes of a line of given level can be queued, at most */
+    private int admissionLimit(byte level) {
+        final int max = maxQueuedBytes;
+        if (level <= TPLogger.DEBUG) return max / 2;
+        if (level == TPLogger.INFO) return max / 4 * 3;
+        if (level == TPLogger.WARN) return max / 10 * 9;
+        return max;
+    }
+
+    /** @return true if lines of the level go to stderr, like those of {@link SimpleLogFunction#CONSOLE_LOG_FUNCTION} */
+    private static boolean toErr(byte level) {
+        return !(level <= TPLogger.INFO || level == TPLogger.LOG || AnsiColor.COLOR_SUPPORTED);
+    }
+
+    @Override
+    protected void logLine(byte level, @NotNull CharSequence formattedContent) {
+        final boolean toErr = toErr(level);
+        final Utf8Appender encoder = this.encoder;
+        encoder.append(formattedContent).append(System.lineSeparator());
+        final ByteBuffer encoded = encoder.buffer();
+        final int length = encoded.remaining();
+        final int limit = admissionLimit(level);
+
+        synchronized (queue) {
+            if (queuedBytes + length > limit) {
+                droppedLines++;
+                if (level > droppedMaxLevel) {
+                    droppedMaxLevel = level;
+                }
+            } else {
+                final byte[] bytes = new byte[length];
+                encoded.get(bytes);
+                queue.addLast(new Line(toErr, bytes));
+                queuedBytes += length;
+                queuedLines++;
+                if (queue.size() == 1) {
+                    queue.notifyAll();
+                }
+            }
+        }
+        encoder.clear();
+    }
+
+    private void write() {
+        final ArrayList<Line> batch = new ArrayList<>();
+        final Utf8Appender notice = new Utf8Appender(64);
+        while (true) {
+            long dropped;
+            byte droppedLevel;
+            synchronized (queue) {
+                while (queue.isEmpty() && droppedLines == 0) {
+                    if (!running) {
+                        return;
+                    }
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                batch.addAll(queue);
+                queue.clear();
+                queuedBytes = 0;
+                dropped = droppedLines;
+                droppedLevel = droppedMaxLevel;
+                droppedLines = 0;
+                droppedMaxLevel = TPLogger.TRACE;
+            }
+
+            if (dropped != 0) {
+                notice.append("dropped ").append(Long.toString(dropped)).append(dropped == 1 ? " line" : " lines").append(System.lineSeparator());
+                write(toErr(droppedLevel), notice.buffer());
+                notice.clear();
+            }
+            for (Line line : batch) {
+                write(line.err, ByteBuffer.wrap(line.bytes));
+            }
+
+            synchronized (queue) {
+                writtenLines += batch.size();
+                queue.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(boolean toErr, @NotNull ByteBuffer bytes) {
+        final WritableByteChannel channel = toErr ? err : out;
+        if (channel != null) {
+            try {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                return;
+            } catch (IOException e) {
+                // Console is not writable directly, fall back to System streams
+                out = null;
+                err = null;
+            }
+        }
+        final PrintStream stream = toErr ? System.err : System.out;
+        stream.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        stream.flush();
+    }
+
+    /**
+     * Wait until all lines queued so far are written.
+     * @return true if they were, false if the timeout has elapsed first
+     */
+    public boolean flush(long timeoutMs) {
+        final long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        synchronized (queue) {
+            final long target = queuedLines;
+            while (writtenLines < target && writer.isAlive()) {
+                final long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                try {
+                    queue.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Write what is queued (waiting at most a second) and stop the writer thread. */
+    @Override
+    public void dispose() {
+        SharedScheduler.removeOnShutdown(shutdownTask);
+        flush(1000);
+        synchronized (queue) {
+            running = false;
+            queue.notifyAll();
+        }
+    }
+
+    private static final class Line {
+        final boolean err;
+        final byte @NotNull [] bytes;
+
+        Line(boolean err, byte @NotNull [] bytes) {
+            this.err = err;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.darkyen.tproll.logfunctions;
 
+import com.darkyen.tproll.LogEvent;
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.TPLogger;
 import com.darkyen.tproll.util.AnsiColor;
+import com.darkyen.tproll.util.PatternLayout;
 import com.darkyen.tproll.util.TimeFormatter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -16,31 +18,53 @@ import static com.darkyen.tproll.util.RenderableMarker.appendMarker;
 
 /**
  * Simple log function, basis for other custom implementations.
- * Logging of time is configurable.
+ * Logging of time is configurable, or the whole line can be described by a {@link PatternLayout}.
  *
  * @see SimpleLogFunction#CONSOLE_LOG_FUNCTION for implementation that logs into the console
  */
 public abstract class SimpleLogFunction extends LogFunction {
 
     private final @NotNull StringBuilder sb = new StringBuilder();
+    private boolean batching = false;
     private final @Nullable TimeFormatter absoluteTimeFormatter;
     private final @Nullable TimeFormatter relativeTimeFormatter;
+    private final @Nullable PatternLayout layout;
     protected final boolean ansiColor;
 
     @SuppressWarnings("unused")
     public SimpleLogFunction(@Nullable TimeFormatter absoluteTimeFormatter, @Nullable TimeFormatter relativeTimeFormatter, boolean ansiColor) {
         this.absoluteTimeFormatter = absoluteTimeFormatter;
         this.relativeTimeFormatter = relativeTimeFormatter;
+        this.layout = null;
         this.ansiColor = AnsiColor.COLOR_SUPPORTED;
     }
 
+    /**
+     * @param layout of the lines, line break at the end is added by {@link #logLine(byte, CharSequence)},
+     *               null for the default format, same as {@link #SimpleLogFunction()}
+     */
+    public SimpleLogFunction(@Nullable PatternLayout layout) {
+        this.absoluteTimeFormatter = layout == null ? defaultAbsoluteTimeFormatter() : null;
+        this.relativeTimeFormatter = layout == null ? defaultRelativeTimeFormatter() : null;
+        this.layout = layout;
+        this.ansiColor = layout == null ? AnsiColor.COLOR_SUPPORTED : layout.isAnsiColor();
+    }
+
     @SuppressWarnings("unused")
     public SimpleLogFunction(@Nullable TimeFormatter absoluteTimeFormatter, @Nullable TimeFormatter relativeTimeFormatter) {
         this(absoluteTimeFormatter, relativeTimeFormatter, AnsiColor.COLOR_SUPPORTED);
     }
 
     public SimpleLogFunction(boolean ansiColor) {
-        this(new TimeFormatter.AbsoluteTimeFormatter(new DateTimeFormatterBuilder()
+        this(defaultAbsoluteTimeFormatter(), defaultRelativeTimeFormatter(), ansiColor);
+    }
+
+    public SimpleLogFunction() {
+        this(AnsiColor.COLOR_SUPPORTED);
+    }
+
+    private static @NotNull TimeFormatter defaultAbsoluteTimeFormatter() {
+        return new TimeFormatter.AbsoluteTimeFormatter(new DateTimeFormatterBuilder()
                 .parseCaseInsensitive()
                 .appendValue(ChronoField.HOUR_OF_DAY, 2)
                 .appendLiteral(':')
@@ -48,28 +72,72 @@ public abstract class SimpleLogFunction extends LogFunction {
                 .appendLiteral(':')
                 .appendValue(ChronoField.SECOND_OF_MINUTE, 2)
                 .parseDefaulting(ChronoField.NANO_OF_SECOND, 0)
-                .toFormatter()),
-                new TimeFormatter.RelativeTimeFormatter(false, true, true, true, false),
-                ansiColor);
+                .toFormatter());
     }
 
-    public SimpleLogFunction() {
-        this(AnsiColor.COLOR_SUPPORTED);
+    private static @NotNull TimeFormatter defaultRelativeTimeFormatter() {
+        return new TimeFormatter.RelativeTimeFormatter(false, true, true, true, false);
     }
 
     @Override
-    public final synchronized void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
-        final boolean color = this.ansiColor;
+    public final void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public final synchronized void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
         final StringBuilder sb = this.sb;
+        formatLine(sb, name, time, nanoAdjust, sequence, level, marker, content, null);
+        logLine(level, sb);
+        sb.setLength(0);
+    }
+
+    /**
+     * Formats all lines under a single lock. While the lines are being passed to {@link #logLine(byte, CharSequence)},
+     * {@link #isBatching()} returns true, after the last one, {@link #endBatch()} is called.
+     */
+    @Override
+    public final synchronized void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        final StringBuilder sb = this.sb;
+        batching = true;
+        try {
+            for (int i = from; i < to; i++) {
+                final LogEvent event = events[i];
+                formatLine(sb, event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent(), event);
+                logLine(event.getLevel(), sb);
+                sb.setLength(0);
+            }
+        } finally {
+            batching = false;
+            endBatch();
+        }
+    }
+
+    /** Append the whole line, without the line break, into sb. Event is null when called on the logging thread. */
+    private void formatLine(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+        final PatternLayout layout = this.layout;
+        if (layout != null) {
+            if (event != null) {
+                layout.format(sb, event);
+            } else {
+                layout.format(sb, name, time, nanoAdjust, sequence, level, marker, content);
+            }
+            if (layout.endsWithNewline()) {
+                sb.setLength(sb.length() - 1);
+            }
+            return;
+        }
+
+        final boolean color = this.ansiColor;
         if (color) sb.append(AnsiColor.BLACK);
         sb.append('[');
         if (color) sb.append(AnsiColor.BLUE);
         if (relativeTimeFormatter != null && (time < (1000L * 60 * 60 * 24 * 365 * 20) || absoluteTimeFormatter == null)) {
             // Less than 20 years? (lets assume that no system with this logger will have more years of uptime)
-            relativeTimeFormatter.format(time, sb);
+            relativeTimeFormatter.format(time, nanoAdjust, sb);
             sb.append(' ');
         } else if (absoluteTimeFormatter != null) {
-            absoluteTimeFormatter.format(time, sb);
+            absoluteTimeFormatter.format(time, nanoAdjust, sb);
             sb.append(' ');
         }
 
@@ -126,30 +194,62 @@ public abstract class SimpleLogFunction extends LogFunction {
         if (color) sb.append(AnsiColor.RESET);
 
         sb.append(content);
+    }
 
-        logLine(level, sb);
+    protected abstract void logLine(byte level, @NotNull CharSequence formattedContent);
 
-        sb.setLength(0);
+    /** @return true when {@link #logLine(byte, CharSequence)} is called from {@link #logBatch(LogEvent[], int, int)} and more lines may follow */
+    protected final boolean isBatching() {
+        return batching;
     }
 
-    protected abstract void logLine(byte level, @NotNull CharSequence formattedContent);
+    /** Called after the last line of {@link #logBatch(LogEvent[], int, int)}, to write what {@link #logLine(byte, CharSequence)} has held back. */
+    protected void endBatch() {
+    }
 
     /** Implementation of {@link SimpleLogFunction} which logs to stdout and stderr. */
-    public static final SimpleLogFunction CONSOLE_LOG_FUNCTION = new SimpleLogFunction() {
+    public static final SimpleLogFunction CONSOLE_LOG_FUNCTION = new ConsoleLogFunction(null);
+
+    /** @return log function which logs to stdout and stderr, like {@link #CONSOLE_LOG_FUNCTION}, but with given layout */
+    public static @NotNull SimpleLogFunction consoleLogFunction(@NotNull PatternLayout layout) {
+        return new ConsoleLogFunction(layout);
+    }
+
+    private static final class ConsoleLogFunction extends SimpleLogFunction {
 
         private @Nullable PrintStream log_lastStream;
+        /** Lines of the current batch for log_lastStream, printed at once */
+        private final @NotNull StringBuilder log_batch = new StringBuilder();
+
+        ConsoleLogFunction(@Nullable PatternLayout layout) {
+            super(layout);
+        }
 
         @Override
         protected void logLine(byte level, @NotNull CharSequence formattedContent) {
             PrintStream out = (level <= TPLogger.INFO || level == TPLogger.LOG || AnsiColor.COLOR_SUPPORTED) ? System.out : System.err;
             if (log_lastStream != out) {
                 if (log_lastStream != null){
+                    endBatch();
                     log_lastStream.flush();//To preserve out/err order
                 }
                 log_lastStream = out;
             }
 
-            out.println(formattedContent);
+            if (isBatching()) {
+                log_batch.append(formattedContent).append(System.lineSeparator());
+            } else {
+                out.println(formattedContent);
+            }
         }
-    };
+
+        @Override
+        protected void endBatch() {
+            final StringBuilder batch = this.log_batch;
+            if (batch.length() > 0 && log_lastStream != null) {
+                log_lastStream.print(batch);
+                batch.setLength(0);
+            }
+        }
+    }
 }
@@ -0,0 +1,597 @@
+package com.darkyen.tproll.logfunctions;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.SharedScheduler;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import static com.darkyen.tproll.util.RenderableMarker.appendMarker;
+
+/**
+ * Sends messages to a syslog collector, as RFC 5424 messages, over TCP (with octet-counting framing of RFC 6587/5425)
+ * or over UDP (one message per datagram, RFC 5426).
+ *
+ * Logging threads only format the message into a bounded buffer, which is sent by a background thread
+ * in as large writes as possible, through non-blocking NIO. When the connection fails, it is reconnected
+ * with exponentially growing delay, and messages which were not completely sent are sent again.
+ * While disconnected, or when the buffer is full, messages are passed to the fallback function (for example
+ * a {@link FileLogFunction}). Without a fallback, they are dropped and the amount is reported with a WARN message.
+ *
+ * Messages have no structured data, MSGID is not used and MSG is the name of the logger,
+ * followed by rendered markers and the content, like in {@link FileLogFunction}.
+ * Time is sent in UTC. Time which is not absolute (see {@link TPLogger#getTimeProvider()}) is sent as NILVALUE.
+ */
+@SuppressWarnings("unused")
+public class SyslogLogFunction extends LogFunction {
+
+    public enum Transport {
+        TCP, UDP
+    }
+
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 1024 * 1024;
+    /** Facility "user-level messages" */
+    public static final int FACILITY_USER = 1;
+    /** Facility "local use 0", the other local facilities follow up to 23 */
+    public static final int FACILITY_LOCAL0 = 16;
+    /** Longer UDP messages are truncated, at the start of a UTF-8 character */
+    public static final int MAX_DATAGRAM_BYTES = 8192;
+
+    private static final long MIN_RECONNECT_DELAY_MS = 100L;
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000L;
+    private static final long CONNECT_TIMEOUT_MS = 5_000L;
+    /** Times below this (in 2001) are considered relative to the start of the application */
+    private static final long MIN_ABSOLUTE_TIME = 1_000_000_000_000L;
+
+    private final @NotNull String host;
+    private final int port;
+    private final @NotNull Transport transport;
+    private final int facility;
+    /** HOSTNAME APP-NAME PROCID MSGID STRUCTURED-DATA, with spaces around */
+    private final @NotNull String headerMiddle;
+    private final @Nullable LogFunction fallback;
+    private final @NotNull Thread sender;
+    private final @NotNull Selector selector;
+    private final @NotNull Runnable shutdownTask = () -> flush(1000);
+
+    //region Guarded by LOCK
+    private final @NotNull Object LOCK = new Object();
+    /** Frames waiting to be taken by the sender */
+    private @NotNull ByteBuffer pending;
+    private final @NotNull Utf8Appender message = new Utf8Appender();
+    private final @NotNull StringBuilder sb = new StringBuilder();
+    private long cachedSecond = Long.MIN_VALUE;
+    private final @NotNull StringBuilder cachedSecondText = new StringBuilder();
+    private long droppedMessages = 0;
+    private long queuedMessages = 0;
+    private long sentMessages = 0;
+    //endregion
+
+    /** Changed under LOCK */
+    private volatile boolean running = true;
+    /** True from a failed connection to the next successful one */
+    private volatile boolean disconnected = false;
+
+    //region Owned by sender
+    private @Nullable ByteChannel channel;
+    private @Nullable SelectionKey channelKey;
+    /** Frames being sent, position is after what was written */
+    private @NotNull ByteBuffer sending;
+    /** Start of the first frame in sending which was not written completely */
+    private int frameStart = 0;
+    //endregion
+
+    /**
+     * @param host of the collector, resolved on each connection
+     * @param port of the collector, usually 514 for UDP, 601 for TCP (or 6514 with TLS, which is not supported)
+     * @param appName APP-NAME of the messages, null for NILVALUE
+     * @param facility of the messages, for example {@link #FACILITY_USER}
+     * @param maxBufferedBytes capacity of the send buffer
+     * @param fallback to which messages are passed when they can't be sent, null to drop them
+     */
+    public SyslogLogFunction(@NotNull String host, int port, @NotNull Transport transport, @Nullable String appName, int facility,
+                             int maxBufferedBytes, @Nullable LogFunction fallback) throws IOException {
+        if (port <= 0 || port > 0xFFFF) throw new IllegalArgumentException("Invalid port: " + port);
+        if (facility < 0 || facility > 23) throw new IllegalArgumentException("Invalid facility: " + facility);
+        if (maxBufferedBytes < 1024) throw new IllegalArgumentException("maxBufferedBytes must be at least 1024: " + maxBufferedBytes);
+        this.host = host;
+        this.port = port;
+        this.transport = transport;
+        this.facility = facility;
+        this.fallback = fallback;
+
+        final StringBuilder headerMiddle = new StringBuilder();
+        headerMiddle.append(' ');
+        appendHeaderField(headerMiddle, localHostName(), 255);
+        headerMiddle.append(' ');
+        appendHeaderField(headerMiddle, appName, 48);
+        headerMiddle.append(' ');
+        appendHeaderField(headerMiddle, processId(), 128);
+        headerMiddle.append(" - - ");
+        this.headerMiddle = headerMiddle.toString();
+
+        // Half of the capacity for the frames being sent, half for the new ones
+        pending = ByteBuffer.allocate(maxBufferedBytes / 2);
+        sending = ByteBuffer.allocate(maxBufferedBytes / 2);
+        sending.limit(0);
+
+        selector = Selector.open();
+        sender = new Thread(this::send, "tproll syslog sender");
+        sender.setDaemon(true);
+        sender.start();
+        SharedScheduler.onShutdown(shutdownTask);
+    }
+
+    /** With {@link #FACILITY_USER} and {@link #DEFAULT_MAX_BUFFERED_BYTES}. */
+    public SyslogLogFunction(@NotNull String host, int port, @NotNull Transport transport, @Nullable String appName, @Nullable LogFunction fallback) throws IOException {
+        this(host, port, transport, appName, FACILITY_USER, DEFAULT_MAX_BUFFERED_BYTES, fallback);
+    }
+
+    //region Formatting
+    private static @Nullable String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static @Nullable String processId() {
+        try {
+            final String name = ManagementFactory.getRuntimeMXBean().getName();
+            final int at = name.indexOf('@');
+            return at > 0 ? name.substring(0, at) : null;
+        } catch (Throwable e) {
+            // Not available on this platform
+            return null;
+        }
+    }
+
+    /** Append printable ASCII characters of the value, or NILVALUE */
+    private static void appendHeaderField(@NotNull StringBuilder sb, @Nullable String value, int maxLength) {
+        if (value == null || value.isEmpty()) {
+            sb.append('-');
+            return;
+        }
+        final int length = Math.min(value.length(), maxLength);
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            sb.append(c >= 33 && c <= 126 ? c : '_');
+        }
+    }
+
+    private static int severity(byte level) {
+        switch (level) {
+            case TPLogger.TRACE:
+            case TPLogger.DEBUG: return 7;
+            case TPLogger.INFO: return 6;
+            case TPLogger.WARN: return 4;
+            case TPLogger.ERROR: return 3;
+            case TPLogger.LOG: return 5;
+            default: return 6;
+        }
+    }
+
+    private static void appendPadded(@NotNull StringBuilder sb, int value, int digits) {
+        for (int limit = 10; digits > 1; digits--, limit *= 10) {
+            if (value < limit) sb.append('0');
+        }
+        sb.append(value);
+    }
+
+    /** Append RFC 3339 timestamp in UTC, with milliseconds or microseconds. Must hold LOCK. */
+    private void appendTimestamp(@NotNull StringBuilder sb, long time, int nanoAdjust) {
+        if (time < MIN_ABSOLUTE_TIME) {
+            sb.append('-');
+            return;
+        }
+        final long second = Math.floorDiv(time, 1000L);
+        final StringBuilder cachedSecondText = this.cachedSecondText;
+        if (second != cachedSecond) {
+            final LocalDateTime dateTime = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+            cachedSecondText.setLength(0);
+            appendPadded(cachedSecondText, dateTime.getYear(), 4);
+            cachedSecondText.append('-');
+            appendPadded(cachedSecondText, dateTime.getMonthValue(), 2);
+            cachedSecondText.append('-');
+            appendPadded(cachedSecondText, dateTime.getDayOfMonth(), 2);
+            cachedSecondText.append('T');
+            appendPadded(cachedSecondText, dateTime.getHour(), 2);
+            cachedSecondText.append(':');
+            appendPadded(cachedSecondText, dateTime.getMinute(), 2);
+            cachedSecondText.append(':');
+            appendPadded(cachedSecondText, dateTime.getSecond(), 2);
+            cachedSecond = second;
+        }
+        sb.append(cachedSecondText).append('.');
+        appendPadded(sb, (int) Math.floorMod(time, 1000L), 3);
+        if (nanoAdjust != 0) {
+            appendPadded(sb, nanoAdjust / 1000, 3);
+        }
+        sb.append('Z');
+    }
+
+    /**
+     * Format the message and add its frame to pending. Must hold LOCK.
+     * @return false if it does not fit
+     */
+    private boolean appendFrame(@NotNull String name, long time, int nanoAdjust, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final StringBuilder sb = this.sb;
+        sb.append('<').append(facility * 8 + severity(level)).append(">1 ");
+        appendTimestamp(sb, time, nanoAdjust);
+        sb.append(headerMiddle).append(name);
+        if (marker != null) {
+            appendMarker(sb, false, marker, false);
+        }
+        sb.append(':').append(' ');
+
+        final Utf8Appender message = this.message;
+        message.append(sb).append(content);
+        sb.setLength(0);
+        final ByteBuffer bytes = message.buffer();
+        if (transport == Transport.UDP && bytes.remaining() > MAX_DATAGRAM_BYTES) {
+            int end = bytes.position() + MAX_DATAGRAM_BYTES;
+            // Do not cut a character in half, continuation bytes are 10xxxxxx
+            while ((bytes.get(end) & 0xC0) == 0x80) {
+                end--;
+            }
+            bytes.limit(end);
+        }
+        final int length = bytes.remaining();
+
+        final ByteBuffer pending = this.pending;
+        final boolean fits = pending.remaining() >= 11 + length;
+        if (fits) {
+            final boolean wasEmpty = pending.position() == 0;
+            // Octet-counting: length, space, message
+            long divisor = 1;
+            while (divisor * 10 <= length) divisor *= 10;
+            for (; divisor > 0; divisor /= 10) {
+                pending.put((byte) ('0' + (length / divisor) % 10));
+            }
+            pending.put((byte) ' ').put(bytes);
+            queuedMessages++;
+            if (wasEmpty) {
+                LOCK.notifyAll();
+            }
+        }
+        message.clear();
+        return fits;
+    }
+
+    /** Must hold LOCK */
+    private void appendDropNotice() {
+        final long dropped = droppedMessages;
+        if (dropped != 0 && appendFrame("tproll", TPLogger.getTimeProvider().timeMillis(), 0, TPLogger.WARN, null,
+                "Dropped " + dropped + (dropped == 1 ? " message, collector was not reachable" : " messages, collector was not reachable"))) {
+            droppedMessages = 0;
+        }
+    }
+    //endregion
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        if (!disconnected) {
+            synchronized (LOCK) {
+                appendDropNotice();
+                if (appendFrame(name, time, nanoAdjust, level, marker, content)) {
+                    return;
+                }
+            }
+        }
+        unsent(name, time, nanoAdjust, sequence, level, marker, content);
+    }
+
+    /** Formats the whole batch under one lock, the sender is woken up at most once. */
+    @Override
+    public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        if (!disconnected) {
+            synchronized (LOCK) {
+                appendDropNotice();
+                for (; from < to; from++) {
+                    final LogEvent event = events[from];
+                    if (!appendFrame(event.getName(), event.getTime(), event.getNanoAdjust(), event.getLevel(), event.getMarker(), event.getContent())) {
+                        break;
+                    }
+                }
+            }
+        }
+        for (; from < to; from++) {
+            final LogEvent event = events[from];
+            unsent(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent());
+        }
+    }
+
+    private void unsent(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final LogFunction fallback = this.fallback;
+        if (fallback != null) {
+            fallback.log(name, time, nanoAdjust, sequence, level, marker, content);
+        } else {
+            synchronized (LOCK) {
+                droppedMessages++;
+            }
+        }
+    }
+
+    /** @return true if the collector is not reachable at the moment and messages go to the fallback */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    /**
+     * Wait until all messages buffered so far are sent.
+     * @return true if they were, false if the timeout has elapsed first
+     */
+    public boolean flush(long timeoutMs) {
+        final long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        synchronized (LOCK) {
+            final long target = queuedMessages;
+            while (sentMessages < target && sender.isAlive()) {
+                final long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                try {
+                    LOCK.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Send what is buffered (waiting at most a second), close the connection and dispose the fallback. */
+    @Override
+    public void dispose() {
+        SharedScheduler.removeOnShutdown(shutdownTask);
+        flush(1000);
+        synchronized (LOCK) {
+            running = false;
+            LOCK.notifyAll();
+        }
+        selector.wakeup();
+        try {
+            sender.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fallback != null) {
+            fallback.dispose();
+        }
+    }
+
+    //region Sender
+    private void send() {
+        long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+        try {
+            while (running) {
+                if (channel == null) {
+                    try {
+                        connect();
+                        reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+                        disconnected = false;
+                    } catch (IOException e) {
+                        closeChannel();
+                        disconnected = true;
+                        if (!sleep(reconnectDelayMs)) {
+                            return;
+                        }
+                        reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+                        continue;
+                    }
+                }
+                if (!sending.hasRemaining() && !takePending()) {
+                    return;
+                }
+                try {
+                    final int sent = transport == Transport.TCP ? writeStream() : writeDatagrams();
+                    if (sent > 0) {
+                        synchronized (LOCK) {
+                            sentMessages += sent;
+                            LOCK.notifyAll();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Frame which was written only partially is sent again on the next connection
+                    sending.position(frameStart);
+                    closeChannel();
+                    disconnected = true;
+                }
+            }
+        } finally {
+            closeChannel();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            synchronized (LOCK) {
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    /** @return false if the function was disposed in the meantime */
+    private boolean sleep(long ms) {
+        synchronized (LOCK) {
+            if (!running) return false;
+            try {
+                LOCK.wait(ms);
+            } catch (InterruptedException ignored) {
+            }
+            return running;
+        }
+    }
+
+    /**
+     * Swap pending and sending buffers, once there is something pending.
+     * @return false if the function was disposed and everything was sent
+     */
+    private boolean takePending() {
+        synchronized (LOCK) {
+            ByteBuffer pending;
+            while ((pending = this.pending).position() == 0) {
+                if (!running) {
+                    return false;
+                }
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            final ByteBuffer sending = this.sending;
+            sending.clear();
+            this.pending = sending;
+            pending.flip();
+            this.sending = pending;
+            frameStart = 0;
+        }
+        return true;
+    }
+
+    private void connect() throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new IOException("Failed to resolve " + host);
+        }
+        final SelectableChannel selectable;
+        if (transport == Transport.TCP) {
+            final SocketChannel socket = SocketChannel.open();
+            selectable = socket;
+            channel = socket;
+            socket.configureBlocking(false);
+            if (!socket.connect(address)) {
+                final SelectionKey key = socket.register(selector, SelectionKey.OP_CONNECT);
+                channelKey = key;
+                final long deadline = System.nanoTime() + CONNECT_TIMEOUT_MS * 1_000_000L;
+                while (!socket.finishConnect()) {
+                    final long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                    if (remainingMs <= 0 || !running) {
+                        throw new IOException("Connection to " + address + " timed out");
+                    }
+                    selector.select(remainingMs);
+                    selector.selectedKeys().clear();
+                }
+            }
+        } else {
+            final DatagramChannel datagram = DatagramChannel.open();
+            selectable = datagram;
+            channel = datagram;
+            datagram.configureBlocking(false);
+            datagram.connect(address);
+        }
+        if (channelKey == null) {
+            channelKey = selectable.register(selector, 0);
+        }
+        channelKey.interestOps(0);
+    }
+
+    private void closeChannel() {
+        final ByteChannel channel = this.channel;
+        this.channel = null;
+        if (channelKey != null) {
+            channelKey.cancel();
+            channelKey = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Wait (for a limited time) until the channel can be written to */
+    private void awaitWritable() throws IOException {
+        final SelectionKey key = channelKey;
+        assert key != null;
+        key.interestOps(SelectionKey.OP_WRITE);
+        selector.select(1000);
+        selector.selectedKeys().clear();
+        key.interestOps(0);
+    }
+
+    /** @return end of the frame which starts at given position of sending */
+    private int frameEnd(int start) {
+        final ByteBuffer sending = this.sending;
+        int length = 0;
+        int i = start;
+        byte b;
+        while ((b = sending.get(i++)) != ' ') {
+            length = length * 10 + (b - '0');
+        }
+        return i + length;
+    }
+
+    /** Write as much of sending as possible in one write. @return amount of frames which were completely written */
+    private int writeStream() throws IOException {
+        final ByteChannel channel = this.channel;
+        assert channel != null;
+        final ByteBuffer sending = this.sending;
+        if (channel.write(sending) == 0) {
+            awaitWritable();
+            return 0;
+        }
+        final int written = sending.position();
+        int frames = 0;
+        int frameStart = this.frameStart;
+        int frameEnd;
+        while (frameStart < written && (frameEnd = frameEnd(frameStart)) <= written) {
+            frameStart = frameEnd;
+            frames++;
+        }
+        this.frameStart = frameStart;
+        return frames;
+    }
+
+    /** Send frames of sending as datagrams, without the octet count. @return amount of frames sent */
+    private int writeDatagrams() throws IOException {
+        final ByteChannel channel = this.channel;
+        assert channel != null;
+        final ByteBuffer sending = this.sending;
+        final ByteBuffer datagram = sending.duplicate();
+        int frames = 0;
+        while (frameStart < sending.limit()) {
+            final int frameEnd = frameEnd(frameStart);
+            int messageStart = frameStart;
+            while (sending.get(messageStart++) != ' ') {
+                // Skip the octet count
+            }
+            datagram.limit(frameEnd).position(messageStart);
+            if (channel.write(datagram) == 0) {
+                if (frames == 0) {
+                    awaitWritable();
+                }
+                break;
+            }
+            frameStart = frameEnd;
+            sending.position(frameEnd);
+            frames++;
+        }
+        return frames;
+    }
+    //endregion
+}
@@ -0,0 +1,152 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.util.SharedScheduler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * LogFunction adapter which collapses consecutive identical messages (same logger, level, marker and content)
+ * into the first message and a {@code (repeated 1234 times)} line.
+ *
+ * The repeat line is logged when a different message arrives, or when the duplicates were held back
+ * for longer than the flush interval, so no information is lost, only delayed.
+ * Use one instance per sink, wrapping the sink directly.
+ */
+@SuppressWarnings("unused")
+public final class DuplicateCollapser extends LogFunction {
+
+    /** Default maximum time for which the repeat count is held back */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 5_000L;
+
+    private final @NotNull LogFunction parent;
+    private final @Nullable ScheduledFuture<?> flushTask;
+
+    //region Guarded by this
+    private boolean hasLast = false;
+    private @NotNull String lastName = "";
+    private byte lastLevel;
+    private @Nullable Marker lastMarker;
+    private int lastHash;
+    private final @NotNull StringBuilder lastContent = new StringBuilder(128);
+    /** Amount of duplicates of last message which were not logged yet */
+    private int repeats = 0;
+    private long lastRepeatTime;
+    private int lastRepeatNanoAdjust;
+    private long lastRepeatSequence;
+    //endregion
+
+    /**
+     * @param parent function to call with collapsed messages
+     * @param flushIntervalMs how often to log the pending repeat count, 0 to log it only when a different message arrives
+     */
+    public DuplicateCollapser(@NotNull LogFunction parent, long flushIntervalMs) {
+        if (flushIntervalMs < 0) throw new IllegalArgumentException("flushIntervalMs must not be negative: " + flushIntervalMs);
+        this.parent = parent;
+        this.flushTask = flushIntervalMs > 0 ? SharedScheduler.schedule(this::flush, flushIntervalMs) : null;
+    }
+
+    /**
+     * Repeat count is flushed every {@link #DEFAULT_FLUSH_INTERVAL_MS}.
+     * @see #DuplicateCollapser(LogFunction, long)
+     */
+    public DuplicateCollapser(@NotNull LogFunction parent) {
+        this(parent, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    private static int hash(@NotNull CharSequence content) {
+        int hash = 0;
+        final int length = content.length();
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + content.charAt(i);
+        }
+        return hash;
+    }
+
+    private static boolean contentEquals(@NotNull StringBuilder a, @NotNull CharSequence b) {
+        final int length = a.length();
+        if (length != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public synchronized void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final int hash = hash(content);
+        if (hasLast && hash == lastHash && level == lastLevel && marker == lastMarker
+                && name.equals(lastName) && contentEquals(lastContent, content)) {
+            repeats++;
+            lastRepeatTime = time;
+            lastRepeatNanoAdjust = nanoAdjust;
+            lastRepeatSequence = sequence;
+            return;
+        }
+
+        logRepeats();
+        parent.log(name, time, nanoAdjust, sequence, level, marker, content);
+
+        hasLast = true;
+        lastName = name;
+        lastLevel = level;
+        lastMarker = marker;
+        lastHash = hash;
+        lastContent.setLength(0);
+        lastContent.append(content);
+    }
+
+    private void logRepeats() {
+        final int repeats = this.repeats;
+        if (repeats == 0) {
+            return;
+        }
+        this.repeats = 0;
+        parent.log(lastName, lastRepeatTime, lastRepeatNanoAdjust, lastRepeatSequence, lastLevel, lastMarker, repeats == 1 ? "(repeated 1 time)" : "(repeated " + repeats + " times)");
+    }
+
+    /** Log the amount of held back duplicates, if any. Called automatically, if flush interval is set. */
+    public synchronized void flush() {
+        logRepeats();
+    }
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return parent.isEnabled(level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return parent.isEnabled(name, level, marker, template);
+    }
+
+    @Override
+    public void dispose() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flush();
+        parent.dispose();
+    }
+}
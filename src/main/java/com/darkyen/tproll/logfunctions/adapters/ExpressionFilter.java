@@ -0,0 +1,560 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.RenderableMarker;
+import com.darkyen.tproll.util.SimpleMarker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * LogFunction adapter which lets through only the messages that match a filter expression.
+ *
+ * Examples:
+ * <pre>
+ * level >= WARN or (logger ^= 'com.shop.pay' and marker has 'AUDIT')
+ * not (logger = 'Database' and level &lt; INFO)
+ * message *= 'timeout'
+ * </pre>
+ *
+ * Supported conditions:
+ * <ul>
+ *     <li>{@code level} compared ({@code = != < <= > >=}) with a level name (TRACE, DEBUG, INFO, WARN, ERROR, LOG) or number</li>
+ *     <li>{@code logger} compared with a string: {@code =} equals, {@code !=} does not equal, {@code ^=} starts with, {@code $=} ends with, {@code *=} contains</li>
+ *     <li>{@code marker has 'name'}, true when the marker or any of its references has given name (or label, for {@link RenderableMarker})</li>
+ *     <li>{@code message} compared with a string, like {@code logger}</li>
+ * </ul>
+ * Conditions can be combined with {@code and}, {@code or}, {@code not} (or {@code && || !}) and parentheses.
+ * Strings are in single or double quotes, backslash escapes the following character.
+ *
+ * Logger conditions are matched against the name which is logged. Names of loggers created through
+ * {@link com.darkyen.tproll.TPLoggerFactory} are shortened to the last dot-delimited part by default,
+ * so conditions on packages, like {@code logger ^= 'com.shop.pay'}, match only when
+ * {@link com.darkyen.tproll.TPLoggerFactory#USE_SHORT_NAMES} is turned off before the loggers are created.
+ *
+ * The expression is compiled when the filter is created. Everything except the message conditions is decided
+ * in {@link #isEnabled(String, byte, Marker, String)}, before the message is formatted. Logger conditions are evaluated
+ * only once per logger, results are cached by the identity of the name string, which each logger keeps.
+ * Marker names are resolved into a bit set once per message.
+ */
+@SuppressWarnings("unused")
+public final class ExpressionFilter extends LogFunction {
+
+    private static final byte FALSE = 0;
+    private static final byte TRUE = 1;
+    /** Result of a condition which can't be decided yet, because the message is not formatted or the logger is not known */
+    private static final byte UNKNOWN = 2;
+
+    /** Size of the logger cache, power of two */
+    private static final int LOGGER_CACHE_SIZE = 1024;
+
+    private final @NotNull LogFunction parent;
+    private final @NotNull String expression;
+    private final @NotNull Node root;
+    /** Logger conditions, index is their bit in the logger bit set */
+    private final @NotNull StringCondition @NotNull [] loggerConditions;
+    /** Marker names referenced by the expression, value is their bit in the marker bit set */
+    private final @NotNull HashMap<@NotNull String, @NotNull Integer> markerBits;
+    /** Direct-mapped cache of logger bits, indexed by identity hash of the name. Races are benign, entries are immutable. */
+    private final @Nullable LoggerBits @NotNull [] loggerBitsCache = new LoggerBits[LOGGER_CACHE_SIZE];
+
+    /**
+     * @param parent function to call if the message matches the expression
+     * @param expression to compile
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public ExpressionFilter(@NotNull LogFunction parent, @NotNull String expression) {
+        this.parent = parent;
+        this.expression = expression;
+        final Parser parser = new Parser(expression);
+        this.root = parser.parse();
+        this.loggerConditions = parser.loggerConditions.toArray(new StringCondition[0]);
+        this.markerBits = parser.markerBits;
+    }
+
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    public @NotNull String getExpression() {
+        return expression;
+    }
+
+    private long loggerBits(@NotNull String name) {
+        final int slot = System.identityHashCode(name) & (LOGGER_CACHE_SIZE - 1);
+        final LoggerBits cached = loggerBitsCache[slot];
+        if (cached != null && cached.name == name) {
+            return cached.bits;
+        }
+
+        final StringCondition[] loggerConditions = this.loggerConditions;
+        long bits = 0;
+        for (int i = 0; i < loggerConditions.length; i++) {
+            if (loggerConditions[i].matches(name)) {
+                bits |= 1L << i;
+            }
+        }
+        loggerBitsCache[slot] = new LoggerBits(name, bits);
+        return bits;
+    }
+
+    private static final class LoggerBits {
+        final @NotNull String name;
+        final long bits;
+
+        LoggerBits(@NotNull String name, long bits) {
+            this.name = name;
+            this.bits = bits;
+        }
+    }
+
+    private long markerBits(@Nullable Marker marker) {
+        if (marker == null || markerBits.isEmpty()) {
+            return 0L;
+        }
+        try {
+            return collectMarkerBits(marker);
+        } catch (StackOverflowError ex) {
+            throw new IllegalArgumentException("Marker "+marker.getName()+" (most likely) contains cycles", ex);
+        }
+    }
+
+    private long collectMarkerBits(@NotNull Marker marker) {
+        long result = 0;
+        Integer bit = markerBits.get(marker.getName());
+        if (bit != null) {
+            result |= 1L << bit;
+        }
+        if (marker instanceof RenderableMarker) {
+            bit = markerBits.get(((RenderableMarker) marker).getLabel());
+            if (bit != null) {
+                result |= 1L << bit;
+            }
+        }
+
+        if (marker instanceof SimpleMarker) {
+            for (Marker reference : ((SimpleMarker) marker).references()) {
+                result |= collectMarkerBits(reference);
+            }
+        } else if (marker.hasReferences()) {
+            final Iterator<Marker> iterator = marker.iterator();
+            while (iterator.hasNext()) {
+                result |= collectMarkerBits(iterator.next());
+            }
+        }
+        return result;
+    }
+
+    private byte evaluate(@Nullable String name, byte level, @Nullable Marker marker, @Nullable CharSequence content) {
+        final boolean loggerKnown = name != null;
+        final long loggerBits = loggerKnown && loggerConditions.length != 0 ? loggerBits(name) : 0L;
+        return root.evaluate(level, loggerKnown, loggerBits, markerBits(marker), content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        if (evaluate(name, level, marker, content) == TRUE) {
+            parent.log(name, time, level, marker, content);
+        }
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        if (evaluate(name, level, marker, content) == TRUE) {
+            parent.log(name, time, nanoAdjust, sequence, level, marker, content);
+        }
+    }
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return evaluate(null, level, marker, null) != FALSE && parent.isEnabled(level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return evaluate(name, level, marker, null) != FALSE && parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return evaluate(name, level, marker, null) != FALSE && parent.isEnabled(name, level, marker, template);
+    }
+
+    @Override
+    public void dispose() {
+        parent.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionFilter(" + expression + ")";
+    }
+
+    //region Compiled expression
+    private static abstract class Node {
+        /** @return {@link #TRUE}, {@link #FALSE} or {@link #UNKNOWN} */
+        abstract byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content);
+    }
+
+    private static final class Constant extends Node {
+        private final byte value;
+
+        Constant(byte value) {
+            this.value = value;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            return value;
+        }
+    }
+
+    private static final class And extends Node {
+        private final @NotNull Node @NotNull [] operands;
+
+        And(@NotNull Node @NotNull [] operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            byte result = TRUE;
+            for (Node operand : operands) {
+                final byte value = operand.evaluate(level, loggerKnown, loggerBits, markerBits, content);
+                if (value == FALSE) return FALSE;
+                if (value == UNKNOWN) result = UNKNOWN;
+            }
+            return result;
+        }
+    }
+
+    private static final class Or extends Node {
+        private final @NotNull Node @NotNull [] operands;
+
+        Or(@NotNull Node @NotNull [] operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            byte result = FALSE;
+            for (Node operand : operands) {
+                final byte value = operand.evaluate(level, loggerKnown, loggerBits, markerBits, content);
+                if (value == TRUE) return TRUE;
+                if (value == UNKNOWN) result = UNKNOWN;
+            }
+            return result;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final @NotNull Node operand;
+
+        Not(@NotNull Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            final byte value = operand.evaluate(level, loggerKnown, loggerBits, markerBits, content);
+            return value == UNKNOWN ? UNKNOWN : value == TRUE ? FALSE : TRUE;
+        }
+    }
+
+    private static final class LevelCondition extends Node {
+        private final int operator;
+        private final byte operand;
+
+        LevelCondition(int operator, byte operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            final boolean result;
+            switch (operator) {
+                case OP_EQ: result = level == operand; break;
+                case OP_NE: result = level != operand; break;
+                case OP_LT: result = level < operand; break;
+                case OP_LE: result = level <= operand; break;
+                case OP_GT: result = level > operand; break;
+                case OP_GE: result = level >= operand; break;
+                default: throw new AssertionError(operator);
+            }
+            return result ? TRUE : FALSE;
+        }
+    }
+
+    private static final class LoggerCondition extends Node {
+        private final long bit;
+
+        LoggerCondition(int bit) {
+            this.bit = 1L << bit;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            if (!loggerKnown) return UNKNOWN;
+            return (loggerBits & bit) != 0 ? TRUE : FALSE;
+        }
+    }
+
+    private static final class MarkerCondition extends Node {
+        private final long bit;
+
+        MarkerCondition(int bit) {
+            this.bit = 1L << bit;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            return (markerBits & bit) != 0 ? TRUE : FALSE;
+        }
+    }
+
+    private static final class MessageCondition extends Node {
+        private final @NotNull StringCondition condition;
+
+        MessageCondition(@NotNull StringCondition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        byte evaluate(byte level, boolean loggerKnown, long loggerBits, long markerBits, @Nullable CharSequence content) {
+            if (content == null) return UNKNOWN;
+            return condition.matches(content) ? TRUE : FALSE;
+        }
+    }
+
+    private static final int OP_EQ = 0;
+    private static final int OP_NE = 1;
+    private static final int OP_LT = 2;
+    private static final int OP_LE = 3;
+    private static final int OP_GT = 4;
+    private static final int OP_GE = 5;
+    private static final int OP_STARTS = 6;
+    private static final int OP_ENDS = 7;
+    private static final int OP_CONTAINS = 8;
+
+    private static final class StringCondition {
+        private final int operator;
+        private final @NotNull String operand;
+
+        StringCondition(int operator, @NotNull String operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        boolean matches(@NotNull CharSequence subject) {
+            final String operand = this.operand;
+            final int operandLength = operand.length();
+            final int subjectLength = subject.length();
+            switch (operator) {
+                case OP_EQ:
+                    return subjectLength == operandLength && regionMatches(subject, 0, operand);
+                case OP_NE:
+                    return subjectLength != operandLength || !regionMatches(subject, 0, operand);
+                case OP_STARTS:
+                    return subjectLength >= operandLength && regionMatches(subject, 0, operand);
+                case OP_ENDS:
+                    return subjectLength >= operandLength && regionMatches(subject, subjectLength - operandLength, operand);
+                case OP_CONTAINS:
+                    for (int i = 0; i <= subjectLength - operandLength; i++) {
+                        if (regionMatches(subject, i, operand)) return true;
+                    }
+                    return false;
+                default:
+                    throw new AssertionError(operator);
+            }
+        }
+
+        private static boolean regionMatches(@NotNull CharSequence subject, int offset, @NotNull String operand) {
+            for (int i = 0; i < operand.length(); i++) {
+                if (subject.charAt(offset + i) != operand.charAt(i)) return false;
+            }
+            return true;
+        }
+    }
+    //endregion
+
+    //region Parser
+    private static final class Parser {
+        private final @NotNull String expression;
+        private int position = 0;
+
+        final @NotNull ArrayList<@NotNull StringCondition> loggerConditions = new ArrayList<>();
+        final @NotNull HashMap<@NotNull String, @NotNull Integer> markerBits = new HashMap<>();
+
+        Parser(@NotNull String expression) {
+            this.expression = expression;
+        }
+
+        @NotNull Node parse() {
+            final Node result = parseOr();
+            skipWhitespace();
+            if (position != expression.length()) {
+                throw error("Unexpected input");
+            }
+            return result;
+        }
+
+        private @NotNull Node parseOr() {
+            final ArrayList<Node> operands = new ArrayList<>();
+            operands.add(parseAnd());
+            while (acceptKeyword("or") || accept("||")) {
+                operands.add(parseAnd());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Or(operands.toArray(new Node[0]));
+        }
+
+        private @NotNull Node parseAnd() {
+            final ArrayList<Node> operands = new ArrayList<>();
+            operands.add(parseUnary());
+            while (acceptKeyword("and") || accept("&&")) {
+                operands.add(parseUnary());
+            }
+            return operands.size() == 1 ? operands.get(0) : new And(operands.toArray(new Node[0]));
+        }
+
+        private @NotNull Node parseUnary() {
+            if (acceptKeyword("not") || (!peek("!=") && accept("!"))) {
+                return new Not(parseUnary());
+            }
+            if (accept("(")) {
+                final Node inner = parseOr();
+                if (!accept(")")) throw error("Expected ')'");
+                return inner;
+            }
+            if (acceptKeyword("true")) return new Constant(TRUE);
+            if (acceptKeyword("false")) return new Constant(FALSE);
+
+            if (acceptKeyword("level")) {
+                final int operator = parseOperator(false);
+                return new LevelCondition(operator, parseLevel());
+            }
+            if (acceptKeyword("logger")) {
+                final StringCondition condition = new StringCondition(parseOperator(true), parseString());
+                if (loggerConditions.size() >= 64) throw error("Too many logger conditions");
+                loggerConditions.add(condition);
+                return new LoggerCondition(loggerConditions.size() - 1);
+            }
+            if (acceptKeyword("marker")) {
+                if (!acceptKeyword("has")) throw error("Expected 'has'");
+                final String name = parseString();
+                Integer bit = markerBits.get(name);
+                if (bit == null) {
+                    if (markerBits.size() >= 64) throw error("Too many marker names");
+                    bit = markerBits.size();
+                    markerBits.put(name, bit);
+                }
+                return new MarkerCondition(bit);
+            }
+            if (acceptKeyword("message")) {
+                return new MessageCondition(new StringCondition(parseOperator(true), parseString()));
+            }
+            throw error("Expected condition");
+        }
+
+        private int parseOperator(boolean string) {
+            if (accept("==") || accept("=")) return OP_EQ;
+            if (accept("!=")) return OP_NE;
+            if (string) {
+                if (accept("^=")) return OP_STARTS;
+                if (accept("$=")) return OP_ENDS;
+                if (accept("*=")) return OP_CONTAINS;
+                throw error("Expected one of = != ^= $= *=");
+            } else {
+                if (accept("<=")) return OP_LE;
+                if (accept(">=")) return OP_GE;
+                if (accept("<")) return OP_LT;
+                if (accept(">")) return OP_GT;
+                throw error("Expected one of = != < <= > >=");
+            }
+        }
+
+        private byte parseLevel() {
+            skipWhitespace();
+            final int start = position;
+            while (position < expression.length() && Character.isLetterOrDigit(expression.charAt(position))) {
+                position++;
+            }
+            final String level = expression.substring(start, position).toUpperCase(Locale.ROOT);
+            switch (level) {
+                case "TRACE": return TPLogger.TRACE;
+                case "DEBUG": return TPLogger.DEBUG;
+                case "INFO": return TPLogger.INFO;
+                case "WARN": return TPLogger.WARN;
+                case "ERROR": return TPLogger.ERROR;
+                case "LOG": return TPLogger.LOG;
+            }
+            try {
+                return Byte.parseByte(level);
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("Expected level");
+            }
+        }
+
+        private @NotNull String parseString() {
+            skipWhitespace();
+            if (position >= expression.length()) throw error("Expected string");
+            final char quote = expression.charAt(position);
+            if (quote != '\'' && quote != '"') throw error("Expected string");
+            position++;
+            final StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (position >= expression.length()) throw error("Unterminated string");
+                char c = expression.charAt(position++);
+                if (c == quote) break;
+                if (c == '\\') {
+                    if (position >= expression.length()) throw error("Unterminated string");
+                    c = expression.charAt(position++);
+                }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        private void skipWhitespace() {
+            while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean peek(@NotNull String token) {
+            skipWhitespace();
+            return expression.startsWith(token, position);
+        }
+
+        private boolean accept(@NotNull String token) {
+            if (peek(token)) {
+                position += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptKeyword(@NotNull String keyword) {
+            skipWhitespace();
+            final int end = position + keyword.length();
+            if (expression.regionMatches(true, position, keyword, 0, keyword.length())
+                    && (end == expression.length() || !Character.isLetterOrDigit(expression.charAt(end)))) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private @NotNull IllegalArgumentException error(@NotNull String problem) {
+            return new IllegalArgumentException(problem + " at " + position + " in filter expression: " + expression);
+        }
+    }
+    //endregion
+}
@@ -35,6 +35,18 @@ public final class LevelFilter extends LogFunction {
         this.maxLevel = Byte.MAX_VALUE;
     }
 
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    public byte getMinLevel() {
+        return minLevel;
+    }
+
+    public byte getMaxLevel() {
+        return maxLevel;
+    }
+
     @Override
     public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
         if (level >= minLevel && level <= maxLevel) {
@@ -42,8 +54,30 @@ public final class LevelFilter extends LogFunction {
         }
     }
 
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, Marker marker, @NotNull CharSequence content) {
+        if (level >= minLevel && level <= maxLevel) {
+            parent.log(name, time, nanoAdjust, sequence, level, marker, content);
+        }
+    }
+
     @Override
     public boolean isEnabled(byte level, Marker marker) {
         return level >= minLevel && level <= maxLevel && parent.isEnabled(level, marker);
     }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, Marker marker) {
+        return level >= minLevel && level <= maxLevel && parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, Marker marker, String template) {
+        return level >= minLevel && level <= maxLevel && parent.isEnabled(name, level, marker, template);
+    }
+
+    @Override
+    public void dispose() {
+        parent.dispose();
+    }
 }
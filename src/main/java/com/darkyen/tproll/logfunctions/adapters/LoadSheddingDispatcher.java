@@ -0,0 +1,328 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.LogContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LogFunction adapter which passes messages to its parent from a background thread
+ * and sheds load when the parent can't keep up.
+ *
+ * Waiting messages are passed to the parent in batches, through {@link LogFunction#logBatch(LogEvent[], int, int)}.
+ * Messages wait in two bounded lanes: WARN, ERROR and LOG messages in a priority lane, which is always emptied first,
+ * everything else in a normal lane. Pressure is measured from the amount of waiting messages and from the time
+ * which the parent would need to log them all, based on its recent latency. As the pressure rises, TRACE, then DEBUG,
+ * then INFO messages are dropped. WARN and above are dropped only when the priority lane is full.
+ *
+ * The dropped levels are also set as {@link TPLogger#setLevelFloor(byte)}, so that dropped messages are not even formatted.
+ * For that reason, only one dispatcher should be in use at a time.
+ * Amounts of dropped messages are periodically reported, for example
+ * {@code Shed 1523 TRACE, 312 DEBUG messages in the last 10s, now dropping messages below INFO}.
+ */
+@SuppressWarnings("unused")
+public final class LoadSheddingDispatcher extends LogFunction {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_MAX_BACKLOG_MS = 1000L;
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 10_000L;
+
+    private static final String REPORT_NAME = "LoadShedding";
+
+    private final @NotNull LogFunction parent;
+    private final int capacity;
+    private final long maxBacklogNanos;
+    private final long reportIntervalNanos;
+    private final @NotNull Thread dispatcher;
+
+    /** Messages below this level are dropped */
+    private volatile byte shedLevel = TPLogger.TRACE;
+    private final @NotNull LongAdder @NotNull [] shedCounts = new LongAdder[TPLogger.LOG + 1];
+
+    //region Guarded by lock
+    private final @NotNull Object lock = new Object();
+    private final @NotNull ArrayDeque<@NotNull LogEvent> priorityLane = new ArrayDeque<>();
+    private final @NotNull ArrayDeque<@NotNull LogEvent> normalLane = new ArrayDeque<>();
+    /** Moving average of time spent in parent per message */
+    private long averageLatencyNanos = 0;
+    private long queuedMessages = 0;
+    private long dispatchedMessages = 0;
+    private boolean running = true;
+    //endregion
+
+    /** Only accessed from the dispatcher thread */
+    private byte lastReportedShedLevel = TPLogger.TRACE;
+    private long lastReportNanos = System.nanoTime();
+
+    /**
+     * @param parent function to call with messages and reports, from a background thread
+     * @param capacity maximum amount of messages waiting in each lane
+     * @param maxBacklogMs how long may the waiting messages take to log before all shedding levels are used
+     * @param reportIntervalMs how often to report shed messages
+     */
+    public LoadSheddingDispatcher(@NotNull LogFunction parent, int capacity, long maxBacklogMs, long reportIntervalMs) {
+        if (capacity < 4) throw new IllegalArgumentException("capacity must be at least 4: " + capacity);
+        if (maxBacklogMs <= 0) throw new IllegalArgumentException("maxBacklogMs must be positive: " + maxBacklogMs);
+        if (reportIntervalMs <= 0) throw new IllegalArgumentException("reportIntervalMs must be positive: " + reportIntervalMs);
+        this.parent = parent;
+        this.capacity = capacity;
+        this.maxBacklogNanos = maxBacklogMs * 1_000_000L;
+        this.reportIntervalNanos = reportIntervalMs * 1_000_000L;
+        for (int i = 0; i < shedCounts.length; i++) {
+            shedCounts[i] = new LongAdder();
+        }
+
+        dispatcher = new Thread(this::dispatch, "tproll LoadSheddingDispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public LoadSheddingDispatcher(@NotNull LogFunction parent) {
+        this(parent, DEFAULT_CAPACITY, DEFAULT_MAX_BACKLOG_MS, DEFAULT_REPORT_INTERVAL_MS);
+    }
+
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    /** @return level below which messages are currently dropped, {@link TPLogger#TRACE} when nothing is dropped */
+    public byte getShedLevel() {
+        return shedLevel;
+    }
+
+    //region Pressure
+    /** @return level to shed below, for given pressure, where 1 is full */
+    private static byte shedLevelFor(double pressure) {
+        if (pressure >= 0.75) return TPLogger.WARN;
+        if (pressure >= 0.5) return TPLogger.INFO;
+        if (pressure >= 0.25) return TPLogger.DEBUG;
+        return TPLogger.TRACE;
+    }
+
+    /** Must hold lock. */
+    private void updateShedLevel() {
+        final int waiting = normalLane.size() + priorityLane.size();
+        final double pressure = Math.max((double) normalLane.size() / capacity, (double) waiting * averageLatencyNanos / maxBacklogNanos);
+        final byte shedLevel = this.shedLevel;
+        final byte newShedLevel;
+        if (shedLevelFor(pressure) > shedLevel) {
+            newShedLevel = shedLevelFor(pressure);
+        } else if (shedLevelFor(pressure * 2) < shedLevel) {
+            // Hysteresis, lower only when the pressure is well below the threshold
+            newShedLevel = shedLevelFor(pressure * 2);
+        } else {
+            return;
+        }
+        this.shedLevel = newShedLevel;
+        TPLogger.setLevelFloor(newShedLevel);
+    }
+    //endregion
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        final boolean priority = level >= TPLogger.WARN;
+        if (!priority && level < shedLevel) {
+            shed(level);
+            return;
+        }
+        final LogEvent message = new LogEvent(name, time, nanoAdjust, sequence, level, marker, content.toString())
+                .setThreadName(Thread.currentThread().getName()).setContext(LogContext.current());
+        synchronized (lock) {
+            final ArrayDeque<LogEvent> lane = priority ? priorityLane : normalLane;
+            if (lane.size() >= capacity) {
+                shed(level);
+                return;
+            }
+            lane.addLast(message);
+            queuedMessages++;
+            if (priorityLane.size() + normalLane.size() == 1) {
+                lock.notifyAll();
+            }
+            updateShedLevel();
+        }
+    }
+
+    private void shed(byte level) {
+        if (level >= 0 && level < shedCounts.length) {
+            shedCounts[level].increment();
+        }
+    }
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return (level >= TPLogger.WARN || level >= shedLevel) && parent.isEnabled(level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return (level >= TPLogger.WARN || level >= shedLevel) && parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        if (level < TPLogger.WARN && level < shedLevel) {
+            if (template != null) {
+                shed(level);
+            }
+            return false;
+        }
+        return parent.isEnabled(name, level, marker, template);
+    }
+
+    /** Maximum amount of messages passed to the parent at once */
+    private static final int BATCH_SIZE = 64;
+
+    private void dispatch() {
+        final LogEvent[] batch = new LogEvent[BATCH_SIZE];
+        while (true) {
+            int count = 0;
+            boolean report = false;
+            synchronized (lock) {
+                while (priorityLane.isEmpty() && normalLane.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    final long untilReport = reportIntervalNanos - (System.nanoTime() - lastReportNanos);
+                    if (untilReport <= 0) {
+                        report = true;
+                        break;
+                    }
+                    try {
+                        lock.wait(Math.max(1L, untilReport / 1_000_000L));
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                while (count < BATCH_SIZE && !priorityLane.isEmpty()) {
+                    batch[count++] = priorityLane.pollFirst();
+                }
+                while (count < BATCH_SIZE && !normalLane.isEmpty()) {
+                    batch[count++] = normalLane.pollFirst();
+                }
+            }
+
+            if (count > 0) {
+                final long start = System.nanoTime();
+                try {
+                    parent.logBatch(batch, 0, count);
+                } catch (Throwable t) {
+                    System.err.println("LoadSheddingDispatcher: failed to log");
+                    t.printStackTrace(System.err);
+                }
+                final long latency = (System.nanoTime() - start) / count;
+                Arrays.fill(batch, 0, count, null);
+                synchronized (lock) {
+                    averageLatencyNanos = averageLatencyNanos == 0 ? latency : averageLatencyNanos + (latency - averageLatencyNanos) / 16;
+                    dispatchedMessages += count;
+                    updateShedLevel();
+                    lock.notifyAll();
+                }
+            }
+
+            if (report || System.nanoTime() - lastReportNanos >= reportIntervalNanos) {
+                report();
+            }
+        }
+    }
+
+    /** Only from dispatcher thread or after it has stopped. */
+    private void report() {
+        final long now = System.nanoTime();
+        final long intervalMs = (now - lastReportNanos) / 1_000_000L;
+        lastReportNanos = now;
+
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("Shed ");
+        long total = 0;
+        for (byte level = TPLogger.TRACE; level <= TPLogger.LOG; level++) {
+            final long shed = shedCounts[level].sumThenReset() + TPLogger.takeShedCount(level);
+            if (shed == 0) continue;
+            if (total != 0) sb.append(", ");
+            sb.append(shed).append(' ').append(TPLogger.levelName(level));
+            total += shed;
+        }
+
+        final byte shedLevel = this.shedLevel;
+        if (total == 0 && shedLevel == lastReportedShedLevel) {
+            return;
+        }
+        lastReportedShedLevel = shedLevel;
+        if (total == 0) {
+            sb.setLength(0);
+            sb.append(shedLevel == TPLogger.TRACE ? "No" : "Now");
+        } else {
+            sb.append(total == 1 ? " message in the last " : " messages in the last ");
+            if (intervalMs < 1000L) {
+                sb.append(intervalMs).append("ms");
+            } else {
+                sb.append((intervalMs + 500L) / 1000L).append('s');
+            }
+            sb.append(shedLevel == TPLogger.TRACE ? ", no" : ", now");
+        }
+        if (shedLevel == TPLogger.TRACE) {
+            sb.append(" longer dropping messages");
+        } else {
+            sb.append(" dropping messages below ").append(TPLogger.levelName(shedLevel));
+        }
+        parent.log(REPORT_NAME, TPLogger.getTimeProvider().timeMillis(), TPLogger.WARN, null, sb);
+    }
+
+    /**
+     * Wait until all messages queued so far are passed to the parent.
+     * @return true if they were, false if the timeout has elapsed first
+     */
+    public boolean flush(long timeoutMs) {
+        final long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        synchronized (lock) {
+            final long target = queuedMessages;
+            while (dispatchedMessages < target && dispatcher.isAlive()) {
+                final long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Pass all waiting messages to the parent (waiting at most a few seconds), report and stop shedding. */
+    @Override
+    public void dispose() {
+        flush(5000);
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            dispatcher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shedLevel = TPLogger.TRACE;
+        TPLogger.setLevelFloor(TPLogger.TRACE);
+        report();
+        parent.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return "LoadSheddingDispatcher(" + capacity + ", " + (maxBacklogNanos / 1_000_000L) + "ms) -> " + parent;
+    }
+}
@@ -19,23 +19,73 @@ public class Prepender extends LogFunction {
         this.prepend = prepend;
     }
 
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    public @NotNull String getPrepend() {
+        return prepend;
+    }
+
     @Override
     public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
-        final int contentLen = content.length();
-        final StringBuilder sb = new StringBuilder(prepend.length() << 2 + contentLen);
-        sb.append(prepend);
-        for (int i = 0; i < contentLen; i++) {
-            final char c = content.charAt(i);
-            sb.append(c);
-            if (c == '\n') {
-                sb.append(prepend);
-            }
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        StringBuilder sb = prependSb.get();
+        if (sb.length() != 0 || sb == content) {
+            // Already in use by an outer Prepender on this thread
+            sb = new StringBuilder(prepend.length() * 4 + content.length());
+        }
+        appendPrepended(sb, prepend, content);
+        try {
+            parent.log(name, time, nanoAdjust, sequence, level, marker, sb);
+        } finally {
+            sb.setLength(0);
         }
-        parent.log(name, time, level, marker, sb);
     }
 
     @Override
     public boolean isEnabled(byte level, @Nullable Marker marker) {
         return parent.isEnabled(level, marker);
     }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return parent.isEnabled(name, level, marker, template);
+    }
+
+    @Override
+    public void dispose() {
+        parent.dispose();
+    }
+
+    private static final @NotNull ThreadLocal<@NotNull StringBuilder> prependSb = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    /** Append content to sb, with prepend at the beginning and after each newline, in a single pass. */
+    public static void appendPrepended(@NotNull StringBuilder sb, @NotNull String prepend, @NotNull CharSequence content) {
+        sb.append(prepend);
+        final int contentLen = content.length();
+        int lineStart = 0;
+        for (int i = 0; i < contentLen; i++) {
+            if (content.charAt(i) == '\n') {
+                sb.append(content, lineStart, i + 1);
+                sb.append(prepend);
+                lineStart = i + 1;
+            }
+        }
+        sb.append(content, lineStart, contentLen);
+    }
 }
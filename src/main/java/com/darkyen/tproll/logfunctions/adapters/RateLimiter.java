@@ -0,0 +1,279 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.SharedScheduler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LogFunction adapter which limits the rate of messages coming from a single call site,
+ * that is, a single logger and message template (for example {@code "retrying {}"}).
+ *
+ * Each call site has its own token bucket, which allows bursts of up to {@code burst} messages
+ * and then {@code messagesPerSecond} messages on average. Suppressed messages are counted and periodically
+ * reported with a summary line, for example {@code Suppressed 48213 messages like "retrying {}" in the last 10s}.
+ *
+ * The token is taken when the message arrives. Messages which arrive through {@link #logEvent(LogEvent)}
+ * (at the root or as a target of {@link com.darkyen.tproll.logfunctions.LogFunctionMultiplexer})
+ * are limited by their template, before they are formatted, so suppressed messages cost almost nothing.
+ * Messages which arrive already formatted, for example from other adapters, are limited by their content.
+ * {@code isEnabled} calls are only passed to the parent, so messages rejected by other functions do not use up the bucket.
+ * The decision is lock-free.
+ */
+@SuppressWarnings("unused")
+public final class RateLimiter extends LogFunction {
+
+    /** Default interval of summary lines */
+    public static final long DEFAULT_SUMMARY_INTERVAL_MS = 10_000L;
+    /** Maximum amount of call sites which get their own bucket, all remaining call sites share one */
+    public static final int MAX_CALL_SITES = 4096;
+
+    private final @NotNull LogFunction parent;
+    /** Nanoseconds between two messages in the long run */
+    private final long emissionInterval;
+    /** How far in the future can the bucket be emptied, in nanoseconds */
+    private final long burstTolerance;
+    private final byte summaryLevel;
+
+    private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull ConcurrentHashMap<@NotNull String, @NotNull CallSite>> callSites = new ConcurrentHashMap<>();
+    private final @NotNull AtomicInteger callSiteCount = new AtomicInteger();
+    private final @NotNull CallSite overflowCallSite;
+
+    private final @Nullable ScheduledFuture<?> summaryTask;
+    private long lastSummaryNanos = System.nanoTime();
+
+    /**
+     * @param parent function to call with admitted messages and summaries
+     * @param messagesPerSecond long term rate of messages allowed from each call site
+     * @param burst amount of messages from each call site which are allowed at once
+     * @param summaryIntervalMs how often to log summaries of suppressed messages, 0 to never do it automatically
+     */
+    public RateLimiter(@NotNull LogFunction parent, double messagesPerSecond, int burst, long summaryIntervalMs) {
+        if (!(messagesPerSecond > 0)) throw new IllegalArgumentException("messagesPerSecond must be positive: " + messagesPerSecond);
+        if (burst < 1) throw new IllegalArgumentException("burst must be at least 1: " + burst);
+        if (summaryIntervalMs < 0) throw new IllegalArgumentException("summaryIntervalMs must not be negative: " + summaryIntervalMs);
+        this.parent = parent;
+        this.emissionInterval = Math.max(1L, (long) (1_000_000_000.0 / messagesPerSecond));
+        this.burstTolerance = emissionInterval * burst;
+        this.summaryLevel = TPLogger.WARN;
+        this.overflowCallSite = new CallSite("RateLimiter", "other call sites", System.nanoTime());
+
+        summaryTask = summaryIntervalMs > 0 ? SharedScheduler.schedule(this::summarize, summaryIntervalMs) : null;
+    }
+
+    /**
+     * Summaries are logged every {@link #DEFAULT_SUMMARY_INTERVAL_MS}.
+     * @see #RateLimiter(LogFunction, double, int, long)
+     */
+    public RateLimiter(@NotNull LogFunction parent, double messagesPerSecond, int burst) {
+        this(parent, messagesPerSecond, burst, DEFAULT_SUMMARY_INTERVAL_MS);
+    }
+
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    private @NotNull CallSite callSite(@NotNull String name, @NotNull String template, long now) {
+        ConcurrentHashMap<String, CallSite> loggerSites = callSites.get(name);
+        if (loggerSites == null) {
+            final ConcurrentHashMap<String, CallSite> newLoggerSites = new ConcurrentHashMap<>();
+            loggerSites = callSites.putIfAbsent(name, newLoggerSites);
+            if (loggerSites == null) {
+                loggerSites = newLoggerSites;
+            }
+        }
+
+        final CallSite site = loggerSites.get(template);
+        if (site != null) {
+            return site;
+        }
+        if (callSiteCount.get() >= MAX_CALL_SITES) {
+            return overflowCallSite;
+        }
+        final CallSite newSite = new CallSite(name, template, now);
+        final CallSite existingSite = loggerSites.putIfAbsent(template, newSite);
+        if (existingSite != null) {
+            return existingSite;
+        }
+        callSiteCount.incrementAndGet();
+        return newSite;
+    }
+
+    /** @return false if the call site has no token left and the message should be suppressed */
+    private boolean admit(@NotNull String name, @NotNull CharSequence templateOrContent) {
+        final long now = System.nanoTime();
+        return callSite(name, templateOrContent.toString(), now).tryAcquire(now, emissionInterval, burstTolerance);
+    }
+
+    private boolean admit(@NotNull LogEvent event) {
+        final String template = event.getTemplate();
+        return admit(event.getName(), template != null ? template : event.getContent());
+    }
+
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        if (admit(event) && !parent.logEvent(event)) {
+            parent.log(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), event.getLevel(), event.getMarker(), event.getContent());
+        }
+        return true;
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        if (admit(name, content)) {
+            parent.log(name, time, level, marker, content);
+        }
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        if (admit(name, content)) {
+            parent.log(name, time, nanoAdjust, sequence, level, marker, content);
+        }
+    }
+
+    /** Admitted events are passed to the parent as a single batch. */
+    @Override
+    public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+        LogEvent[] admitted = null;
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (admit(events[i])) {
+                if (admitted != null) {
+                    admitted[count] = events[i];
+                }
+                count++;
+            } else if (admitted == null) {
+                admitted = new LogEvent[to - from];
+                System.arraycopy(events, from, admitted, 0, count);
+            }
+        }
+        if (admitted == null) {
+            parent.logBatch(events, from, to);
+        } else if (count > 0) {
+            parent.logBatch(admitted, 0, count);
+        }
+    }
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return parent.isEnabled(level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return parent.isEnabled(name, level, marker, template);
+    }
+
+    /**
+     * Log summary lines for all call sites which had some messages suppressed since the last summary
+     * and forget call sites which were not used for a while.
+     * Called automatically, if summary interval is set.
+     */
+    public synchronized void summarize() {
+        final long now = System.nanoTime();
+        final String interval = formatInterval(now - lastSummaryNanos);
+        lastSummaryNanos = now;
+        final long time = TPLogger.getTimeProvider().timeMillis();
+
+        for (ConcurrentHashMap<String, CallSite> loggerSites : callSites.values()) {
+            final Iterator<Map.Entry<String, CallSite>> iterator = loggerSites.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final CallSite site = iterator.next().getValue();
+                if (!summarize(site, time, interval) && site.tat.get() - now + burstTolerance < 0) {
+                    // Bucket is full and was full for a while, nothing to remember
+                    iterator.remove();
+                    callSiteCount.decrementAndGet();
+                }
+            }
+        }
+        summarize(overflowCallSite, time, interval);
+    }
+
+    /** @return true if there was anything to report */
+    private boolean summarize(@NotNull CallSite site, long time, @NotNull String interval) {
+        final long suppressed = site.suppressed.sumThenReset();
+        if (suppressed == 0) {
+            return false;
+        }
+        final StringBuilder sb = new StringBuilder(site.template.length() + 64);
+        sb.append("Suppressed ").append(suppressed).append(suppressed == 1 ? " message" : " messages");
+        if (site == overflowCallSite) {
+            sb.append(" from ").append(site.template);
+        } else {
+            sb.append(" like \"").append(site.template).append('"');
+        }
+        sb.append(" in the last ").append(interval);
+        parent.log(site.name, time, summaryLevel, null, sb);
+        return true;
+    }
+
+    private static @NotNull String formatInterval(long nanos) {
+        final long millis = nanos / 1_000_000L;
+        if (millis < 1000L) {
+            return millis + "ms";
+        }
+        return (millis + 500L) / 1000L + "s";
+    }
+
+    @Override
+    public void dispose() {
+        if (summaryTask != null) {
+            summaryTask.cancel(false);
+        }
+        summarize();
+        parent.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter(" + (1_000_000_000.0 / emissionInterval) + "/s, burst " + (burstTolerance / emissionInterval) + ")";
+    }
+
+    /** Token bucket of a single call site, implemented as a generic cell rate algorithm */
+    private static final class CallSite {
+        final @NotNull String name;
+        final @NotNull String template;
+        /** Theoretical arrival time of the next message, in {@link System#nanoTime()} */
+        final @NotNull AtomicLong tat;
+        final @NotNull LongAdder suppressed = new LongAdder();
+
+        CallSite(@NotNull String name, @NotNull String template, long now) {
+            this.name = name;
+            this.template = template;
+            this.tat = new AtomicLong(now);
+        }
+
+        /** @return true if the token was taken, false if there was none and the message was counted as suppressed */
+        boolean tryAcquire(long now, long emissionInterval, long burstTolerance) {
+            final AtomicLong tat = this.tat;
+            while (true) {
+                final long currentTat = tat.get();
+                final long newTat = (currentTat - now < 0 ? now : currentTat) + emissionInterval;
+                if (newTat - now > burstTolerance) {
+                    suppressed.increment();
+                    return false;
+                }
+                if (tat.compareAndSet(currentTat, newTat)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
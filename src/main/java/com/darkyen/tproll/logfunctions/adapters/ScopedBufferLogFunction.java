@@ -0,0 +1,346 @@
+package com.darkyen.tproll.logfunctions.adapters;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.async.EventCodec;
+import com.darkyen.tproll.util.LogContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+/**
+ * LogFunction adapter which keeps low level messages of a scope (for example a request) and logs them only if the scope fails.
+ *
+ * A {@link Scope} is begun on a thread with {@link #begin()} and closed at its end (it is {@link AutoCloseable}),
+ * tasks which run on other threads can be made part of it with {@link Scope#wrap(Runnable)}.
+ * Messages of bufferLevel and below logged in a scope are encoded (not formatted) into its buffer.
+ * When a message of triggerLevel or above is logged in the scope, or when {@link Scope#fail()} is called,
+ * the buffer is formatted and logged to the parent, in order, and the rest of the scope is passed through.
+ * Otherwise the buffer is discarded when the scope closes. Other messages are passed to the parent.
+ * Messages of bufferLevel and below which are not logged in a scope are not logged at all,
+ * so {@link TPLogger} should be set to the lowest level which should be buffered, for example with {@link TPLogger#DEBUG()}.
+ *
+ * Scopes and their buffers are pooled and reused, so a scope which does not fail allocates nothing.
+ * Scope must not be used after it is closed. When its buffer is full, further messages are dropped and reported when it fails.
+ */
+@SuppressWarnings("unused")
+public final class ScopedBufferLogFunction extends LogFunction {
+
+    public static final int DEFAULT_MAX_SCOPE_BYTES = 64 * 1024;
+    /** Maximum amount of closed scopes kept for reuse */
+    public static final int MAX_POOLED_SCOPES = 64;
+
+    private static final String REPORT_NAME = "ScopedBufferLogFunction";
+    /** Maximum amount of messages passed to the parent at once */
+    private static final int BATCH_SIZE = 64;
+
+    private final @NotNull LogFunction parent;
+    private final byte bufferLevel;
+    private final byte triggerLevel;
+    private final int maxScopeBytes;
+
+    private final @NotNull EventCodec codec = new EventCodec();
+    private final @NotNull ThreadLocal<EventCodec.@NotNull Encoder> encoders = ThreadLocal.withInitial(codec::encoder);
+    private final @NotNull ThreadLocal<@Nullable Scope> currentScope = new ThreadLocal<>();
+
+    /** Closed scopes, guarded by itself */
+    private final @NotNull ArrayDeque<@NotNull Scope> pool = new ArrayDeque<>();
+
+    private final @NotNull Object FLUSH_LOCK = new Object();
+    //region Guarded by FLUSH_LOCK
+    private final @NotNull EventCodec.Decoder decoder = codec.decoder();
+    private final @NotNull LogEvent @NotNull [] batch = new LogEvent[BATCH_SIZE];
+    private final @NotNull StringBuilder @NotNull [] contents = new StringBuilder[BATCH_SIZE];
+    //endregion
+
+    /**
+     * @param parent to which messages are passed
+     * @param bufferLevel highest level which is buffered in scopes, for example {@link TPLogger#DEBUG}
+     * @param triggerLevel lowest level which makes the scope fail, for example {@link TPLogger#WARN}
+     * @param maxScopeBytes maximum size of the buffer of one scope
+     */
+    public ScopedBufferLogFunction(@NotNull LogFunction parent, byte bufferLevel, byte triggerLevel, int maxScopeBytes) {
+        if (triggerLevel <= bufferLevel) throw new IllegalArgumentException("triggerLevel must be above bufferLevel");
+        if (maxScopeBytes < 64) throw new IllegalArgumentException("maxScopeBytes must be at least 64: " + maxScopeBytes);
+        this.parent = parent;
+        this.bufferLevel = bufferLevel;
+        this.triggerLevel = triggerLevel;
+        this.maxScopeBytes = maxScopeBytes;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new LogEvent();
+            contents[i] = new StringBuilder(64);
+        }
+    }
+
+    /** Buffer {@link TPLogger#DEBUG} and lower, log them if there is a {@link TPLogger#WARN} or above. */
+    public ScopedBufferLogFunction(@NotNull LogFunction parent) {
+        this(parent, TPLogger.DEBUG, TPLogger.WARN, DEFAULT_MAX_SCOPE_BYTES);
+    }
+
+    public @NotNull LogFunction getParent() {
+        return parent;
+    }
+
+    /**
+     * Begin a new scope on this thread. It must be closed on this thread as well, preferably with try-with-resources.
+     * Scopes may be nested, the inner scope then hides the outer one until it is closed.
+     */
+    public @NotNull Scope begin() {
+        Scope scope;
+        synchronized (pool) {
+            scope = pool.poll();
+        }
+        if (scope == null) {
+            scope = new Scope();
+        }
+        scope.outer = currentScope.get();
+        currentScope.set(scope);
+        return scope;
+    }
+
+    /** @return the scope in which this thread logs, or null */
+    public @Nullable Scope current() {
+        return currentScope.get();
+    }
+
+    //region Logging
+    @Override
+    public boolean logEvent(@NotNull LogEvent event) {
+        final String template = event.getTemplate();
+        final byte level = event.getLevel();
+        if (template == null || level > bufferLevel) {
+            return false;
+        }
+        final Scope scope = currentScope.get();
+        if (scope == null) {
+            return true;
+        }
+        if (scope.isFailed()) {
+            return false;
+        }
+        final ByteBuffer record = encoders.get().encode(event.getName(), event.getTime(), event.getNanoAdjust(), event.getSequence(), level, event.getMarker(), template, true, event.getArguments(), event.getThreadName(), event.getContext());
+        // When the scope has failed meanwhile, message is passed through
+        return scope.buffer(record);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        log(name, time, 0, 0L, level, marker, content);
+    }
+
+    @Override
+    public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        if (level <= bufferLevel) {
+            final Scope scope = currentScope.get();
+            if (scope == null) {
+                return;
+            }
+            if (!scope.isFailed() && scope.buffer(encoders.get().encode(name, time, nanoAdjust, sequence, level, marker, content, false, Collections.emptyList(), Thread.currentThread().getName(), LogContext.current()))) {
+                return;
+            }
+        } else if (level >= triggerLevel) {
+            final Scope scope = currentScope.get();
+            if (scope != null) {
+                scope.fail(time);
+            }
+        }
+        parent.log(name, time, nanoAdjust, sequence, level, marker, content);
+    }
+
+    @Override
+    public boolean isEnabled(byte level, @Nullable Marker marker) {
+        return (level > bufferLevel || currentScope.get() != null) && parent.isEnabled(level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker) {
+        return (level > bufferLevel || currentScope.get() != null) && parent.isEnabled(name, level, marker);
+    }
+
+    @Override
+    public boolean isEnabled(@NotNull String name, byte level, @Nullable Marker marker, @Nullable String template) {
+        return (level > bufferLevel || currentScope.get() != null) && parent.isEnabled(name, level, marker, template);
+    }
+    //endregion
+
+    /** Format the records in buffer and log them to the parent. */
+    private void flush(@NotNull ByteBuffer records, int dropped, long time) {
+        synchronized (FLUSH_LOCK) {
+            final EventCodec.Decoder decoder = this.decoder;
+            final LogEvent[] batch = this.batch;
+            final StringBuilder[] contents = this.contents;
+            final int end = records.limit();
+            int count = 0;
+            while (records.position() < end) {
+                final int length = records.getInt();
+                final int next = records.position() + length;
+                records.limit(next);
+                try {
+                    decoder.decode(records, batch[count], contents[count]);
+                    count++;
+                } catch (Throwable t) {
+                    System.err.println("ScopedBufferLogFunction: failed to decode");
+                    t.printStackTrace(System.err);
+                } finally {
+                    records.limit(end).position(next);
+                }
+                if (count == BATCH_SIZE) {
+                    logBatchToParent(count);
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                logBatchToParent(count);
+            }
+        }
+        if (dropped > 0) {
+            parent.log(REPORT_NAME, time, TPLogger.LOG, null, "Dropped " + dropped + (dropped == 1 ? " message" : " messages") + " of a full scope buffer");
+        }
+    }
+
+    /** Guarded by FLUSH_LOCK */
+    private void logBatchToParent(int count) {
+        try {
+            parent.logBatch(batch, 0, count);
+        } catch (Throwable t) {
+            System.err.println("ScopedBufferLogFunction: failed to log");
+            t.printStackTrace(System.err);
+        }
+        for (int i = 0; i < count; i++) {
+            batch[i].clear();
+        }
+    }
+
+    /** Messages of a single unit of work, for example a request. Obtained through {@link #begin()}. */
+    public final class Scope implements AutoCloseable {
+
+        //region Guarded by this
+        private @NotNull ByteBuffer buffer = ByteBuffer.allocate(Math.min(4096, maxScopeBytes));
+        private int dropped = 0;
+        private boolean failed = false;
+        //endregion
+        /** Scope which was current on the thread which began this one, used only by that thread */
+        private @Nullable Scope outer;
+
+        private Scope() {
+        }
+
+        /**
+         * Add the record to the buffer, or drop it when the buffer is full.
+         * @return false if the scope has failed and the message should be passed through instead
+         */
+        synchronized boolean buffer(@Nullable ByteBuffer record) {
+            if (failed) {
+                return false;
+            }
+            if (record == null) {
+                dropped++;
+                return true;
+            }
+            final int needed = 4 + record.remaining();
+            ByteBuffer buffer = this.buffer;
+            if (buffer.remaining() < needed) {
+                final int newCapacity = Math.min(maxScopeBytes, Math.max(buffer.capacity() * 2, buffer.position() + needed));
+                if (buffer.position() + needed > newCapacity) {
+                    dropped++;
+                    return true;
+                }
+                final ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+                buffer.flip();
+                newBuffer.put(buffer);
+                this.buffer = buffer = newBuffer;
+            }
+            buffer.putInt(record.remaining()).put(record);
+            return true;
+        }
+
+        /** Log what was buffered and pass through all following messages of this scope. */
+        synchronized void fail(long time) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            final ByteBuffer buffer = this.buffer;
+            buffer.flip();
+            flush(buffer, dropped, time);
+            buffer.clear();
+            dropped = 0;
+        }
+
+        /**
+         * Mark this scope as failed, even if nothing of triggerLevel was logged in it.
+         * Buffered messages are logged right away and all following messages of this scope are passed through.
+         */
+        public void fail() {
+            fail(TPLogger.getTimeProvider().timeMillis());
+        }
+
+        public synchronized boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * @return runnable which runs the task in this scope, on any thread.
+         * The task must finish before the scope is closed.
+         */
+        public @NotNull Runnable wrap(@NotNull Runnable task) {
+            return () -> {
+                final Scope previous = currentScope.get();
+                currentScope.set(this);
+                try {
+                    task.run();
+                } finally {
+                    restore(previous);
+                }
+            };
+        }
+
+        /** @see #wrap(Runnable) */
+        public <T> @NotNull Callable<T> wrap(@NotNull Callable<T> task) {
+            return () -> {
+                final Scope previous = currentScope.get();
+                currentScope.set(this);
+                try {
+                    return task.call();
+                } finally {
+                    restore(previous);
+                }
+            };
+        }
+
+        /** Thread local is set to null instead of removed, so that its entry is not allocated again by the next scope */
+        private void restore(@Nullable Scope previous) {
+            currentScope.set(previous);
+        }
+
+        /** End this scope on the thread which began it. Unless it has failed, buffered messages are discarded. */
+        @Override
+        public void close() {
+            if (currentScope.get() == this) {
+                restore(outer);
+            }
+            outer = null;
+            synchronized (this) {
+                buffer.clear();
+                dropped = 0;
+                failed = false;
+            }
+            synchronized (pool) {
+                if (pool.size() < MAX_POOLED_SCOPES) {
+                    pool.push(this);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+        parent.dispose();
+    }
+}
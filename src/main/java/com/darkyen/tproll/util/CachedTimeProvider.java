@@ -0,0 +1,85 @@
+package com.darkyen.tproll.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TimeProvider which returns a cached timestamp, refreshed by a daemon ticker thread at given resolution.
+ * Reading the time is then just a volatile read, which is useful when reading the clock is expensive,
+ * for example on some virtualized hosts. Returned time never goes backwards, even if the source clock does.
+ *
+ * The price is precision: the time may lag behind the source by the resolution,
+ * or more, when the ticker thread does not get scheduled.
+ * {@link #time()} is derived from the cached time as well, so all time based decisions
+ * made through {@link com.darkyen.tproll.TPLogger#getTimeProvider()} see the same value.
+ */
+@SuppressWarnings("unused")
+public final class CachedTimeProvider extends TimeProvider {
+
+    private final @NotNull TimeProvider source;
+    private final long resolutionNanos;
+    private final @NotNull Thread ticker;
+    private volatile long now;
+    private volatile boolean running = true;
+
+    /**
+     * @param source of the time, must be absolute if {@link #time()} is to be used
+     * @param resolutionMs how often to read the time from the source, in milliseconds
+     */
+    public CachedTimeProvider(@NotNull TimeProvider source, long resolutionMs) {
+        if (resolutionMs <= 0) throw new IllegalArgumentException("resolutionMs must be positive: " + resolutionMs);
+        this.source = source;
+        this.resolutionNanos = resolutionMs * 1_000_000L;
+        this.now = source.timeMillis();
+
+        ticker = new Thread(this::tick, "tproll CachedTimeProvider ticker");
+        ticker.setDaemon(true);
+        ticker.setPriority(Thread.MAX_PRIORITY);
+        ticker.start();
+    }
+
+    /**
+     * Caches {@link TimeProvider#CURRENT_TIME_PROVIDER}.
+     * @param resolutionMs how often to read the time, in milliseconds
+     */
+    public CachedTimeProvider(long resolutionMs) {
+        this(CURRENT_TIME_PROVIDER, resolutionMs);
+    }
+
+    private void tick() {
+        final TimeProvider source = this.source;
+        while (running) {
+            final long time = source.timeMillis();
+            // Only this thread writes, so there is no race
+            if (time > now) {
+                now = time;
+            }
+            LockSupport.parkNanos(this, resolutionNanos);
+        }
+    }
+
+    @Override
+    public long timeMillis() {
+        return now;
+    }
+
+    @Override
+    public @NotNull ZonedDateTime time() {
+        return Instant.ofEpochMilli(now).atZone(timeZone());
+    }
+
+    @Override
+    public @NotNull ZoneId timeZone() {
+        return source.timeZone();
+    }
+
+    /** Stop the ticker thread. The time will not change afterwards. */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+}
@@ -0,0 +1,46 @@
+package com.darkyen.tproll.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+/**
+ * Throwable which was rendered earlier (for example when it was encoded to be formatted later),
+ * prints the same as the original, both through {@link #toString()} and {@link #printStackTrace()}.
+ */
+public final class CapturedThrowable extends Throwable {
+    private static final long serialVersionUID = 1L;
+
+    private final @NotNull String description;
+    private final @NotNull String stackTrace;
+
+    /**
+     * @param description {@link Throwable#toString()} of the original
+     * @param stackTrace what {@link Throwable#printStackTrace()} printed for the original
+     */
+    public CapturedThrowable(@NotNull String description, @NotNull String stackTrace) {
+        super(description, null, false, false);
+        this.description = description;
+        this.stackTrace = stackTrace;
+    }
+
+    public @NotNull String getStackTraceText() {
+        return stackTrace;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    @Override
+    public void printStackTrace(PrintStream s) {
+        s.print(stackTrace);
+    }
+
+    @Override
+    public void printStackTrace(PrintWriter s) {
+        s.print(stackTrace);
+    }
+}
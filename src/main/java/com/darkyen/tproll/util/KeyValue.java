@@ -0,0 +1,61 @@
+package com.darkyen.tproll.util;
+
+import com.darkyen.tproll.LogEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Named value, which can be passed as an ordinary log argument: {@code log.info("Logged in {}", kv("user", name))}.
+ * In the formatted message it is printed as {@code user=value}, while log functions which work with
+ * {@link LogEvent} get it separately through {@link LogEvent#getKeyValues()}, for example to output it as a JSON field.
+ */
+@SuppressWarnings("unused")
+public final class KeyValue {
+
+    private final @NotNull String key;
+    private final @Nullable Object value;
+
+    public KeyValue(@NotNull String key, @Nullable Object value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    /** Shortcut for the constructor, meant to be statically imported. */
+    public static @NotNull KeyValue kv(@NotNull String key, @Nullable Object value) {
+        return new KeyValue(key, value);
+    }
+
+    public @NotNull String getKey() {
+        return key;
+    }
+
+    public @Nullable Object getValue() {
+        return value;
+    }
+
+    /** Append {@code key=value}, value is pretty-printed. */
+    public void appendTo(@NotNull StringBuilder sb, int maxCollectionElements) {
+        sb.append(key).append('=');
+        PrettyPrinter.append(sb, value, maxCollectionElements);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final KeyValue keyValue = (KeyValue) o;
+        return key.equals(keyValue.key) && (value == null ? keyValue.value == null : value.equals(keyValue.value));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * key.hashCode() + (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        appendTo(sb, -1);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,208 @@
+package com.darkyen.tproll.util;
+
+import com.darkyen.tproll.LogEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Immutable map of context keys and values (MDC), for example a request ID, which is logged with each message of a thread.
+ *
+ * Each thread has its {@link #current() current} context, which is set through the static methods or through SLF4J's {@link org.slf4j.MDC}.
+ * Changing it creates a new context, which is cheap, because contexts are expected to be small.
+ * Because they never change, taking a snapshot of a context (for example by {@link #wrap(Runnable)} for a task of an executor,
+ * or by {@link LogEvent#getContext()}) is only a copy of the reference.
+ *
+ * Keys are interned, so they are usually found by identity. Entries are {@link KeyValue}s,
+ * so they are passed to log functions through {@link LogEvent#getKeyValues()} as they are, in the order in which they were added.
+ */
+@SuppressWarnings("unused")
+public final class LogContext {
+
+    public static final @NotNull LogContext EMPTY = new LogContext(new KeyValue[0]);
+
+    private static final @NotNull ThreadLocal<@NotNull LogContext> CURRENT = ThreadLocal.withInitial(() -> EMPTY);
+    /** True once any thread has set a context, until then the thread local is not consulted. */
+    private static boolean used = false;
+
+    private final @NotNull KeyValue @NotNull [] entries;
+
+    private LogContext(@NotNull KeyValue @NotNull [] entries) {
+        this.entries = entries;
+    }
+
+    //region Map
+    private int indexOf(@NotNull String key) {
+        final KeyValue[] entries = this.entries;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].getKey() == key) {
+                return i;
+            }
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].getKey().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return value of the key, or null */
+    public @Nullable String get(@NotNull String key) {
+        final int index = indexOf(key);
+        return index < 0 ? null : (String) entries[index].getValue();
+    }
+
+    /** @return context with the key set to the value, which is removed when null */
+    public @NotNull LogContext with(@NotNull String key, @Nullable String value) {
+        if (value == null) {
+            return without(key);
+        }
+        final int index = indexOf(key);
+        final KeyValue[] entries;
+        if (index < 0) {
+            entries = Arrays.copyOf(this.entries, this.entries.length + 1);
+            entries[entries.length - 1] = new KeyValue(key.intern(), value);
+        } else {
+            if (value.equals(this.entries[index].getValue())) {
+                return this;
+            }
+            entries = this.entries.clone();
+            entries[index] = new KeyValue(entries[index].getKey(), value);
+        }
+        return new LogContext(entries);
+    }
+
+    /** @return context without the key */
+    public @NotNull LogContext without(@NotNull String key) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            return this;
+        }
+        if (entries.length == 1) {
+            return EMPTY;
+        }
+        final KeyValue[] entries = new KeyValue[this.entries.length - 1];
+        System.arraycopy(this.entries, 0, entries, 0, index);
+        System.arraycopy(this.entries, index + 1, entries, index, entries.length - index);
+        return new LogContext(entries);
+    }
+
+    /** @return context with all entries of the map */
+    public static @NotNull LogContext of(@Nullable Map<@NotNull String, @Nullable String> map) {
+        LogContext context = EMPTY;
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                context = context.with(entry.getKey(), entry.getValue());
+            }
+        }
+        return context;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /** @return entry at index, from 0 to {@link #size()} exclusive */
+    public @NotNull KeyValue entry(int index) {
+        return entries[index];
+    }
+
+    /** @return new mutable map with the entries */
+    public @NotNull Map<@NotNull String, @NotNull String> toMap() {
+        final LinkedHashMap<String, String> map = new LinkedHashMap<>();
+        for (KeyValue entry : entries) {
+            map.put(entry.getKey(), (String) entry.getValue());
+        }
+        return map;
+    }
+
+    /** Append the entries as {@code key=value, key=value}. */
+    public void appendTo(@NotNull StringBuilder sb) {
+        final KeyValue[] entries = this.entries;
+        for (int i = 0; i < entries.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(entries[i].getKey()).append('=').append((String) entries[i].getValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        appendTo(sb);
+        return sb.append('}').toString();
+    }
+    //endregion
+
+    //region Thread context
+    /** @return context of this thread */
+    public static @NotNull LogContext current() {
+        return used ? CURRENT.get() : EMPTY;
+    }
+
+    /** Replace the context of this thread. */
+    public static void set(@NotNull LogContext context) {
+        used = true;
+        CURRENT.set(context);
+    }
+
+    /** Set the key in the context of this thread, remove it if the value is null. */
+    public static void put(@NotNull String key, @Nullable String value) {
+        set(current().with(key, value));
+    }
+
+    /** Remove the key from the context of this thread. */
+    public static void remove(@NotNull String key) {
+        final LogContext current = current();
+        final LogContext context = current.without(key);
+        if (context != current) {
+            set(context);
+        }
+    }
+
+    /** @return runnable which runs the task with the current context of this thread, on any thread */
+    public static @NotNull Runnable wrap(@NotNull Runnable task) {
+        final LogContext context = current();
+        return () -> {
+            final LogContext previous = current();
+            set(context);
+            try {
+                task.run();
+            } finally {
+                set(previous);
+            }
+        };
+    }
+
+    /** @see #wrap(Runnable) */
+    public static <T> @NotNull Callable<T> wrap(@NotNull Callable<T> task) {
+        final LogContext context = current();
+        return () -> {
+            final LogContext previous = current();
+            set(context);
+            try {
+                return task.call();
+            } finally {
+                set(previous);
+            }
+        };
+    }
+
+    /** @return executor which runs the tasks with the context of the thread which submitted them */
+    public static @NotNull Executor wrap(@NotNull Executor executor) {
+        return command -> executor.execute(wrap(command));
+    }
+    //endregion
+}
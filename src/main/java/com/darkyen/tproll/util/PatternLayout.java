@@ -0,0 +1,478 @@
+package com.darkyen.tproll.util;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.TPLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Marker;
+
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.darkyen.tproll.util.RenderableMarker.appendMarker;
+
+/**
+ * Layout of a log line, described by a pattern, for example {@code %d{HH:mm:ss.SSS} %-5level [%thread] %logger{20}: %msg}.
+ * The pattern is parsed once into an array of segments, which render the line without further interpretation.
+ *
+ * Conversions (in the form {@code %[-][minWidth][.maxWidth]name[{option}]}):
+ * <ul>
+ *     <li>{@code %d}, {@code %date} absolute time, option is a {@link DateTimeFormatter} pattern, defaults to {@link TimeFormatter.AbsoluteTimeFormatter#DEFAULT_DATE_TIME_FORMATTER}</li>
+ *     <li>{@code %r}, {@code %relative} time in milliseconds, as given to the log function</li>
+ *     <li>{@code %p}, {@code %le}, {@code %level} level name, colored if the layout uses colors</li>
+ *     <li>{@code %t}, {@code %thread} name of the logging thread, taken from the {@link LogEvent} when there is one</li>
+ *     <li>{@code %c}, {@code %lo}, {@code %logger} logger name, option is the length to which it is abbreviated, for example {@code c.d.t.TPLogger}</li>
+ *     <li>{@code %m}, {@code %msg}, {@code %message} the message</li>
+ *     <li>{@code %marker} the marker, if any</li>
+ *     <li>{@code %sn}, {@code %sequence} sequence number of high resolution messages, see {@link TPLogger#setHighResolutionTime(boolean)}</li>
+ *     <li>{@code %X}, {@code %mdc} entry of the {@link LogContext} (MDC) of the thread which logged the message (taken from the {@link LogEvent} when formatted from one), option is the key,
+ *     without it all entries as {@code key=value, key=value}</li>
+ *     <li>{@code %n} line break, {@code %%} percent sign</li>
+ * </ul>
+ * Minimum width pads the text with spaces on the left ({@code -} pads on the right), maximum width cuts off the beginning of the text.
+ */
+@SuppressWarnings("unused")
+public final class PatternLayout {
+
+    private static final int MAX_CACHED_NAMES = 4096;
+
+    private final @NotNull String pattern;
+    private final boolean ansiColor;
+    private final @NotNull Segment @NotNull [] segments;
+    private final boolean endsWithNewline;
+
+    /**
+     * @param pattern to compile
+     * @param ansiColor whether the level should be colored
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    public PatternLayout(@NotNull String pattern, boolean ansiColor) {
+        this.pattern = pattern;
+        this.ansiColor = ansiColor;
+        this.segments = parse(pattern, ansiColor);
+        final Segment last = segments.length == 0 ? null : segments[segments.length - 1];
+        // Not just pattern.endsWith("%n"), which is true for an escaped "%%n"
+        this.endsWithNewline = last instanceof Literal && ((Literal) last).endsWith('\n');
+    }
+
+    /** @see #PatternLayout(String, boolean) */
+    public PatternLayout(@NotNull String pattern) {
+        this(pattern, false);
+    }
+
+    public @NotNull String getPattern() {
+        return pattern;
+    }
+
+    public boolean isAnsiColor() {
+        return ansiColor;
+    }
+
+    /** @return true if the pattern ends with a line break, so log functions should not add their own */
+    public boolean endsWithNewline() {
+        return endsWithNewline;
+    }
+
+    /** Append the line into sb. Must be called on the thread which logged the message. */
+    public void format(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+        for (Segment segment : segments) {
+            segment.write(sb, name, time, nanoAdjust, sequence, level, marker, content, null);
+        }
+    }
+
+    /** Append the line of the event into sb. Thread is taken from the event, so it can be called on any thread. */
+    public void format(@NotNull StringBuilder sb, @NotNull LogEvent event) {
+        final String name = event.getName();
+        final long time = event.getTime();
+        final int nanoAdjust = event.getNanoAdjust();
+        final long sequence = event.getSequence();
+        final byte level = event.getLevel();
+        final Marker marker = event.getMarker();
+        final CharSequence content = event.getContent();
+        for (Segment segment : segments) {
+            segment.write(sb, name, time, nanoAdjust, sequence, level, marker, content, event);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PatternLayout(" + pattern + ")";
+    }
+
+    //region Parsing
+    private static @NotNull Segment @NotNull [] parse(@NotNull String pattern, boolean ansiColor) {
+        final ArrayList<Segment> segments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        final int length = pattern.length();
+        int i = 0;
+        while (i < length) {
+            final char c = pattern.charAt(i++);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i >= length) {
+                throw new IllegalArgumentException("Pattern '" + pattern + "' ends with %");
+            }
+            if (pattern.charAt(i) == '%') {
+                literal.append('%');
+                i++;
+                continue;
+            }
+            if (pattern.charAt(i) == 'n' && (i + 1 >= length || !Character.isLetter(pattern.charAt(i + 1)))) {
+                literal.append('\n');
+                i++;
+                continue;
+            }
+
+            boolean leftAlign = false;
+            if (pattern.charAt(i) == '-') {
+                leftAlign = true;
+                i++;
+            }
+            int minWidth = 0;
+            while (i < length && isDigit(pattern.charAt(i))) {
+                minWidth = minWidth * 10 + (pattern.charAt(i++) - '0');
+            }
+            int maxWidth = 0;
+            if (i < length && pattern.charAt(i) == '.') {
+                i++;
+                while (i < length && isDigit(pattern.charAt(i))) {
+                    maxWidth = maxWidth * 10 + (pattern.charAt(i++) - '0');
+                }
+            }
+            final int nameStart = i;
+            while (i < length && Character.isLetter(pattern.charAt(i))) {
+                i++;
+            }
+            final String conversion = pattern.substring(nameStart, i);
+            String option = null;
+            if (i < length && pattern.charAt(i) == '{') {
+                final int optionEnd = pattern.indexOf('}', i);
+                if (optionEnd < 0) {
+                    throw new IllegalArgumentException("Pattern '" + pattern + "' has unclosed { at " + i);
+                }
+                option = pattern.substring(i + 1, optionEnd);
+                i = optionEnd + 1;
+            }
+
+            if (literal.length() > 0) {
+                segments.add(new Literal(literal.toString()));
+                literal.setLength(0);
+            }
+            if (conversion.equals("p") || conversion.equals("le") || conversion.equals("level")) {
+                // Padding is precomputed
+                segments.add(new Level(ansiColor, leftAlign, minWidth, maxWidth));
+                continue;
+            }
+            Segment segment = conversion(pattern, conversion, option);
+            if (minWidth > 0 || maxWidth > 0) {
+                segment = new Padded(segment, leftAlign, minWidth, maxWidth);
+            }
+            segments.add(segment);
+        }
+        if (literal.length() > 0) {
+            segments.add(new Literal(literal.toString()));
+        }
+        return segments.toArray(new Segment[0]);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static @NotNull Segment conversion(@NotNull String pattern, @NotNull String conversion, @Nullable String option) {
+        switch (conversion) {
+            case "d":
+            case "date":
+                return new Date(option == null
+                        ? new TimeFormatter.AbsoluteTimeFormatter()
+                        : new TimeFormatter.AbsoluteTimeFormatter(DateTimeFormatter.ofPattern(option)));
+            case "r":
+            case "relative":
+                return new Relative();
+            case "t":
+            case "thread":
+                return new ThreadName();
+            case "c":
+            case "lo":
+            case "logger":
+                if (option == null) {
+                    return new Logger();
+                }
+                try {
+                    return new AbbreviatedLogger(Integer.parseInt(option.trim()));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Pattern '" + pattern + "' has invalid logger length: " + option, ex);
+                }
+            case "m":
+            case "msg":
+            case "message":
+                return new Message();
+            case "marker":
+                return new MarkerSegment();
+            case "sn":
+            case "sequence":
+                return new Sequence();
+            case "X":
+            case "mdc":
+                return option == null ? new ContextSegment() : new ContextEntry(option.trim());
+            default:
+                throw new IllegalArgumentException("Pattern '" + pattern + "' has unknown conversion: %" + conversion);
+        }
+    }
+    //endregion
+
+    //region Segments
+    private static abstract class Segment {
+        abstract void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event);
+    }
+
+    private static final class Literal extends Segment {
+        private final char @NotNull [] text;
+
+        Literal(@NotNull String text) {
+            this.text = text.toCharArray();
+        }
+
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            sb.append(text);
+        }
+
+        boolean endsWith(char c) {
+            return text.length > 0 && text[text.length - 1] == c;
+        }
+    }
+
+    private static final class Padded extends Segment {
+        private final @NotNull Segment segment;
+        private final boolean leftAlign;
+        private final int minWidth, maxWidth;
+
+        Padded(@NotNull Segment segment, boolean leftAlign, int minWidth, int maxWidth) {
+            this.segment = segment;
+            this.leftAlign = leftAlign;
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+        }
+
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            final int start = sb.length();
+            segment.write(sb, name, time, nanoAdjust, sequence, level, marker, content, event);
+            final int length = sb.length() - start;
+            if (maxWidth > 0 && length > maxWidth) {
+                sb.delete(start, start + length - maxWidth);
+            } else if (length < minWidth) {
+                if (leftAlign) {
+                    for (int i = length; i < minWidth; i++) {
+                        sb.append(' ');
+                    }
+                } else {
+                    final int padding = minWidth - length;
+                    for (int inserted = 0; inserted < padding; inserted += SPACES.length) {
+                        sb.insert(start, SPACES, 0, Math.min(padding - inserted, SPACES.length));
+                    }
+                }
+            }
+        }
+
+        private static final char @NotNull [] SPACES = new char[128];
+        static {
+            Arrays.fill(SPACES, ' ');
+        }
+    }
+
+    private static final class Level extends Segment {
+        /** Rendered levels, including color and padding, index is the level */
+        private final char @NotNull [] @NotNull [] levels = new char[TPLogger.LOG + 1][];
+        private final boolean ansiColor, leftAlign;
+        private final int minWidth, maxWidth;
+
+        Level(boolean ansiColor, boolean leftAlign, int minWidth, int maxWidth) {
+            this.ansiColor = ansiColor;
+            this.leftAlign = leftAlign;
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            for (byte level = 0; level < levels.length; level++) {
+                levels[level] = render(level).toCharArray();
+            }
+        }
+
+        private @NotNull String render(byte level) {
+            String text = TPLogger.levelName(level);
+            if (maxWidth > 0 && text.length() > maxWidth) {
+                text = text.substring(text.length() - maxWidth);
+            }
+            final StringBuilder sb = new StringBuilder();
+            if (!leftAlign) {
+                for (int i = text.length(); i < minWidth; i++) sb.append(' ');
+            }
+            if (ansiColor) sb.append(color(level));
+            sb.append(text);
+            if (ansiColor) sb.append(AnsiColor.RESET);
+            if (leftAlign) {
+                for (int i = text.length(); i < minWidth; i++) sb.append(' ');
+            }
+            return sb.toString();
+        }
+
+        private static @NotNull String color(byte level) {
+            switch (level) {
+                case TPLogger.TRACE: return AnsiColor.WHITE;
+                case TPLogger.DEBUG: return AnsiColor.GREEN;
+                case TPLogger.INFO: return AnsiColor.CYAN;
+                case TPLogger.WARN: return AnsiColor.YELLOW;
+                case TPLogger.LOG: return AnsiColor.BLUE;
+                default: return AnsiColor.RED;
+            }
+        }
+
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            if (level >= 0 && level < levels.length) {
+                sb.append(levels[level]);
+            } else {
+                sb.append(render(level));
+            }
+        }
+    }
+
+    private static final class Date extends Segment {
+        private final @NotNull TimeFormatter formatter;
+
+        Date(@NotNull TimeFormatter formatter) {
+            this.formatter = formatter;
+        }
+
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            formatter.format(time, nanoAdjust, sb);
+        }
+    }
+
+    private static final class Relative extends Segment {
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            sb.append(time);
+        }
+    }
+
+    private static final class ThreadName extends Segment {
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            // Read for each line, so that renamed threads show their new name
+            final String threadName = event == null ? null : event.getThreadName();
+            sb.append(threadName != null ? threadName : Thread.currentThread().getName());
+        }
+    }
+
+    private static final class Logger extends Segment {
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            sb.append(name);
+        }
+    }
+
+    private static final class AbbreviatedLogger extends Segment {
+        private final int length;
+        private final @NotNull ConcurrentHashMap<@NotNull String, @NotNull String> abbreviations = new ConcurrentHashMap<>();
+
+        AbbreviatedLogger(int length) {
+            this.length = length;
+        }
+
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            String abbreviation = abbreviations.get(name);
+            if (abbreviation == null) {
+                abbreviation = abbreviate(name, length);
+                if (abbreviations.size() < MAX_CACHED_NAMES) {
+                    abbreviations.put(name, abbreviation);
+                }
+            }
+            sb.append(abbreviation);
+        }
+    }
+
+    private static final class Message extends Segment {
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            sb.append(content);
+        }
+    }
+
+    private static final class MarkerSegment extends Segment {
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            if (marker != null) {
+                appendMarker(sb, false, marker, true);
+            }
+        }
+    }
+
+    private static final class Sequence extends Segment {
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            sb.append(sequence);
+        }
+    }
+
+    private static final class ContextEntry extends Segment {
+        /** Interned, so that it is found by identity */
+        private final @NotNull String key;
+
+        ContextEntry(@NotNull String key) {
+            this.key = key.intern();
+        }
+
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            final String value = (event == null ? LogContext.current() : event.getContext()).get(key);
+            if (value != null) {
+                sb.append(value);
+            }
+        }
+    }
+
+    private static final class ContextSegment extends Segment {
+        @Override
+        void write(@NotNull StringBuilder sb, @NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content, @Nullable LogEvent event) {
+            (event == null ? LogContext.current() : event.getContext()).appendTo(sb);
+        }
+    }
+    //endregion
+
+    /**
+     * Shorten the dot separated name to the length, by replacing the leading parts with their first letter.
+     * The last part is always kept whole. For example {@code com.darkyen.tproll.TPLogger} to 10 gives {@code c.d.t.TPLogger}.
+     */
+    public static @NotNull String abbreviate(@NotNull String name, int length) {
+        if (name.length() <= length) {
+            return name;
+        }
+        final int lastDot = name.lastIndexOf('.');
+        if (lastDot < 0) {
+            return name;
+        }
+        final StringBuilder sb = new StringBuilder(length);
+        int partStart = 0;
+        while (partStart <= lastDot) {
+            final int partEnd = name.indexOf('.', partStart);
+            // Would the rest fit if this part was kept whole?
+            if (sb.length() + name.length() - partStart <= length) {
+                break;
+            }
+            if (partEnd > partStart) {
+                sb.append(name.charAt(partStart));
+            }
+            sb.append('.');
+            partStart = partEnd + 1;
+        }
+        sb.append(name, partStart, name.length());
+        return sb.toString();
+    }
+}
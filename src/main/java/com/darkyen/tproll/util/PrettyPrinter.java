@@ -345,11 +345,20 @@ public final class PrettyPrinter {
             sb.append(((Number) item).intValue());
             return;
         }
+        if (item instanceof CharSequence) {
+            sb.append((CharSequence) item);
+            return;
+        }
 
         if (maxCollectionElements < 0) {
             maxCollectionElements = Integer.MAX_VALUE;
         }
 
+        if (item instanceof KeyValue) {
+            ((KeyValue) item).appendTo(sb, maxCollectionElements);
+            return;
+        }
+
         if (prettyPrintArrays) {
             try {
                 if (item.getClass().isArray()) {
@@ -550,6 +559,14 @@ public final class PrettyPrinter {
      * @param objects to substitute into template
      */
     public static void patternSubstituteInto(@NotNull StringBuilder out, @NotNull CharSequence template, @NotNull List<Object> objects) {
+        patternSubstituteInto(out, template, objects, true);
+    }
+
+    /**
+     * Like {@link #patternSubstituteInto(StringBuilder, CharSequence, List)}.
+     * @param appendStackTrace false to leave out the stack trace of the throwable argument, for example when it is logged separately
+     */
+    public static void patternSubstituteInto(@NotNull StringBuilder out, @NotNull CharSequence template, @NotNull List<Object> objects, boolean appendStackTrace) {
         if (objects.isEmpty()) {
             out.append(template);
         } else {
@@ -626,7 +643,7 @@ public final class PrettyPrinter {
             objects.clear();
 
             //Append throwable if any
-            if (throwable != null) {
+            if (throwable != null && appendStackTrace) {
                 StringBuilderWriter sbw = sbwCache.get();
                 sbw.setStringBuilder(out);
 
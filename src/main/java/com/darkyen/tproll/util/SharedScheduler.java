@@ -0,0 +1,110 @@
+package com.darkyen.tproll.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single daemon thread which runs periodic tasks of log functions, for example flushing or summaries,
+ * so that each function does not need its own timer thread.
+ * Similarly, a single shutdown hook runs the {@link #onShutdown(Runnable) shutdown tasks} of all log functions.
+ *
+ * Tasks should be short, because they share the thread.
+ * Exceptions thrown by a task are printed to {@link System#err} and the task keeps running.
+ */
+@SuppressWarnings("unused")
+public final class SharedScheduler {
+
+    private static final @NotNull Object LOCK = new Object();
+    //region Guarded by LOCK
+    private static @Nullable ScheduledThreadPoolExecutor executor = null;
+    private static final @NotNull ArrayList<@NotNull Runnable> shutdownTasks = new ArrayList<>();
+    private static boolean shutdownHookAdded = false;
+    //endregion
+
+    private SharedScheduler() {
+    }
+
+    private static @NotNull ScheduledThreadPoolExecutor executor() {
+        synchronized (LOCK) {
+            ScheduledThreadPoolExecutor executor = SharedScheduler.executor;
+            if (executor == null) {
+                executor = new ScheduledThreadPoolExecutor(1, task -> {
+                    final Thread thread = new Thread(task, "tproll scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                executor.setRemoveOnCancelPolicy(true);
+                SharedScheduler.executor = executor;
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Run the task every periodMs milliseconds, first time after periodMs.
+     * @return future through which the task is cancelled, for example when the function is disposed
+     */
+    public static @NotNull ScheduledFuture<?> schedule(@NotNull Runnable task, long periodMs) {
+        if (periodMs <= 0) throw new IllegalArgumentException("periodMs must be positive: " + periodMs);
+        return executor().scheduleAtFixedRate(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                System.err.println("tproll: scheduled task failed");
+                t.printStackTrace(System.err);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the task when the JVM shuts down, for example to flush buffered lines.
+     * Tasks run one after another, in the order in which they were added, on a single shutdown hook thread.
+     * @param task to remove later through {@link #removeOnShutdown(Runnable)}, when the function is disposed
+     */
+    public static void onShutdown(@NotNull Runnable task) {
+        synchronized (LOCK) {
+            shutdownTasks.add(task);
+            if (!shutdownHookAdded) {
+                shutdownHookAdded = true;
+                try {
+                    Runtime.getRuntime().addShutdownHook(new Thread(SharedScheduler::runShutdownTasks, "tproll shutdown"));
+                } catch (IllegalStateException ignored) {
+                    // Already shutting down
+                }
+            }
+        }
+    }
+
+    /** Remove the task added by {@link #onShutdown(Runnable)}, found by identity. */
+    public static void removeOnShutdown(@NotNull Runnable task) {
+        synchronized (LOCK) {
+            for (int i = shutdownTasks.size() - 1; i >= 0; i--) {
+                if (shutdownTasks.get(i) == task) {
+                    shutdownTasks.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void runShutdownTasks() {
+        final Runnable[] tasks;
+        synchronized (LOCK) {
+            tasks = shutdownTasks.toArray(new Runnable[0]);
+            shutdownTasks.clear();
+        }
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                System.err.println("tproll: shutdown task failed");
+                t.printStackTrace(System.err);
+            }
+        }
+    }
+}
@@ -3,11 +3,18 @@ package com.darkyen.tproll.util;
 
 import com.darkyen.tproll.TPLogger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 
 /**
  * Implements formatting of a time value to string.
@@ -16,6 +23,21 @@ public interface TimeFormatter {
 
     void format(long millis, @NotNull StringBuilder result);
 
+    /**
+     * Format high resolution time. Default implementation ignores the nanoAdjust.
+     * @param nanoAdjust nanoseconds to add to millis, 0 to 999 999
+     */
+    default void format(long millis, int nanoAdjust, @NotNull StringBuilder result) {
+        format(millis, result);
+    }
+
+    /**
+     * Formats absolute time with given {@link DateTimeFormatter}, in the time zone of {@link TPLogger#getTimeProvider()}.
+     * The formatted text is cached for the whole minute (only the seconds are patched in) or at least for the whole second,
+     * so the formatter and the time zone are consulted only once per minute.
+     * Milliseconds printed as three digits (for example {@code .SSS}) are patched in as well,
+     * formatters which print other fractions of a second are not cached.
+     */
     class AbsoluteTimeFormatter implements TimeFormatter {
 
         public static final @NotNull DateTimeFormatter DEFAULT_DATE_TIME_FORMATTER  = new DateTimeFormatterBuilder()
@@ -35,31 +57,241 @@ public interface TimeFormatter {
                 .toFormatter();
 
         private final @NotNull DateTimeFormatter formatter;
+        /** False if the output of the formatter depends on sub-second fields, so it can't be cached */
+        private final boolean cacheable;
+        /** True if the output depends on sub-second fields, but only through milliseconds, which may be patched in */
+        private final boolean millisOnly;
+        private volatile @Nullable Cache cache = null;
 
         public AbsoluteTimeFormatter(@NotNull DateTimeFormatter formatter) {
             this.formatter = formatter;
+            this.cacheable = isCacheable(formatter, 123_456_789);
+            this.millisOnly = !cacheable && isCacheable(formatter, 456_789) && hasMillisDigits(formatter);
         }
 
         public AbsoluteTimeFormatter() {
             this(DEFAULT_DATE_TIME_FORMATTER);
         }
 
+        /** @return true if the output does not change when given nanoseconds are added to a whole second */
+        private static boolean isCacheable(@NotNull DateTimeFormatter formatter, int nanos) {
+            try {
+                final ZonedDateTime probe = ZonedDateTime.of(2001, 2, 3, 4, 5, 6, 0, ZoneOffset.UTC);
+                return formatter.format(probe).equals(formatter.format(probe.withNano(nanos)));
+            } catch (DateTimeException ex) {
+                return false;
+            }
+        }
+
+        private static boolean hasMillisDigits(@NotNull DateTimeFormatter formatter) {
+            try {
+                final ZonedDateTime probe = ZonedDateTime.of(2001, 2, 3, 4, 5, 6, 0, ZoneOffset.UTC);
+                return findMillisIndex(formatter, probe, formatter.format(probe)) >= 0;
+            } catch (DateTimeException ex) {
+                return false;
+            }
+        }
+
         @Override
         public void format(long millis, @NotNull StringBuilder result) {
-            formatter.formatTo(Instant.ofEpochMilli(millis).atZone(TPLogger.getTimeProvider().timeZone()), result);
+            final TimeProvider timeProvider = TPLogger.getTimeProvider();
+            Cache cache = this.cache;
+            if (cache == null || millis < cache.from || millis >= cache.until || cache.timeProvider != timeProvider) {
+                if (!cacheable && !millisOnly) {
+                    formatter.formatTo(Instant.ofEpochMilli(millis).atZone(timeProvider.timeZone()), result);
+                    return;
+                }
+                cache = createCache(millis, timeProvider);
+                if (cache == null) {
+                    formatter.formatTo(Instant.ofEpochMilli(millis).atZone(timeProvider.timeZone()), result);
+                    return;
+                }
+                this.cache = cache;
+            }
+
+            final int start = result.length();
+            result.append(cache.text);
+            final int secondsIndex = cache.secondsIndex;
+            if (secondsIndex >= 0) {
+                final int second = (int) ((millis - cache.from) / 1000L);
+                result.setCharAt(start + secondsIndex, (char) ('0' + second / 10));
+                result.setCharAt(start + secondsIndex + 1, (char) ('0' + second % 10));
+            }
+            final int millisIndex = cache.millisIndex;
+            if (millisIndex >= 0) {
+                // Offsets are whole seconds, so the local milliseconds are the same
+                final int milli = (int) Math.floorMod(millis, 1000L);
+                result.setCharAt(start + millisIndex, (char) ('0' + milli / 100));
+                result.setCharAt(start + millisIndex + 1, (char) ('0' + milli / 10 % 10));
+                result.setCharAt(start + millisIndex + 2, (char) ('0' + milli % 10));
+            }
+        }
+
+        /** Formatters which print fractions of a second get the full precision, others are cached as usual. */
+        @Override
+        public void format(long millis, int nanoAdjust, @NotNull StringBuilder result) {
+            if (cacheable || millisOnly || nanoAdjust == 0) {
+                format(millis, result);
+                return;
+            }
+            final Instant instant = Instant.ofEpochSecond(Math.floorDiv(millis, 1000L), Math.floorMod(millis, 1000L) * 1_000_000L + nanoAdjust);
+            formatter.formatTo(instant.atZone(TPLogger.getTimeProvider().timeZone()), result);
+        }
+
+        /** Create cache for the minute (or at least the second) which contains millis.
+         * @return null if the milliseconds can't be patched in after all */
+        private @Nullable Cache createCache(long millis, @NotNull TimeProvider timeProvider) {
+            final ZoneId zone = timeProvider.timeZone();
+            final ZoneRules rules = zone.getRules();
+            final long epochSecond = Math.floorDiv(millis, 1000L);
+            final int offset = rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+            final long localSecond = epochSecond + offset;
+            final long minuteStart = localSecond - Math.floorMod(localSecond, 60L) - offset;
+            final Instant minuteStartInstant = Instant.ofEpochSecond(minuteStart);
+            final ZoneOffsetTransition transition = rules.nextTransition(minuteStartInstant);
+
+            if (rules.getOffset(minuteStartInstant).getTotalSeconds() == offset
+                    && (transition == null || transition.toEpochSecond() >= minuteStart + 60L)) {
+                // Whole minute has the same offset, try to cache it all and patch the seconds
+                final ZonedDateTime minuteTime = minuteStartInstant.atZone(zone);
+                final String text = formatter.format(minuteTime);
+                final int millisIndex = millisOnly ? findMillisIndex(formatter, minuteTime, text) : -1;
+                if (millisOnly && millisIndex < 0) {
+                    return null;
+                }
+                final String text37 = formatter.format(minuteTime.plusSeconds(37));
+                final String text59 = formatter.format(minuteTime.plusSeconds(59));
+                if (text.equals(text37) && text.equals(text59)) {
+                    // Seconds are not printed at all
+                    return new Cache(timeProvider, minuteStart * 1000L, minuteStart * 1000L + 60_000L, text.toCharArray(), -1, millisIndex);
+                }
+                final int secondsIndex = findSecondsIndex(text, text37, text59);
+                if (secondsIndex >= 0) {
+                    return new Cache(timeProvider, minuteStart * 1000L, minuteStart * 1000L + 60_000L, text.toCharArray(), secondsIndex, millisIndex);
+                }
+            }
+
+            // Offsets change only on whole seconds
+            final ZonedDateTime secondTime = Instant.ofEpochSecond(epochSecond).atZone(zone);
+            final String text = formatter.format(secondTime);
+            final int millisIndex = millisOnly ? findMillisIndex(formatter, secondTime, text) : -1;
+            if (millisOnly && millisIndex < 0) {
+                return null;
+            }
+            return new Cache(timeProvider, epochSecond * 1000L, epochSecond * 1000L + 1000L, text.toCharArray(), -1, millisIndex);
+        }
+
+        /**
+         * @param text0 formatted at the whole second
+         * @return index of the three milliseconds digits in the text, -1 if there are none or they are not simple three digits
+         */
+        private static int findMillisIndex(@NotNull DateTimeFormatter formatter, @NotNull ZonedDateTime wholeSecond, @NotNull String text0) {
+            final String text123 = formatter.format(wholeSecond.withNano(123_000_000));
+            final String text987 = formatter.format(wholeSecond.withNano(987_000_000));
+            final int length = text0.length();
+            if (length != text123.length() || length != text987.length()) {
+                return -1;
+            }
+            int index = -1;
+            for (int i = 0; i < length; i++) {
+                if (text0.charAt(i) != text123.charAt(i) || text0.charAt(i) != text987.charAt(i)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0 || index + 2 >= length
+                    || !text0.startsWith("000", index)
+                    || !text123.startsWith("123", index)
+                    || !text987.startsWith("987", index)
+                    || !text0.regionMatches(index + 3, text123, index + 3, length - index - 3)
+                    || !text0.regionMatches(index + 3, text987, index + 3, length - index - 3)) {
+                return -1;
+            }
+            return index;
+        }
+
+        /** @return index of the two seconds digits in the texts formatted at 0, 37 and 59 seconds, -1 if they are not simple two digits */
+        private static int findSecondsIndex(@NotNull String text0, @NotNull String text37, @NotNull String text59) {
+            final int length = text0.length();
+            if (length != text37.length() || length != text59.length()) {
+                return -1;
+            }
+            int index = -1;
+            for (int i = 0; i < length; i++) {
+                if (text0.charAt(i) != text37.charAt(i) || text0.charAt(i) != text59.charAt(i)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0 || index + 1 >= length
+                    || text0.charAt(index) != '0' || text0.charAt(index + 1) != '0'
+                    || text37.charAt(index) != '3' || text37.charAt(index + 1) != '7'
+                    || text59.charAt(index) != '5' || text59.charAt(index + 1) != '9'
+                    || !text0.regionMatches(index + 2, text37, index + 2, length - index - 2)
+                    || !text0.regionMatches(index + 2, text59, index + 2, length - index - 2)) {
+                return -1;
+            }
+            return index;
+        }
+
+        /** Text rendered for a time range in which only the seconds and milliseconds (if any) change. Immutable. */
+        private static final class Cache {
+            final @NotNull TimeProvider timeProvider;
+            /** Inclusive, epoch millis */
+            final long from;
+            /** Exclusive, epoch millis */
+            final long until;
+            final char @NotNull [] text;
+            /** Index of the seconds digits in text, or -1 if they are the same for the whole range */
+            final int secondsIndex;
+            /** Index of the three milliseconds digits in text, or -1 if they are not printed */
+            final int millisIndex;
+
+            Cache(@NotNull TimeProvider timeProvider, long from, long until, char @NotNull [] text, int secondsIndex, int millisIndex) {
+                this.timeProvider = timeProvider;
+                this.from = from;
+                this.until = until;
+                this.text = text;
+                this.secondsIndex = secondsIndex;
+                this.millisIndex = millisIndex;
+            }
         }
     }
 
     class RelativeTimeFormatter implements TimeFormatter {
 
-        private final boolean days, hours, minutes, seconds, milliseconds;
+        private final boolean days, hours, minutes, seconds, milliseconds, microseconds;
 
-        public RelativeTimeFormatter(boolean days, boolean hours, boolean minutes, boolean seconds, boolean milliseconds) {
+        /**
+         * @param microseconds to append microseconds after milliseconds, when the time has high resolution
+         */
+        public RelativeTimeFormatter(boolean days, boolean hours, boolean minutes, boolean seconds, boolean milliseconds, boolean microseconds) {
             this.days = days;
             this.hours = hours;
             this.minutes = minutes;
             this.seconds = seconds;
             this.milliseconds = milliseconds;
+            this.microseconds = microseconds && milliseconds;
+        }
+
+        public RelativeTimeFormatter(boolean days, boolean hours, boolean minutes, boolean seconds, boolean milliseconds) {
+            this(days, hours, minutes, seconds, milliseconds, false);
+        }
+
+        @Override
+        public void format(long millis, int nanoAdjust, @NotNull StringBuilder result) {
+            format(millis, result);
+            if (microseconds) {
+                final int micros = nanoAdjust / 1000;
+                result.append('.');
+                if (micros < 100) {
+                    result.append('0');
+                }
+                if (micros < 10) {
+                    result.append('0');
+                }
+                result.append(micros);
+            }
         }
 
         @Override
@@ -2,6 +2,8 @@ package com.darkyen.tproll.util;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.time.Clock;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 
@@ -10,6 +12,15 @@ public abstract class TimeProvider {
     /** Returns current time. Can be relative or absolute. MUST be thread safe. */
     public abstract long timeMillis();
 
+    /**
+     * Returns current time in nanoseconds, with the same origin as {@link #timeMillis()}. MUST be thread safe.
+     * Used only when high resolution time is enabled, see {@link com.darkyen.tproll.TPLogger#setHighResolutionTime(boolean)}.
+     * Default implementation has the resolution of {@link #timeMillis()}.
+     */
+    public long timeNanos() {
+        return timeMillis() * 1_000_000L;
+    }
+
     /** Returns absolute time, with timezone of the application. */
     public @NotNull ZonedDateTime time() {
         return ZonedDateTime.now(timeZone());
@@ -25,6 +36,13 @@ public abstract class TimeProvider {
         public long timeMillis() {
             return System.currentTimeMillis();
         }
+
+        /** Resolution depends on the platform, microseconds on most since Java 9, milliseconds on Java 8. */
+        @Override
+        public long timeNanos() {
+            final Instant now = Clock.systemUTC().instant();
+            return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        }
     };
 
     /** Creates and returns time provider, which counts time from NOW. */
@@ -35,6 +53,11 @@ public abstract class TimeProvider {
             public long timeMillis() {
                 return System.currentTimeMillis() - now;
             }
+
+            @Override
+            public long timeNanos() {
+                return CURRENT_TIME_PROVIDER.timeNanos() - now * 1_000_000L;
+            }
         };
     }
 }
@@ -0,0 +1,203 @@
+package com.darkyen.tproll.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Growable byte buffer into which characters are appended directly as UTF-8.
+ * Meant to be reused for each message, so that text is encoded exactly once, on its way to a channel.
+ *
+ * ASCII characters take a fast path. Surrogate pairs are encoded as a single code point, even when split
+ * between two append calls, lone surrogates are encoded as {@code '?'}, like {@link String#getBytes(java.nio.charset.Charset)} does.
+ * Not thread safe.
+ */
+@SuppressWarnings("unused")
+public final class Utf8Appender {
+
+    private byte @NotNull [] bytes;
+    private int length = 0;
+    /** High surrogate from the end of last append, or 0 */
+    private char pendingHighSurrogate = 0;
+    private @NotNull ByteBuffer buffer;
+
+    public Utf8Appender(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+        buffer = ByteBuffer.wrap(bytes);
+    }
+
+    public Utf8Appender() {
+        this(256);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            final byte[] newBytes = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+            buffer = ByteBuffer.wrap(newBytes);
+        }
+    }
+
+    public @NotNull Utf8Appender append(char c) {
+        ensureCapacity(length + 4);
+        if (c < 0x80 && pendingHighSurrogate == 0) {
+            bytes[length++] = (byte) c;
+        } else {
+            appendSlow(c);
+        }
+        return this;
+    }
+
+    public @NotNull Utf8Appender append(@NotNull CharSequence chars) {
+        return append(chars, 0, chars.length());
+    }
+
+    public @NotNull Utf8Appender append(@NotNull CharSequence chars, int start, int end) {
+        // Each char takes at most 3 bytes (surrogate pair takes 4 bytes for 2 chars), pending surrogate may need 1 more
+        ensureCapacity(length + (end - start) * 3 + 1);
+        final byte[] bytes = this.bytes;
+        int i = start;
+        if (pendingHighSurrogate == 0) {
+            int length = this.length;
+            // ASCII fast path
+            while (i < end) {
+                final char c = chars.charAt(i);
+                if (c >= 0x80) break;
+                bytes[length++] = (byte) c;
+                i++;
+            }
+            this.length = length;
+        }
+        for (; i < end; i++) {
+            appendSlow(chars.charAt(i));
+        }
+        return this;
+    }
+
+    public @NotNull Utf8Appender append(char @NotNull [] chars) {
+        return append(chars, 0, chars.length);
+    }
+
+    public @NotNull Utf8Appender append(char @NotNull [] chars, int start, int end) {
+        ensureCapacity(length + (end - start) * 3 + 1);
+        final byte[] bytes = this.bytes;
+        int i = start;
+        if (pendingHighSurrogate == 0) {
+            int length = this.length;
+            while (i < end) {
+                final char c = chars[i];
+                if (c >= 0x80) break;
+                bytes[length++] = (byte) c;
+                i++;
+            }
+            this.length = length;
+        }
+        for (; i < end; i++) {
+            appendSlow(chars[i]);
+        }
+        return this;
+    }
+
+    /** Append decimal representation of the value, like {@link StringBuilder#append(long)}. */
+    public @NotNull Utf8Appender append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+        ensureCapacity(length + 21);
+        final byte[] bytes = this.bytes;
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            bytes[length++] = '?';
+        }
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int i = length + digits;
+        length = i;
+        do {
+            bytes[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return this;
+    }
+
+    /** Capacity for at least 4 bytes must be ensured. */
+    private void appendSlow(char c) {
+        final byte[] bytes = this.bytes;
+        final char highSurrogate = pendingHighSurrogate;
+        if (highSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int codePoint = Character.toCodePoint(highSurrogate, c);
+                bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            bytes[length++] = '?';
+            ensureCapacity(length + 3);
+            appendSlow(c);
+            return;
+        }
+
+        if (c < 0x80) {
+            bytes[length++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[length++] = (byte) (0xC0 | (c >> 6));
+            bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes[length++] = '?';
+        } else {
+            bytes[length++] = (byte) (0xE0 | (c >> 12));
+            bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /** @return amount of encoded bytes, not counting a pending high surrogate */
+    public int length() {
+        return length;
+    }
+
+    /** Forget all appended bytes. */
+    public void clear() {
+        length = 0;
+        pendingHighSurrogate = 0;
+    }
+
+    /**
+     * @return buffer with the encoded bytes between position and limit, valid only until the next modification.
+     * A pending high surrogate at the end is encoded as {@code '?'}.
+     */
+    public @NotNull ByteBuffer buffer() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            ensureCapacity(length + 1);
+            bytes[length++] = '?';
+        }
+        final ByteBuffer buffer = this.buffer;
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /** Write all encoded bytes into the channel and clear. */
+    public void writeTo(@NotNull WritableByteChannel channel) throws IOException {
+        final ByteBuffer buffer = buffer();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        clear();
+    }
+}
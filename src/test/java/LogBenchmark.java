@@ -1,8 +1,15 @@
 import com.darkyen.tproll.LogFunction;
 import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.BinaryLogFunction;
+import com.darkyen.tproll.logfunctions.DateTimeFileCreationStrategy;
 import com.darkyen.tproll.logfunctions.FileLogFunction;
+import com.darkyen.tproll.logfunctions.FlightRecorderLogFunction;
+import com.darkyen.tproll.logfunctions.ILogFileHandler;
+import com.darkyen.tproll.logfunctions.JsonLogFunction;
+import com.darkyen.tproll.logfunctions.LogFileHandler;
 import com.darkyen.tproll.logfunctions.LogFunctionMultiplexer;
 import com.darkyen.tproll.logfunctions.SimpleLogFunction;
+import com.darkyen.tproll.util.TimeFormatter;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,12 +18,20 @@ import org.slf4j.Marker;
 import java.io.File;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 
 /**
+ * Manual benchmark, run through main, it is not a part of the test suite.
  *
+ * JSON is compared with plain text through a no-op {@link ILogFileHandler}, so that the file system does not hide the cost
+ * of formatting, {@link JsonLogFunction} should stay within 1.5x of {@link FileLogFunction}.
  */
 public class LogBenchmark {
 
+    /** Allowed cost of JSON relative to plain text */
+    private static final double JSON_BOUND = 1.5;
+
     public static void main(String[] args){
         final LogFunction NOP_FUNCTION = new LogFunction() {
             @Override
@@ -56,7 +71,62 @@ public class LogBenchmark {
         measure();
         final int file = measure();
 
-        TPLogger.setLogFunction(new LogFunctionMultiplexer(SimpleLogFunction.CONSOLE_LOG_FUNCTION, TPLogger.getLogFunction()));
+        final LogFunction fileFunction = TPLogger.getLogFunction();
+
+        final ILogFileHandler NOP_HANDLER = new ILogFileHandler() {
+            @Override
+            public void initialize() {
+            }
+
+            @Override
+            public void log(@NotNull CharSequence message) {
+            }
+
+            @Override
+            public void log(@NotNull ByteBuffer message) {
+            }
+
+            @Override
+            public void dispose() {
+            }
+        };
+        TPLogger.setLogFunction(new FileLogFunction(new TimeFormatter.AbsoluteTimeFormatter(), NOP_HANDLER, false));
+        measure();
+        measure();
+        measure();
+        final int fileNop = measure();
+
+        TPLogger.setLogFunction(new JsonLogFunction(NOP_HANDLER, new TimeFormatter.AbsoluteTimeFormatter(), false));
+        measure();
+        measure();
+        measure();
+        final int jsonNop = measure();
+
+        TPLogger.setLogFunction(new JsonLogFunction(new LogFileHandler(new File("test logs"),
+                new DateTimeFileCreationStrategy(DateTimeFileCreationStrategy.DEFAULT_DATE_FILE_NAME_FORMATTER, false, "jsonl", 512 * 1000, Duration.ofDays(60)),
+                true), null, true));
+        measure();
+        measure();
+        measure();
+        final int json = measure();
+
+        final File binaryFile = new File("test logs/benchmark.tpbl");
+        //noinspection ResultOfMethodCallIgnored
+        binaryFile.delete();
+        TPLogger.setLogFunction(new BinaryLogFunction(binaryFile));
+        measure();
+        measure();
+        measure();
+        final int binary = measure();
+
+        // Records the INFO messages of the benchmark, passes only WARN and up to the file
+        TPLogger.setLogFunction(new FlightRecorderLogFunction(fileFunction, TPLogger.WARN));
+        measure();
+        measure();
+        measure();
+        final int recorder = measure();
+
+        TPLogger.setLogFunction(new LogFunctionMultiplexer(SimpleLogFunction.CONSOLE_LOG_FUNCTION, fileFunction));
         measure();
         measure();
         measure();
@@ -68,6 +138,13 @@ public class LogBenchmark {
         System.out.println("MNOP:   "+muxnop+" ms");
         System.out.println("Simple: "+simple+" ms");
         System.out.println("File:   "+file+" ms");
+        System.out.println("JSON:   "+json+" ms");
+        System.out.println("File, no-op handler: "+fileNop+" ms");
+        System.out.println("JSON, no-op handler: "+jsonNop+" ms");
+        final double jsonRatio = (double) jsonNop / Math.max(1, fileNop);
+        System.out.printf("JSON/File: %.2fx (%s %.1fx)%n", jsonRatio, jsonRatio <= JSON_BOUND ? "within" : "OVER", JSON_BOUND);
+        System.out.println("Binary: "+binary+" ms");
+        System.out.println("Flight: "+recorder+" ms");
         System.out.println("C + F:  "+s_and_f+" ms");
     }
 
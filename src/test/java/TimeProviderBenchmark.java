@@ -0,0 +1,93 @@
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.CachedTimeProvider;
+import com.darkyen.tproll.util.TimeProvider;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares {@link TimeProvider#CURRENT_TIME_PROVIDER} with {@link CachedTimeProvider}, under 32 threads.
+ */
+public class TimeProviderBenchmark {
+
+    private static final int THREADS = 32;
+    private static final int MEASURE_MS = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                // NOP
+            }
+        });
+        final CachedTimeProvider cached = new CachedTimeProvider(1);
+
+        measure(TimeProvider.CURRENT_TIME_PROVIDER, false);
+        measure(cached, false);
+        final long current = measure(TimeProvider.CURRENT_TIME_PROVIDER, false);
+        final long cachedTime = measure(cached, false);
+        final long currentLog = measure(TimeProvider.CURRENT_TIME_PROVIDER, true);
+        final long cachedLog = measure(cached, true);
+        cached.stop();
+
+        System.out.println("Threads: " + THREADS + ", per " + MEASURE_MS + " ms");
+        System.out.println("Current timeMillis(): " + current + " calls");
+        System.out.println("Cached timeMillis():  " + cachedTime + " calls");
+        System.out.println("Current log:          " + currentLog + " messages");
+        System.out.println("Cached log:           " + cachedLog + " messages");
+    }
+
+    /** @return amount of calls done in {@link #MEASURE_MS} by all threads */
+    private static long measure(@NotNull TimeProvider timeProvider, boolean log) throws InterruptedException {
+        TPLogger.setTimeProvider(timeProvider);
+        final Logger logger = LoggerFactory.getLogger("TimeProviderBenchmark");
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong blackHole = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final long[] end = {0};
+
+        for (int t = 0; t < THREADS; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final long endTime = end[0];
+                long calls = 0;
+                long sum = 0;
+                while (true) {
+                    for (int i = 0; i < 1000; i++) {
+                        if (log) {
+                            logger.info("Message {}", i);
+                        } else {
+                            sum += timeProvider.timeMillis();
+                        }
+                    }
+                    calls += 1000;
+                    if (System.nanoTime() - endTime > 0) {
+                        break;
+                    }
+                }
+                total.addAndGet(calls);
+                blackHole.addAndGet(sum);
+                done.countDown();
+            }).start();
+        }
+
+        end[0] = System.nanoTime() + MEASURE_MS * 1_000_000L;
+        start.countDown();
+        done.await();
+        if (blackHole.get() == 42) {
+            System.out.println();
+        }
+        TPLogger.setTimeProvider(TimeProvider.CURRENT_TIME_PROVIDER);
+        return total.get();
+    }
+}
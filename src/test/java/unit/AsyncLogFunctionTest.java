@@ -0,0 +1,190 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.async.AsyncLogFunction;
+import com.darkyen.tproll.async.EventRing;
+import com.darkyen.tproll.util.LogContext;
+import com.darkyen.tproll.util.PatternLayout;
+import com.darkyen.tproll.util.SimpleMarker;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test for {@link AsyncLogFunction} and {@link EventRing}
+ */
+public class AsyncLogFunctionTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    private static final class CollectingFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+        final @NotNull ArrayList<Marker> markers = new ArrayList<>();
+
+        @Override
+        public synchronized void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            lines.add(time + " " + TPLogger.levelName(level) + " " + name + ": " + content);
+            markers.add(marker);
+        }
+    }
+
+    private static final Marker MARKER = new SimpleMarker() {
+        @Override
+        public String getName() {
+            return "Marker";
+        }
+    };
+
+    private static void logAll(@NotNull TPLogger logger, @NotNull Exception exception) {
+        logger.info("Plain message");
+        logger.info("Primitives {} {} {} {} {} {}", 1, 2L, 3.5, 4.25f, 'c', true);
+        logger.info("Small {} {} {}", (byte) 5, (short) 6, null);
+        logger.info("Strings {} {}", "Žluťoučký kůň 😀", new StringBuilder("builder"));
+        logger.info("Objects {} {}", Arrays.asList(1, 2, 3), new int[]{4, 5});
+        logger.warn("Failed", exception);
+        logger.warn("Failed with {}", exception);
+        logger.warn("Extra arguments {}", 1, 2, exception);
+        logger.error(MARKER, "Marked {}", "x");
+        logger.info("Escaped \\{} {}", "y");
+        logger.logCustom("Custom", 1234L, TPLogger.INFO, null, "Custom {}", 7);
+    }
+
+    @Test
+    public void formatsLikeSynchronousLogging() {
+        final CollectingFunction expected = new CollectingFunction();
+        TPLogger.setLogFunction(expected);
+        TPLogger.INFO();
+        final TPLogger logger = new TPLogger("Test");
+        final Exception exception = new IllegalStateException("broken");
+        logAll(logger, exception);
+
+        final CollectingFunction actual = new CollectingFunction();
+        final AsyncLogFunction async = new AsyncLogFunction(actual, 64 * 1024, true);
+        TPLogger.setLogFunction(async);
+        logAll(logger, exception);
+        Assert.assertTrue(async.flush(10_000));
+
+        Assert.assertEquals(expected.lines.size(), actual.lines.size());
+        for (int i = 0; i < expected.lines.size(); i++) {
+            // Time may differ
+            final String e = expected.lines.get(i);
+            final String a = actual.lines.get(i);
+            Assert.assertEquals(e.substring(e.indexOf(' ')), a.substring(a.indexOf(' ')));
+        }
+        Assert.assertEquals(expected.markers, actual.markers);
+        Assert.assertSame(MARKER, actual.markers.get(8));
+        Assert.assertTrue(actual.lines.get(10).startsWith("1234 "));
+        async.dispose();
+    }
+
+    @Test
+    public void fullRingDropsAndReports() {
+        final CollectingFunction sink = new CollectingFunction();
+        final Object lock = new Object();
+        final AsyncLogFunction async = new AsyncLogFunction(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                synchronized (lock) {
+                    sink.log(name, time, level, marker, content);
+                }
+            }
+        }, 4096, false);
+        TPLogger.setLogFunction(async);
+        TPLogger.INFO();
+        final TPLogger logger = new TPLogger("Test");
+
+        synchronized (lock) {
+            // Consumer is stuck, so the ring fills up
+            for (int i = 0; i < 1000; i++) {
+                logger.info("Message {}", i);
+            }
+        }
+        async.dispose();
+        final String report = sink.lines.get(sink.lines.size() - 1);
+        Assert.assertTrue(report, report.matches("\\d+ WARN AsyncLogFunction: Ring was full, dropped \\d+ messages"));
+        final int dropped = Integer.parseInt(report.replaceAll(".*dropped (\\d+) messages", "$1"));
+        Assert.assertEquals(1000, sink.lines.size() - 1 + dropped);
+    }
+
+    @Test
+    public void keepsThreadAndContext() throws InterruptedException {
+        final PatternLayout layout = new PatternLayout("[%thread] {%mdc} %msg");
+        final ArrayList<String> lines = new ArrayList<>();
+        final AsyncLogFunction async = new AsyncLogFunction(new LogFunction() {
+            @Override
+            public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+                for (int i = from; i < to; i++) {
+                    final StringBuilder sb = new StringBuilder();
+                    layout.format(sb, events[i]);
+                    lines.add(sb.toString());
+                }
+            }
+
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            }
+        }, 64 * 1024, true);
+        TPLogger.setLogFunction(async);
+        TPLogger.INFO();
+        final TPLogger logger = new TPLogger("Test");
+
+        final Thread thread = new Thread(() -> {
+            LogContext.put("request", "r1");
+            LogContext.put("user", "bob");
+            logger.info("Template {}", 1);
+            async.log("Test", 0L, TPLogger.INFO, null, "Formatted");
+        }, "Worker");
+        thread.start();
+        thread.join();
+        logger.info("Without context");
+        Assert.assertTrue(async.flush(10_000));
+
+        Assert.assertEquals(Arrays.asList(
+                "[Worker] {request=r1, user=bob} Template 1",
+                "[Worker] {request=r1, user=bob} Formatted",
+                "[" + Thread.currentThread().getName() + "] {} Without context"), lines);
+        async.dispose();
+    }
+
+    @Test
+    public void ringWrapsAround() throws InterruptedException {
+        final EventRing ring = new EventRing(256, false);
+        final Random random = new Random(3);
+        final ArrayList<byte[]> queued = new ArrayList<>();
+        int counter = 0;
+        for (int round = 0; round < 2000; round++) {
+            if (random.nextBoolean()) {
+                final byte[] record = new byte[random.nextInt(ring.maxRecordSize() + 1)];
+                Arrays.fill(record, (byte) counter++);
+                if (ring.offer(ByteBuffer.wrap(record))) {
+                    queued.add(record);
+                }
+            } else {
+                final ByteBuffer record = ring.take(0);
+                if (queued.isEmpty()) {
+                    Assert.assertNull(record);
+                    continue;
+                }
+                Assert.assertNotNull(record);
+                final byte[] bytes = new byte[record.remaining()];
+                record.get(bytes);
+                ring.release();
+                Assert.assertArrayEquals(queued.remove(0), bytes);
+            }
+        }
+        Assert.assertTrue(ring.takeDropped() > 0);
+        Assert.assertFalse(ring.offer(ByteBuffer.allocate(ring.maxRecordSize() + 1)));
+    }
+}
@@ -0,0 +1,243 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.BinaryLogFunction;
+import com.darkyen.tproll.logfunctions.BinaryLogReader;
+import com.darkyen.tproll.logfunctions.FileLogFunction;
+import com.darkyen.tproll.logfunctions.ILogFileHandler;
+import com.darkyen.tproll.logfunctions.LogFunctionMultiplexer;
+import com.darkyen.tproll.util.SimpleMarker;
+import com.darkyen.tproll.util.TimeFormatter;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.darkyen.tproll.util.KeyValue.kv;
+
+/**
+ * Test for {@link BinaryLogFunction} and {@link BinaryLogReader}
+ */
+public class BinaryLogTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    /** Collects what FileLogFunction writes */
+    private static final class TextHandler implements ILogFileHandler {
+        final @NotNull StringBuilder text = new StringBuilder();
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void log(@NotNull CharSequence message) {
+            text.append(message);
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+
+    private static @NotNull String decode(@NotNull byte[] binary) throws IOException {
+        final TextHandler decoded = new TextHandler();
+        final FileLogFunction function = new FileLogFunction(new TimeFormatter.AbsoluteTimeFormatter(), decoded, false);
+        try (BinaryLogReader reader = new BinaryLogReader(Channels.newChannel(new ByteArrayInputStream(binary)))) {
+            reader.readInto(function);
+            Assert.assertFalse(reader.isCorrupted());
+        }
+        return decoded.text.toString();
+    }
+
+    @Test
+    public void decodesToFileLogFunctionText() throws IOException {
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        final BinaryLogFunction binaryFunction = new BinaryLogFunction(Channels.newChannel(binary), 256, 0L);
+        final TextHandler text = new TextHandler();
+        final FileLogFunction textFunction = new FileLogFunction(new TimeFormatter.AbsoluteTimeFormatter(), text, false);
+        final LogFunctionMultiplexer multiplexer = new LogFunctionMultiplexer(binaryFunction, textFunction);
+        TPLogger.setLogFunction(multiplexer);
+        TPLogger.TRACE();
+
+        final Marker child = new SimpleMarker.Renderable("child");
+        final Marker parent = new SimpleMarker.Renderable("parent");
+        parent.add(child);
+        final Marker plain = new SimpleMarker() {
+            @Override
+            public String getName() {
+                return "plain";
+            }
+        };
+        plain.add(child);
+        final Exception exception = new IllegalStateException("broken", new IllegalArgumentException("cause"));
+
+        final TPLogger logger = new TPLogger("Test");
+        for (int i = 0; i < 3; i++) {
+            logger.info("Plain {}", i);
+            logger.debug(parent, "Values {} {} {} {} {} {} {} {}", -5L, 1.5, 2.5f, 'c', (short) 7, (byte) -1, true, null);
+            logger.warn(plain, "Login of {} failed: {}", kv("user", "bob"), Arrays.asList(1, 2), exception);
+            logger.error("Unicode žluťoučký 😀 {}", "kůň");
+        }
+        multiplexer.log("Custom", 1234L, 567, 89L, TPLogger.LOG, child, "Already\nformatted");
+        binaryFunction.flush();
+
+        Assert.assertTrue(text.text.length() > 0);
+        Assert.assertEquals(text.text.toString(), decode(binary.toByteArray()));
+    }
+
+    @Test
+    public void smallerThanText() throws IOException {
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        final BinaryLogFunction binaryFunction = new BinaryLogFunction(Channels.newChannel(binary), BinaryLogFunction.DEFAULT_BLOCK_SIZE, 0L);
+        final TextHandler text = new TextHandler();
+        final FileLogFunction textFunction = new FileLogFunction(new TimeFormatter.AbsoluteTimeFormatter(), text, false);
+        TPLogger.setLogFunction(new LogFunctionMultiplexer(binaryFunction, textFunction));
+        TPLogger.INFO();
+
+        final TPLogger logger = new TPLogger("com.example.service.SessionManager");
+        for (int i = 0; i < 1000; i++) {
+            logger.info("Session {} of user {} opened, {} sessions active", 100000 + i, "user" + (i % 10), i % 50);
+        }
+        binaryFunction.flush();
+
+        final int textBytes = text.text.toString().getBytes(StandardCharsets.UTF_8).length;
+        Assert.assertTrue(binary.size() + " vs " + textBytes, binary.size() * 4 < textBytes);
+    }
+
+    @Test
+    public void readsUpToCorruptionAndAppends() throws IOException {
+        final File file = File.createTempFile("tproll-binary", ".tpbl");
+        try {
+            Assert.assertTrue(file.delete());
+            BinaryLogFunction function = new BinaryLogFunction(file, 1024, 0L, false);
+            function.log("A", 1L, TPLogger.INFO, null, "first");
+            function.flush();
+            function.log("A", 2L, TPLogger.INFO, null, "second");
+            function.dispose();
+
+            // Tear the last block, like a crash in the middle of a write
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() - 3);
+            }
+            final LogEvent event = new LogEvent();
+            try (BinaryLogReader reader = new BinaryLogReader(file)) {
+                Assert.assertTrue(reader.next(event));
+                Assert.assertEquals("first", event.getContent());
+                Assert.assertFalse(reader.next(event));
+                Assert.assertTrue(reader.isCorrupted());
+            }
+
+            // Torn block is cut off and the tables start again
+            function = new BinaryLogFunction(file, 1024, 0L, false);
+            function.log("A", 3L, TPLogger.WARN, null, "third");
+            function.log("B", 4L, TPLogger.INFO, null, "fourth");
+            function.dispose();
+            try (BinaryLogReader reader = new BinaryLogReader(file)) {
+                Assert.assertTrue(reader.next(event));
+                Assert.assertEquals("first", event.getContent());
+                Assert.assertTrue(reader.next(event));
+                Assert.assertEquals("[WARN] A: third", event.toString());
+                Assert.assertEquals(3L, event.getTime());
+                Assert.assertTrue(reader.next(event));
+                Assert.assertEquals("[INFO] B: fourth", event.toString());
+                Assert.assertFalse(reader.next(event));
+                Assert.assertFalse(reader.isCorrupted());
+            }
+
+            try (ByteArrayInputStream garbage = new ByteArrayInputStream("Not a log".getBytes(StandardCharsets.UTF_8))) {
+                new BinaryLogReader(Channels.newChannel(garbage));
+                Assert.fail();
+            } catch (IOException expected) {
+                // Not a binary log
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void interruptedThreadDoesNotBreakFile() throws IOException {
+        final File file = File.createTempFile("tproll-binary", ".tpbl");
+        try {
+            Assert.assertTrue(file.delete());
+            final BinaryLogFunction function = new BinaryLogFunction(file, 1024, 0L, false);
+            function.log("A", 1L, TPLogger.INFO, null, "first");
+            Thread.currentThread().interrupt();
+            try {
+                // Errors are written right away, by the interrupted thread
+                function.log("A", 2L, TPLogger.ERROR, null, "second");
+            } finally {
+                Assert.assertTrue(Thread.interrupted());
+            }
+            function.log("A", 3L, TPLogger.ERROR, null, "third");
+            function.dispose();
+
+            final LogEvent event = new LogEvent();
+            try (BinaryLogReader reader = new BinaryLogReader(file)) {
+                for (String expected : new String[]{"first", "second", "third"}) {
+                    Assert.assertTrue(reader.next(event));
+                    Assert.assertEquals(expected, event.getContent());
+                }
+                Assert.assertFalse(reader.next(event));
+                Assert.assertFalse(reader.isCorrupted());
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rotatesFullFile() throws IOException {
+        final File file = File.createTempFile("tproll-binary", ".tpbl");
+        final File rotated = new File(file.getPath() + ".1");
+        try {
+            Assert.assertTrue(file.delete());
+            final BinaryLogFunction function = new BinaryLogFunction(file, 64, 0L, 200, false);
+            for (int i = 0; i < 20; i++) {
+                function.log("Logger", i, TPLogger.INFO, null, "Message number " + i);
+                function.flush();
+            }
+            function.dispose();
+            Assert.assertTrue(rotated.exists());
+            Assert.assertTrue(rotated.length() < 400);
+            Assert.assertTrue(file.length() < 400);
+
+            // Both files are complete, with the last messages in the newer one
+            final LogEvent event = new LogEvent();
+            String last = null;
+            for (File f : new File[]{rotated, file}) {
+                try (BinaryLogReader reader = new BinaryLogReader(f)) {
+                    Assert.assertTrue(reader.next(event));
+                    Assert.assertEquals("Logger", event.getName());
+                    while (reader.next(event)) {
+                        last = event.getContent().toString();
+                    }
+                    Assert.assertFalse(reader.isCorrupted());
+                }
+            }
+            Assert.assertEquals("Message number 19", last);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            //noinspection ResultOfMethodCallIgnored
+            rotated.delete();
+        }
+    }
+}
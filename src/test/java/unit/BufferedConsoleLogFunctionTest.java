@@ -0,0 +1,162 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.BufferedConsoleLogFunction;
+import com.darkyen.tproll.util.PatternLayout;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Test for {@link BufferedConsoleLogFunction}
+ */
+public class BufferedConsoleLogFunctionTest {
+
+    private static final String N = System.lineSeparator();
+
+    /** Records each write, with the name of the stream */
+    private static final class RecordingChannel implements WritableByteChannel {
+        private final @NotNull String stream;
+        private final @NotNull ArrayList<String> writes;
+
+        RecordingChannel(@NotNull String stream, @NotNull ArrayList<String> writes) {
+            this.stream = stream;
+            this.writes = writes;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) {
+            final int length = src.remaining();
+            final byte[] bytes = new byte[length];
+            src.get(bytes);
+            synchronized (writes) {
+                writes.add(stream + ":" + new String(bytes, StandardCharsets.UTF_8));
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void batchesAndFlushesOnError() throws InterruptedException {
+        final ArrayList<String> writes = new ArrayList<>();
+        final BufferedConsoleLogFunction function = new BufferedConsoleLogFunction(new PatternLayout("%level %m"),
+                new RecordingChannel("out", writes), new RecordingChannel("err", writes), 1024, 60_000);
+
+        function.log("Test", 0, TPLogger.INFO, null, "one");
+        function.log("Test", 0, TPLogger.INFO, null, "two");
+        synchronized (writes) {
+            Assert.assertTrue(writes.isEmpty());
+        }
+        function.log("Test", 0, TPLogger.ERROR, null, "three");
+        function.log("Test", 0, TPLogger.INFO, null, "four");
+
+        final StringBuilder all = new StringBuilder();
+        synchronized (writes) {
+            for (String write : writes) {
+                all.append(write.substring(write.indexOf(':') + 1));
+            }
+            // Nothing after the error was written yet
+            Assert.assertEquals("INFO one" + N + "INFO two" + N + "ERROR three" + N, all.toString());
+            Assert.assertTrue(writes.size() <= 2);
+        }
+
+        function.flush();
+        synchronized (writes) {
+            Assert.assertEquals("out:INFO four" + N, writes.get(writes.size() - 1));
+        }
+        function.dispose();
+    }
+
+    @Test
+    public void flushesAfterTimeWindow() throws InterruptedException {
+        final ArrayList<String> writes = new ArrayList<>();
+        final BufferedConsoleLogFunction function = new BufferedConsoleLogFunction(new PatternLayout("%m"),
+                new RecordingChannel("out", writes), new RecordingChannel("err", writes), 1024, 5);
+        function.log("Test", 0, TPLogger.INFO, null, "waiting");
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            synchronized (writes) {
+                if (!writes.isEmpty()) break;
+            }
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        synchronized (writes) {
+            Assert.assertEquals("out:waiting" + N, writes.get(0));
+        }
+        function.dispose();
+    }
+
+    @Test
+    public void fallbackContinuesAfterPartialWrite() {
+        final ByteArrayOutputStream fallback = new ByteArrayOutputStream();
+        final PrintStream originalOut = System.out;
+        final StringBuilder written = new StringBuilder();
+        final WritableByteChannel failing = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (written.length() > 0) {
+                    throw new IOException("Closed");
+                }
+                // Only a part of the line gets through
+                for (int i = 0; i < 3; i++) {
+                    written.append((char) src.get());
+                }
+                return 3;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final BufferedConsoleLogFunction function = new BufferedConsoleLogFunction(new PatternLayout("%m"), failing, failing, 1024, 60_000);
+        System.setOut(new PrintStream(fallback, true));
+        try {
+            function.log("Test", 0, TPLogger.INFO, null, "partial");
+            function.flush();
+        } finally {
+            System.setOut(originalOut);
+            function.dispose();
+        }
+        Assert.assertEquals("partial" + N, written + new String(fallback.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void interruptedErrorDoesNotCloseConsole() {
+        final BufferedConsoleLogFunction function = new BufferedConsoleLogFunction(1024, 60_000L);
+        Thread.currentThread().interrupt();
+        try {
+            // ERROR is written right away, on this thread
+            function.log("Test", 0L, TPLogger.ERROR, null, "BufferedConsoleLogFunctionTest: logged from an interrupted thread");
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+            function.dispose();
+        }
+        Assert.assertTrue(FileDescriptor.out.valid());
+        Assert.assertTrue(FileDescriptor.err.valid());
+    }
+}
@@ -0,0 +1,49 @@
+package unit;
+
+import com.darkyen.tproll.util.CachedTimeProvider;
+import com.darkyen.tproll.util.TimeProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test for {@link CachedTimeProvider}
+ */
+public class CachedTimeProviderTest {
+
+    @Test
+    public void followsSourceMonotonically() throws InterruptedException {
+        final AtomicLong sourceTime = new AtomicLong(1000);
+        final CachedTimeProvider cached = new CachedTimeProvider(new TimeProvider() {
+            @Override
+            public long timeMillis() {
+                return sourceTime.get();
+            }
+        }, 1);
+
+        try {
+            Assert.assertEquals(1000, cached.timeMillis());
+            sourceTime.set(5000);
+            awaitTime(cached, 5000);
+
+            // Source goes backwards, cached time stays
+            sourceTime.set(2000);
+            Thread.sleep(50);
+            Assert.assertEquals(5000, cached.timeMillis());
+
+            sourceTime.set(6000);
+            awaitTime(cached, 6000);
+        } finally {
+            cached.stop();
+        }
+    }
+
+    private static void awaitTime(CachedTimeProvider cached, long time) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (cached.timeMillis() != time) {
+            Assert.assertTrue("Time did not advance", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.adapters.DuplicateCollapser;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+/**
+ * Test for {@link DuplicateCollapser}
+ */
+public class DuplicateCollapserTest {
+
+    @Test
+    public void collapsesConsecutiveDuplicates() {
+        final StringBuilder out = new StringBuilder();
+        final DuplicateCollapser collapser = new DuplicateCollapser(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                out.append(time).append(' ').append(name).append(' ').append(TPLogger.levelName(level)).append(' ').append(content).append('\n');
+            }
+        }, 0);
+
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.setLength(0);
+            content.append("Connection refused");
+            collapser.log("Db", i, TPLogger.ERROR, null, content);
+        }
+        collapser.log("Db", 1000, TPLogger.WARN, null, "Connection refused");
+        collapser.log("Other", 1001, TPLogger.WARN, null, "Connection refused");
+        collapser.log("Other", 1002, TPLogger.WARN, null, "Connection refused");
+        collapser.log("Other", 1003, TPLogger.WARN, null, "Connection refused!");
+        collapser.log("Other", 1004, TPLogger.WARN, null, "Connection refused!");
+        collapser.log("Other", 1005, TPLogger.WARN, null, "Connection refused!");
+
+        Assert.assertEquals("0 Db ERROR Connection refused\n" +
+                "999 Db ERROR (repeated 999 times)\n" +
+                "1000 Db WARN Connection refused\n" +
+                "1001 Other WARN Connection refused\n" +
+                "1002 Other WARN (repeated 1 time)\n" +
+                "1003 Other WARN Connection refused!\n", out.toString());
+
+        collapser.flush();
+        Assert.assertTrue(out.toString().endsWith("1005 Other WARN (repeated 2 times)\n"));
+        collapser.flush();
+        collapser.log("Other", 1006, TPLogger.WARN, null, "Connection refused!");
+        collapser.dispose();
+        Assert.assertTrue(out.toString().endsWith("1005 Other WARN (repeated 2 times)\n1006 Other WARN (repeated 1 time)\n"));
+    }
+}
@@ -0,0 +1,134 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.TPLoggerFactory;
+import com.darkyen.tproll.logfunctions.adapters.ExpressionFilter;
+import com.darkyen.tproll.util.SimpleMarker;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+/**
+ * Test for {@link ExpressionFilter}
+ */
+public class ExpressionFilterTest {
+
+    private static final LogFunction NOP = new LogFunction() {
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+        }
+    };
+
+    private static final SimpleMarker AUDIT = new SimpleMarker() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getName() {
+            return "AUDIT";
+        }
+    };
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void levelLoggerAndMarker() {
+        final ExpressionFilter filter = new ExpressionFilter(NOP, "level>=WARN or (logger^='com.shop.pay' and marker has 'AUDIT')");
+        Assert.assertTrue(filter.isEnabled("Whatever", TPLogger.ERROR, null));
+        Assert.assertFalse(filter.isEnabled("Whatever", TPLogger.INFO, AUDIT));
+        Assert.assertFalse(filter.isEnabled("com.shop.pay.Gateway", TPLogger.INFO, null));
+        Assert.assertTrue(filter.isEnabled("com.shop.pay.Gateway", TPLogger.INFO, AUDIT));
+
+        final SimpleMarker.Renderable compound = new SimpleMarker.Renderable("Request");
+        compound.add(AUDIT);
+        Assert.assertTrue(filter.isEnabled("com.shop.pay.Gateway", TPLogger.DEBUG, compound));
+        // Without logger name, the logger condition is not decided
+        Assert.assertTrue(filter.isEnabled(TPLogger.INFO, AUDIT));
+        Assert.assertFalse(filter.isEnabled(TPLogger.INFO, null));
+    }
+
+    @Test
+    public void operators() {
+        Assert.assertTrue(new ExpressionFilter(NOP, "not (logger = 'Db' && level < INFO)").isEnabled("Db", TPLogger.INFO, null));
+        Assert.assertFalse(new ExpressionFilter(NOP, "not (logger = 'Db' && level < INFO)").isEnabled("Db", TPLogger.DEBUG, null));
+        Assert.assertTrue(new ExpressionFilter(NOP, "logger $= 'Db' || logger *= 'ach'").isEnabled("Cache", TPLogger.DEBUG, null));
+        Assert.assertFalse(new ExpressionFilter(NOP, "!(level != 3)").isEnabled("X", TPLogger.WARN, null));
+        Assert.assertTrue(new ExpressionFilter(NOP, "TRUE and logger != \"a\\\"b\"").isEnabled("X", TPLogger.WARN, null));
+    }
+
+    @Test
+    public void packageConditionsNeedFullNames() {
+        final int[] logged = {0};
+        TPLogger.setLogFunction(new ExpressionFilter(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                logged[0]++;
+            }
+        }, "logger ^= 'com.shop.pay'"));
+        TPLogger.INFO();
+
+        final boolean useShortNames = TPLoggerFactory.USE_SHORT_NAMES;
+        try {
+            TPLoggerFactory.USE_SHORT_NAMES = true;
+            new TPLoggerFactory().getLogger("com.shop.pay.Gateway").info("Short");
+            Assert.assertEquals(0, logged[0]);
+
+            TPLoggerFactory.USE_SHORT_NAMES = false;
+            new TPLoggerFactory().getLogger("com.shop.pay.Gateway").info("Full");
+            Assert.assertEquals(1, logged[0]);
+        } finally {
+            TPLoggerFactory.USE_SHORT_NAMES = useShortNames;
+        }
+    }
+
+    @Test
+    public void equalNamesOfDifferentLoggers() {
+        final ExpressionFilter filter = new ExpressionFilter(NOP, "logger = 'Db'");
+        for (int i = 0; i < 5000; i++) {
+            // Distinct string instances, so that the cache is missed and overwritten
+            final String name = new String(i % 2 == 0 ? "Db" : "Cache");
+            Assert.assertEquals(i % 2 == 0, filter.isEnabled(name, TPLogger.INFO, null));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidExpression() {
+        new ExpressionFilter(NOP, "level >= WARN or");
+    }
+
+    @Test
+    public void rejectsBeforeFormatting() {
+        final StringBuilder out = new StringBuilder();
+        TPLogger.setLogFunction(new ExpressionFilter(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                out.append(content).append('\n');
+            }
+        }, "logger = 'Pay' and message *= 'declined'"));
+        TPLogger.TRACE();
+
+        final int[] formatted = {0};
+        final Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "declined";
+            }
+        };
+
+        final TPLogger other = new TPLogger("Other");
+        other.info("Card {}", argument);
+        Assert.assertEquals(0, formatted[0]);
+
+        final TPLogger pay = new TPLogger("Pay");
+        pay.info("Card {}", argument);
+        pay.info("Card {}", "accepted");
+        Assert.assertEquals(1, formatted[0]);
+        Assert.assertEquals("Card declined\n", out.toString());
+    }
+}
@@ -0,0 +1,160 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.FlightRecorderLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test for {@link FlightRecorderLogFunction}
+ */
+public class FlightRecorderLogFunctionTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    private static final class CollectingFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+
+        @Override
+        public synchronized void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            lines.add(TPLogger.levelName(level) + " " + name + ": " + content);
+        }
+    }
+
+    @Test
+    public void passesHigherLevelsAndDumpsOnError() {
+        final CollectingFunction parent = new CollectingFunction();
+        final FlightRecorderLogFunction recorder = new FlightRecorderLogFunction(parent, TPLogger.INFO);
+        TPLogger.setLogFunction(recorder);
+        TPLogger.DEBUG();
+        parent.lines.clear();
+
+        final TPLogger logger = new TPLogger("Test");
+        logger.debug("Connecting to {}:{}", "db", 5432);
+        logger.info("Started");
+        logger.debug("Query {}", Arrays.asList(1, 2));
+        logger.trace("Not recorded");
+        Assert.assertEquals(Arrays.asList("INFO Test: Started"), parent.lines);
+
+        logger.error("Failed {}", "badly");
+        Assert.assertEquals(Arrays.asList(
+                "INFO Test: Started",
+                "LOG FlightRecorder: Recorded messages follow",
+                "DEBUG Test: Connecting to db:5432",
+                "DEBUG Test: Query ArrayList[1, 2]",
+                "LOG FlightRecorder: End of 2 recorded messages",
+                "ERROR Test: Failed badly"), parent.lines);
+
+        // Ring is cleared by the dump
+        parent.lines.clear();
+        Assert.assertEquals(0, recorder.dump());
+        Assert.assertTrue(parent.lines.isEmpty());
+        recorder.dispose();
+    }
+
+    @Test
+    public void ringOverwritesOldestMessages() {
+        final CollectingFunction parent = new CollectingFunction();
+        final CollectingFunction sink = new CollectingFunction();
+        final FlightRecorderLogFunction recorder = new FlightRecorderLogFunction(parent, TPLogger.INFO, sink, (byte) (TPLogger.LOG + 1), 1024, Long.MAX_VALUE);
+        final int count = 1000;
+        for (int i = 0; i < count; i++) {
+            recorder.log("Test", i, TPLogger.DEBUG, null, "Message " + i);
+        }
+        Assert.assertTrue(parent.lines.isEmpty());
+
+        final int dumped = recorder.dump();
+        Assert.assertTrue(dumped > 10);
+        Assert.assertTrue(dumped < count);
+        Assert.assertEquals(dumped + 2, sink.lines.size());
+        for (int i = 0; i < dumped; i++) {
+            Assert.assertEquals("DEBUG Test: Message " + (count - dumped + i), sink.lines.get(i + 1));
+        }
+        recorder.dispose();
+    }
+
+    @Test
+    public void dumpsOnlyRecentMessages() {
+        final CollectingFunction parent = new CollectingFunction();
+        final CollectingFunction sink = new CollectingFunction();
+        final FlightRecorderLogFunction recorder = new FlightRecorderLogFunction(parent, TPLogger.INFO, sink, TPLogger.ERROR, 64 * 1024, 30_000L);
+        recorder.log("Test", 0L, TPLogger.DEBUG, null, "Old");
+        recorder.log("Test", 25_000L, TPLogger.INFO, null, "Recent");
+        recorder.log("Test", 50_000L, TPLogger.ERROR, null, "Failure");
+
+        // Sink is not the parent, so it gets also the messages which were passed
+        Assert.assertEquals(Arrays.asList("INFO Test: Recent", "ERROR Test: Failure"), parent.lines);
+        Assert.assertEquals(Arrays.asList(
+                "LOG FlightRecorder: Recorded messages follow",
+                "INFO Test: Recent",
+                "ERROR Test: Failure",
+                "LOG FlightRecorder: End of 2 recorded messages"), sink.lines);
+        recorder.dispose();
+    }
+
+    @Test
+    public void dumpsOnUnhandledException() {
+        final CollectingFunction parent = new CollectingFunction();
+        final FlightRecorderLogFunction recorder = new FlightRecorderLogFunction(parent, TPLogger.INFO, parent, (byte) (TPLogger.LOG + 1), 64 * 1024, Long.MAX_VALUE);
+        TPLogger.setLogFunction(recorder);
+        TPLogger.DEBUG();
+        parent.lines.clear();
+
+        final Thread.UncaughtExceptionHandler originalHandler = Thread.getDefaultUncaughtExceptionHandler();
+        try {
+            TPLogger.attachUnhandledExceptionLogger();
+            new TPLogger("Test").debug("Context");
+            Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), new IllegalStateException("crash"));
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(originalHandler);
+        }
+
+        Assert.assertEquals(4, parent.lines.size());
+        Assert.assertTrue(parent.lines.get(0), parent.lines.get(0).startsWith("ERROR UnhandledException: "));
+        Assert.assertEquals("LOG FlightRecorder: Recorded messages follow", parent.lines.get(1));
+        Assert.assertEquals("DEBUG Test: Context", parent.lines.get(2));
+        Assert.assertEquals("LOG FlightRecorder: End of 1 recorded messages", parent.lines.get(3));
+        recorder.dispose();
+
+        // Disposed recorders are no longer dumped on crash
+        recorder.log("Test", 0L, TPLogger.DEBUG, null, "After dispose");
+        FlightRecorderLogFunction.dumpAll();
+        Assert.assertEquals(4, parent.lines.size());
+    }
+
+    @Test
+    public void crashListenersRunAfterLogging() {
+        final CollectingFunction function = new CollectingFunction();
+        TPLogger.setLogFunction(function);
+        final ArrayList<String> crashes = new ArrayList<>();
+        final Thread.UncaughtExceptionHandler failing = (t, e) -> {
+            throw new IllegalStateException("listener");
+        };
+        final Thread.UncaughtExceptionHandler listener = (t, e) -> crashes.add(function.lines.size() + " " + e.getMessage());
+        final Thread.UncaughtExceptionHandler originalHandler = Thread.getDefaultUncaughtExceptionHandler();
+        TPLogger.addCrashListener(failing);
+        TPLogger.addCrashListener(listener);
+        try {
+            TPLogger.attachUnhandledExceptionLogger();
+            function.lines.clear();
+            Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), new IllegalStateException("crash"));
+            TPLogger.removeCrashListener(listener);
+            Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), new IllegalStateException("again"));
+        } finally {
+            TPLogger.removeCrashListener(failing);
+            TPLogger.removeCrashListener(listener);
+            Thread.setDefaultUncaughtExceptionHandler(originalHandler);
+        }
+        Assert.assertEquals(Arrays.asList("1 crash"), crashes);
+    }
+}
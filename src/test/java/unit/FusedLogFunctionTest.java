@@ -0,0 +1,129 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.FusedLogFunction;
+import com.darkyen.tproll.logfunctions.LogFunctionMultiplexer;
+import com.darkyen.tproll.logfunctions.adapters.LevelFilter;
+import com.darkyen.tproll.logfunctions.adapters.Prepender;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.Arrays;
+
+/**
+ * Test that {@link FusedLogFunction} behaves like the chain it was compiled from
+ */
+public class FusedLogFunctionTest {
+
+    private static final class Collector extends LogFunction {
+        private final StringBuilder out;
+        private final String id;
+
+        Collector(StringBuilder out, String id) {
+            this.out = out;
+            this.id = id;
+        }
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            out.append(id).append(' ').append(TPLogger.levelName(level)).append(' ').append(content).append('\n');
+        }
+    }
+
+    private static LogFunction chain(StringBuilder out, LogFunctionMultiplexer.MuxMarker[] markerOut) {
+        final LogFunctionMultiplexer mux = new LogFunctionMultiplexer();
+        mux.addMuxTarget(new LevelFilter(new Collector(out, "A"), TPLogger.INFO), true);
+        mux.addMuxTarget(new Prepender(new Collector(out, "B"), "b> "), true);
+        markerOut[0] = mux.addMuxTarget(new Prepender(new LevelFilter(new Collector(out, "C"), TPLogger.TRACE, TPLogger.WARN), "c> "), false);
+        return new LevelFilter(new Prepender(mux, "* "), TPLogger.DEBUG);
+    }
+
+    private static void logAll(LogFunction function, Marker marker) {
+        for (byte level = TPLogger.TRACE; level <= TPLogger.LOG; level++) {
+            if (function.isEnabled(level, marker)) {
+                function.log("test", 0, level, marker, "line one\nline two");
+            }
+        }
+    }
+
+    @Test
+    public void fusedMatchesChain() {
+        final StringBuilder chainOut = new StringBuilder();
+        final LogFunctionMultiplexer.MuxMarker[] marker = new LogFunctionMultiplexer.MuxMarker[1];
+        final LogFunction chain = chain(chainOut, marker);
+        logAll(chain, null);
+        logAll(chain, marker[0]);
+
+        final StringBuilder fusedOut = new StringBuilder();
+        final LogFunctionMultiplexer.MuxMarker[] fusedMarker = new LogFunctionMultiplexer.MuxMarker[1];
+        final FusedLogFunction fused = FusedLogFunction.compile(chain(fusedOut, fusedMarker));
+        logAll(fused, null);
+        logAll(fused, fusedMarker[0]);
+
+        Assert.assertEquals(sortedLines(chainOut), sortedLines(fusedOut));
+        Assert.assertTrue(fusedOut.indexOf("C WARN c> * line one\nc> * line two\n") >= 0);
+        Assert.assertFalse(fused.isEnabled(TPLogger.TRACE, null));
+    }
+
+    @Test
+    public void nestedMultiplexersAreFlattened() {
+        final StringBuilder chainOut = new StringBuilder();
+        final LogFunctionMultiplexer.MuxMarker[] markers = new LogFunctionMultiplexer.MuxMarker[2];
+        final LogFunction chain = nestedChain(chainOut, markers);
+        final StringBuilder fusedOut = new StringBuilder();
+        final LogFunctionMultiplexer.MuxMarker[] fusedMarkers = new LogFunctionMultiplexer.MuxMarker[2];
+        final FusedLogFunction fused = FusedLogFunction.compile(nestedChain(fusedOut, fusedMarkers));
+
+        logAll(chain, null);
+        logAll(chain, markers[0]);
+        logAll(chain, markers[1]);
+        logAll(chain, markers[0].newCompound(markers[1]));
+        logAll(fused, null);
+        logAll(fused, fusedMarkers[0]);
+        logAll(fused, fusedMarkers[1]);
+        logAll(fused, fusedMarkers[0].newCompound(fusedMarkers[1]));
+
+        Assert.assertEquals(sortedLines(chainOut), sortedLines(fusedOut));
+        Assert.assertTrue(fusedOut.indexOf("D ERROR") >= 0);
+    }
+
+    private static LogFunction nestedChain(StringBuilder out, LogFunctionMultiplexer.MuxMarker[] markerOut) {
+        final LogFunctionMultiplexer inner = new LogFunctionMultiplexer();
+        inner.addMuxTarget(new Collector(out, "C"), true);
+        markerOut[1] = inner.addMuxTarget(new Collector(out, "D"), false);
+        final LogFunctionMultiplexer outer = new LogFunctionMultiplexer();
+        outer.addMuxTarget(new Collector(out, "A"), true);
+        markerOut[0] = outer.addMuxTarget(new LevelFilter(inner, TPLogger.WARN), false);
+        return outer;
+    }
+
+    @Test
+    public void sharedTargetIsDisposedOnce() {
+        final int[] disposed = new int[1];
+        final LogFunction target = new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            }
+
+            @Override
+            public void dispose() {
+                disposed[0]++;
+            }
+        };
+        final FusedLogFunction fused = new FusedLogFunction.Builder()
+                .add(new Prepender(target, "a> "))
+                .add(new LevelFilter(target, TPLogger.ERROR))
+                .build();
+        fused.dispose();
+        Assert.assertEquals(1, disposed[0]);
+    }
+
+    private static String sortedLines(StringBuilder sb) {
+        final String[] lines = sb.toString().split("\n");
+        Arrays.sort(lines);
+        return String.join("\n", lines);
+    }
+}
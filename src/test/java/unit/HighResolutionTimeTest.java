@@ -0,0 +1,104 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.TimeProvider;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+
+/**
+ * Test for {@link TPLogger#setHighResolutionTime(boolean)}
+ */
+public class HighResolutionTimeTest {
+
+    @After
+    public void restore() {
+        TPLogger.setHighResolutionTime(false);
+        TPLogger.setTimeProvider(TimeProvider.CURRENT_TIME_PROVIDER);
+    }
+
+    @Test
+    public void nanoAdjustAndSequence() {
+        final ArrayList<long[]> logged = new ArrayList<>();
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                logged.add(new long[]{time, -1, -1});
+            }
+
+            @Override
+            public void log(@NotNull String name, long time, int nanoAdjust, long sequence, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+                logged.add(new long[]{time, nanoAdjust, sequence});
+            }
+        });
+        final long[] nanos = {1_000_123_456_789L};
+        TPLogger.setTimeProvider(new TimeProvider() {
+            @Override
+            public long timeMillis() {
+                return nanos[0] / 1_000_000L;
+            }
+
+            @Override
+            public long timeNanos() {
+                return nanos[0];
+            }
+        });
+
+        final TPLogger log = new TPLogger("HighResolution");
+        log.info("Low resolution");
+        TPLogger.setHighResolutionTime(true);
+        log.info("First");
+        nanos[0] += 1500;
+        log.info("Second {}", 2);
+
+        Assert.assertEquals(3, logged.size());
+        Assert.assertArrayEquals(new long[]{1_000_123L, -1, -1}, logged.get(0));
+        Assert.assertEquals(1_000_123L, logged.get(1)[0]);
+        Assert.assertEquals(456_789L, logged.get(1)[1]);
+        Assert.assertEquals(1_000_123L, logged.get(2)[0]);
+        Assert.assertEquals(458_289L, logged.get(2)[1]);
+        Assert.assertEquals(logged.get(1)[2] + 1, logged.get(2)[2]);
+
+        // Time of custom messages is kept as it is
+        log.logCustom("Custom", 42L, TPLogger.INFO, null, "Custom");
+        Assert.assertEquals(4, logged.size());
+        Assert.assertEquals(42L, logged.get(3)[0]);
+        Assert.assertEquals(0L, logged.get(3)[1]);
+        Assert.assertEquals(logged.get(2)[2] + 1, logged.get(3)[2]);
+    }
+
+    @Test
+    public void clockIsReadOnce() {
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+            }
+        });
+        final int[] reads = {0, 0};
+        TPLogger.setTimeProvider(new TimeProvider() {
+            @Override
+            public long timeMillis() {
+                reads[0]++;
+                return 0L;
+            }
+
+            @Override
+            public long timeNanos() {
+                reads[1]++;
+                return 0L;
+            }
+        });
+        final TPLogger log = new TPLogger("HighResolution");
+        log.info("Low resolution");
+        Assert.assertArrayEquals(new int[]{1, 0}, reads);
+        TPLogger.setHighResolutionTime(true);
+        log.info("High resolution");
+        Assert.assertArrayEquals(new int[]{1, 1}, reads);
+    }
+}
@@ -0,0 +1,207 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.JournaldLogFunction;
+import com.darkyen.tproll.util.SimpleMarker;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import static com.darkyen.tproll.util.KeyValue.kv;
+
+/**
+ * Test for {@link JournaldLogFunction}
+ */
+public class JournaldLogFunctionTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    /** Collects datagrams of the native protocol */
+    private static final class NativeOutput implements JournaldLogFunction.Output {
+        final @NotNull ArrayList<byte[]> datagrams = new ArrayList<>();
+
+        @Override
+        public boolean isNative() {
+            return true;
+        }
+
+        @Override
+        public void write(@NotNull ByteBuffer payload) {
+            final byte[] datagram = new byte[payload.remaining()];
+            payload.get(datagram);
+            datagrams.add(datagram);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Parse fields of the native protocol, values of repeated fields are joined with | */
+    private static @NotNull LinkedHashMap<String, String> parse(byte @NotNull [] datagram) {
+        final LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+        final ByteBuffer in = ByteBuffer.wrap(datagram).order(ByteOrder.LITTLE_ENDIAN);
+        while (in.hasRemaining()) {
+            final int keyStart = in.position();
+            byte b;
+            while ((b = in.get()) != '=' && b != '\n') {
+                // Key
+            }
+            final String key = new String(datagram, keyStart, in.position() - 1 - keyStart, StandardCharsets.US_ASCII);
+            final String value;
+            if (b == '=') {
+                final int valueStart = in.position();
+                while (in.get() != '\n') {
+                    // Value
+                }
+                value = new String(datagram, valueStart, in.position() - 1 - valueStart, StandardCharsets.UTF_8);
+            } else {
+                final int length = (int) in.getLong();
+                value = new String(datagram, in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                Assert.assertEquals('\n', in.get());
+            }
+            fields.merge(key, value, (a, c) -> a + "|" + c);
+        }
+        return fields;
+    }
+
+    @Test
+    public void nativeProtocolFields() {
+        final NativeOutput output = new NativeOutput();
+        TPLogger.setLogFunction(new JournaldLogFunction("app", output));
+        TPLogger.INFO();
+        output.datagrams.clear();
+
+        final Marker audit = new SimpleMarker.Renderable("audit");
+        final Marker security = new SimpleMarker() {
+            @Override
+            public String getName() {
+                return "Security";
+            }
+        };
+        security.add(audit);
+        final Exception exception = new IllegalStateException("broken");
+        final TPLogger logger = new TPLogger("Test");
+        logger.warn(security, "Login of {} failed\nafter {} tries", kv("user-name", "bob"), 3, exception);
+        logger.info("Plain");
+
+        Assert.assertEquals(2, output.datagrams.size());
+        final LinkedHashMap<String, String> fields = parse(output.datagrams.get(0));
+        Assert.assertEquals(Arrays.asList("MESSAGE", "PRIORITY", "SYSLOG_IDENTIFIER", "LOGGER", "MARKER", "THREAD_NAME", "USER_NAME", "EXCEPTION", "STACK_TRACE"),
+                new ArrayList<>(fields.keySet()));
+        Assert.assertEquals("Login of user-name=bob failed\nafter 3 tries", fields.get("MESSAGE"));
+        Assert.assertEquals("4", fields.get("PRIORITY"));
+        Assert.assertEquals("app", fields.get("SYSLOG_IDENTIFIER"));
+        Assert.assertEquals("Test", fields.get("LOGGER"));
+        Assert.assertEquals("Security|Renderable[audit]", fields.get("MARKER"));
+        Assert.assertEquals(Thread.currentThread().getName(), fields.get("THREAD_NAME"));
+        Assert.assertEquals("bob", fields.get("USER_NAME"));
+        Assert.assertEquals("java.lang.IllegalStateException: broken", fields.get("EXCEPTION"));
+        Assert.assertTrue(fields.get("STACK_TRACE"), fields.get("STACK_TRACE").startsWith("java.lang.IllegalStateException: broken\n\tat "));
+
+        Assert.assertEquals("Plain", parse(output.datagrams.get(1)).get("MESSAGE"));
+        Assert.assertEquals("6", parse(output.datagrams.get(1)).get("PRIORITY"));
+    }
+
+    @Test
+    public void fieldsAreTruncated() {
+        final NativeOutput output = new NativeOutput();
+        final JournaldLogFunction function = new JournaldLogFunction("app", output);
+        final StringBuilder huge = new StringBuilder();
+        while (huge.length() < JournaldLogFunction.MAX_FIELD_BYTES) {
+            huge.append("žluťoučký ");
+        }
+        function.log("Test", 0L, TPLogger.ERROR, null, huge);
+        final String message = parse(output.datagrams.get(0)).get("MESSAGE");
+        Assert.assertTrue(message.getBytes(StandardCharsets.UTF_8).length <= JournaldLogFunction.MAX_FIELD_BYTES);
+        Assert.assertTrue(huge.toString().startsWith(message));
+        Assert.assertEquals("3", parse(output.datagrams.get(0)).get("PRIORITY"));
+    }
+
+    /** Opens a server socket through reflection, like JournaldSocket, because the classes are only in Java 16+ */
+    private static @NotNull ServerSocketChannel openLocalServer(@NotNull String path) throws IOException {
+        final SocketAddress address;
+        final ServerSocketChannel server;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalArgumentException e) {
+            Assume.assumeNoException("Needs Java 16+", e);
+            throw new AssertionError(e);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e.getCause());
+        }
+        try {
+            server.bind(address);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    @Test
+    public void streamProtocolOverLocalSocket() throws IOException {
+        final File directory = Files.createTempDirectory("tproll-journald").toFile();
+        final File socket = new File(directory, "stdout");
+        try (ServerSocketChannel server = openLocalServer(socket.getPath())) {
+            final JournaldLogFunction.Output output = JournaldLogFunction.streamOutput(socket.getPath(), "app");
+            Assert.assertFalse(output.isNative());
+            final JournaldLogFunction function = new JournaldLogFunction("app", output);
+            try (SocketChannel connection = server.accept()) {
+                function.log("Test", 0L, TPLogger.WARN, new SimpleMarker.Renderable("audit"), "First\nSecond");
+                function.log("Other", 0L, TPLogger.DEBUG, null, "Third");
+                function.dispose();
+
+                final ByteBuffer received = ByteBuffer.allocate(1024);
+                while (connection.read(received) >= 0) {
+                    // Until closed
+                }
+                received.flip();
+                Assert.assertEquals("app\n\n6\n1\n0\n0\n0\n<4>Test | audit: First\n<4>Second\n<7>Other: Third\n",
+                        StandardCharsets.UTF_8.decode(received).toString());
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            socket.delete();
+            //noinspection ResultOfMethodCallIgnored
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void unreachableSocket() {
+        try {
+            JournaldLogFunction.streamOutput("/nonexistent/tproll/journal", "app");
+            Assert.fail();
+        } catch (IOException expected) {
+            // Either not running or not supported
+        }
+    }
+}
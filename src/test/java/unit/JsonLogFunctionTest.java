@@ -0,0 +1,89 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.JsonLogFunction;
+import com.darkyen.tproll.util.SimpleMarker;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static com.darkyen.tproll.util.KeyValue.kv;
+
+/**
+ * Test for {@link JsonLogFunction}
+ */
+public class JsonLogFunctionTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    private static final Marker MARKER = new SimpleMarker() {
+        @Override
+        public String getName() {
+            return "Audit";
+        }
+    };
+
+    @Test
+    public void escapes() {
+        final Utf8Appender out = new Utf8Appender();
+        JsonLogFunction.appendString(out, "a\"b\\c\nd\te\u0001 Žluťoučký 😀");
+        Assert.assertEquals("\"a\\\"b\\\\c\\nd\\te\\u0001 Žluťoučký 😀\"", StandardCharsets.UTF_8.decode(out.buffer()).toString());
+    }
+
+    @Test
+    public void writesStructuredMessages() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonLogFunction function = new JsonLogFunction(Channels.newChannel(out), null);
+        TPLogger.setLogFunction(function);
+        TPLogger.INFO();
+        out.reset();
+        final TPLogger logger = new TPLogger("Test");
+        final String thread = Thread.currentThread().getName();
+
+        final Exception cause = new IllegalArgumentException("bad");
+        cause.setStackTrace(new StackTraceElement[]{new StackTraceElement("Parser", "parse", null, -2)});
+        final Exception exception = new IllegalStateException("broken \"quote\"", cause);
+        exception.setStackTrace(new StackTraceElement[]{new StackTraceElement("Main", "login", "Main.java", 42)});
+
+        logger.info("Plain");
+        logger.warn(MARKER, "Login of {} failed after {} tries, {}", kv("user", "bob"), 3, 1.5, exception);
+        function.log("Custom", 1234L, TPLogger.ERROR, null, "Line\nbreak");
+
+        final String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertTrue(lines[0], lines[0].matches("\\{\"time\":\\d+,\"level\":\"INFO\",\"logger\":\"Test\",\"thread\":\"" + thread + "\",\"message\":\"Plain\"}"));
+        Assert.assertEquals(",\"level\":\"WARN\",\"logger\":\"Test\",\"thread\":\"" + thread + "\",\"markers\":[\"Audit\"]"
+                + ",\"message\":\"Login of user=bob failed after 3 tries, 1.5\""
+                + ",\"template\":\"Login of {} failed after {} tries, {}\""
+                + ",\"arguments\":[{\"user\":\"bob\"},3,1.5,\"java.lang.IllegalStateException: broken \\\"quote\\\"\"]"
+                + ",\"keyValues\":{\"user\":\"bob\"}"
+                + ",\"throwable\":{\"class\":\"java.lang.IllegalStateException\",\"message\":\"broken \\\"quote\\\"\""
+                + ",\"frames\":[{\"class\":\"Main\",\"method\":\"login\",\"file\":\"Main.java\",\"line\":42}]"
+                + ",\"cause\":{\"class\":\"java.lang.IllegalArgumentException\",\"message\":\"bad\",\"frames\":[{\"class\":\"Parser\",\"method\":\"parse\"}]}}}",
+                lines[1].substring(lines[1].indexOf(',')));
+        Assert.assertEquals("{\"time\":1234,\"level\":\"ERROR\",\"logger\":\"Custom\",\"message\":\"Line\\nbreak\"}", lines[2]);
+    }
+
+    @Test
+    public void batchOfFormattedMessages() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonLogFunction function = new JsonLogFunction(Channels.newChannel(out), null);
+        function.logBatch(new LogEvent[]{
+                new LogEvent("A", 1L, 5, 7L, TPLogger.DEBUG, null, "first"),
+                new LogEvent("B", 2L, 0, 0L, TPLogger.LOG, MARKER, "second")
+        }, 0, 2);
+        Assert.assertEquals("{\"time\":1,\"nanoAdjust\":5,\"sequence\":7,\"level\":\"DEBUG\",\"logger\":\"A\",\"message\":\"first\"}\n"
+                + "{\"time\":2,\"level\":\"LOG\",\"logger\":\"B\",\"markers\":[\"Audit\"],\"message\":\"second\"}\n",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,110 @@
+package unit;
+
+import com.darkyen.tproll.LevelOverride;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Test for {@link LevelOverride}
+ */
+public class LevelOverrideTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+        TPLogger.setLevelFloor(TPLogger.TRACE);
+    }
+
+    private static final class CollectingFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+
+        @Override
+        public synchronized void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            lines.add(TPLogger.levelName(level) + " " + content);
+        }
+    }
+
+    private static @NotNull CollectingFunction install() {
+        final CollectingFunction function = new CollectingFunction();
+        TPLogger.setLogFunction(function);
+        TPLogger.INFO();
+        function.lines.clear();
+        return function;
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void overridesOnlyThisThread() throws Exception {
+        final CollectingFunction function = install();
+        final TPLogger logger = new TPLogger("Test");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            logger.debug("Before");
+            try (LevelOverride ignored = LevelOverride.begin(TPLogger.TRACE)) {
+                Assert.assertTrue(logger.isTraceEnabled());
+                logger.trace("Trace {}", 1);
+                logger.log(TPLogger.DEBUG, null, "Debug");
+                Assert.assertFalse(executor.submit(() -> logger.isDebugEnabled()).get());
+                executor.submit(() -> logger.debug("Other thread")).get();
+            }
+            Assert.assertFalse(logger.isTraceEnabled());
+            logger.debug("After");
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(Arrays.asList("TRACE Trace 1", "DEBUG Debug"), function.lines);
+        Assert.assertEquals(TPLogger.LOG, LevelOverride.currentLevel());
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void nestsAndTravelsWithTasks() throws Exception {
+        final CollectingFunction function = install();
+        final TPLogger logger = new TPLogger("Test");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LevelOverride outer = LevelOverride.begin(TPLogger.DEBUG)) {
+            try (LevelOverride inner = LevelOverride.begin(TPLogger.TRACE)) {
+                Assert.assertEquals(TPLogger.TRACE, LevelOverride.currentLevel());
+                try {
+                    outer.close();
+                    Assert.fail();
+                } catch (IllegalStateException expected) {
+                    // Inner is still open
+                }
+            }
+            Assert.assertEquals(TPLogger.DEBUG, LevelOverride.currentLevel());
+            logger.trace("Not logged");
+            executor.submit(LevelOverride.wrapCurrent(() -> logger.debug("In task"))).get();
+            executor.submit(() -> logger.debug("Not in task")).get();
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(Arrays.asList("DEBUG In task"), function.lines);
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void neverLessVerboseAndRespectsFloor() {
+        final CollectingFunction function = install();
+        final TPLogger logger = new TPLogger("Test");
+        try (LevelOverride ignored = LevelOverride.begin(TPLogger.ERROR)) {
+            logger.info("Still logged");
+        }
+        TPLogger.setLevelFloor(TPLogger.WARN);
+        try (LevelOverride ignored = LevelOverride.begin(TPLogger.TRACE)) {
+            logger.debug("Shed");
+            logger.warn("Logged");
+        }
+        Assert.assertEquals(Arrays.asList("INFO Still logged", "WARN Logged"), function.lines);
+    }
+}
@@ -0,0 +1,173 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.adapters.LoadSheddingDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test for {@link LoadSheddingDispatcher} and {@link TPLogger#setLevelFloor(byte)}
+ */
+public class LoadSheddingDispatcherTest {
+
+    @After
+    public void restore() {
+        TPLogger.setLevelFloor(TPLogger.TRACE);
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void levelFloor() {
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            }
+        });
+        TPLogger.DEBUG();
+        final TPLogger logger = new TPLogger("Floor");
+        TPLogger.setLevelFloor(TPLogger.WARN);
+        for (byte level = TPLogger.TRACE; level <= TPLogger.LOG; level++) {
+            TPLogger.takeShedCount(level);
+        }
+        Assert.assertEquals(TPLogger.DEBUG, TPLogger.getLogLevel());
+        Assert.assertFalse(logger.isInfoEnabled());
+        Assert.assertTrue(logger.isWarnEnabled());
+
+        logger.trace("not counted, log level does not allow it");
+        logger.debug("d");
+        logger.info("i {}", 1);
+        logger.info("i {} {}", 1, 2);
+        logger.log(TPLogger.INFO, null, "i");
+        logger.warn("w");
+        Assert.assertEquals(0, TPLogger.takeShedCount(TPLogger.TRACE));
+        Assert.assertEquals(1, TPLogger.takeShedCount(TPLogger.DEBUG));
+        Assert.assertEquals(3, TPLogger.takeShedCount(TPLogger.INFO));
+        Assert.assertEquals(0, TPLogger.takeShedCount(TPLogger.INFO));
+
+        TPLogger.setLevelFloor(TPLogger.TRACE);
+        Assert.assertTrue(logger.isDebugEnabled());
+        Assert.assertFalse(logger.isTraceEnabled());
+    }
+
+    @Test
+    public void concurrentLevelChangesKeepFlagsConsistent() throws InterruptedException {
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            }
+        });
+        final TPLogger logger = new TPLogger("Race");
+        for (int round = 0; round < 200; round++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            final Thread floor = new Thread(() -> {
+                awaitQuietly(start);
+                TPLogger.setLevelFloor(TPLogger.WARN);
+                TPLogger.setLevelFloor(TPLogger.TRACE);
+            });
+            final Thread level = new Thread(() -> {
+                awaitQuietly(start);
+                TPLogger.INFO();
+                TPLogger.DEBUG();
+            });
+            floor.start();
+            level.start();
+            start.countDown();
+            floor.join();
+            level.join();
+            Assert.assertTrue(logger.isDebugEnabled());
+            Assert.assertFalse(logger.isTraceEnabled());
+        }
+    }
+
+    private static void awaitQuietly(@NotNull CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Blocks in log while blocked */
+    private static final class SlowFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+        /** Opened when a message is blocked */
+        final @NotNull CountDownLatch waiting = new CountDownLatch(1);
+        private boolean blocked = false;
+
+        synchronized void setBlocked(boolean blocked) {
+            this.blocked = blocked;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            while (blocked) {
+                waiting.countDown();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            lines.add(name + ": " + content);
+        }
+    }
+
+    @Test
+    public void shedsLowLevelsFirstAndPrioritizesErrors() throws InterruptedException {
+        final SlowFunction slow = new SlowFunction();
+        final LoadSheddingDispatcher dispatcher = new LoadSheddingDispatcher(slow, 40, 60_000, 60_000);
+        TPLogger.setLogFunction(dispatcher);
+        TPLogger.TRACE();
+        Assert.assertTrue(dispatcher.flush(10_000));
+        slow.lines.clear();
+
+        final TPLogger logger = new TPLogger("Test");
+        slow.setBlocked(true);
+        logger.info("first");
+        // Dispatcher is now stuck on the first message
+        Assert.assertTrue(slow.waiting.await(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100; i++) {
+            logger.trace("t");
+            logger.debug("d");
+            logger.info("i");
+            if (i < 30) logger.error("e");
+        }
+        Assert.assertEquals(TPLogger.WARN, dispatcher.getShedLevel());
+        Assert.assertEquals(TPLogger.WARN, TPLogger.getLevelFloor());
+        Assert.assertFalse(logger.isInfoEnabled());
+        Assert.assertTrue(logger.isErrorEnabled());
+
+        slow.setBlocked(false);
+        Assert.assertTrue(dispatcher.flush(10_000));
+        Assert.assertEquals(TPLogger.TRACE, dispatcher.getShedLevel());
+        Assert.assertEquals(TPLogger.TRACE, TPLogger.getLevelFloor());
+
+        final ArrayList<String> lines = slow.lines;
+        Assert.assertEquals("Test: first", lines.get(0));
+        // Errors skip the backlog
+        for (int i = 1; i <= 30; i++) {
+            Assert.assertEquals("Test: e", lines.get(i));
+        }
+        final int delivered = lines.size() - 31;
+        Assert.assertTrue(delivered > 0 && delivered <= 40);
+
+        dispatcher.dispose();
+        final String report = lines.get(lines.size() - 1);
+        final Matcher matcher = Pattern.compile("LoadShedding: Shed (\\d+) TRACE, (\\d+) DEBUG, (\\d+) INFO messages in the last \\d+m?s, no longer dropping messages").matcher(report);
+        Assert.assertTrue(report, matcher.matches());
+        final int shed = Integer.parseInt(matcher.group(1)) + Integer.parseInt(matcher.group(2)) + Integer.parseInt(matcher.group(3));
+        Assert.assertEquals(300, shed + delivered);
+    }
+}
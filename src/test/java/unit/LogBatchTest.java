@@ -0,0 +1,120 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.FileLogFunction;
+import com.darkyen.tproll.logfunctions.ILogFileHandler;
+import com.darkyen.tproll.logfunctions.LogFunctionMultiplexer;
+import com.darkyen.tproll.util.TimeFormatter;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Test for {@link LogFunction#logBatch(LogEvent[], int, int)} and its implementations
+ */
+public class LogBatchTest {
+
+    private static final class CollectingFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+        int batches = 0;
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            lines.add(name + ": " + content);
+        }
+
+        @Override
+        public void logBatch(@NotNull LogEvent @NotNull [] events, int from, int to) {
+            batches++;
+            super.logBatch(events, from, to);
+        }
+    }
+
+    private static final class CollectingFileHandler implements ILogFileHandler {
+        final @NotNull ArrayList<String> writes = new ArrayList<>();
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void log(@NotNull CharSequence message) {
+            throw new AssertionError("Expected ByteBuffer");
+        }
+
+        @Override
+        public void log(@NotNull ByteBuffer message) {
+            writes.add(StandardCharsets.UTF_8.decode(message).toString());
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+
+    private static @NotNull LogEvent @NotNull [] events(@NotNull Marker... markers) {
+        final LogEvent[] events = new LogEvent[markers.length + 2];
+        events[0] = new LogEvent("Skipped", 0L, 0, 0L, TPLogger.INFO, null, "");
+        for (int i = 0; i < markers.length; i++) {
+            events[i + 1] = new LogEvent("Test", 1000L * i, 0, 0L, TPLogger.INFO, markers[i], "Message " + i);
+        }
+        events[events.length - 1] = new LogEvent("Skipped", 0L, 0, 0L, TPLogger.INFO, null, "");
+        return events;
+    }
+
+    @Test
+    public void defaultLogsEachEvent() {
+        final CollectingFunction function = new CollectingFunction();
+        final LogEvent[] events = events(null, null, null);
+        function.logBatch(events, 1, events.length - 1);
+        Assert.assertEquals(Arrays.asList("Test: Message 0", "Test: Message 1", "Test: Message 2"), function.lines);
+    }
+
+    @Test
+    public void fileLogFunctionWritesOnce() {
+        final CollectingFileHandler handler = new CollectingFileHandler();
+        final FileLogFunction function = new FileLogFunction(new TimeFormatter.RelativeTimeFormatter(false, false, false, false, false), handler, false);
+        final LogEvent[] events = events(null, null, null);
+        function.logBatch(events, 1, events.length - 1);
+
+        final CollectingFileHandler singleHandler = new CollectingFileHandler();
+        final FileLogFunction single = new FileLogFunction(new TimeFormatter.RelativeTimeFormatter(false, false, false, false, false), singleHandler, false);
+        for (int i = 1; i < events.length - 1; i++) {
+            final LogEvent e = events[i];
+            single.log(e.getName(), e.getTime(), e.getNanoAdjust(), e.getSequence(), e.getLevel(), e.getMarker(), e.getContent());
+        }
+
+        Assert.assertEquals(1, handler.writes.size());
+        Assert.assertEquals(3, singleHandler.writes.size());
+        Assert.assertEquals(String.join("", singleHandler.writes), handler.writes.get(0));
+    }
+
+    @Test
+    public void multiplexerPassesBatchToEachTarget() {
+        final CollectingFunction all = new CollectingFunction();
+        final CollectingFunction marked = new CollectingFunction();
+        final CollectingFunction unused = new CollectingFunction();
+        final LogFunctionMultiplexer multiplexer = new LogFunctionMultiplexer(all);
+        final Marker marker = multiplexer.addMuxTarget(marked, false);
+        multiplexer.addMuxTarget(unused, false);
+
+        final LogEvent[] events = events(null, marker, null, marker);
+        multiplexer.logBatch(events, 1, events.length - 1);
+
+        Assert.assertEquals(1, all.batches);
+        Assert.assertEquals(Arrays.asList("Test: Message 0", "Test: Message 1", "Test: Message 2", "Test: Message 3"), all.lines);
+        Assert.assertEquals(1, marked.batches);
+        Assert.assertEquals(Arrays.asList("Test: Message 1", "Test: Message 3"), marked.lines);
+        Assert.assertEquals(0, unused.batches);
+        Assert.assertEquals(Collections.emptyList(), unused.lines);
+    }
+}
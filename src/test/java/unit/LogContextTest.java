@@ -0,0 +1,132 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.TPMDCAdapter;
+import com.darkyen.tproll.util.KeyValue;
+import com.darkyen.tproll.util.LogContext;
+import com.darkyen.tproll.util.PatternLayout;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.MDC;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.darkyen.tproll.util.KeyValue.kv;
+
+/**
+ * Test for {@link LogContext} and {@link TPMDCAdapter}
+ */
+public class LogContextTest {
+
+    @After
+    public void restore() {
+        LogContext.set(LogContext.EMPTY);
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void contextsAreImmutable() {
+        final LogContext empty = LogContext.EMPTY;
+        final LogContext one = empty.with("request", "r1");
+        final LogContext two = one.with("user", "bob");
+        Assert.assertTrue(empty.isEmpty());
+        Assert.assertEquals("{request=r1}", one.toString());
+        Assert.assertEquals("{request=r1, user=bob}", two.toString());
+        Assert.assertEquals("bob", two.get(new String(new char[]{'u', 's', 'e', 'r'})));
+        Assert.assertSame(two, two.with("user", "bob"));
+        Assert.assertEquals("{request=r2, user=bob}", two.with("request", "r2").toString());
+        Assert.assertEquals("{user=bob}", two.without("request").toString());
+        Assert.assertSame(LogContext.EMPTY, one.without("request"));
+        Assert.assertSame(one, one.with("user", null).with("missing", null));
+        // Keys are interned
+        Assert.assertSame("user", two.entry(1).getKey());
+    }
+
+    @Test
+    public void mdcKeepsThreadContext() throws Exception {
+        Assert.assertTrue(MDC.getMDCAdapter() instanceof TPMDCAdapter);
+        MDC.put("request", "r1");
+        final LogContext snapshot = LogContext.current();
+        MDC.put("user", "bob");
+        Assert.assertEquals("{request=r1}", snapshot.toString());
+        Assert.assertEquals("bob", MDC.get("user"));
+        Assert.assertEquals("{request=r1, user=bob}", MDC.getCopyOfContextMap().toString());
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertNull(executor.submit(() -> MDC.get("request")).get());
+            Assert.assertEquals("r1", executor.submit(LogContext.wrap(() -> MDC.get("request"))).get());
+            final Executor propagating = LogContext.wrap((Executor) executor);
+            final String[] seen = new String[1];
+            executor.submit(() -> {}).get();
+            propagating.execute(() -> seen[0] = MDC.get("user"));
+            executor.submit(() -> {}).get();
+            Assert.assertEquals("bob", seen[0]);
+            // Worker thread has its own context back
+            Assert.assertTrue(executor.submit(() -> LogContext.current().isEmpty()).get());
+        } finally {
+            executor.shutdown();
+        }
+
+        MDC.remove("request");
+        Assert.assertEquals("{user=bob}", LogContext.current().toString());
+        MDC.clear();
+        Assert.assertNull(MDC.getCopyOfContextMap());
+        MDC.setContextMap(Collections.singletonMap("a", "b"));
+        Assert.assertEquals("b", MDC.get("a"));
+    }
+
+    @Test
+    public void eventsCarryContextAsKeyValues() {
+        final ArrayList<String> keyValues = new ArrayList<>();
+        final LogContext[] contexts = new LogContext[1];
+        TPLogger.setLogFunction(new LogFunction() {
+            @Override
+            public boolean logEvent(@NotNull LogEvent event) {
+                for (KeyValue keyValue : event.getKeyValues()) {
+                    keyValues.add(keyValue.toString());
+                }
+                contexts[0] = event.getContext();
+                return true;
+            }
+
+            @Override
+            public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+            }
+        });
+        TPLogger.INFO();
+
+        LogContext.put("request", "r1");
+        new TPLogger("Test").info("Logged in {}", kv("user", "bob"));
+        Assert.assertEquals(Arrays.asList("request=r1", "user=bob"), keyValues);
+        Assert.assertSame(LogContext.current(), contexts[0]);
+
+        // Formatted events get the context as well
+        final LogEvent event = new LogEvent("Test", 0L, 0, 0L, TPLogger.INFO, null, "Message");
+        event.setContext(LogContext.current().with("tenant", "t"));
+        event.addKeyValue(kv("extra", 1));
+        event.setContext(LogContext.current());
+        Assert.assertEquals(Arrays.asList(kv("request", "r1"), kv("extra", 1)), event.getKeyValues());
+    }
+
+    @Test
+    public void patternLayoutRendersContext() {
+        final PatternLayout layout = new PatternLayout("[%X{request}] [%-8X{missing}] %msg {%mdc}");
+        LogContext.put("request", "r1");
+        LogContext.put("user", "bob");
+        final StringBuilder sb = new StringBuilder();
+        layout.format(sb, "Test", 0L, 0, 0L, TPLogger.INFO, null, "Message");
+        Assert.assertEquals("[r1] [        ] Message {request=r1, user=bob}", sb.toString());
+    }
+}
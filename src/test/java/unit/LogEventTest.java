@@ -0,0 +1,130 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.LogFunctionMultiplexer;
+import com.darkyen.tproll.util.KeyValue;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.darkyen.tproll.util.KeyValue.kv;
+
+/**
+ * Test for {@link LogFunction#logEvent(LogEvent)}
+ */
+public class LogEventTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    /** Counts how many times it was formatted */
+    private static final class Counted {
+        int formatted = 0;
+
+        @Override
+        public String toString() {
+            formatted++;
+            return "counted";
+        }
+    }
+
+    private static final class StructuredFunction extends LogFunction {
+        final @NotNull ArrayList<String> events = new ArrayList<>();
+        boolean wantContent = false;
+
+        @Override
+        public boolean logEvent(@NotNull LogEvent event) {
+            final Throwable throwable = event.getThrowable();
+            events.add(event.getTemplate() + " " + event.getArguments().size() + " " + event.getKeyValues()
+                    + " " + (throwable == null ? null : throwable.getMessage()) + " " + event.getThreadName()
+                    + (wantContent ? " " + event.getContent() : ""));
+            return true;
+        }
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            throw new AssertionError("Should not be called");
+        }
+    }
+
+    private static final class TextFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            lines.add(content.toString());
+        }
+    }
+
+    @Test
+    public void structuredFunctionDoesNotFormat() {
+        final StructuredFunction function = new StructuredFunction();
+        TPLogger.setLogFunction(function);
+        TPLogger.INFO();
+        // Level change may be logged
+        function.events.clear();
+        final TPLogger logger = new TPLogger("Test");
+        final Counted counted = new Counted();
+        final String thread = Thread.currentThread().getName();
+
+        logger.info("Plain");
+        logger.info("Logged in {} with {}", kv("user", "bob"), counted);
+        logger.warn("Failed {}", kv("attempt", 3), new IllegalStateException("broken"));
+
+        Assert.assertEquals(0, counted.formatted);
+        Assert.assertEquals(Arrays.asList(
+                "Plain 0 [] null " + thread,
+                "Logged in {} with {} 2 [user=bob] null " + thread,
+                "Failed {} 2 [attempt=3] broken " + thread), function.events);
+
+        function.wantContent = true;
+        logger.info("Logged in {} with {}", kv("user", "bob"), counted);
+        Assert.assertEquals(1, counted.formatted);
+        Assert.assertEquals("Logged in {} with {} 2 [user=bob] null " + thread + " Logged in user=bob with counted", function.events.get(3));
+    }
+
+    @Test
+    public void multiplexerFormatsOnceForTextTargets() {
+        final StructuredFunction structured = new StructuredFunction();
+        final TextFunction textA = new TextFunction();
+        final TextFunction textB = new TextFunction();
+        TPLogger.setLogFunction(new LogFunctionMultiplexer(structured, textA, textB));
+        TPLogger.INFO();
+        structured.events.clear();
+        textA.lines.clear();
+        textB.lines.clear();
+        final TPLogger logger = new TPLogger("Test");
+        final Counted counted = new Counted();
+
+        logger.info("Value {} {}", counted, kv("id", 42));
+
+        Assert.assertEquals(1, counted.formatted);
+        Assert.assertEquals(1, structured.events.size());
+        Assert.assertEquals(Collections.singletonList("Value counted id=42"), textA.lines);
+        Assert.assertEquals(textA.lines, textB.lines);
+    }
+
+    @Test
+    public void keyValues() {
+        final LogEvent event = new LogEvent().setTemplate("Test", 0L, 0, 0L, TPLogger.INFO, null, "{} {}", Arrays.asList(kv("a", 1), "b"));
+        event.addKeyValue(kv("c", null));
+        Assert.assertEquals(Arrays.asList(kv("a", 1), kv("c", null)), event.getKeyValues());
+        Assert.assertEquals("a=1 b", event.getContent().toString());
+        Assert.assertEquals("a=1", new KeyValue("a", 1).toString());
+
+        event.set("Test", 0L, 0, 0L, TPLogger.INFO, null, "Formatted");
+        Assert.assertNull(event.getTemplate());
+        Assert.assertTrue(event.getKeyValues().isEmpty());
+        Assert.assertEquals("Formatted", event.getContent());
+    }
+}
@@ -0,0 +1,154 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.TPLoggerFactory;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test for {@link TPLogger#swapLogFunction(LogFunction)}
+ */
+public class LogFunctionSwapTest {
+
+    private static final class CountingFunction extends LogFunction {
+        final AtomicLong logged = new AtomicLong();
+        final AtomicInteger loggedAfterDispose = new AtomicInteger();
+        volatile boolean disposed = false;
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            if (disposed) {
+                loggedAfterDispose.incrementAndGet();
+            }
+            // Make the window in which the function is in use wider
+            Thread.yield();
+            logged.incrementAndGet();
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+        }
+    }
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void swapUnderLoad() throws InterruptedException {
+        TPLogger.INFO();
+        final TPLogger log = new TPLoggerFactory().getLogger("SwapTest");
+        final ArrayList<CountingFunction> functions = new ArrayList<>();
+        final CountingFunction first = new CountingFunction();
+        functions.add(first);
+        TPLogger.setLogFunction(first);
+
+        final int threads = 4;
+        final int messagesPerThread = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread("SwapTest " + i) {
+                @Override
+                public void run() {
+                    for (int j = 0; j < messagesPerThread; j++) {
+                        log.info("Message {}", j);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        while (done.getCount() > 0) {
+            final CountingFunction next = new CountingFunction();
+            functions.add(next);
+            final LogFunction old = TPLogger.swapLogFunction(next);
+            Assert.assertTrue(((CountingFunction) old).disposed);
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        long total = 0;
+        for (CountingFunction function : functions) {
+            Assert.assertEquals("Function used after dispose", 0, function.loggedAfterDispose.get());
+            total += function.logged.get();
+        }
+        Assert.assertEquals((long) threads * messagesPerThread, total);
+        Assert.assertTrue("Expected some swaps to happen", functions.size() > 2);
+    }
+
+    private static final class StrictFunction extends LogFunction {
+        volatile boolean disposed = false;
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            if (disposed) {
+                throw new IllegalStateException("Logged after dispose");
+            }
+        }
+
+        @Override
+        public boolean isEnabled(byte level, Marker marker) {
+            if (disposed) {
+                throw new IllegalStateException("Queried after dispose");
+            }
+            return true;
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+        }
+    }
+
+    @Test
+    public void backToBackSwaps() throws InterruptedException {
+        TPLogger.INFO();
+        final TPLogger log = new TPLoggerFactory().getLogger("SwapTest");
+        TPLogger.setLogFunction(new StrictFunction());
+
+        final int threads = Runtime.getRuntime().availableProcessors() * 2 + 2;
+        final int messagesPerThread = 50000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread("SwapTest " + i) {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < messagesPerThread && failure.get() == null; j++) {
+                            if (log.isInfoEnabled()) {
+                                log.info("Message {}", j);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        int swaps = 0;
+        while (done.getCount() > 0) {
+            TPLogger.swapLogFunction(new StrictFunction());
+            swaps++;
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError("Function used after dispose, after " + swaps + " swaps", failure.get());
+        }
+    }
+}
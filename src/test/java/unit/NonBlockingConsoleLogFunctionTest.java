@@ -0,0 +1,138 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.NonBlockingConsoleLogFunction;
+import com.darkyen.tproll.util.AnsiColor;
+import com.darkyen.tproll.util.PatternLayout;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test for {@link NonBlockingConsoleLogFunction}
+ */
+public class NonBlockingConsoleLogFunctionTest {
+
+    private static final String N = System.lineSeparator();
+
+    /** Blocks all writes until opened */
+    private static final class GatedChannel implements WritableByteChannel {
+        final @NotNull CountDownLatch gate;
+        final @NotNull StringBuffer written = new StringBuffer();
+
+        GatedChannel(@NotNull CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        GatedChannel() {
+            this(new CountDownLatch(1));
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            final int length = src.remaining();
+            final byte[] bytes = new byte[length];
+            src.get(bytes);
+            written.append(new String(bytes, StandardCharsets.UTF_8));
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static int count(@NotNull String text, @NotNull String line) {
+        int count = 0;
+        for (String l : text.split(N)) {
+            if (l.equals(line)) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void slowConsoleDoesNotBlockAndDropsLowSeverityFirst() {
+        final GatedChannel channel = new GatedChannel();
+        // Each line is 7 bytes and the separator, so the queue holds 125 of them (111 with \r\n)
+        final int fits = 1000 / (7 + N.length());
+        final NonBlockingConsoleLogFunction function = new NonBlockingConsoleLogFunction(new PatternLayout("%-5level %m"), channel, channel, 1000);
+
+        // Writer takes the first line and blocks on it
+        function.log("Test", 0, TPLogger.INFO, null, "f");
+        Assert.assertFalse(function.flush(50));
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            function.log("Test", 0, TPLogger.DEBUG, null, "d");
+            function.log("Test", 0, TPLogger.INFO, null, "i");
+            function.log("Test", 0, TPLogger.ERROR, null, "e");
+        }
+        Assert.assertTrue("Logging blocked", System.nanoTime() - start < 5_000_000_000L);
+
+        channel.gate.countDown();
+        Assert.assertTrue(function.flush(10_000));
+        final String written = channel.written.toString();
+
+        final int debug = count(written, "DEBUG d");
+        final int info = count(written, "INFO  i");
+        final int error = count(written, "ERROR e");
+        Assert.assertEquals(1, count(written, "INFO  f"));
+        Assert.assertTrue(debug <= info);
+        Assert.assertTrue(info < error);
+        Assert.assertEquals(fits, debug + info + error);
+        Assert.assertEquals(1, count(written, "dropped " + (600 - fits) + " lines"));
+        function.dispose();
+    }
+
+    @Test
+    public void writesEverythingWhenFast() {
+        final GatedChannel channel = new GatedChannel();
+        channel.gate.countDown();
+        final NonBlockingConsoleLogFunction function = new NonBlockingConsoleLogFunction(new PatternLayout("%m"), channel, channel, 1 << 20);
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            function.log("Test", 0, TPLogger.INFO, null, "line " + i);
+            expected.append("line ").append(i).append(N);
+        }
+        Assert.assertTrue(function.flush(10_000));
+        Assert.assertEquals(expected.toString(), channel.written.toString());
+        function.dispose();
+    }
+
+    @Test
+    public void dropNoticeGoesToStreamOfDroppedLines() {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final GatedChannel out = new GatedChannel(gate);
+        final GatedChannel err = new GatedChannel(gate);
+        final NonBlockingConsoleLogFunction function = new NonBlockingConsoleLogFunction(new PatternLayout("%-5level %m"), out, err, 100);
+        final int fits = 100 / (7 + N.length());
+
+        function.log("Test", 0, TPLogger.ERROR, null, "f");
+        Assert.assertFalse(function.flush(50));
+        for (int i = 0; i < 20; i++) {
+            function.log("Test", 0, TPLogger.ERROR, null, "e");
+        }
+        gate.countDown();
+        Assert.assertTrue(function.flush(10_000));
+        function.dispose();
+
+        // Errors go to stderr, unless the console has colors
+        final GatedChannel expected = AnsiColor.COLOR_SUPPORTED ? out : err;
+        Assert.assertEquals(1, count(expected.written.toString(), "dropped " + (20 - fits) + " lines"));
+    }
+}
@@ -0,0 +1,97 @@
+package unit;
+
+import com.darkyen.tproll.LogEvent;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.AnsiColor;
+import com.darkyen.tproll.util.PatternLayout;
+import com.darkyen.tproll.util.TimeProvider;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.ZoneId;
+
+/**
+ * Test for {@link PatternLayout}
+ */
+public class PatternLayoutTest {
+
+    @After
+    public void restore() {
+        TPLogger.setTimeProvider(TimeProvider.CURRENT_TIME_PROVIDER);
+    }
+
+    private static @NotNull String format(@NotNull PatternLayout layout, @NotNull String name, long time, byte level, @NotNull String message) {
+        final StringBuilder sb = new StringBuilder();
+        layout.format(sb, name, time, 0, 7, level, null, message);
+        return sb.toString();
+    }
+
+    @Test
+    public void layout() {
+        TPLogger.setTimeProvider(new TimeProvider() {
+            @Override
+            public long timeMillis() {
+                return 0;
+            }
+
+            @Override
+            public @NotNull ZoneId timeZone() {
+                return ZoneId.of("UTC");
+            }
+        });
+
+        final PatternLayout layout = new PatternLayout("%d{HH:mm:ss.SSS} %-5level [%.4thread] %logger{12}: %msg 100%% %sn%n");
+        Assert.assertTrue(layout.endsWithNewline());
+        final String thread = Thread.currentThread().getName();
+        Assert.assertEquals("01:02:03.456 INFO  [" + thread.substring(Math.max(0, thread.length() - 4)) + "] c.d.t.Logger: Hello 100% 7\n",
+                format(layout, "com.darkyen.tproll.Logger", 3723456L, TPLogger.INFO, "Hello"));
+
+        Assert.assertEquals("[  WARN|x   ] 42", format(new PatternLayout("[%6p|%-4c] %r"), "x", 42, TPLogger.WARN, ""));
+        Assert.assertEquals(AnsiColor.RED + "ERROR" + AnsiColor.RESET + " m", format(new PatternLayout("%level %m", true), "x", 0, TPLogger.ERROR, "m"));
+    }
+
+    @Test
+    public void escapedNewlineIsNotLineBreak() {
+        final PatternLayout escaped = new PatternLayout("%m %%n");
+        Assert.assertFalse(escaped.endsWithNewline());
+        Assert.assertEquals("m %n", format(escaped, "x", 0, TPLogger.INFO, "m"));
+        Assert.assertTrue(new PatternLayout("%m %%%n").endsWithNewline());
+    }
+
+    @Test
+    public void threadIsTakenFromEvent() {
+        final PatternLayout layout = new PatternLayout("%t: %m");
+        final Thread thread = new Thread(() -> {}, "Worker");
+        final LogEvent event = new LogEvent("x", 0L, 0, 0L, TPLogger.INFO, null, "m").setThread(thread);
+        final StringBuilder sb = new StringBuilder();
+        layout.format(sb, event);
+        Assert.assertEquals("Worker: m", sb.toString());
+
+        // Renamed threads are not cached under their old name
+        final String originalName = Thread.currentThread().getName();
+        try {
+            Thread.currentThread().setName("Before");
+            Assert.assertEquals("Before: m", format(layout, "x", 0, TPLogger.INFO, "m"));
+            Thread.currentThread().setName("After");
+            Assert.assertEquals("After: m", format(layout, "x", 0, TPLogger.INFO, "m"));
+        } finally {
+            Thread.currentThread().setName(originalName);
+        }
+    }
+
+    @Test
+    public void abbreviate() {
+        Assert.assertEquals("com.darkyen.tproll.TPLogger", PatternLayout.abbreviate("com.darkyen.tproll.TPLogger", 30));
+        Assert.assertEquals("c.darkyen.tproll.TPLogger", PatternLayout.abbreviate("com.darkyen.tproll.TPLogger", 25));
+        Assert.assertEquals("c.d.tproll.TPLogger", PatternLayout.abbreviate("com.darkyen.tproll.TPLogger", 20));
+        Assert.assertEquals("c.d.t.TPLogger", PatternLayout.abbreviate("com.darkyen.tproll.TPLogger", 0));
+        Assert.assertEquals("TPLogger", PatternLayout.abbreviate("TPLogger", 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownConversion() {
+        new PatternLayout("%foo");
+    }
+}
@@ -0,0 +1,135 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.LogFunctionMultiplexer;
+import com.darkyen.tproll.logfunctions.adapters.ExpressionFilter;
+import com.darkyen.tproll.logfunctions.adapters.RateLimiter;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+
+/**
+ * Test for {@link RateLimiter}
+ */
+public class RateLimiterTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    @Test
+    public void suppressesRunawayCallSite() {
+        final ArrayList<String> lines = new ArrayList<>();
+        final RateLimiter limiter = new RateLimiter(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                lines.add(name + ": " + content);
+            }
+        }, 0.01, 3, 0);
+        TPLogger.setLogFunction(limiter);
+        TPLogger.INFO();
+        lines.clear();
+
+        final int[] formatted = {0};
+        final Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "x";
+            }
+        };
+
+        final TPLogger loop = new TPLogger("Loop");
+        final TPLogger other = new TPLogger("Other");
+        for (int i = 0; i < 1000; i++) {
+            loop.info("retrying {}", argument);
+        }
+        loop.info("different {}", argument);
+        other.info("retrying {}", argument);
+        // Queries do not consume tokens
+        Assert.assertTrue(loop.isInfoEnabled());
+
+        Assert.assertEquals(5, formatted[0]);
+        Assert.assertEquals(5, lines.size());
+        Assert.assertEquals("Loop: retrying x", lines.get(0));
+        Assert.assertEquals("Loop: different x", lines.get(3));
+        Assert.assertEquals("Other: retrying x", lines.get(4));
+
+        limiter.summarize();
+        Assert.assertEquals(6, lines.size());
+        Assert.assertTrue(lines.get(5), lines.get(5).startsWith("Loop: Suppressed 997 messages like \"retrying {}\" in the last "));
+
+        limiter.summarize();
+        Assert.assertEquals(6, lines.size());
+    }
+
+    @Test
+    public void messagesRejectedLaterKeepTheirTokens() {
+        final ArrayList<String> lines = new ArrayList<>();
+        final RateLimiter limiter = new RateLimiter(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                lines.add(content.toString());
+            }
+        }, 0.01, 3, 0);
+        // Message condition is decided only after the limiter was asked
+        TPLogger.setLogFunction(new ExpressionFilter(limiter, "message *= 'keep'"));
+        TPLogger.INFO();
+        lines.clear();
+
+        final TPLogger log = new TPLogger("Loop");
+        for (int i = 0; i < 10; i++) {
+            log.info("{}", "drop");
+        }
+        for (int i = 0; i < 10; i++) {
+            log.info("{}", "keep");
+        }
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals("keep", lines.get(0));
+    }
+
+    @Test
+    public void limitsAsSecondMultiplexerTarget() {
+        final ArrayList<String> all = new ArrayList<>();
+        final ArrayList<String> limited = new ArrayList<>();
+        final RateLimiter limiter = new RateLimiter(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                limited.add(name + ": " + content);
+            }
+        }, 0.01, 3, 0);
+        // First target is enabled, so the limiter is never asked whether it is
+        TPLogger.setLogFunction(new LogFunctionMultiplexer(new LogFunction() {
+            @Override
+            public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+                all.add(content.toString());
+            }
+        }, limiter));
+        TPLogger.INFO();
+        all.clear();
+
+        final TPLogger loop = new TPLogger("Loop");
+        for (int i = 0; i < 10; i++) {
+            loop.info("retrying {}", i);
+        }
+        limiter.log("Loop", 0L, TPLogger.INFO, null, "formatted");
+        limiter.log("Loop", 0L, TPLogger.INFO, null, "formatted");
+        Assert.assertEquals(10, all.size());
+        Assert.assertEquals(5, limited.size());
+        Assert.assertEquals("Loop: retrying 2", limited.get(2));
+        Assert.assertEquals("Loop: formatted", limited.get(4));
+
+        // Queries do not count as suppressed
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(limiter.isEnabled("Loop", TPLogger.INFO, null, "retrying {}"));
+        }
+        limiter.summarize();
+        Assert.assertEquals("Loop: Suppressed 7 messages like \"retrying {}\" in the last ", limited.get(5).replaceAll("\\d+m?s$", ""));
+    }
+}
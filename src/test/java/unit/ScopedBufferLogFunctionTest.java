@@ -0,0 +1,135 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.adapters.ScopedBufferLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Test for {@link ScopedBufferLogFunction}
+ */
+public class ScopedBufferLogFunctionTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    private static final class CollectingFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+
+        @Override
+        public synchronized void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            lines.add(TPLogger.levelName(level) + " " + content);
+        }
+    }
+
+    private static @NotNull ScopedBufferLogFunction install(@NotNull CollectingFunction parent) {
+        final ScopedBufferLogFunction function = new ScopedBufferLogFunction(parent);
+        TPLogger.setLogFunction(function);
+        TPLogger.TRACE();
+        parent.lines.clear();
+        return function;
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void discardsOnSuccessLogsOnFailure() {
+        final CollectingFunction parent = new CollectingFunction();
+        final ScopedBufferLogFunction function = install(parent);
+        final TPLogger logger = new TPLogger("Test");
+
+        logger.debug("Outside of scope");
+        try (ScopedBufferLogFunction.Scope ignored = function.begin()) {
+            logger.debug("Successful {}", 1);
+            logger.info("Request 1");
+        }
+        Assert.assertEquals(Arrays.asList("INFO Request 1"), parent.lines);
+
+        try (ScopedBufferLogFunction.Scope scope = function.begin()) {
+            logger.trace("Parsing");
+            logger.debug("Loaded {} rows", 42);
+            logger.info("Request 2");
+            Assert.assertFalse(scope.isFailed());
+            logger.warn("Slow");
+            Assert.assertTrue(scope.isFailed());
+            logger.debug("After failure");
+        }
+        Assert.assertEquals(Arrays.asList(
+                "INFO Request 1",
+                "INFO Request 2",
+                "TRACE Parsing",
+                "DEBUG Loaded 42 rows",
+                "WARN Slow",
+                "DEBUG After failure"), parent.lines);
+        Assert.assertNull(function.current());
+    }
+
+    @Test
+    public void explicitFailureAndNesting() {
+        final CollectingFunction parent = new CollectingFunction();
+        final ScopedBufferLogFunction function = install(parent);
+        final TPLogger logger = new TPLogger("Test");
+
+        try (ScopedBufferLogFunction.Scope outer = function.begin()) {
+            logger.debug("Outer");
+            try (ScopedBufferLogFunction.Scope inner = function.begin()) {
+                Assert.assertSame(inner, function.current());
+                logger.debug("Inner");
+            }
+            Assert.assertSame(outer, function.current());
+            outer.fail();
+        }
+        Assert.assertEquals(Arrays.asList("DEBUG Outer"), parent.lines);
+    }
+
+    @Test
+    public void wrappedTasksLogIntoScope() throws Exception {
+        final CollectingFunction parent = new CollectingFunction();
+        final ScopedBufferLogFunction function = install(parent);
+        final TPLogger logger = new TPLogger("Test");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ScopedBufferLogFunction.Scope scope = function.begin()) {
+            logger.debug("Before task");
+            executor.submit(scope.wrap(() -> logger.debug("In task"))).get();
+            Assert.assertEquals("Task thread is not left in the scope", Boolean.FALSE,
+                    executor.submit(() -> function.current() != null).get());
+            logger.error("Failed");
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(Arrays.asList("DEBUG Before task", "DEBUG In task", "ERROR Failed"), parent.lines);
+    }
+
+    @Test
+    public void scopesArePooledAndBounded() {
+        final CollectingFunction parent = new CollectingFunction();
+        final ScopedBufferLogFunction function = new ScopedBufferLogFunction(parent, TPLogger.DEBUG, TPLogger.WARN, 1024);
+        final ScopedBufferLogFunction.Scope first = function.begin();
+        first.close();
+        final ScopedBufferLogFunction.Scope second = function.begin();
+        Assert.assertSame(first, second);
+
+        for (int i = 0; i < 100; i++) {
+            function.log("Test", 0L, TPLogger.DEBUG, null, "Message " + i);
+        }
+        second.fail();
+        second.close();
+        Assert.assertTrue(parent.lines.size() > 10);
+        Assert.assertTrue(parent.lines.size() < 100);
+        final int kept = parent.lines.size() - 1;
+        for (int i = 0; i < kept; i++) {
+            Assert.assertEquals("DEBUG Message " + i, parent.lines.get(i));
+        }
+        Assert.assertEquals("LOG Dropped " + (100 - kept) + " messages of a full scope buffer", parent.lines.get(kept));
+    }
+}
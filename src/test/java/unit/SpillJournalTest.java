@@ -0,0 +1,221 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.async.AsyncLogFunction;
+import com.darkyen.tproll.async.EventCodec;
+import com.darkyen.tproll.async.SpillJournal;
+import com.darkyen.tproll.util.LogContext;
+import com.darkyen.tproll.util.SimpleMarker;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Test for {@link SpillJournal} and its use in {@link AsyncLogFunction}
+ */
+public class SpillJournalTest {
+
+    @After
+    public void restore() {
+        TPLogger.INFO();
+    }
+
+    private static @NotNull File tempFile() throws Exception {
+        final File file = Files.createTempFile("tproll-journal", ".bin").toFile();
+        Assert.assertTrue(file.delete());
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static @NotNull String string(@NotNull ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void recoversAfterTornWrite() throws Exception {
+        final File file = tempFile();
+        SpillJournal journal = new SpillJournal(file, 1 << 20);
+        for (String record : new String[]{"one", "two", "three"}) {
+            Assert.assertTrue(journal.append(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8))));
+        }
+        Assert.assertEquals("one", string(journal.next()));
+        journal.close();
+        Assert.assertTrue(file.exists());
+
+        // Half-written record at the end
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(100);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        journal = new SpillJournal(file, 1 << 20);
+        // Not read records are read again, from the start
+        Assert.assertEquals("one", string(journal.next()));
+        Assert.assertEquals("two", string(journal.next()));
+        Assert.assertEquals("three", string(journal.next()));
+        Assert.assertNull(journal.next());
+        Assert.assertTrue(journal.append(ByteBuffer.wrap("four".getBytes(StandardCharsets.UTF_8))));
+        Assert.assertEquals("four", string(journal.next()));
+        Assert.assertTrue(journal.isEmpty());
+        journal.close();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void reopenedJournalContinuesAfterCommittedRecords() throws Exception {
+        final File file = tempFile();
+        SpillJournal journal = new SpillJournal(file, 1 << 20);
+        for (String record : new String[]{"one", "two", "three", "four"}) {
+            Assert.assertTrue(journal.append(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8))));
+        }
+        Assert.assertEquals("one", string(journal.next()));
+        Assert.assertEquals("two", string(journal.next()));
+        journal.commitRead();
+        // Read, but not committed, so it is read again
+        Assert.assertEquals("three", string(journal.next()));
+        journal.close();
+
+        journal = new SpillJournal(file, 1 << 20);
+        Assert.assertEquals("three", string(journal.next()));
+        Assert.assertEquals("four", string(journal.next()));
+        Assert.assertNull(journal.next());
+        journal.commitRead();
+        journal.truncateIfEmpty();
+        Assert.assertTrue(journal.append(ByteBuffer.wrap("five".getBytes(StandardCharsets.UTF_8))));
+        journal.close();
+
+        journal = new SpillJournal(file, 1 << 20);
+        Assert.assertEquals("five", string(journal.next()));
+        Assert.assertNull(journal.next());
+        journal.close();
+        Assert.assertFalse(file.exists());
+    }
+
+    private static final class CollectingFunction extends LogFunction {
+        final @NotNull ArrayList<String> lines = new ArrayList<>();
+        final @NotNull ArrayList<Marker> markers = new ArrayList<>();
+        final @NotNull Object gate = new Object();
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, Marker marker, @NotNull CharSequence content) {
+            synchronized (gate) {
+                synchronized (this) {
+                    lines.add(name + ": " + content);
+                    markers.add(marker);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void spillsFromInterruptedThread() throws Exception {
+        final File file = tempFile();
+        final CollectingFunction sink = new CollectingFunction();
+        final AsyncLogFunction async = new AsyncLogFunction(sink, 4096, file);
+        TPLogger.setLogFunction(async);
+        TPLogger.INFO();
+        final TPLogger logger = new TPLogger("Test");
+
+        synchronized (sink.gate) {
+            Thread.currentThread().interrupt();
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    logger.info("Message {}", i);
+                }
+                Assert.assertTrue(Thread.currentThread().isInterrupted());
+            } finally {
+                Thread.interrupted();
+            }
+            Assert.assertTrue(file.length() > 0);
+            // Journal still works after the interrupted appends
+            logger.info("After");
+        }
+        Assert.assertTrue(async.flush(10_000));
+
+        synchronized (sink) {
+            Assert.assertEquals(1001, sink.lines.size());
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals("Test: Message " + i, sink.lines.get(i));
+            }
+            Assert.assertEquals("Test: After", sink.lines.get(1000));
+        }
+        async.dispose();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void spillsInsteadOfDropping() throws Exception {
+        final File file = tempFile();
+        final CollectingFunction sink = new CollectingFunction();
+        final AsyncLogFunction async = new AsyncLogFunction(sink, 4096, file);
+        TPLogger.setLogFunction(async);
+        TPLogger.INFO();
+        final TPLogger logger = new TPLogger("Test");
+
+        synchronized (sink.gate) {
+            // Consumer is stuck, so the ring fills up
+            for (int i = 0; i < 1000; i++) {
+                logger.info("Message {}", i);
+            }
+            Assert.assertTrue(file.length() > 0);
+        }
+        Assert.assertTrue(async.flush(10_000));
+
+        synchronized (sink) {
+            Assert.assertEquals(1000, sink.lines.size());
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals("Test: Message " + i, sink.lines.get(i));
+            }
+        }
+        async.dispose();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void replaysJournalOfDeadProcess() throws Exception {
+        final File file = tempFile();
+        final Marker marker = new SimpleMarker() {
+            @Override
+            public String getName() {
+                return "Audit";
+            }
+        };
+
+        // Previous process
+        final SpillJournal journal = new SpillJournal(file, 1 << 20);
+        final EventCodec.Encoder encoder = new EventCodec().selfContainedEncoder();
+        final ByteBuffer record = encoder.encode("Old", 1000L, 0, 0L, TPLogger.WARN, marker, "Left {}", true, Collections.singletonList("behind"), "main", LogContext.EMPTY);
+        Assert.assertNotNull(record);
+        Assert.assertTrue(journal.append(record));
+        // Dies without reading it, file stays
+        journal.close();
+
+        final CollectingFunction sink = new CollectingFunction();
+        final AsyncLogFunction async = new AsyncLogFunction(sink, 4096, file);
+        async.log("New", 2000L, TPLogger.INFO, null, "Started");
+        Assert.assertTrue(async.flush(10_000));
+        synchronized (sink) {
+            Assert.assertEquals(2, sink.lines.size());
+            Assert.assertEquals("Old: Left behind", sink.lines.get(0));
+            Assert.assertEquals("Audit", sink.markers.get(0).getName());
+            Assert.assertEquals("New: Started", sink.lines.get(1));
+        }
+        async.dispose();
+        Assert.assertFalse(file.exists());
+    }
+}
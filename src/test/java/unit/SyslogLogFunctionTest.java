@@ -0,0 +1,228 @@
+package unit;
+
+import com.darkyen.tproll.LogFunction;
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.SyslogLogFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Marker;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link SyslogLogFunction}, with a collector in this process.
+ */
+public class SyslogLogFunctionTest {
+
+    private static final String HEADER = "<\\d+>1 \\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3,6}Z \\S+ test \\S+ - - ";
+
+    /** Receives octet-counted messages over TCP, one connection at a time */
+    private static final class TcpCollector implements AutoCloseable {
+        final @NotNull ServerSocket server;
+        final @NotNull LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private volatile @Nullable Socket connection;
+
+        TcpCollector(int port) throws IOException {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            final Thread thread = new Thread(this::accept, "Test collector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    try (Socket socket = server.accept()) {
+                        connection = socket;
+                        final InputStream in = new BufferedInputStream(socket.getInputStream());
+                        while (true) {
+                            messages.add(readFrame(in));
+                        }
+                    } catch (EOFException ignored) {
+                        // Next connection
+                    }
+                }
+            } catch (IOException ignored) {
+                // Closed
+            }
+        }
+
+        private static @NotNull String readFrame(@NotNull InputStream in) throws IOException {
+            int length = 0;
+            int b;
+            while ((b = in.read()) != ' ') {
+                if (b < '0' || b > '9') throw new EOFException();
+                length = length * 10 + (b - '0');
+            }
+            final byte[] message = new byte[length];
+            for (int read = 0; read < length; ) {
+                final int r = in.read(message, read, length - read);
+                if (r < 0) throw new EOFException();
+                read += r;
+            }
+            return new String(message, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            final Socket connection = this.connection;
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static final class CollectingFunction extends LogFunction {
+        final @NotNull LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void log(@NotNull String name, long time, byte level, @Nullable Marker marker, @NotNull CharSequence content) {
+            messages.add(content.toString());
+        }
+    }
+
+    private static @NotNull String take(@NotNull LinkedBlockingQueue<String> messages) throws InterruptedException {
+        final String message = messages.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull("Message was not received", message);
+        return message;
+    }
+
+    @Test
+    public void tcpSendsFramedMessages() throws Exception {
+        try (TcpCollector collector = new TcpCollector(0)) {
+            final CollectingFunction fallback = new CollectingFunction();
+            final SyslogLogFunction function = new SyslogLogFunction("127.0.0.1", collector.port(), SyslogLogFunction.Transport.TCP, "test", fallback);
+            final long now = System.currentTimeMillis();
+            function.log("Test", now, TPLogger.WARN, null, "Multi\nline žluťoučký");
+            final int count = 20000;
+            for (int i = 0; i < count; i++) {
+                function.log("Test", now, TPLogger.INFO, null, "Message " + i);
+            }
+            Assert.assertTrue(function.flush(10_000));
+
+            final String first = take(collector.messages);
+            Assert.assertTrue(first, first.matches("<12>" + HEADER.substring(5) + "Test: Multi\nline žluťoučký"));
+            // Messages which did not fit into the buffer went to the fallback, in order
+            int fromCollector = 0;
+            int fromFallback = 0;
+            for (int i = 0; i < count; i++) {
+                final String message = collector.messages.peek();
+                if (message != null && message.endsWith("Test: Message " + i)) {
+                    Assert.assertTrue(message, message.matches("<14>" + HEADER.substring(5) + "Test: Message " + i));
+                    collector.messages.poll();
+                    fromCollector++;
+                } else {
+                    Assert.assertEquals("Message " + i, take(fallback.messages));
+                    fromFallback++;
+                }
+            }
+            Assert.assertEquals(count, fromCollector + fromFallback);
+            Assert.assertTrue(fromCollector > 0);
+            function.dispose();
+        }
+    }
+
+    @Test
+    public void udpSendsDatagrams() throws Exception {
+        try (DatagramSocket collector = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            collector.setSoTimeout(10_000);
+            final SyslogLogFunction function = new SyslogLogFunction("127.0.0.1", collector.getLocalPort(), SyslogLogFunction.Transport.UDP, "test", null);
+            function.log("Test", System.currentTimeMillis(), 5, 0L, TPLogger.ERROR, null, "First");
+            function.log("Other", 0L, TPLogger.DEBUG, null, "Second");
+            Assert.assertTrue(function.flush(10_000));
+
+            final DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+            collector.receive(packet);
+            final String first = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            Assert.assertTrue(first, first.matches("<11>" + HEADER.substring(5) + "Test: First"));
+            collector.receive(packet);
+            final String second = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            Assert.assertTrue(second, second.matches("<15>1 - \\S+ test \\S+ - - Other: Second"));
+            function.dispose();
+        }
+    }
+
+    @Test
+    public void udpTruncatesAtCharacterBoundary() throws Exception {
+        try (DatagramSocket collector = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            collector.setSoTimeout(10_000);
+            final SyslogLogFunction function = new SyslogLogFunction("127.0.0.1", collector.getLocalPort(), SyslogLogFunction.Transport.UDP, "test", null);
+            final StringBuilder content = new StringBuilder();
+            for (int i = 0; i < SyslogLogFunction.MAX_DATAGRAM_BYTES; i++) {
+                // Three bytes each
+                content.append('\u20AC');
+            }
+            function.log("Test", 0L, TPLogger.INFO, null, content);
+            Assert.assertTrue(function.flush(10_000));
+
+            final DatagramPacket packet = new DatagramPacket(new byte[2 * SyslogLogFunction.MAX_DATAGRAM_BYTES], 2 * SyslogLogFunction.MAX_DATAGRAM_BYTES);
+            collector.receive(packet);
+            Assert.assertTrue(packet.getLength() <= SyslogLogFunction.MAX_DATAGRAM_BYTES);
+            final String received = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            Assert.assertTrue(received.endsWith("\u20AC"));
+            Assert.assertArrayEquals(received.getBytes(StandardCharsets.UTF_8), Arrays.copyOf(packet.getData(), packet.getLength()));
+            function.dispose();
+        }
+    }
+
+    @Test
+    public void reconnectsAndFallsBackWhileDisconnected() throws Exception {
+        final CollectingFunction fallback = new CollectingFunction();
+        final int port;
+        final SyslogLogFunction function;
+        try (TcpCollector collector = new TcpCollector(0)) {
+            port = collector.port();
+            function = new SyslogLogFunction("127.0.0.1", port, SyslogLogFunction.Transport.TCP, "test", fallback);
+            function.log("Test", System.currentTimeMillis(), TPLogger.INFO, null, "Before");
+            Assert.assertTrue(take(collector.messages).endsWith("Test: Before"));
+        }
+
+        // Collector is gone, writes start failing and messages go to the fallback
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!function.isDisconnected()) {
+            Assert.assertTrue("Disconnection was not noticed", System.currentTimeMillis() < deadline);
+            function.log("Test", System.currentTimeMillis(), TPLogger.INFO, null, "Lost");
+            Thread.sleep(10);
+        }
+        function.log("Test", System.currentTimeMillis(), TPLogger.INFO, null, "Fallback");
+        String message;
+        do {
+            message = take(fallback.messages);
+        } while (!message.equals("Fallback"));
+
+        try (TcpCollector collector = new TcpCollector(port)) {
+            while (function.isDisconnected()) {
+                Assert.assertTrue("Did not reconnect", System.currentTimeMillis() < deadline + 10_000);
+                Thread.sleep(10);
+            }
+            function.log("Test", System.currentTimeMillis(), TPLogger.INFO, null, "After");
+            do {
+                message = take(collector.messages);
+            } while (!message.endsWith("Test: After"));
+            function.dispose();
+        }
+    }
+}
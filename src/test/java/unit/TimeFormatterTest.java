@@ -0,0 +1,127 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.util.TimeFormatter;
+import com.darkyen.tproll.util.TimeProvider;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Test for {@link TimeFormatter.AbsoluteTimeFormatter}, which must produce the same output as the plain {@link DateTimeFormatter}
+ */
+public class TimeFormatterTest {
+
+    @After
+    public void restore() {
+        TPLogger.setTimeProvider(TimeProvider.CURRENT_TIME_PROVIDER);
+    }
+
+    private static void setZone(@NotNull ZoneId zone) {
+        TPLogger.setTimeProvider(new TimeProvider() {
+            @Override
+            public long timeMillis() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public @NotNull ZoneId timeZone() {
+                return zone;
+            }
+        });
+    }
+
+    private static void assertSameOutput(@NotNull DateTimeFormatter formatter, @NotNull ZoneId zone, long from, long step, int count) {
+        setZone(zone);
+        final TimeFormatter.AbsoluteTimeFormatter timeFormatter = new TimeFormatter.AbsoluteTimeFormatter(formatter);
+        final StringBuilder sb = new StringBuilder();
+        long millis = from;
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            timeFormatter.format(millis, sb);
+            Assert.assertEquals(zone + " " + millis, formatter.format(Instant.ofEpochMilli(millis).atZone(zone)), sb.toString());
+            millis += step;
+        }
+    }
+
+    @Test
+    public void defaultFormatter() {
+        final DateTimeFormatter formatter = TimeFormatter.AbsoluteTimeFormatter.DEFAULT_DATE_TIME_FORMATTER;
+        final ZoneId prague = ZoneId.of("Europe/Prague");
+        final long dstStart = ZonedDateTime.of(2021, 3, 28, 1, 58, 0, 0, prague).toInstant().toEpochMilli();
+        final long dstEnd = ZonedDateTime.of(2021, 10, 31, 1, 58, 0, 0, prague).toInstant().toEpochMilli();
+        assertSameOutput(formatter, prague, dstStart, 997, 1000);
+        assertSameOutput(formatter, prague, dstEnd, 997, 10000);
+        assertSameOutput(formatter, ZoneId.of("UTC"), -5000, 7, 2000);
+        // Offset of +00:19:32, changes in the middle of a minute
+        final ZoneId amsterdam = ZoneId.of("Europe/Amsterdam");
+        final long oddOffsetChange = ZonedDateTime.of(1937, 7, 1, 0, 0, 0, 0, amsterdam).toInstant().toEpochMilli() - 100_000L;
+        assertSameOutput(formatter, amsterdam, oddOffsetChange, 333, 1000);
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            assertSameOutput(formatter, prague, random.nextLong() % 4_000_000_000_000L, random.nextInt(100_000), 20);
+        }
+    }
+
+    @Test
+    public void customFormatters() {
+        final ZoneId zone = ZoneId.of("America/New_York");
+        final long start = ZonedDateTime.of(2020, 11, 1, 1, 59, 50, 0, zone).toInstant().toEpochMilli();
+        final String[] patterns = {"HH:mm", "H:m:s", "yyyy-MM-dd HH:mm:ss.SSS", "ss 'at' mm ss", "EEEE HH:mm:ss VV xxx", "hh:mm:ss a"};
+        for (String pattern : patterns) {
+            assertSameOutput(DateTimeFormatter.ofPattern(pattern), zone, start, 431, 3000);
+        }
+    }
+
+    @Test
+    public void millisecondsAcrossTransitions() {
+        final ZoneId prague = ZoneId.of("Europe/Prague");
+        final long dstStart = ZonedDateTime.of(2021, 3, 28, 1, 59, 58, 0, prague).toInstant().toEpochMilli();
+        final long dstEnd = ZonedDateTime.of(2021, 10, 31, 2, 59, 58, 0, prague).toInstant().toEpochMilli();
+        final ZoneId amsterdam = ZoneId.of("Europe/Amsterdam");
+        final long oddOffsetChange = ZonedDateTime.of(1937, 7, 1, 0, 0, 0, 0, amsterdam).toInstant().toEpochMilli() - 5_000L;
+        final String[] patterns = {"HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "SSS mm", "HH:mm:ss,SSS VV", "s.SSS"};
+        for (String pattern : patterns) {
+            final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern);
+            assertSameOutput(formatter, prague, dstStart, 7, 1000);
+            assertSameOutput(formatter, prague, dstEnd, 7, 1000);
+            assertSameOutput(formatter, prague, dstEnd + 3_600_000L, 7, 1000);
+            assertSameOutput(formatter, amsterdam, oddOffsetChange, 13, 1000);
+            assertSameOutput(formatter, ZoneId.of("UTC"), -3000, 1, 6000);
+        }
+        // Other fractions are not patched, but still correct
+        assertSameOutput(DateTimeFormatter.ofPattern("HH:mm:ss.SS"), prague, dstStart, 7, 1000);
+    }
+
+    @Test
+    public void highResolution() {
+        setZone(ZoneId.of("UTC"));
+        final StringBuilder sb = new StringBuilder();
+        new TimeFormatter.AbsoluteTimeFormatter(DateTimeFormatter.ofPattern("HH:mm:ss.SSSSSS")).format(1_234L, 567_891, sb);
+        sb.append('|');
+        new TimeFormatter.AbsoluteTimeFormatter().format(1_234L, 567_891, sb);
+        sb.append('|');
+        new TimeFormatter.RelativeTimeFormatter(false, false, true, true, true, true).format(61_234L, 5_891, sb);
+        Assert.assertEquals("00:00:01.234567|1970-01-01 00:00:01|1:01:234.005", sb.toString());
+    }
+
+    @Test
+    public void zoneChange() {
+        final TimeFormatter.AbsoluteTimeFormatter timeFormatter = new TimeFormatter.AbsoluteTimeFormatter();
+        final StringBuilder sb = new StringBuilder();
+        setZone(ZoneId.of("UTC"));
+        timeFormatter.format(0, sb);
+        setZone(ZoneId.of("Asia/Tokyo"));
+        sb.append('|');
+        timeFormatter.format(1000, sb);
+        Assert.assertEquals("1970-01-01 00:00:00|1970-01-01 09:00:01", sb.toString());
+    }
+}
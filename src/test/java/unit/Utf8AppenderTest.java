@@ -0,0 +1,129 @@
+package unit;
+
+import com.darkyen.tproll.TPLogger;
+import com.darkyen.tproll.logfunctions.FileLogFunction;
+import com.darkyen.tproll.logfunctions.LogFileCreationStrategy;
+import com.darkyen.tproll.logfunctions.LogFileHandler;
+import com.darkyen.tproll.util.Utf8Appender;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Test for {@link Utf8Appender} and the byte path of {@link FileLogFunction}
+ */
+public class Utf8AppenderTest {
+
+    private static byte @NotNull [] bytes(@NotNull Utf8Appender appender) {
+        final ByteBuffer buffer = appender.buffer();
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    @Test
+    public void encodesLikeString() {
+        final char[] alphabet = {'a', 'Z', '\n', 'é', 'ř', '€', '中', '￿', '\uD83D', '\uDE00', '\uDBFF', '\uDFFF'};
+        final Random random = new Random(7);
+        final Utf8Appender appender = new Utf8Appender(16);
+        for (int i = 0; i < 2000; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(40);
+            for (int c = 0; c < length; c++) {
+                sb.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            final String text = sb.toString();
+
+            appender.clear();
+            // Split into parts, so that surrogate pairs get split too
+            final int split = length == 0 ? 0 : random.nextInt(length);
+            appender.append(text, 0, split);
+            if (split < length) {
+                appender.append(text.charAt(split));
+                appender.append(text.substring(split + 1).toCharArray());
+            }
+            Assert.assertArrayEquals(text, text.getBytes(StandardCharsets.UTF_8), bytes(appender));
+        }
+    }
+
+    private static @NotNull LogFileHandler handler(@NotNull File directory, @NotNull File logFile) {
+        return new LogFileHandler(directory, new LogFileCreationStrategy() {
+            @Override
+            public @NotNull File getLogFile(@NotNull File logDirectory) {
+                return logFile;
+            }
+
+            @Override
+            public void performCleanup(@NotNull File logDirectory, @NotNull File currentLogFile, @NotNull TPLogger logger) {
+            }
+
+            @Override
+            public boolean shouldAppend() {
+                return false;
+            }
+        }, false);
+    }
+
+    @Test
+    public void fileLogFunction() throws Exception {
+        final File directory = Files.createTempDirectory("tproll-utf8").toFile();
+        final File logFile = new File(directory, "log.txt");
+        final FileLogFunction function = new FileLogFunction(null, handler(directory, logFile), false);
+
+        final StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            big.append("ěšč😀");
+        }
+        function.log("Test", 0, TPLogger.INFO, null, "Žluťoučký kůň 😀");
+        function.log("Test", 0, TPLogger.WARN, null, big);
+        function.dispose();
+
+        final String[] lines = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(4, lines.length);
+        Assert.assertTrue(lines[0].startsWith("Log file opened at "));
+        Assert.assertEquals("[INFO ] Test: Žluťoučký kůň 😀", lines[1]);
+        Assert.assertEquals("[WARN ] Test: " + big, lines[2]);
+        Assert.assertTrue(lines[3].startsWith("Log file closed at "));
+
+        Assert.assertTrue(logFile.delete());
+        Assert.assertTrue(directory.delete());
+    }
+
+    @Test
+    public void interruptedThreadDoesNotBreakFile() throws Exception {
+        final File directory = Files.createTempDirectory("tproll-interrupt").toFile();
+        final File logFile = new File(directory, "log.txt");
+        final FileLogFunction function = new FileLogFunction(null, handler(directory, logFile), false);
+
+        final StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            big.append("interrupted ");
+        }
+        Thread.currentThread().interrupt();
+        try {
+            // Both flush the buffer and write past it on this thread
+            function.log("Test", 0, TPLogger.ERROR, null, big);
+            function.log("Test", 0, TPLogger.ERROR, null, big);
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        function.log("Test", 0, TPLogger.INFO, null, "After");
+        function.dispose();
+
+        final String[] lines = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(5, lines.length);
+        Assert.assertEquals("[ERROR] Test: " + big, lines[1]);
+        Assert.assertEquals("[ERROR] Test: " + big, lines[2]);
+        Assert.assertEquals("[INFO ] Test: After", lines[3]);
+
+        Assert.assertTrue(logFile.delete());
+        Assert.assertTrue(directory.delete());
+    }
+}